@@ -0,0 +1,52 @@
+package datadog.trace.instrumentation.java_concurrent;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Calls a task with the context active when it was submitted. Injected into the bootstrap
+ * classloader.
+ */
+public final class CallableWrapper<V> implements Callable<V> {
+  private final Callable<V> delegate;
+  private final Object captured;
+
+  private CallableWrapper(final Callable<V> delegate, final Object captured) {
+    this.delegate = delegate;
+    this.captured = captured;
+  }
+
+  /**
+   * @return the task wrapped with the active context, or the task itself if no context is active or
+   *     the task is already wrapped
+   */
+  public static <V> Callable<V> wrap(final Callable<V> task) {
+    if (task == null || task instanceof CallableWrapper) {
+      return task;
+    }
+    final Object captured = ContextPropagator.captureActive();
+    return captured == null ? task : new CallableWrapper<>(task, captured);
+  }
+
+  /** Release the context of a wrapped task which will not run, e.g. as it was rejected. */
+  public static void cancel(final Callable<?> task) {
+    if (task instanceof CallableWrapper) {
+      ContextPropagator.INSTANCE.cancel(((CallableWrapper<?>) task).captured);
+    }
+  }
+
+  @Override
+  public V call() throws Exception {
+    final ContextPropagator propagator = ContextPropagator.INSTANCE;
+    final Object scope = propagator.activate(captured);
+    try {
+      return delegate.call();
+    } finally {
+      propagator.deactivate(scope, captured);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return delegate.toString();
+  }
+}
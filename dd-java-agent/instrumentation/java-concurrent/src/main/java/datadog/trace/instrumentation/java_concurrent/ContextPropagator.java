@@ -0,0 +1,42 @@
+package datadog.trace.instrumentation.java_concurrent;
+
+/**
+ * Bridge between the executors, loaded by the bootstrap classloader, and the tracer, loaded by the
+ * agent's classloader.
+ *
+ * <p>This class and the task wrappers are injected into the bootstrap classloader, so that the
+ * advice applied to {@code java.util.concurrent} can use them. They only reference JDK types: the
+ * captured context and its scope are opaque objects, handled by the tracer side implementation.
+ */
+public abstract class ContextPropagator {
+
+  /** The tracer side, set once the helpers are injected. Nothing is propagated until then */
+  public static volatile ContextPropagator INSTANCE = null;
+
+  /**
+   * Capture the active context of the current thread, keeping its trace open until the captured
+   * context is deactivated or cancelled.
+   *
+   * @return the captured context, or null if none is active
+   */
+  public abstract Object capture();
+
+  /**
+   * Activate a captured context on the current thread.
+   *
+   * @return the scope to pass to {@link #deactivate(Object, Object)}
+   */
+  public abstract Object activate(Object captured);
+
+  /** Close the scope and release the captured context, once the async work is done. */
+  public abstract void deactivate(Object scope, Object captured);
+
+  /** Release a captured context which will never be activated. */
+  public abstract void cancel(Object captured);
+
+  /** @return the active context of the current thread, or null if none is active */
+  public static Object captureActive() {
+    final ContextPropagator propagator = INSTANCE;
+    return propagator == null ? null : propagator.capture();
+  }
+}
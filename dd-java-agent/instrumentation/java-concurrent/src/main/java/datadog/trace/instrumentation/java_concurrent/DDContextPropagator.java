@@ -0,0 +1,47 @@
+package datadog.trace.instrumentation.java_concurrent;
+
+import datadog.opentracing.scopemanager.Continuation;
+import datadog.opentracing.scopemanager.DDScopeManager;
+import io.opentracing.Scope;
+import io.opentracing.ScopeManager;
+import io.opentracing.util.GlobalTracer;
+
+/**
+ * Propagates the active span of the global tracer, with {@link Continuation}s. Nothing is captured
+ * if the global tracer is not a Datadog tracer.
+ */
+public class DDContextPropagator extends ContextPropagator {
+
+  /** Must only be called once {@link ContextPropagator} is injected, see {@link Helpers} */
+  static void register() {
+    ContextPropagator.INSTANCE = new DDContextPropagator();
+  }
+
+  @Override
+  public Object capture() {
+    final ScopeManager scopeManager = GlobalTracer.get().scopeManager();
+    if (scopeManager instanceof DDScopeManager) {
+      return ((DDScopeManager) scopeManager).capture();
+    }
+    return null;
+  }
+
+  @Override
+  public Object activate(final Object captured) {
+    return ((Continuation) captured).activate();
+  }
+
+  @Override
+  public void deactivate(final Object scope, final Object captured) {
+    try {
+      ((Scope) scope).close();
+    } finally {
+      ((Continuation) captured).close();
+    }
+  }
+
+  @Override
+  public void cancel(final Object captured) {
+    ((Continuation) captured).close();
+  }
+}
@@ -0,0 +1,85 @@
+package datadog.trace.instrumentation.java_concurrent;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.takesArgument;
+import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
+
+import com.google.auto.service.AutoService;
+import datadog.trace.agent.tooling.DDAdvice;
+import datadog.trace.agent.tooling.Instrumenter;
+import java.util.concurrent.Callable;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.asm.Advice;
+
+/**
+ * Propagates the active span to the tasks run by thread pool executors. Tasks submitted while a
+ * span is active are wrapped, and the trace is kept open until they are done.
+ *
+ * <p>{@code ScheduledThreadPoolExecutor} tasks are submitted through {@code schedule}, other
+ * executor services through {@code ThreadPoolExecutor.execute}. Periodic tasks are not wrapped, as
+ * they would keep their trace open forever.
+ */
+@AutoService(Instrumenter.class)
+public final class ExecutorInstrumentation extends Instrumenter.Configurable {
+
+  public ExecutorInstrumentation() {
+    super("java-concurrent", "executor");
+  }
+
+  @Override
+  public AgentBuilder apply(final AgentBuilder agentBuilder) {
+    if (!Helpers.install()) {
+      return agentBuilder;
+    }
+    return agentBuilder
+        .type(named("java.util.concurrent.ThreadPoolExecutor"))
+        .transform(
+            DDAdvice.create()
+                .advice(
+                    named("execute").and(takesArguments(1)).and(takesArgument(0, Runnable.class)),
+                    WrapRunnableAdvice.class.getName()))
+        .asDecorator()
+        .type(named("java.util.concurrent.ScheduledThreadPoolExecutor"))
+        .transform(
+            DDAdvice.create()
+                .advice(
+                    named("schedule").and(takesArguments(3)).and(takesArgument(0, Runnable.class)),
+                    WrapRunnableAdvice.class.getName()))
+        .transform(
+            DDAdvice.create()
+                .advice(
+                    named("schedule").and(takesArguments(3)).and(takesArgument(0, Callable.class)),
+                    WrapCallableAdvice.class.getName()))
+        .asDecorator();
+  }
+
+  public static class WrapRunnableAdvice {
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static void wrap(@Advice.Argument(value = 0, readOnly = false) Runnable task) {
+      task = RunnableWrapper.wrap(task);
+    }
+
+    @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
+    public static void cancelRejected(
+        @Advice.Argument(0) final Runnable task, @Advice.Thrown final Throwable thrown) {
+      if (thrown != null) {
+        RunnableWrapper.cancel(task);
+      }
+    }
+  }
+
+  public static class WrapCallableAdvice {
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static void wrap(@Advice.Argument(value = 0, readOnly = false) Callable<?> task) {
+      task = CallableWrapper.wrap(task);
+    }
+
+    @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
+    public static void cancelRejected(
+        @Advice.Argument(0) final Callable<?> task, @Advice.Thrown final Throwable thrown) {
+      if (thrown != null) {
+        CallableWrapper.cancel(task);
+      }
+    }
+  }
+}
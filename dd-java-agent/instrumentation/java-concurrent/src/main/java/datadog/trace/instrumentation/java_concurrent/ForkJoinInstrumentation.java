@@ -0,0 +1,154 @@
+package datadog.trace.instrumentation.java_concurrent;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+import static net.bytebuddy.matcher.ElementMatchers.returns;
+import static net.bytebuddy.matcher.ElementMatchers.takesArgument;
+import static net.bytebuddy.matcher.ElementMatchers.takesArguments;
+
+import com.google.auto.service.AutoService;
+import datadog.trace.agent.tooling.DDAdvice;
+import datadog.trace.agent.tooling.Instrumenter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinTask;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.asm.Advice;
+
+/**
+ * Propagates the active span to the tasks run by fork/join pools, which includes the async stages
+ * of {@code CompletableFuture} run by the common pool.
+ *
+ * <p>Plain runnables and callables are wrapped. Fork/join tasks, e.g. the async stages, keep their
+ * identity: their context is captured when they are queued, by the pool or by {@code fork()}, and
+ * activated around their execution in {@code ForkJoinTask.doExec()}.
+ */
+@AutoService(Instrumenter.class)
+public final class ForkJoinInstrumentation extends Instrumenter.Configurable {
+
+  public ForkJoinInstrumentation() {
+    super("java-concurrent", "fork-join");
+  }
+
+  @Override
+  public AgentBuilder apply(final AgentBuilder agentBuilder) {
+    if (!Helpers.install()) {
+      return agentBuilder;
+    }
+    return agentBuilder
+        .type(named("java.util.concurrent.ForkJoinPool"))
+        .transform(
+            DDAdvice.create()
+                .advice(
+                    named("execute").or(named("submit")).and(takesArgument(0, Runnable.class)),
+                    SubmitRunnableAdvice.class.getName()))
+        .transform(
+            DDAdvice.create()
+                .advice(
+                    named("submit").and(takesArguments(1)).and(takesArgument(0, Callable.class)),
+                    SubmitCallableAdvice.class.getName()))
+        .transform(
+            DDAdvice.create()
+                .advice(
+                    named("execute")
+                        .or(named("submit"))
+                        .or(named("invoke"))
+                        .and(takesArguments(1))
+                        .and(takesArgument(0, ForkJoinTask.class)),
+                    SubmitForkJoinTaskAdvice.class.getName()))
+        .asDecorator()
+        .type(named("java.util.concurrent.ForkJoinTask"))
+        .transform(
+            DDAdvice.create()
+                .advice(named("fork").and(takesArguments(0)), ForkAdvice.class.getName()))
+        .transform(
+            DDAdvice.create()
+                .advice(named("doExec").and(takesArguments(0)), ExecAdvice.class.getName()))
+        .transform(
+            DDAdvice.create()
+                .advice(
+                    named("cancel").and(takesArguments(1)).and(returns(boolean.class)),
+                    CancelAdvice.class.getName()))
+        .asDecorator();
+  }
+
+  public static class SubmitRunnableAdvice {
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static void wrap(@Advice.Argument(value = 0, readOnly = false) Runnable task) {
+      if (task instanceof ForkJoinTask) {
+        ForkJoinTaskContext.capture((ForkJoinTask<?>) task);
+      } else {
+        task = RunnableWrapper.wrap(task);
+      }
+    }
+
+    @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
+    public static void cancelRejected(
+        @Advice.Argument(0) final Runnable task, @Advice.Thrown final Throwable thrown) {
+      if (thrown != null) {
+        if (task instanceof ForkJoinTask) {
+          ForkJoinTaskContext.cancel((ForkJoinTask<?>) task);
+        } else {
+          RunnableWrapper.cancel(task);
+        }
+      }
+    }
+  }
+
+  public static class SubmitCallableAdvice {
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static void wrap(@Advice.Argument(value = 0, readOnly = false) Callable<?> task) {
+      task = CallableWrapper.wrap(task);
+    }
+
+    @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
+    public static void cancelRejected(
+        @Advice.Argument(0) final Callable<?> task, @Advice.Thrown final Throwable thrown) {
+      if (thrown != null) {
+        CallableWrapper.cancel(task);
+      }
+    }
+  }
+
+  public static class SubmitForkJoinTaskAdvice {
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static void capture(@Advice.Argument(0) final ForkJoinTask<?> task) {
+      ForkJoinTaskContext.capture(task);
+    }
+
+    @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
+    public static void cancelRejected(
+        @Advice.Argument(0) final ForkJoinTask<?> task, @Advice.Thrown final Throwable thrown) {
+      if (thrown != null) {
+        ForkJoinTaskContext.cancel(task);
+      }
+    }
+  }
+
+  public static class ForkAdvice {
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static void capture(@Advice.This final ForkJoinTask<?> task) {
+      ForkJoinTaskContext.capture(task);
+    }
+  }
+
+  public static class ExecAdvice {
+    @Advice.OnMethodEnter(suppress = Throwable.class)
+    public static Object activate(@Advice.This final ForkJoinTask<?> task) {
+      return ForkJoinTaskContext.activate(task);
+    }
+
+    @Advice.OnMethodExit(onThrowable = Throwable.class, suppress = Throwable.class)
+    public static void deactivate(@Advice.Enter final Object activated) {
+      ForkJoinTaskContext.deactivate(activated);
+    }
+  }
+
+  public static class CancelAdvice {
+    @Advice.OnMethodExit(suppress = Throwable.class)
+    public static void release(
+        @Advice.This final ForkJoinTask<?> task, @Advice.Return final boolean cancelled) {
+      if (cancelled) {
+        ForkJoinTaskContext.cancel(task);
+      }
+    }
+  }
+}
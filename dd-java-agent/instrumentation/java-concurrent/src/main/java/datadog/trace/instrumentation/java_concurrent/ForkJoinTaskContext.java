@@ -0,0 +1,131 @@
+package datadog.trace.instrumentation.java_concurrent;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Contexts captured for fork/join tasks, until they are executed. Injected into the bootstrap
+ * classloader.
+ *
+ * <p>Fork/join tasks cannot be wrapped, as the pools rely on their type, e.g. to join them. The
+ * context is kept aside instead, and activated around {@code ForkJoinTask.doExec()}. At most
+ * {@link #MAX_PENDING} tasks are tracked, beyond which their context is not propagated.
+ *
+ * <p>Tasks are keyed by identity, whatever their {@code equals}, and weakly: the context of a task
+ * collected without being executed, e.g. as its pool was dropped, is released by the next capture.
+ */
+public final class ForkJoinTaskContext {
+  static final int MAX_PENDING = 10000;
+
+  private static final ConcurrentHashMap<TaskKey, Pending> PENDING = new ConcurrentHashMap<>();
+
+  private static final ReferenceQueue<ForkJoinTask<?>> COLLECTED = new ReferenceQueue<>();
+
+  /** Capture the active context for a task about to be queued. */
+  public static void capture(final ForkJoinTask<?> task) {
+    if (task == null) {
+      return;
+    }
+    final Object captured = ContextPropagator.captureActive();
+    if (captured == null) {
+      return;
+    }
+    releaseCollected();
+    if (PENDING.size() >= MAX_PENDING
+        || PENDING.putIfAbsent(new TaskKey(task, COLLECTED), new Pending(captured)) != null) {
+      // Not tracked, or already captured when it was queued
+      ContextPropagator.INSTANCE.cancel(captured);
+    }
+  }
+
+  /**
+   * Activate the context captured for a task about to be executed.
+   *
+   * @return what to pass to {@link #deactivate(Object)} once executed, or null if no context was
+   *     captured
+   */
+  public static Object activate(final ForkJoinTask<?> task) {
+    if (PENDING.isEmpty()) {
+      return null;
+    }
+    final Pending pending = PENDING.remove(new TaskKey(task, null));
+    if (pending != null) {
+      pending.scope = ContextPropagator.INSTANCE.activate(pending.captured);
+    }
+    return pending;
+  }
+
+  public static void deactivate(final Object activated) {
+    if (activated != null) {
+      final Pending pending = (Pending) activated;
+      ContextPropagator.INSTANCE.deactivate(pending.scope, pending.captured);
+    }
+  }
+
+  /** Release the context captured for a task which will not be executed. */
+  public static void cancel(final ForkJoinTask<?> task) {
+    if (PENDING.isEmpty()) {
+      return;
+    }
+    final Pending pending = PENDING.remove(new TaskKey(task, null));
+    if (pending != null) {
+      ContextPropagator.INSTANCE.cancel(pending.captured);
+    }
+  }
+
+  /** Release the contexts of the tasks collected without being executed nor cancelled */
+  private static void releaseCollected() {
+    Reference<?> key;
+    while ((key = COLLECTED.poll()) != null) {
+      final Pending pending = PENDING.remove(key);
+      if (pending != null) {
+        ContextPropagator.INSTANCE.cancel(pending.captured);
+      }
+    }
+  }
+
+  static int size() {
+    return PENDING.size();
+  }
+
+  /** Weak reference to a task, equal to the references to the same task */
+  static final class TaskKey extends WeakReference<ForkJoinTask<?>> {
+    private final int hash;
+
+    TaskKey(final ForkJoinTask<?> task, final ReferenceQueue<ForkJoinTask<?>> queue) {
+      super(task, queue);
+      hash = System.identityHashCode(task);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (this == other) {
+        return true;
+      }
+      if (!(other instanceof TaskKey)) {
+        return false;
+      }
+      final ForkJoinTask<?> task = get();
+      return task != null && task == ((TaskKey) other).get();
+    }
+  }
+
+  static final class Pending {
+    private final Object captured;
+    private Object scope;
+
+    Pending(final Object captured) {
+      this.captured = captured;
+    }
+  }
+
+  private ForkJoinTaskContext() {}
+}
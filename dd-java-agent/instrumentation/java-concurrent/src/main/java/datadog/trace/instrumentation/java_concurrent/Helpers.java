@@ -0,0 +1,36 @@
+package datadog.trace.instrumentation.java_concurrent;
+
+import datadog.trace.agent.tooling.HelperInjector;
+
+/**
+ * Injects the helpers used by the advice into the bootstrap classloader, then installs the tracer
+ * side of the propagation.
+ *
+ * <p>The helpers are only referenced by name here: they must not be loaded from the agent's
+ * classloader before being injected.
+ */
+final class Helpers {
+  private static final String PACKAGE = "datadog.trace.instrumentation.java_concurrent.";
+
+  static final String[] BOOTSTRAP_HELPERS = {
+    PACKAGE + "ContextPropagator",
+    PACKAGE + "RunnableWrapper",
+    PACKAGE + "CallableWrapper",
+    PACKAGE + "ForkJoinTaskContext",
+    PACKAGE + "ForkJoinTaskContext$TaskKey",
+    PACKAGE + "ForkJoinTaskContext$Pending",
+  };
+
+  private static boolean installed = false;
+
+  /** @return true if the context can be propagated, the helpers being installed */
+  static synchronized boolean install() {
+    if (!installed && HelperInjector.injectBootstrapClasses(BOOTSTRAP_HELPERS)) {
+      DDContextPropagator.register();
+      installed = true;
+    }
+    return installed;
+  }
+
+  private Helpers() {}
+}
@@ -0,0 +1,50 @@
+package datadog.trace.instrumentation.java_concurrent;
+
+/**
+ * Runs a task with the context active when it was submitted. Injected into the bootstrap
+ * classloader.
+ */
+public final class RunnableWrapper implements Runnable {
+  private final Runnable delegate;
+  private final Object captured;
+
+  private RunnableWrapper(final Runnable delegate, final Object captured) {
+    this.delegate = delegate;
+    this.captured = captured;
+  }
+
+  /**
+   * @return the task wrapped with the active context, or the task itself if no context is active or
+   *     the task is already wrapped
+   */
+  public static Runnable wrap(final Runnable task) {
+    if (task == null || task instanceof RunnableWrapper) {
+      return task;
+    }
+    final Object captured = ContextPropagator.captureActive();
+    return captured == null ? task : new RunnableWrapper(task, captured);
+  }
+
+  /** Release the context of a wrapped task which will not run, e.g. as it was rejected. */
+  public static void cancel(final Runnable task) {
+    if (task instanceof RunnableWrapper) {
+      ContextPropagator.INSTANCE.cancel(((RunnableWrapper) task).captured);
+    }
+  }
+
+  @Override
+  public void run() {
+    final ContextPropagator propagator = ContextPropagator.INSTANCE;
+    final Object scope = propagator.activate(captured);
+    try {
+      delegate.run();
+    } finally {
+      propagator.deactivate(scope, captured);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return delegate.toString();
+  }
+}
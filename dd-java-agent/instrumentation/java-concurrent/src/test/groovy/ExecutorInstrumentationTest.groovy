@@ -0,0 +1,184 @@
+import datadog.opentracing.DDSpan
+import datadog.trace.agent.test.AgentTestRunner
+import io.opentracing.util.GlobalTracer
+import spock.lang.Shared
+import spock.lang.Unroll
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.FutureTask
+import java.util.concurrent.RecursiveTask
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.SynchronousQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.function.Supplier
+
+class ExecutorInstrumentationTest extends AgentTestRunner {
+  @Shared
+  def tracer = GlobalTracer.get()
+
+  @Unroll
+  def "the active span is propagated by #name"() {
+    setup:
+    def release = new CountDownLatch(1)
+    def scope = tracer.buildSpan("parent").startActive(true)
+    def task = new Callable<Object>() {
+      @Override
+      Object call() {
+        release.await(10, TimeUnit.SECONDS)
+        tracer.buildSpan("child").startActive(true).close()
+        return null
+      }
+    }
+
+    when:
+    def future = submit(executor, task)
+    scope.close()
+
+    then:
+    // The trace is kept open until the task is done
+    TEST_WRITER.isEmpty()
+
+    when:
+    release.countDown()
+    future.get(10, TimeUnit.SECONDS)
+    TEST_WRITER.waitForTraces(1)
+    def trace = TEST_WRITER.firstTrace()
+    def parent = trace.find { it.operationName == "parent" } as DDSpan
+    def child = trace.find { it.operationName == "child" } as DDSpan
+
+    then:
+    TEST_WRITER.size() == 1
+    trace.size() == 2
+    child.context().parentId == parent.context().spanId
+
+    cleanup:
+    if (executor instanceof ExecutorService && executor != ForkJoinPool.commonPool()) {
+      executor.shutdown()
+    }
+
+    where:
+    name                       | executor                                  | submit
+    "execute"                  | Executors.newSingleThreadExecutor()       | { e, c -> def f = new FutureTask(c); e.execute(f); f }
+    "submit(Callable)"         | Executors.newFixedThreadPool(2)           | { e, c -> e.submit(c) }
+    "schedule"                 | Executors.newScheduledThreadPool(1)       | { e, c -> e.schedule(c, 10, TimeUnit.MILLISECONDS) }
+    "ForkJoinPool.submit"      | new ForkJoinPool(2)                       | { e, c -> e.submit(c) }
+    "CompletableFuture.supply" | ForkJoinPool.commonPool()                 | { e, c -> CompletableFuture.supplyAsync({ c.call() } as Supplier) }
+  }
+
+  def "the active span is propagated to forked tasks"() {
+    setup:
+    def pool = new ForkJoinPool(4)
+    def scope = tracer.buildSpan("parent").startActive(true)
+
+    when:
+    pool.invoke(new Fibonacci(5))
+    scope.close()
+    TEST_WRITER.waitForTraces(1)
+    def trace = TEST_WRITER.firstTrace()
+    def parent = trace.find { it.operationName == "parent" } as DDSpan
+
+    then:
+    TEST_WRITER.size() == 1
+    trace.size() == 16
+    trace.findAll { it.operationName == "fibonacci" }.every {
+      it.context().traceId == parent.context().traceId
+    }
+
+    cleanup:
+    pool.shutdown()
+  }
+
+  def "tasks are not wrapped when no span is active"() {
+    setup:
+    def executor = Executors.newSingleThreadExecutor()
+    def ran = new CountDownLatch(1)
+    def active = "unset"
+
+    when:
+    executor.execute {
+      active = tracer.activeSpan()
+      ran.countDown()
+    }
+    ran.await(10, TimeUnit.SECONDS)
+
+    then:
+    active == null
+    TEST_WRITER.isEmpty()
+
+    cleanup:
+    executor.shutdown()
+  }
+
+  def "the trace is released when a task is rejected"() {
+    setup:
+    def executor = Executors.newSingleThreadExecutor()
+    executor.shutdown()
+    def scope = tracer.buildSpan("parent").startActive(true)
+
+    when:
+    executor.execute {}
+
+    then:
+    thrown RejectedExecutionException
+
+    when:
+    scope.close()
+    TEST_WRITER.waitForTraces(1)
+
+    then:
+    TEST_WRITER.size() == 1
+  }
+
+  def "the trace is released when a task is discarded"() {
+    setup:
+    def release = new CountDownLatch(1)
+    def executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+      new ThreadPoolExecutor.DiscardPolicy())
+    executor.execute { release.await() }
+    def scope = tracer.buildSpan("parent").startActive(true)
+
+    when:
+    executor.execute {}
+    scope.close()
+    for (int i = 0; i < 100 && TEST_WRITER.isEmpty(); i++) {
+      System.gc()
+      Thread.sleep(50)
+    }
+
+    then:
+    TEST_WRITER.size() == 1
+
+    cleanup:
+    release.countDown()
+    executor.shutdown()
+  }
+
+  static class Fibonacci extends RecursiveTask<Integer> {
+    final int n
+
+    Fibonacci(int n) {
+      this.n = n
+    }
+
+    @Override
+    protected Integer compute() {
+      def scope = GlobalTracer.get().buildSpan("fibonacci").startActive(true)
+      try {
+        if (n <= 1) {
+          return n
+        }
+        def first = new Fibonacci(n - 1)
+        first.fork()
+        return new Fibonacci(n - 2).compute() + first.join()
+      } finally {
+        scope.close()
+      }
+    }
+  }
+}
@@ -7,6 +7,7 @@ import static net.bytebuddy.matcher.ElementMatchers.isBootstrapClassLoader;
 import static net.bytebuddy.matcher.ElementMatchers.nameContains;
 import static net.bytebuddy.matcher.ElementMatchers.nameMatches;
 import static net.bytebuddy.matcher.ElementMatchers.nameStartsWith;
+import static net.bytebuddy.matcher.ElementMatchers.not;
 
 import java.lang.instrument.Instrumentation;
 import java.util.ServiceLoader;
@@ -19,6 +20,7 @@ import net.bytebuddy.utility.JavaModule;
 
 @Slf4j
 public class AgentInstaller {
+  private static volatile Instrumentation instrumentation;
 
   /**
    * Install the core bytebuddy agent along with all implementations of {@link Instrumenter}.
@@ -27,6 +29,7 @@ public class AgentInstaller {
    * @return the agent's class transformer
    */
   public static ResettableClassFileTransformer installBytebuddyAgent(final Instrumentation inst) {
+    instrumentation = inst;
     AgentBuilder agentBuilder =
         new AgentBuilder.Default()
             .disableClassFormatChanges()
@@ -35,7 +38,7 @@ public class AgentInstaller {
             .ignore(nameStartsWith("datadog.trace."))
             .or(nameStartsWith("datadog.opentracing."))
             .or(nameStartsWith("datadog.slf4j."))
-            .or(nameStartsWith("java."))
+            .or(nameStartsWith("java.").and(not(nameStartsWith("java.util.concurrent."))))
             .or(nameStartsWith("com.sun."))
             .or(nameStartsWith("sun."))
             .or(nameStartsWith("jdk."))
@@ -48,11 +51,12 @@ public class AgentInstaller {
             .or(nameMatches("com\\.mchange\\.v2\\.c3p0\\..*Proxy"))
             .ignore(
                 any(),
-                isBootstrapClassLoader()
-                    .or(isReflectionClassLoader())
+                isReflectionClassLoader()
                     .or(
                         classLoaderWithName(
-                            "org.codehaus.groovy.runtime.callsite.CallSiteClassLoader")));
+                            "org.codehaus.groovy.runtime.callsite.CallSiteClassLoader")))
+            // Bootstrap types are ignored, but for the executors and tasks of java.util.concurrent
+            .or(not(nameStartsWith("java.util.concurrent.")), isBootstrapClassLoader());
     int numInstrumenters = 0;
     for (final Instrumenter instrumenter : ServiceLoader.load(Instrumenter.class)) {
       log.debug("Loading instrumentation {}", instrumenter);
@@ -64,6 +68,13 @@ public class AgentInstaller {
     return agentBuilder.installOn(inst);
   }
 
+  /**
+   * @return the instrumentation the agent was installed with, or null if it is not installed yet
+   */
+  public static Instrumentation getInstrumentation() {
+    return instrumentation;
+  }
+
   @Slf4j
   static class LoggingListener implements AgentBuilder.Listener {
 
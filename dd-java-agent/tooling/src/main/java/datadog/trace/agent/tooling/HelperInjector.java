@@ -1,6 +1,8 @@
 package datadog.trace.agent.tooling;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.instrument.Instrumentation;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
@@ -16,13 +18,20 @@ import net.bytebuddy.dynamic.DynamicType;
 import net.bytebuddy.dynamic.loading.ClassInjector;
 import net.bytebuddy.utility.JavaModule;
 
-/** Injects instrumentation helper classes into the user's classloader. */
+/**
+ * Injects instrumentation helper classes into the user's classloader.
+ *
+ * <p>Helpers of bootstrap types, which cannot see the agent's classloader, are injected once into
+ * the bootstrap classloader with {@link #injectBootstrapClasses(String...)}.
+ */
 @Slf4j
 public class HelperInjector implements Transformer {
   private final Set<String> helperClassNames;
   private Map<TypeDescription, byte[]> helperMap = null;
   private final Set<ClassLoader> injectedClassLoaders = new HashSet<>();
 
+  private static final Set<String> injectedBootstrapClasses = new HashSet<>();
+
   /**
    * Construct HelperInjector.
    *
@@ -37,20 +46,59 @@ public class HelperInjector implements Transformer {
 
   private synchronized Map<TypeDescription, byte[]> getHelperMap() throws IOException {
     if (helperMap == null) {
-      helperMap = new LinkedHashMap<>(helperClassNames.size());
-      for (final String helperName : helperClassNames) {
-        final ClassFileLocator locator =
-            ClassFileLocator.ForClassLoader.of(Utils.getAgentClassLoader());
-        final byte[] classBytes = locator.locate(helperName).resolve();
-        final TypeDescription typeDesc =
-            new TypeDescription.Latent(
-                helperName, 0, null, Collections.<TypeDescription.Generic>emptyList());
-        helperMap.put(typeDesc, classBytes);
-      }
+      helperMap = locateHelpers(helperClassNames);
     }
     return helperMap;
   }
 
+  private static Map<TypeDescription, byte[]> locateHelpers(final Set<String> helperClassNames)
+      throws IOException {
+    final Map<TypeDescription, byte[]> helpers = new LinkedHashMap<>(helperClassNames.size());
+    for (final String helperName : helperClassNames) {
+      final ClassFileLocator locator =
+          ClassFileLocator.ForClassLoader.of(Utils.getAgentClassLoader());
+      final byte[] classBytes = locator.locate(helperName).resolve();
+      final TypeDescription typeDesc =
+          new TypeDescription.Latent(
+              helperName, 0, null, Collections.<TypeDescription.Generic>emptyList());
+      helpers.put(typeDesc, classBytes);
+    }
+    return helpers;
+  }
+
+  /**
+   * Inject helper classes into the bootstrap classloader, so that advice applied to bootstrap types
+   * can use them. The helpers must only reference bootstrap types, and must be injected before
+   * anything loads them from the agent's classloader.
+   *
+   * @param helperClassNames binary names of the helper classes, resolvable by the agent's
+   *     classloader. Classes already injected are skipped.
+   * @return true if the helpers are available on the bootstrap classloader
+   */
+  public static synchronized boolean injectBootstrapClasses(final String... helperClassNames) {
+    final Set<String> names = new LinkedHashSet<>(Arrays.asList(helperClassNames));
+    names.removeAll(injectedBootstrapClasses);
+    if (names.isEmpty()) {
+      return true;
+    }
+    final Instrumentation instrumentation = AgentInstaller.getInstrumentation();
+    if (instrumentation == null) {
+      log.warn("Agent not installed, unable to inject bootstrap helpers {}", names);
+      return false;
+    }
+    try {
+      final File folder = new File(System.getProperty("java.io.tmpdir"));
+      ClassInjector.UsingInstrumentation.of(
+              folder, ClassInjector.UsingInstrumentation.Target.BOOTSTRAP, instrumentation)
+          .inject(locateHelpers(names));
+      injectedBootstrapClasses.addAll(names);
+      return true;
+    } catch (final Exception e) {
+      log.error("Failed to inject bootstrap helpers " + names, e);
+      return false;
+    }
+  }
+
   @Override
   public DynamicType.Builder<?> transform(
       final DynamicType.Builder<?> builder,
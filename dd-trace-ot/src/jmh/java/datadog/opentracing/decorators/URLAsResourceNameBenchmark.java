@@ -0,0 +1,56 @@
+package datadog.opentracing.decorators;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares the previous regex based URL normalization with the scanners and the cache of
+ * normalized paths.
+ */
+public class URLAsResourceNameBenchmark {
+
+  private static final String[] URLS = {
+    "http://localhost:8080/users/12345/repositories/678?sort=asc&page=2",
+    "http://localhost:8080/search?q=tracing",
+    "http://localhost:8080/static/css/main.css",
+    "/api/v2/orders/987654321/items/3"
+  };
+
+  @State(org.openjdk.jmh.annotations.Scope.Thread)
+  public static class DecoratorState {
+    public URLAsResourceName decorator = new URLAsResourceName();
+    public int index;
+
+    String next() {
+      index = (index + 1) & 3;
+      return URLS[index];
+    }
+  }
+
+  @Benchmark
+  public String testRegexNormalization(final DecoratorState state) {
+    // previous implementation: URL parsing and a recompiled pattern per rule
+    String path = state.next();
+    try {
+      path = new URL(path).getPath();
+    } catch (final MalformedURLException e) {
+      // use the value instead of the path
+    }
+    for (final URLAsResourceName.Config.Rule rule : state.decorator.getPatterns()) {
+      path = path.replaceAll(rule.regex, rule.replacement);
+    }
+    return path;
+  }
+
+  @Benchmark
+  public String testScannerNormalization(final DecoratorState state) {
+    return state.decorator.norm(URLAsResourceName.path(state.next()));
+  }
+
+  @Benchmark
+  public String testCachedNormalization(final DecoratorState state) {
+    return state.decorator.normalize(state.next());
+  }
+}
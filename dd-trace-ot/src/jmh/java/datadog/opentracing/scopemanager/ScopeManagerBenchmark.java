@@ -0,0 +1,64 @@
+package datadog.opentracing.scopemanager;
+
+import io.opentracing.Scope;
+import io.opentracing.ScopeManager;
+import io.opentracing.Span;
+import io.opentracing.noop.NoopSpan;
+import io.opentracing.util.ThreadLocalScopeManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares the OpenTracing thread local scope manager with the Datadog one, on a stack of {@link
+ * #DEPTH} nested scopes where each level looks the active scope up, like the instrumentation does.
+ * Noop spans are used, so that only the scope management is measured.
+ */
+public class ScopeManagerBenchmark {
+  public static final int DEPTH = 10;
+
+  @State(org.openjdk.jmh.annotations.Scope.Thread)
+  public static class ManagerState {
+    public ScopeManager threadLocalScopeManager = new ThreadLocalScopeManager();
+    public DDScopeManager ddScopeManager = new DDScopeManager();
+    public Span span = NoopSpan.INSTANCE;
+    public Scope[] scopes = new Scope[DEPTH];
+  }
+
+  @Benchmark
+  public Object testThreadLocalScopeManager(final ManagerState state) {
+    return nest(state.threadLocalScopeManager, state);
+  }
+
+  @Benchmark
+  public Object testDDScopeManager(final ManagerState state) {
+    return nest(state.ddScopeManager, state);
+  }
+
+  /** The lookup made to find the parent of a new span */
+  @Benchmark
+  public Object testDDScopeManagerActiveSpanContext(final ManagerState state) {
+    final Scope[] scopes = state.scopes;
+    Object context = null;
+    for (int i = 0; i < DEPTH; i++) {
+      context = state.ddScopeManager.activeSpanContext();
+      scopes[i] = state.ddScopeManager.activate(state.span, false);
+    }
+    for (int i = DEPTH - 1; i >= 0; i--) {
+      scopes[i].close();
+    }
+    return context;
+  }
+
+  private static Object nest(final ScopeManager scopeManager, final ManagerState state) {
+    final Scope[] scopes = state.scopes;
+    Object active = null;
+    for (int i = 0; i < DEPTH; i++) {
+      active = scopeManager.active();
+      scopes[i] = scopeManager.activate(state.span, false);
+    }
+    for (int i = DEPTH - 1; i >= 0; i--) {
+      scopes[i].close();
+    }
+    return active;
+  }
+}
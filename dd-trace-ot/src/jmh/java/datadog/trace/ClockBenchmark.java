@@ -0,0 +1,48 @@
+package datadog.trace;
+
+import datadog.opentracing.PendingTrace;
+import datadog.trace.common.util.Clock;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Compares the previous global synchronized clock with the per trace anchored clock used for the
+ * span timings, under multi-threaded load.
+ */
+@Threads(8)
+public class ClockBenchmark {
+
+  @State(org.openjdk.jmh.annotations.Scope.Benchmark)
+  public static class TraceState {
+    public PendingTrace trace = new PendingTrace(null, 1L);
+  }
+
+  private static final Object LOCK = new Object();
+
+  @Benchmark
+  public long testSynchronizedSpanTimings() {
+    // previous implementation: both readings took the same global monitor
+    final long startMicro;
+    final long startTicks;
+    synchronized (LOCK) {
+      startMicro = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    }
+    synchronized (LOCK) {
+      startTicks = System.nanoTime();
+    }
+    final long stopMicro;
+    synchronized (LOCK) {
+      stopMicro = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    }
+    return startMicro + startTicks + TimeUnit.MICROSECONDS.toNanos(stopMicro - startMicro);
+  }
+
+  @Benchmark
+  public long testAnchoredSpanTimings(final TraceState state) {
+    final long startNano = state.trace.getCurrentTimeNano();
+    final long startTicks = Clock.currentNanoTicks();
+    return startNano + (Clock.currentNanoTicks() - startTicks);
+  }
+}
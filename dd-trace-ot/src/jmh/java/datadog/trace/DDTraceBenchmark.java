@@ -1,14 +1,28 @@
 package datadog.trace;
 
+import datadog.opentracing.DDSpan;
 import datadog.opentracing.DDTracer;
+import datadog.opentracing.SpanPool;
+import datadog.trace.common.Service;
+import datadog.trace.common.sampling.AllSampler;
 import datadog.trace.common.writer.ListWriter;
+import datadog.trace.common.writer.MsgPackTraceEncoder;
+import datadog.trace.common.writer.Writer;
 import io.opentracing.Span;
 import io.opentracing.Tracer;
+import io.opentracing.tag.Tags;
+import java.util.List;
+import java.util.Map;
 import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
 
 public class DDTraceBenchmark {
   public static String SPAN_NAME = "span-benchmark";
+  public static int CHILD_SPANS = 100;
 
   @State(org.openjdk.jmh.annotations.Scope.Thread)
   public static class TraceState {
@@ -18,6 +32,64 @@ public class DDTraceBenchmark {
     public io.opentracing.Scope scope = tracer.buildSpan(SPAN_NAME).startActive(true);
   }
 
+  /** A single trace shared by all benchmark threads, reset on each iteration */
+  @State(org.openjdk.jmh.annotations.Scope.Benchmark)
+  public static class SharedTraceState {
+    public ListWriter traceCollector = new ListWriter();
+    public Tracer tracer = new DDTracer(traceCollector);
+    public Span root;
+
+    @Setup(Level.Iteration)
+    public void startTrace() {
+      root = tracer.buildSpan(SPAN_NAME).ignoreActiveSpan().startManual();
+    }
+  }
+
+  /**
+   * Traces serialized as soon as they are written, like the agent writer does, with or without
+   * recycling the spans
+   */
+  @State(org.openjdk.jmh.annotations.Scope.Thread)
+  public static class SerializedTraceState {
+    @Param({"false", "true"})
+    public boolean pooling;
+
+    public DDTracer tracer;
+
+    @Setup
+    public void createTracer() {
+      tracer =
+          new DDTracer(
+              "benchmark",
+              new SerializingWriter(),
+              new AllSampler(),
+              DDTracer.DEFAULT_PARTIAL_FLUSH_MIN_SPANS,
+              null,
+              pooling ? new SpanPool() : null);
+    }
+  }
+
+  /** Encodes the traces on the calling thread, then recycles their spans */
+  static class SerializingWriter implements Writer {
+    private final MsgPackTraceEncoder encoder = new MsgPackTraceEncoder();
+
+    @Override
+    public synchronized void write(final List<DDSpan> trace) {
+      encoder.reset();
+      encoder.writeTrace(trace);
+      SpanPool.recycle(trace);
+    }
+
+    @Override
+    public void writeServices(final Map<String, Service> services) {}
+
+    @Override
+    public void start() {}
+
+    @Override
+    public void close() {}
+  }
+
   @Benchmark
   public Object testBuildSpan(final TraceState state) {
     return state.tracer.buildSpan(SPAN_NAME);
@@ -46,4 +118,74 @@ public class DDTraceBenchmark {
     scope.close();
     return scope;
   }
+
+  @Benchmark
+  public Object testFullTraceWithChildren(final TraceState state) {
+    final Span root = state.tracer.buildSpan(SPAN_NAME).ignoreActiveSpan().startManual();
+    for (int i = 0; i < CHILD_SPANS; i++) {
+      state.tracer.buildSpan(SPAN_NAME).asChildOf(root).startManual().finish();
+    }
+    root.finish();
+    state.traceCollector.clear();
+    return root;
+  }
+
+  @Benchmark
+  @Threads(8)
+  public Object testConcurrentChildSpans(final SharedTraceState state) {
+    final Span span = state.tracer.buildSpan(SPAN_NAME).asChildOf(state.root).startManual();
+    span.finish();
+    return span;
+  }
+
+  /**
+   * Reproduces a JDBC heavy trace: a web root span with many query spans tagged like the jdbc
+   * instrumentation does. Run with the gc profiler to compare the heap allocated per span.
+   */
+  @Benchmark
+  public Object testJdbcTrace(final TraceState state) {
+    final Span root = jdbcTrace(state.tracer);
+    state.traceCollector.clear();
+    return root;
+  }
+
+  /**
+   * The JDBC trace, serialized once finished. Compare the gc.alloc.rate.norm reported by the gc
+   * profiler ({@code -prof gc}) with and without pooling.
+   */
+  @Benchmark
+  public Object testSerializedJdbcTrace(final SerializedTraceState state) {
+    return jdbcTrace(state.tracer);
+  }
+
+  private static Span jdbcTrace(final Tracer tracer) {
+    final Span root =
+        tracer
+            .buildSpan("servlet.request")
+            .ignoreActiveSpan()
+            .withTag(Tags.COMPONENT.getKey(), "java-web-servlet")
+            .withTag(Tags.HTTP_METHOD.getKey(), "GET")
+            .withTag(Tags.HTTP_URL.getKey(), "http://localhost:8080/users/1234")
+            .startManual();
+    for (int i = 0; i < CHILD_SPANS; i++) {
+      final Span span =
+          tracer
+              .buildSpan("database.query")
+              .asChildOf(root)
+              .withTag(Tags.COMPONENT.getKey(), "java-jdbc-prepared_statement")
+              .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT)
+              .withTag(Tags.DB_TYPE.getKey(), "postgresql")
+              .withTag(Tags.DB_INSTANCE.getKey(), "users")
+              .withTag(Tags.DB_USER.getKey(), "app")
+              .withTag(Tags.PEER_HOSTNAME.getKey(), "db.example.com")
+              .withTag(Tags.PEER_PORT.getKey(), 5432)
+              .startManual();
+      span.setTag(Tags.DB_STATEMENT.getKey(), "SELECT * FROM users WHERE id = ?");
+      span.setTag("rows", i);
+      span.finish();
+    }
+    root.setTag(Tags.HTTP_STATUS.getKey(), 200);
+    root.finish();
+    return root;
+  }
 }
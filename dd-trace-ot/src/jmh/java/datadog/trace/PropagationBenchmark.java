@@ -0,0 +1,69 @@
+package datadog.trace;
+
+import datadog.opentracing.DDTracer;
+import datadog.trace.common.writer.ListWriter;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+import io.opentracing.propagation.Format;
+import io.opentracing.propagation.TextMapExtractAdapter;
+import io.opentracing.propagation.TextMapInjectAdapter;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Injects and extracts the context of a span with baggage, like a client and a server of a traced
+ * call do, through the text headers and the binary format.
+ */
+public class PropagationBenchmark {
+
+  @State(org.openjdk.jmh.annotations.Scope.Thread)
+  public static class PropagationState {
+    public DDTracer tracer = new DDTracer(new ListWriter());
+    public Span span;
+    public Map<String, String> headers = new HashMap<>();
+    public ByteBuffer buffer = ByteBuffer.allocate(256);
+
+    @Setup
+    public void startSpan() {
+      span = tracer.buildSpan("servlet.request").startManual();
+      span.setBaggageItem("user-id", "1234");
+      span.setBaggageItem("tenant", "example.com/europe");
+      tracer.inject(span.context(), Format.Builtin.HTTP_HEADERS, new TextMapInjectAdapter(headers));
+      // Headers are received with other cases and alongside unrelated ones
+      final Map<String, String> received = new HashMap<>();
+      for (final Map.Entry<String, String> entry : headers.entrySet()) {
+        received.put(entry.getKey().toUpperCase(), entry.getValue());
+      }
+      received.put("Accept", "application/json");
+      received.put("User-Agent", "benchmark");
+      headers = received;
+    }
+  }
+
+  @Benchmark
+  public Object testInjectHeaders(final PropagationState state) {
+    final Map<String, String> carrier = new HashMap<>();
+    state.tracer.inject(
+        state.span.context(), Format.Builtin.HTTP_HEADERS, new TextMapInjectAdapter(carrier));
+    return carrier;
+  }
+
+  @Benchmark
+  public SpanContext testExtractHeaders(final PropagationState state) {
+    return state.tracer.extract(
+        Format.Builtin.HTTP_HEADERS, new TextMapExtractAdapter(state.headers));
+  }
+
+  @Benchmark
+  public SpanContext testBinaryRoundTrip(final PropagationState state) {
+    final ByteBuffer buffer = state.buffer;
+    buffer.clear();
+    state.tracer.inject(state.span.context(), Format.Builtin.BINARY, buffer);
+    buffer.flip();
+    return state.tracer.extract(Format.Builtin.BINARY, buffer);
+  }
+}
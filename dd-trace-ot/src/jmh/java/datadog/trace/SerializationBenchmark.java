@@ -0,0 +1,74 @@
+package datadog.trace;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import datadog.opentracing.DDSpan;
+import datadog.opentracing.DDTracer;
+import datadog.trace.common.sampling.AllSampler;
+import datadog.trace.common.writer.ListWriter;
+import datadog.trace.common.writer.MsgPackTraceEncoder;
+import io.opentracing.Span;
+import io.opentracing.tag.Tags;
+import java.util.ArrayList;
+import java.util.List;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Compares the Jackson msgpack serialization of traces with the hand-written encoder, on a payload
+ * of web requests each issuing a few JDBC queries.
+ */
+public class SerializationBenchmark {
+  public static int TRACES = 50;
+  public static int QUERIES_PER_TRACE = 10;
+
+  @State(org.openjdk.jmh.annotations.Scope.Thread)
+  public static class PayloadState {
+    public ObjectMapper objectMapper = new ObjectMapper(new MessagePackFactory());
+    public MsgPackTraceEncoder encoder = new MsgPackTraceEncoder();
+    public List<List<DDSpan>> traces;
+
+    @Setup
+    public void buildTraces() {
+      final ListWriter writer = new ListWriter();
+      final DDTracer tracer = new DDTracer("benchmark", writer, new AllSampler());
+      for (int i = 0; i < TRACES; i++) {
+        final Span root =
+            tracer
+                .buildSpan("servlet.request")
+                .withTag(Tags.COMPONENT.getKey(), "java-web-servlet")
+                .withTag(Tags.HTTP_METHOD.getKey(), "GET")
+                .withTag(Tags.HTTP_URL.getKey(), "http://localhost:8080/users/" + i)
+                .withTag(Tags.HTTP_STATUS.getKey(), 200)
+                .startManual();
+        for (int j = 0; j < QUERIES_PER_TRACE; j++) {
+          tracer
+              .buildSpan("database.query")
+              .asChildOf(root)
+              .withTag(Tags.COMPONENT.getKey(), "java-jdbc-prepared_statement")
+              .withTag(Tags.DB_TYPE.getKey(), "postgresql")
+              .withTag(Tags.DB_INSTANCE.getKey(), "users")
+              .withTag(Tags.DB_STATEMENT.getKey(), "SELECT * FROM users WHERE id = ?")
+              .withTag(Tags.PEER_PORT.getKey(), 5432)
+              .startManual()
+              .finish();
+        }
+        root.finish();
+      }
+      traces = new ArrayList<>(writer);
+    }
+  }
+
+  @Benchmark
+  public Object testJacksonSerialization(final PayloadState state) throws Exception {
+    return state.objectMapper.writeValueAsBytes(state.traces);
+  }
+
+  @Benchmark
+  public Object testEncoderSerialization(final PayloadState state) {
+    state.encoder.reset();
+    state.encoder.writeTraces(state.traces);
+    return state.encoder.buffer();
+  }
+}
@@ -0,0 +1,82 @@
+package datadog.trace;
+
+import datadog.opentracing.DDTracer;
+import datadog.trace.common.sampling.AllSampler;
+import io.opentracing.Scope;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Traces work spread over many short-lived threads, like a server running each request on its own
+ * thread. Each invocation starts {@link #THREADS} threads at once and waits for them, the scores
+ * are per thread. Run with the gc profiler ({@code -prof gc}) to compare the heap allocated per
+ * thread.
+ */
+public class ThreadChurnBenchmark {
+  public static final int THREADS = 1000;
+
+  @State(org.openjdk.jmh.annotations.Scope.Benchmark)
+  public static class TracerState {
+    public DDTracer tracer;
+
+    @Setup
+    public void createTracer() {
+      tracer =
+          new DDTracer(
+              "benchmark",
+              new DDTraceBenchmark.SerializingWriter(),
+              new AllSampler(),
+              DDTracer.DEFAULT_PARTIAL_FLUSH_MIN_SPANS);
+    }
+  }
+
+  /** Each thread traces a request with a nested span, then the trace is serialized */
+  @Benchmark
+  @OperationsPerInvocation(THREADS)
+  public void testTracingThreads(final TracerState state) throws InterruptedException {
+    final DDTracer tracer = state.tracer;
+    run(
+        THREADS,
+        new Runnable() {
+          @Override
+          public void run() {
+            final Scope scope = tracer.buildSpan("request").startActive(true);
+            tracer.buildSpan("query").startManual().finish();
+            scope.close();
+          }
+        });
+  }
+
+  /**
+   * Each thread only looks the active span up, as untraced code submitting tasks to an executor
+   * does with the concurrent instrumentation
+   */
+  @Benchmark
+  @OperationsPerInvocation(THREADS)
+  public void testUntracedThreads(final TracerState state) throws InterruptedException {
+    final DDTracer tracer = state.tracer;
+    run(
+        THREADS,
+        new Runnable() {
+          @Override
+          public void run() {
+            if (tracer.activeSpan() != null) {
+              throw new IllegalStateException();
+            }
+          }
+        });
+  }
+
+  private static void run(final int count, final Runnable task) throws InterruptedException {
+    final Thread[] threads = new Thread[count];
+    for (int i = 0; i < count; i++) {
+      threads[i] = new Thread(task);
+      threads[i].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+  }
+}
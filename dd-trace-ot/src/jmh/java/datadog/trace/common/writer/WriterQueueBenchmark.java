@@ -0,0 +1,54 @@
+package datadog.trace.common.writer;
+
+import java.util.List;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Contention on the writer queue: 64 threads finishing traces while the writer thread drains the
+ * queue. Compares the synchronized queue with the ring buffer, with both overflow policies.
+ */
+@State(org.openjdk.jmh.annotations.Scope.Group)
+public class WriterQueueBenchmark {
+  public static final int PRODUCERS = 64;
+  public static final Object TRACE = new Object();
+
+  @Param({"synchronized", "ring-random-eviction", "ring-drop-oldest"})
+  public String queueType;
+
+  @Param({"1000"})
+  public int capacity;
+
+  public WriterQueue<Object> queue;
+
+  @Setup
+  public void createQueue() {
+    if ("synchronized".equals(queueType)) {
+      queue = new SynchronizedWriterQueue<>(capacity);
+    } else if ("ring-random-eviction".equals(queueType)) {
+      queue =
+          new RingBufferWriterQueue<>(
+              capacity, RingBufferWriterQueue.OverflowPolicy.RANDOM_EVICTION);
+    } else {
+      queue = new RingBufferWriterQueue<>(capacity, RingBufferWriterQueue.OverflowPolicy.DROP_OLDEST);
+    }
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(PRODUCERS)
+  public Object add() {
+    return queue.add(TRACE);
+  }
+
+  @Benchmark
+  @Group("contended")
+  @GroupThreads(1)
+  public List<Object> drain() {
+    return queue.getAll();
+  }
+}
@@ -14,8 +14,8 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -29,12 +29,26 @@ public class DDSpan implements Span {
 
   /** The context attached to the span */
   protected final DDSpanContext context;
-  /** StartTime stores the creation time of the span in milliseconds */
-  protected long startTimeMicro;
-  /** StartTimeNano stores the only the nanoseconds for more accuracy */
+  /** The pool the span is returned to once written, null if the span is not pooled */
+  private final SpanPool.Local pool;
+  /** Next span in the pool, see {@link SpanPool.Local} */
+  DDSpan nextPooled;
+
+  // The timings are not final, as they are set again when a pooled span is reused
+  /** StartTimeNano stores the creation time of the span in nanoseconds since epoch */
   protected long startTimeNano;
-  /** The duration in nanoseconds computed using the startTimeMicro and startTimeNano */
-  protected long durationNano;
+  /**
+   * StartNanoTicks stores the nano ticks at creation for duration computation. Only meaningful if
+   * the start time was not provided by the user
+   */
+  protected long startNanoTicks;
+  /** True if the start time was provided by the user, durations then use the system clock */
+  private boolean explicitStartTime;
+  /** The duration in nanoseconds computed using the startTimeNano and startNanoTicks */
+  protected volatile long durationNano;
+
+  private static final AtomicLongFieldUpdater<DDSpan> DURATION_NANO_UPDATER =
+      AtomicLongFieldUpdater.newUpdater(DDSpan.class, "durationNano");
 
   /**
    * A simple constructor. Currently, users have
@@ -43,55 +57,76 @@ public class DDSpan implements Span {
    * @param context the context
    */
   protected DDSpan(final long timestampMicro, final DDSpanContext context) {
+    this(timestampMicro, context, null);
+  }
 
+  /**
+   * @param timestampMicro if set, use this time instead of the auto-generated time
+   * @param context the context
+   * @param pool the pool the span is returned to once written, or null
+   */
+  DDSpan(final long timestampMicro, final DDSpanContext context, final SpanPool.Local pool) {
     this.context = context;
+    this.pool = pool;
+    start(timestampMicro);
+  }
+
+  /**
+   * Start the span. Called again when a pooled span is reused, once its context is reset.
+   *
+   * @param timestampMicro if set, use this time instead of the auto-generated time
+   */
+  void start(final long timestampMicro) {
+    this.durationNano = 0L;
 
-    // record the start time in nano (current milli + nano delta)
-    if (timestampMicro == 0L) {
-      this.startTimeMicro = Clock.currentMicroTime();
+    // record the start time in nano: the trace anchors the epoch time, the ticks give the precision
+    if (timestampMicro <= 0L) {
+      this.startTimeNano = context.getTrace().getCurrentTimeNano();
+      this.explicitStartTime = false;
     } else {
-      this.startTimeMicro = timestampMicro;
+      this.startTimeNano = TimeUnit.MICROSECONDS.toNanos(timestampMicro);
+      this.explicitStartTime = true;
     }
-    this.startTimeNano = Clock.currentNanoTicks();
+    this.startNanoTicks = Clock.currentNanoTicks();
 
     // track each span of the trace
-    this.context.getTrace().add(this);
+    this.context.getTrace().registerSpan(this);
   }
 
   @Override
   public final void finish() {
-    finish(Clock.currentMicroTime());
+    if (explicitStartTime) {
+      finish(Clock.currentMicroTime());
+    } else {
+      finishWithDuration(Clock.currentNanoTicks() - this.startNanoTicks);
+    }
   }
 
   @Override
   public final void finish(final long stoptimeMicros) {
-    // Ensure that duration is at least 1.  Less than 1 is possible due to our use of system clock instead of nano time.
-    this.durationNano =
-        Math.max(1, TimeUnit.MICROSECONDS.toNanos(stoptimeMicros - this.startTimeMicro));
-    afterFinish();
+    finishWithDuration(TimeUnit.MICROSECONDS.toNanos(stoptimeMicros) - this.startTimeNano);
+  }
+
+  private void finishWithDuration(final long durationNano) {
+    if (context.isRecycled()) {
+      SpanPool.useAfterRecycle(this);
+      return;
+    }
+    // Ensure that duration is at least 1: 0 marks an unfinished span.
+    if (DURATION_NANO_UPDATER.compareAndSet(this, 0, Math.max(1, durationNano))) {
+      afterFinish();
+    } else {
+      log.debug("{} - Span already finished, ignoring.", this);
+    }
   }
 
   /**
-   * Close the span. If the current span is the parent, check if each child has also been closed If
-   * not, warned it
+   * Close the span. The span is handed to the pending trace, which writes the trace once every
+   * span of it is finished.
    */
   protected final void afterFinish() {
     log.debug("{} - Closing the span.", this);
-
-    // warn if one of the parent's children is not finished
-    if (this.isRootSpan()) {
-      final Queue<DDSpan> spans = this.context().getTrace();
-
-      for (final DDSpan span : spans) {
-        if (span.getDurationNano() == 0L) {
-          log.warn(
-              "{} - The parent span is marked as finished but this span isn't. You have to close each children.",
-              this);
-        }
-      }
-      this.context.getTracer().write(this.context.getTrace());
-      log.debug("{} - Write the trace", this);
-    }
+    this.context.getTrace().addFinishedSpan(this);
   }
 
   /**
@@ -101,14 +136,8 @@ public class DDSpan implements Span {
    */
   @JsonIgnore
   public final boolean isRootSpan() {
-
-    if (context().getTrace().isEmpty()) {
-      return false;
-    }
-    // First item of the array AND tracer set
-    final DDSpan first = context().getTrace().peek();
-    return first.context().getSpanId() == this.context().getSpanId()
-        && this.context.getTracer() != null;
+    // First span of the trace AND tracer set
+    return context().getTrace().getRootSpan() == this && this.context.getTracer() != null;
   }
 
   public void setErrorMeta(final Throwable error) {
@@ -179,6 +208,10 @@ public class DDSpan implements Span {
    */
   @Override
   public final DDSpan setBaggageItem(final String key, final String value) {
+    if (context.isRecycled()) {
+      SpanPool.useAfterRecycle(this);
+      return this;
+    }
     this.context.setBaggageItem(key, value);
     return this;
   }
@@ -260,25 +293,59 @@ public class DDSpan implements Span {
   // Getters and JSON serialisation instructions
 
   /**
-   * Meta merges baggage and tags (stringified values)
+   * Meta merges baggage, the tags which are not numbers (stringified values) and the thread and
+   * span type fields, as sent to the agent
    *
    * @return merged context baggage and tags
    */
   @JsonGetter
   public Map<String, String> getMeta() {
     final Map<String, String> meta = new HashMap<>();
-    for (final Map.Entry<String, String> entry : context().getBaggageItems().entrySet()) {
-      meta.put(entry.getKey(), entry.getValue());
-    }
-    for (final Map.Entry<String, Object> entry : getTags().entrySet()) {
-      meta.put(entry.getKey(), String.valueOf(entry.getValue()));
+    synchronized (context) {
+      for (final Map.Entry<String, String> entry : context.getBaggageItems().entrySet()) {
+        if (!TagStore.isContextTag(entry.getKey())) {
+          meta.put(entry.getKey(), entry.getValue());
+        }
+      }
+      final TagStore tags = context.getTagStore();
+      for (int i = 0; i < tags.size(); i++) {
+        if (!tags.isNumberAt(i) && !TagStore.isContextTag(tags.keyAt(i))) {
+          meta.put(tags.keyAt(i), String.valueOf(tags.valueAt(i)));
+        }
+      }
+      meta.put(DDTags.THREAD_NAME, context.getThreadName());
+      meta.put(DDTags.THREAD_ID, String.valueOf(context.getThreadId()));
+      if (context.getSpanType() != null) {
+        meta.put(DDTags.SPAN_TYPE, context.getSpanType());
+      }
     }
     return meta;
   }
 
+  /**
+   * Metrics are the tags which are numbers, as sent to the agent: integers as longs, other numbers
+   * as doubles
+   *
+   * @return the numeric tags
+   */
+  @JsonGetter
+  @JsonInclude(Include.NON_EMPTY)
+  public Map<String, Number> getMetrics() {
+    final Map<String, Number> metrics = new HashMap<>();
+    synchronized (context) {
+      final TagStore tags = context.getTagStore();
+      for (int i = 0; i < tags.size(); i++) {
+        if (tags.isNumberAt(i)) {
+          metrics.put(tags.keyAt(i), tags.numberAt(i));
+        }
+      }
+    }
+    return metrics;
+  }
+
   @JsonGetter("start")
   public long getStartTime() {
-    return startTimeMicro * 1000L;
+    return startTimeNano;
   }
 
   @JsonGetter("duration")
@@ -337,6 +404,11 @@ public class DDSpan implements Span {
     return context.getSpanType();
   }
 
+  /** @return the pool the span is returned to once written, null if the span is not pooled */
+  SpanPool.Local getPool() {
+    return pool;
+  }
+
   @JsonGetter
   public int getError() {
     return context.getErrorFlag() ? 1 : 0;
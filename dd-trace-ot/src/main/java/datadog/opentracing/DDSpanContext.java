@@ -1,7 +1,6 @@
 package datadog.opentracing;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.google.common.collect.Maps;
 import datadog.opentracing.decorators.AbstractDecorator;
 import datadog.trace.api.DDTags;
 import datadog.trace.common.sampling.PrioritySampling;
@@ -10,9 +9,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.TreeMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -26,18 +23,20 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class DDSpanContext implements io.opentracing.SpanContext {
 
-  // Opentracing attributes
-  private final long traceId;
-  private final long spanId;
-  private final long parentId;
-  private final String threadName = Thread.currentThread().getName();
-  private final long threadId = Thread.currentThread().getId();
+  // Opentracing attributes. Not final, as a pooled context is reset when its span is reused
+  private long traceId;
+  private long spanId;
+  private long parentId;
+  /** Name and id of the thread which started the span, read when it starts */
+  private String threadName;
+
+  private long threadId;
   /** The collection of all span related to this one */
-  private final Queue<DDSpan> trace;
+  private PendingTrace trace;
 
   // DD attributes
   /** For technical reasons, the ref to the original tracer */
-  private final DDTracer tracer;
+  private DDTracer tracer;
 
   private Map<String, String> baggageItems;
   /** The service name is required, otherwise the span are dropped by the agent */
@@ -56,7 +55,18 @@ public class DDSpanContext implements io.opentracing.SpanContext {
   private volatile boolean samplingPriorityLocked = false;
   // Others attributes
   /** Tags are associated to the current span, they will not propagate to the children span */
-  private Map<String, Object> tags;
+  private final TagStore tags = new TagStore();
+  /** Read-only view of the tags, handed out by {@link #getTags()} */
+  private final Map<String, Object> tagsView = new TagStore.View(this, tags);
+  /** True when a tag matched by a deferred decorator was set since they last ran */
+  private boolean decorationDeferred = false;
+  /**
+   * The resource name set explicitly after the last tag matched by a deferred decorator. It's kept
+   * over the resource name of the deferred decorators, as it would be if they ran eagerly
+   */
+  private String explicitResourceName;
+  /** True from the time the span is recycled until it is reused, see {@link SpanPool} */
+  private volatile boolean recycled = false;
 
   public DDSpanContext(
       final long traceId,
@@ -70,7 +80,38 @@ public class DDSpanContext implements io.opentracing.SpanContext {
       final boolean errorFlag,
       final String spanType,
       final Map<String, Object> tags,
-      final Queue<DDSpan> trace,
+      final PendingTrace trace,
+      final DDTracer tracer) {
+    reset(
+        traceId,
+        spanId,
+        parentId,
+        serviceName,
+        operationName,
+        resourceName,
+        samplingPriority,
+        baggageItems,
+        errorFlag,
+        spanType,
+        tags,
+        trace,
+        tracer);
+  }
+
+  /** Initialize the context, the arguments are the ones of the constructor */
+  void reset(
+      final long traceId,
+      final long spanId,
+      final long parentId,
+      final String serviceName,
+      final String operationName,
+      final String resourceName,
+      final int samplingPriority,
+      final Map<String, String> baggageItems,
+      final boolean errorFlag,
+      final String spanType,
+      final Map<String, Object> tags,
+      final PendingTrace trace,
       final DDTracer tracer) {
 
     this.traceId = traceId;
@@ -89,17 +130,48 @@ public class DDSpanContext implements io.opentracing.SpanContext {
     this.samplingPriority = samplingPriority;
     this.errorFlag = errorFlag;
     this.spanType = spanType;
+    this.samplingPriorityLocked = false;
+    this.decorationDeferred = false;
+    this.explicitResourceName = null;
+    final Thread thread = Thread.currentThread();
+    this.threadName = thread.getName();
+    this.threadId = thread.getId();
 
-    this.tags = tags;
+    if (tags != null) {
+      this.tags.putAll(tags);
+    }
 
     if (trace == null) {
-      // TODO: figure out better concurrency model.
-      this.trace = new ConcurrentLinkedQueue<>();
+      // this context is the root of the trace: it owns the pending trace
+      this.trace = new PendingTrace(tracer, traceId);
     } else {
       this.trace = trace;
     }
 
     this.tracer = tracer;
+    this.recycled = false;
+  }
+
+  /**
+   * Flag the context as recycled and release the tags, see {@link SpanPool}.
+   *
+   * @return false if the context was already recycled
+   */
+  synchronized boolean recycle() {
+    if (recycled) {
+      return false;
+    }
+    recycled = true;
+    tags.clear();
+    baggageItems = Collections.emptyMap();
+    threadName = null;
+    threadId = 0;
+    return true;
+  }
+
+  /** @return true if the span was recycled and not reused yet */
+  public boolean isRecycled() {
+    return recycled;
   }
 
   public long getTraceId() {
@@ -130,6 +202,9 @@ public class DDSpanContext implements io.opentracing.SpanContext {
 
   public void setResourceName(final String resourceName) {
     this.resourceName = resourceName;
+    if (decorationDeferred) {
+      explicitResourceName = resourceName;
+    }
   }
 
   public boolean getErrorFlag() {
@@ -212,7 +287,7 @@ public class DDSpanContext implements io.opentracing.SpanContext {
   }
 
   @JsonIgnore
-  public Queue<DDSpan> getTrace() {
+  public PendingTrace getTrace() {
     return this.trace;
   }
 
@@ -228,6 +303,10 @@ public class DDSpanContext implements io.opentracing.SpanContext {
    * @param value the value of the tag. tags with null values are ignored.
    */
   public synchronized void setTag(final String tag, final Object value) {
+    if (recycled) {
+      SpanPool.useAfterRecycle(this);
+      return;
+    }
     if (value == null) {
       tags.remove(tag);
       return;
@@ -244,24 +323,17 @@ public class DDSpanContext implements io.opentracing.SpanContext {
       return;
     }
 
-    if (this.tags.isEmpty()) {
-      this.tags = new HashMap<>();
-    }
     this.tags.put(tag, value);
 
     // Call decorators
     final List<AbstractDecorator> decorators = tracer.getSpanContextDecorators(tag);
-    if (decorators != null && value != null) {
-      for (final AbstractDecorator decorator : decorators) {
-        try {
-          decorator.afterSetTag(this, tag, value);
-        } catch (final Throwable ex) {
-          log.warn(
-              "Could not decorate the span decorator={}: {}",
-              decorator.getClass().getSimpleName(),
-              ex.getMessage());
-        }
-      }
+    if (decorators != null) {
+      decorate(decorators, tag, value);
+    }
+    if (tracer.hasDeferredDecorators(tag)) {
+      decorationDeferred = true;
+      // The decorators of this tag would have run after the resource name was set
+      explicitResourceName = null;
     }
     // Error management
     if (Tags.ERROR.getKey().equals(tag)
@@ -270,14 +342,80 @@ public class DDSpanContext implements io.opentracing.SpanContext {
     }
   }
 
-  public synchronized Map<String, Object> getTags() {
-    if (tags.isEmpty()) {
-      tags = Maps.newHashMapWithExpectedSize(2);
+  /**
+   * Run the deferred decorators of the tags set on the span, with the latest value of each tag.
+   * Called by the writer thread, usually once the trace is kept, see {@link
+   * DDTracer#addDeferredDecorator}. Does nothing if no deferred decorator matched or if they already
+   * ran. A resource name set after the matched tags is kept, like when the decorators run eagerly.
+   */
+  public synchronized void applyDeferredDecorators() {
+    if (!decorationDeferred) {
+      return;
+    }
+    decorationDeferred = false;
+    final String explicit = explicitResourceName;
+    explicitResourceName = null;
+    for (final Map.Entry<String, List<AbstractDecorator>> entry :
+        tracer.getDeferredDecorators().entrySet()) {
+      final Object value = tags.get(entry.getKey());
+      if (value != null) {
+        decorate(entry.getValue(), entry.getKey(), value);
+      }
+    }
+    if (explicit != null) {
+      resourceName = explicit;
+    }
+  }
+
+  private void decorate(
+      final List<AbstractDecorator> decorators, final String tag, final Object value) {
+    for (final AbstractDecorator decorator : decorators) {
+      try {
+        decorator.afterSetTag(this, tag, value);
+      } catch (final Throwable ex) {
+        log.warn(
+            "Could not decorate the span decorator={}: {}",
+            decorator.getClass().getSimpleName(),
+            ex.getMessage());
+      }
     }
-    tags.put(DDTags.THREAD_NAME, threadName);
-    tags.put(DDTags.THREAD_ID, threadId);
-    tags.put(DDTags.SPAN_TYPE, getSpanType());
-    return Collections.unmodifiableMap(tags);
+  }
+
+  /**
+   * Read-only view of the tags, including the span type, thread name and thread id. The same
+   * instance is returned on each call.
+   *
+   * @return the tags of the span
+   */
+  public Map<String, Object> getTags() {
+    return tagsView;
+  }
+
+  /**
+   * The tag storage, for readers which need the unboxed values. Reads must hold the context
+   * monitor.
+   */
+  public TagStore getTagStore() {
+    return tags;
+  }
+
+  /** @return the value of the env tag, or null. Read without taking the context monitor */
+  public String getEnv() {
+    return tags.getEnv();
+  }
+
+  /**
+   * The name of the thread when it started the span, even if the thread was renamed since.
+   *
+   * @return the thread name, or null once the span is recycled
+   */
+  public String getThreadName() {
+    return threadName;
+  }
+
+  /** @return the id of the thread which started the span, or 0 once the span is recycled */
+  public long getThreadId() {
+    return threadId;
   }
 
   @Override
@@ -302,9 +440,7 @@ public class DDSpanContext implements io.opentracing.SpanContext {
     if (errorFlag) {
       s.append(" *errored*");
     }
-    if (tags != null) {
-      s.append(" tags=").append(new TreeMap(tags));
-    }
+    s.append(" tags=").append(new TreeMap<>(getTags()));
     return s.toString();
   }
 
@@ -3,8 +3,10 @@ package datadog.opentracing;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import datadog.opentracing.decorators.AbstractDecorator;
 import datadog.opentracing.decorators.DDDecoratorsFactory;
+import datadog.opentracing.propagation.BinaryCodec;
 import datadog.opentracing.propagation.Codec;
 import datadog.opentracing.propagation.HTTPCodec;
+import datadog.opentracing.scopemanager.DDScopeManager;
 import datadog.trace.api.DDTags;
 import datadog.trace.common.DDTraceConfig;
 import datadog.trace.common.Service;
@@ -12,6 +14,7 @@ import datadog.trace.common.sampling.AllSampler;
 import datadog.trace.common.sampling.PrioritySampling;
 import datadog.trace.common.sampling.RateByServiceSampler;
 import datadog.trace.common.sampling.Sampler;
+import datadog.trace.common.stats.StatsAggregator;
 import datadog.trace.common.writer.DDAgentWriter;
 import datadog.trace.common.writer.DDApi;
 import datadog.trace.common.writer.Writer;
@@ -20,22 +23,26 @@ import io.opentracing.ScopeManager;
 import io.opentracing.Span;
 import io.opentracing.SpanContext;
 import io.opentracing.propagation.Format;
-import io.opentracing.util.ThreadLocalScopeManager;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Queue;
 import java.util.concurrent.ThreadLocalRandom;
 import lombok.extern.slf4j.Slf4j;
 
-/** DDTracer makes it easy to send traces and span to DD using the OpenTracing API. */
+/**
+ * DDTracer makes it easy to send traces and span to DD using the OpenTracing API.
+ *
+ * <p>The tracer is also a scope manager, delegating to its {@link DDScopeManager}.
+ */
 @Slf4j
-public class DDTracer extends ThreadLocalScopeManager implements io.opentracing.Tracer {
+public class DDTracer implements io.opentracing.Tracer, ScopeManager {
 
   public static final String UNASSIGNED_DEFAULT_SERVICE_NAME = "unnamed-java-app";
+  /** Default number of finished spans which triggers a partial flush. 0 or less disables it */
+  public static final int DEFAULT_PARTIAL_FLUSH_MIN_SPANS = 1000;
 
   /** Default service name if none provided on the trace or span */
   final String serviceName;
@@ -43,9 +50,25 @@ public class DDTracer extends ThreadLocalScopeManager implements io.opentracing.
   final Writer writer;
   /** Sampler defines the sampling policy in order to reduce the number of traces for instance */
   final Sampler sampler;
+  /** Number of finished spans buffered before an unfinished trace is partially flushed */
+  final int partialFlushMinSpans;
+  /** Aggregates stats on every trace before sampling, null when disabled */
+  final StatsAggregator statsAggregator;
+  /** Recycles the spans once written, null when disabled */
+  final SpanPool spanPool;
 
-  /** Span context decorators */
-  private final Map<String, List<AbstractDecorator>> spanContextDecorators = new HashMap<>();
+  /**
+   * Span context decorators, keyed by interned tag name. The map and its lists are immutable: they
+   * are copied and swapped on each registration so reads on the setTag path take no lock.
+   */
+  private volatile Map<String, List<AbstractDecorator>> spanContextDecorators =
+      Collections.emptyMap();
+  /** Decorators run once the trace is kept, keyed and copied the same way */
+  private volatile Map<String, List<AbstractDecorator>> deferredDecorators =
+      Collections.emptyMap();
+
+  /** Keeps the active scopes of each thread */
+  private final DDScopeManager scopeManager = new DDScopeManager();
 
   private final CodecRegistry registry;
   private final Map<String, Service> services = new HashMap<>();
@@ -63,29 +86,97 @@ public class DDTracer extends ThreadLocalScopeManager implements io.opentracing.
     this(
         config.getProperty(DDTraceConfig.SERVICE_NAME),
         Writer.Builder.forConfig(config),
-        Sampler.Builder.forConfig(config));
+        Sampler.Builder.forConfig(config),
+        Integer.parseInt(
+            config.getProperty(
+                DDTraceConfig.PARTIAL_FLUSH_MIN_SPANS,
+                String.valueOf(DEFAULT_PARTIAL_FLUSH_MIN_SPANS))),
+        createStatsAggregator(config),
+        Boolean.parseBoolean(config.getProperty(DDTraceConfig.SPAN_POOLING_ENABLED))
+            ? new SpanPool()
+            : null);
     log.debug("Using config: {}", config);
 
+    if (Boolean.parseBoolean(config.getProperty(DDTraceConfig.PROPAGATION_TRACEPARENT_ENABLED))) {
+      registry.register(Format.Builtin.HTTP_HEADERS, new HTTPCodec(true));
+      registry.register(Format.Builtin.TEXT_MAP, new HTTPCodec(true));
+    }
+
     // Create decorators from resource files
+    final boolean deferDecorators =
+        Boolean.parseBoolean(config.getProperty(DDTraceConfig.DECORATORS_DEFERRED));
     final List<AbstractDecorator> decorators = DDDecoratorsFactory.createBuiltinDecorators();
     for (final AbstractDecorator decorator : decorators) {
-      log.debug("Loading decorator: {}", decorator.getClass().getSimpleName());
-      addDecorator(decorator);
+      if (deferDecorators && decorator.isDeferrable()) {
+        log.debug("Loading deferred decorator: {}", decorator.getClass().getSimpleName());
+        addDeferredDecorator(decorator);
+      } else {
+        log.debug("Loading decorator: {}", decorator.getClass().getSimpleName());
+        addDecorator(decorator);
+      }
     }
   }
 
   public DDTracer(final String serviceName, final Writer writer, final Sampler sampler) {
+    this(serviceName, writer, sampler, DEFAULT_PARTIAL_FLUSH_MIN_SPANS);
+  }
+
+  public DDTracer(
+      final String serviceName,
+      final Writer writer,
+      final Sampler sampler,
+      final int partialFlushMinSpans) {
+    this(serviceName, writer, sampler, partialFlushMinSpans, null);
+  }
+
+  public DDTracer(
+      final String serviceName,
+      final Writer writer,
+      final Sampler sampler,
+      final int partialFlushMinSpans,
+      final StatsAggregator statsAggregator) {
+    this(serviceName, writer, sampler, partialFlushMinSpans, statsAggregator, null);
+  }
+
+  /**
+   * @param serviceName the default service name
+   * @param writer where the traces are written
+   * @param sampler decides which traces are written
+   * @param partialFlushMinSpans finished spans triggering a partial flush, 0 or less to disable
+   * @param statsAggregator aggregates stats on every trace, or null. Only used with a {@link
+   *     DDAgentWriter}, which sends the stats
+   * @param spanPool recycles the spans of the traces dropped or serialized by the {@link
+   *     DDAgentWriter}, or null. Spans must not be used once their trace is finished
+   */
+  public DDTracer(
+      final String serviceName,
+      final Writer writer,
+      final Sampler sampler,
+      final int partialFlushMinSpans,
+      final StatsAggregator statsAggregator,
+      final SpanPool spanPool) {
     this.serviceName = serviceName;
     this.writer = writer;
     this.writer.start();
     this.sampler = sampler;
+    this.partialFlushMinSpans = partialFlushMinSpans;
+    this.spanPool = spanPool;
     registry = new CodecRegistry();
     registry.register(Format.Builtin.HTTP_HEADERS, new HTTPCodec());
     registry.register(Format.Builtin.TEXT_MAP, new HTTPCodec());
+    registry.register(Format.Builtin.BINARY, new BinaryCodec());
     if (this.writer instanceof DDAgentWriter && sampler instanceof DDApi.ResponseListener) {
       final DDApi api = ((DDAgentWriter) this.writer).getApi();
       api.addResponseListener((DDApi.ResponseListener) this.sampler);
     }
+    if (statsAggregator != null && this.writer instanceof DDAgentWriter) {
+      final DDAgentWriter agentWriter = (DDAgentWriter) this.writer;
+      statsAggregator.start(agentWriter.getApi());
+      agentWriter.setStatsAggregator(statsAggregator);
+      this.statsAggregator = statsAggregator;
+    } else {
+      this.statsAggregator = null;
+    }
     log.info("New instance: {}", this);
   }
 
@@ -93,10 +184,21 @@ public class DDTracer extends ThreadLocalScopeManager implements io.opentracing.
     this(UNASSIGNED_DEFAULT_SERVICE_NAME, writer, new AllSampler());
   }
 
+  private static StatsAggregator createStatsAggregator(final Properties config) {
+    if (!Boolean.parseBoolean(config.getProperty(DDTraceConfig.STATS_COMPUTATION_ENABLED))) {
+      return null;
+    }
+    return new StatsAggregator(
+        Long.parseLong(
+            config.getProperty(
+                DDTraceConfig.STATS_FLUSH_INTERVAL,
+                String.valueOf(StatsAggregator.DEFAULT_FLUSH_INTERVAL_MILLIS))));
+  }
+
   /**
    * Returns the list of span context decorators
    *
-   * @return the list of span context decorators
+   * @return the immutable list of span context decorators for the tag, or null
    */
   public List<AbstractDecorator> getSpanContextDecorators(final String tag) {
     return spanContextDecorators.get(tag);
@@ -107,31 +209,82 @@ public class DDTracer extends ThreadLocalScopeManager implements io.opentracing.
    *
    * @param decorator The decorator in the list
    */
-  public void addDecorator(final AbstractDecorator decorator) {
+  public synchronized void addDecorator(final AbstractDecorator decorator) {
+    spanContextDecorators = withDecorator(spanContextDecorators, decorator);
+  }
+
+  /**
+   * Add a decorator run only when the trace is written, on the latest value of its tag, instead of
+   * on each {@code setTag}. The resource names they derive are not set until then. The decorators
+   * run on the writer thread, only on the spans of the kept traces, except:
+   *
+   * <ul>
+   *   <li>with a tail sampler, on the root span of every trace, as it keys on its resource
+   *   <li>with stats, on every span, dropped traces included, as the stats key on the resources
+   *   <li>with a writer other than the {@link DDAgentWriter}, on the application thread finishing
+   *       the trace, still only for the traces kept by the sampler
+   * </ul>
+   *
+   * @param decorator The decorator in the list
+   */
+  public synchronized void addDeferredDecorator(final AbstractDecorator decorator) {
+    deferredDecorators = withDecorator(deferredDecorators, decorator);
+  }
 
-    List<AbstractDecorator> list = spanContextDecorators.get(decorator.getMatchingTag());
-    if (list == null) {
-      list = new ArrayList<>();
+  /** @return true if a deferred decorator matches the tag */
+  public boolean hasDeferredDecorators(final String tag) {
+    return deferredDecorators.containsKey(tag);
+  }
+
+  /** @return the immutable map of the deferred decorators, keyed by tag */
+  public Map<String, List<AbstractDecorator>> getDeferredDecorators() {
+    return deferredDecorators;
+  }
+
+  private static Map<String, List<AbstractDecorator>> withDecorator(
+      final Map<String, List<AbstractDecorator>> registered, final AbstractDecorator decorator) {
+    final String tag = decorator.getMatchingTag().intern();
+
+    final List<AbstractDecorator> list = new ArrayList<>();
+    final List<AbstractDecorator> existing = registered.get(tag);
+    if (existing != null) {
+      list.addAll(existing);
     }
     list.add(decorator);
 
-    spanContextDecorators.put(decorator.getMatchingTag(), list);
+    final Map<String, List<AbstractDecorator>> decorators = new HashMap<>(registered);
+    decorators.put(tag, Collections.unmodifiableList(list));
+    return Collections.unmodifiableMap(decorators);
+  }
+
+  public int getPartialFlushMinSpans() {
+    return partialFlushMinSpans;
   }
 
   @Override
-  public ScopeManager scopeManager() {
-    return this;
+  public DDScopeManager scopeManager() {
+    return scopeManager;
+  }
+
+  @Override
+  public Scope activate(final Span span, final boolean finishSpanOnClose) {
+    return scopeManager.activate(span, finishSpanOnClose);
+  }
+
+  @Override
+  public Scope active() {
+    return scopeManager.active();
   }
 
   @Override
   public Span activeSpan() {
-    final Scope active = active();
+    final Scope active = scopeManager.active();
     return active == null ? null : active.span();
   }
 
   @Override
   public DDSpanBuilder buildSpan(final String operationName) {
-    return new DDSpanBuilder(operationName, this);
+    return new DDSpanBuilder(operationName, scopeManager);
   }
 
   @Override
@@ -158,20 +311,52 @@ public class DDTracer extends ThreadLocalScopeManager implements io.opentracing.
 
   /**
    * We use the sampler to know if the trace has to be reported/written. The sampler is called on
-   * the first span (root span) of the trace. If the trace is marked as a sample, we report it.
+   * the first span (root span) of the trace. If the trace is marked as a sample, we report it. The
+   * decision is taken once per trace: the chunks of a partially flushed trace share it.
+   *
+   * <p>The spans are handed to the writer as-is, they are not copied. Rejected traces are only
+   * counted, the agent writer reports the counts along with the next payload. With stats, it also
+   * takes the rejected traces, to aggregate them on its own thread.
    *
-   * @param trace a list of the spans related to the same trace
+   * @param pendingTrace the trace the spans belong to
+   * @param trace a list of finished spans related to the same trace
    */
-  public void write(final Queue<DDSpan> trace) {
+  public void write(final PendingTrace pendingTrace, final List<DDSpan> trace) {
     if (trace.isEmpty()) {
       return;
     }
-    if (this.sampler.sample(trace.peek())) {
-      this.writer.write(new ArrayList<>(trace));
+    final DDSpan rootSpan = pendingTrace.getRootSpan();
+    if (pendingTrace.sample(sampler, rootSpan != null ? rootSpan : trace.get(0))) {
+      // The agent writer runs the deferred decorators itself
+      if (!(writer instanceof DDAgentWriter)) {
+        applyDeferredDecorators(trace);
+      }
+      this.writer.write(trace);
+    } else if (this.writer instanceof DDAgentWriter) {
+      final DDAgentWriter agentWriter = (DDAgentWriter) this.writer;
+      agentWriter.getApi().recordDroppedTrace(trace.size());
+      agentWriter.writeDropped(trace);
+    } else {
+      SpanPool.recycle(trace);
+    }
+  }
+
+  /**
+   * Run the deferred decorators of the spans of a trace, see {@link
+   * #addDeferredDecorator(AbstractDecorator)}
+   *
+   * @param trace finished spans
+   */
+  public static void applyDeferredDecorators(final List<DDSpan> trace) {
+    for (final DDSpan span : trace) {
+      span.context().applyDeferredDecorators();
     }
   }
 
   public void close() {
+    if (statsAggregator != null) {
+      statsAggregator.close();
+    }
     writer.close();
   }
 
@@ -257,7 +442,20 @@ public class DDTracer extends ThreadLocalScopeManager implements io.opentracing.
     }
 
     private DDSpan startSpan() {
-      final DDSpan span = new DDSpan(this.timestamp, buildSpanContext());
+      final DDSpan span;
+      if (spanPool == null) {
+        span = new DDSpan(this.timestamp, buildSpanContext(null));
+      } else {
+        final SpanPool.Local pool = spanPool.local();
+        final DDSpan recycled = pool.take();
+        if (recycled == null) {
+          span = new DDSpan(this.timestamp, buildSpanContext(null), pool);
+        } else {
+          buildSpanContext(recycled.context());
+          recycled.start(this.timestamp);
+          span = recycled;
+        }
+      }
       if (DDTracer.this.sampler instanceof RateByServiceSampler) {
         ((RateByServiceSampler) DDTracer.this.sampler).initializeSamplingPriority(span);
       }
@@ -376,22 +574,28 @@ public class DDTracer extends ThreadLocalScopeManager implements io.opentracing.
      * Build the SpanContext, if the actual span has a parent, the following attributes must be
      * propagated: - ServiceName - Baggage - Trace (a list of all spans related) - SpanType
      *
+     * @param recycled a recycled context to reset, or null to create a new one
      * @return the context
      */
-    private DDSpanContext buildSpanContext() {
+    private DDSpanContext buildSpanContext(final DDSpanContext recycled) {
       final long traceId;
       final long spanId = generateNewId();
       final long parentSpanId;
       final Map<String, String> baggage;
-      final Queue<DDSpan> parentTrace;
+      final PendingTrace parentTrace;
       final int samplingPriority;
 
       final DDSpanContext context;
       SpanContext parentContext = this.parent;
       if (parentContext == null && !ignoreScope) {
         // use the Scope as parent unless overridden or ignored.
-        final Scope scope = active();
-        if (scope != null) parentContext = scope.span().context();
+        parentContext = DDTracer.this.scopeManager.activeSpanContext();
+      }
+
+      if (parentContext instanceof DDSpanContext
+          && ((DDSpanContext) parentContext).isRecycled()) {
+        SpanPool.useAfterRecycle(parentContext);
+        parentContext = null;
       }
 
       if (parentContext instanceof DDSpanContext) {
@@ -399,7 +603,8 @@ public class DDTracer extends ThreadLocalScopeManager implements io.opentracing.
         traceId = ddsc.getTraceId();
         parentSpanId = ddsc.getSpanId();
         baggage = ddsc.getBaggageItems();
-        parentTrace = ddsc.getTrace();
+        // an extracted context has no tracer: the local root starts a new pending trace
+        parentTrace = ddsc.getTracer() == null ? null : ddsc.getTrace();
         samplingPriority = ddsc.getSamplingPriority();
 
         if (this.serviceName == null) this.serviceName = ddsc.getServiceName();
@@ -422,6 +627,23 @@ public class DDTracer extends ThreadLocalScopeManager implements io.opentracing.
       // this.operationName, this.tags,
 
       // some attributes are inherited from the parent
+      if (recycled != null) {
+        recycled.reset(
+            traceId,
+            spanId,
+            parentSpanId,
+            serviceName,
+            operationName,
+            this.resourceName,
+            samplingPriority,
+            baggage,
+            errorFlag,
+            spanType,
+            this.tags,
+            parentTrace,
+            DDTracer.this);
+        return recycled;
+      }
       context =
           new DDSpanContext(
               traceId,
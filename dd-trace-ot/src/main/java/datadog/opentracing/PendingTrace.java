@@ -0,0 +1,198 @@
+package datadog.opentracing;
+
+import datadog.trace.common.sampling.Sampler;
+import datadog.trace.common.util.Clock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The state of a trace while its spans are in flight. It is owned by the root {@link
+ * DDSpanContext} and shared by every span of the trace.
+ *
+ * <p>The pending trace counts the spans started but not finished yet. Finished spans are appended
+ * to a {@link SpanBuffer}, and the trace is written exactly when the count drops to zero, so
+ * children finishing after their parent are not lost.
+ *
+ * <p>Work handed off to another thread holds a {@link
+ * datadog.opentracing.scopemanager.Continuation}, which counts as a pending reference as well: the
+ * trace is not written before the async work is done, even if all its spans are finished.
+ *
+ * <p>For long-running traces, the finished spans are flushed in chunks as soon as {@link
+ * DDTracer#getPartialFlushMinSpans()} spans are buffered, which bounds the memory held per trace.
+ */
+@Slf4j
+public class PendingTrace {
+
+  private final DDTracer tracer;
+  private final long traceId;
+
+  /** Epoch time of the trace start in nanoseconds, with a millisecond accuracy */
+  private final long startTimeNano;
+  /** Nano ticks matching {@link #startTimeNano}, all the span timings are derived from it */
+  private final long startNanoTicks;
+
+  /** Number of spans started and not finished yet, plus the open continuations */
+  private final AtomicInteger pendingReferenceCount = new AtomicInteger(0);
+
+  /** Finished spans not yet written. Lazily created, reset each time spans are written */
+  private final AtomicReference<SpanBuffer> finishedSpans = new AtomicReference<>();
+
+  /** The first span registered, created by the context owning the trace */
+  private volatile DDSpan rootSpan;
+
+  /** Set once spans were written before the end of the trace */
+  private volatile boolean partiallyFlushed = false;
+
+  /** Decision of the sampler, taken when the first spans are written. Guarded by this when set */
+  private volatile Boolean sampled;
+
+  /** Decision of the tail sampler of the writer, taken on the first chunk it sees */
+  private volatile Boolean tailSampled;
+
+  public PendingTrace(final DDTracer tracer, final long traceId) {
+    this.tracer = tracer;
+    this.traceId = traceId;
+    this.startTimeNano = Clock.currentNanoTime();
+    this.startNanoTicks = Clock.currentNanoTicks();
+  }
+
+  /**
+   * Current epoch time in nanoseconds, derived from the trace start time and the nano ticks
+   * elapsed since. Lock free, and consistent across the spans of the trace.
+   *
+   * @return the current epoch time in nanos
+   */
+  public long getCurrentTimeNano() {
+    return startTimeNano + Math.max(0, Clock.currentNanoTicks() - startNanoTicks);
+  }
+
+  /**
+   * Track a newly started span.
+   *
+   * @param span the started span
+   */
+  public void registerSpan(final DDSpan span) {
+    if (rootSpan == null) {
+      rootSpan = span;
+    }
+    pendingReferenceCount.incrementAndGet();
+  }
+
+  /** Track a continuation of the trace, captured to be activated by another thread. */
+  public void registerContinuation() {
+    pendingReferenceCount.incrementAndGet();
+  }
+
+  /** Release a continuation. Writes the trace if it was the last pending reference. */
+  public void releaseContinuation() {
+    if (pendingReferenceCount.decrementAndGet() == 0) {
+      write(finishedSpans.getAndSet(null));
+    }
+  }
+
+  /**
+   * Buffer a finished span. Writes the trace if it was the last pending span, or flushes the
+   * buffered spans if there are too many of them.
+   *
+   * @param span the finished span
+   */
+  public void addFinishedSpan(final DDSpan span) {
+    SpanBuffer buffer;
+    do {
+      buffer = finishedSpans.get();
+      if (buffer == null) {
+        finishedSpans.compareAndSet(null, new SpanBuffer());
+        buffer = finishedSpans.get();
+      }
+    } while (buffer == null || !buffer.add(span));
+
+    if (pendingReferenceCount.decrementAndGet() == 0) {
+      write(finishedSpans.getAndSet(null));
+    } else {
+      final int partialFlushMinSpans = tracer == null ? 0 : tracer.getPartialFlushMinSpans();
+      if (partialFlushMinSpans > 0
+          && buffer.size() >= partialFlushMinSpans
+          && finishedSpans.compareAndSet(buffer, null)) {
+        log.debug("{} - Partially flushing {} finished spans", this, buffer.size());
+        partiallyFlushed = true;
+        write(buffer);
+      }
+    }
+  }
+
+  private void write(final SpanBuffer buffer) {
+    if (buffer == null) {
+      return;
+    }
+    buffer.seal();
+    if (buffer.isEmpty()) {
+      return;
+    }
+    if (tracer == null) {
+      log.debug("{} - No tracer attached, dropping {} spans", this, buffer.size());
+      return;
+    }
+    tracer.write(this, buffer);
+  }
+
+  /**
+   * Sample the trace when its first spans are written. The chunks flushed afterwards reuse the
+   * decision, so that a partially flushed trace is kept or dropped as a whole, and a rate limiting
+   * sampler takes a single token for it.
+   *
+   * @param sampler the sampler of the tracer
+   * @param span the span to run the sampler on
+   * @return true if the trace is kept
+   */
+  boolean sample(final Sampler sampler, final DDSpan span) {
+    Boolean decision = sampled;
+    if (decision == null) {
+      synchronized (this) {
+        decision = sampled;
+        if (decision == null) {
+          decision = sampler.sample(span);
+          sampled = decision;
+        }
+      }
+    }
+    return decision;
+  }
+
+  /** @return the decision of the tail sampler on the spans already written, or null */
+  public Boolean getTailSamplingDecision() {
+    return tailSampled;
+  }
+
+  /** @param keep the decision of the tail sampler, reused for the next chunks of the trace */
+  public void setTailSamplingDecision(final boolean keep) {
+    tailSampled = keep;
+  }
+
+  public long getTraceId() {
+    return traceId;
+  }
+
+  /** @return the first span registered in the trace, or null if no span was started yet */
+  public DDSpan getRootSpan() {
+    return rootSpan;
+  }
+
+  /**
+   * @return true if spans were written before the end of the trace. Such spans may still be
+   *     referenced by the rest of the trace, so they are not recycled
+   */
+  public boolean isPartiallyFlushed() {
+    return partiallyFlushed;
+  }
+
+  /** @return the number of spans started but not finished yet, plus the open continuations */
+  public int getPendingReferenceCount() {
+    return pendingReferenceCount.get();
+  }
+
+  @Override
+  public String toString() {
+    return "PendingTrace { t_id=" + traceId + ", pending=" + pendingReferenceCount.get() + " }";
+  }
+}
@@ -0,0 +1,187 @@
+package datadog.opentracing;
+
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Collects the finished spans of a trace until they are handed to the writer.
+ *
+ * <p>The structure is an append-only list split in fixed size chunks. Appending a span reserves a
+ * slot with a single atomic increment of the span counter, so concurrent span finishes never retry
+ * a CAS or allocate a queue node. Chunks are only allocated (under lock) every {@link #CHUNK_SIZE}
+ * spans.
+ *
+ * <p>Once {@link #seal() sealed}, the buffer rejects new spans and is handed as-is to the {@link
+ * datadog.trace.common.writer.Writer}: the spans are not copied into another list.
+ */
+public class SpanBuffer extends AbstractList<DDSpan> {
+
+  static final int CHUNK_SHIFT = 4;
+  static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+  static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private static final int INITIAL_CHUNKS = 4;
+  private static final int SEALED = Integer.MIN_VALUE;
+
+  /** Number of slots reserved so far. The sign bit is set once the buffer is sealed */
+  private final AtomicInteger count = new AtomicInteger(0);
+
+  /** Chunk directory. Entries are installed under lock, readers fall back to the lock on null */
+  private volatile AtomicReferenceArray<DDSpan>[] chunks;
+
+  /** Size frozen when the buffer was sealed, -1 while the buffer is open */
+  private volatile int sealedSize = -1;
+
+  @SuppressWarnings("unchecked")
+  public SpanBuffer() {
+    chunks = new AtomicReferenceArray[INITIAL_CHUNKS];
+    chunks[0] = new AtomicReferenceArray<>(CHUNK_SIZE);
+  }
+
+  /**
+   * Append a span to the buffer.
+   *
+   * @param span the finished span
+   * @return false if the buffer is sealed and the span has to go to another buffer
+   */
+  @Override
+  public boolean add(final DDSpan span) {
+    final int index = count.getAndIncrement();
+    if (index < 0) {
+      return false;
+    }
+    chunkFor(index).set(index & CHUNK_MASK, span);
+    return true;
+  }
+
+  /**
+   * Return the span at the given position. While the buffer is open, a slot reserved by a
+   * concurrent {@link #add} may be observed as null until the span is published.
+   */
+  @Override
+  public DDSpan get(final int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+    }
+    final AtomicReferenceArray<DDSpan> chunk = readChunk(index >>> CHUNK_SHIFT);
+    return chunk == null ? null : chunk.get(index & CHUNK_MASK);
+  }
+
+  @Override
+  public int size() {
+    final int sealed = sealedSize;
+    return sealed >= 0 ? sealed : count.get() & ~SEALED;
+  }
+
+  /**
+   * Reject further spans and wait for the spans already reserved to be published. Once this
+   * method returns, the buffer content is final.
+   */
+  public void seal() {
+    if (sealedSize >= 0) {
+      return;
+    }
+    int current;
+    do {
+      current = count.get();
+    } while (current >= 0 && !count.compareAndSet(current, current | SEALED));
+    final int size = current & ~SEALED;
+
+    // Adders which reserved a slot before the seal are about to publish their span
+    for (int i = 0; i < size; i++) {
+      final AtomicReferenceArray<DDSpan> chunk = chunkFor(i);
+      while (chunk.get(i & CHUNK_MASK) == null) {
+        Thread.yield();
+      }
+    }
+    sealedSize = size;
+  }
+
+  public boolean isSealed() {
+    return sealedSize >= 0;
+  }
+
+  /** Iterates over the published spans, skipping slots which are still being written */
+  @Override
+  public Iterator<DDSpan> iterator() {
+    return new Iterator<DDSpan>() {
+      private final int size = size();
+      private int index = 0;
+      private DDSpan next = advance();
+
+      private DDSpan advance() {
+        while (index < size) {
+          final AtomicReferenceArray<DDSpan> chunk = readChunk(index >>> CHUNK_SHIFT);
+          final DDSpan span = chunk == null ? null : chunk.get(index & CHUNK_MASK);
+          index++;
+          if (span != null) {
+            return span;
+          }
+        }
+        return null;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public DDSpan next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        final DDSpan current = next;
+        next = advance();
+        return current;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("SpanBuffer is append-only");
+      }
+    };
+  }
+
+  private AtomicReferenceArray<DDSpan> readChunk(final int chunkIndex) {
+    final AtomicReferenceArray<DDSpan>[] current = chunks;
+    if (chunkIndex < current.length && current[chunkIndex] != null) {
+      return current[chunkIndex];
+    }
+    synchronized (this) {
+      final AtomicReferenceArray<DDSpan>[] locked = chunks;
+      return chunkIndex < locked.length ? locked[chunkIndex] : null;
+    }
+  }
+
+  private AtomicReferenceArray<DDSpan> chunkFor(final int index) {
+    final int chunkIndex = index >>> CHUNK_SHIFT;
+    final AtomicReferenceArray<DDSpan>[] current = chunks;
+    if (chunkIndex < current.length && current[chunkIndex] != null) {
+      return current[chunkIndex];
+    }
+    return allocateChunk(chunkIndex);
+  }
+
+  @SuppressWarnings("unchecked")
+  private synchronized AtomicReferenceArray<DDSpan> allocateChunk(final int chunkIndex) {
+    AtomicReferenceArray<DDSpan>[] current = chunks;
+    if (chunkIndex >= current.length) {
+      int length = current.length;
+      while (length <= chunkIndex) {
+        length <<= 1;
+      }
+      final AtomicReferenceArray<DDSpan>[] grown = new AtomicReferenceArray[length];
+      System.arraycopy(current, 0, grown, 0, current.length);
+      current = grown;
+    }
+    if (current[chunkIndex] == null) {
+      current[chunkIndex] = new AtomicReferenceArray<>(CHUNK_SIZE);
+    }
+    chunks = current;
+    return current[chunkIndex];
+  }
+}
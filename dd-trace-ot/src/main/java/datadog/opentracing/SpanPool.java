@@ -0,0 +1,134 @@
+package datadog.opentracing;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Recycles the spans, with their context and tag store, once the writer is done with them.
+ *
+ * <p>Each thread building spans owns a {@link Local} pool, so that taking a span takes no lock. A
+ * span is returned to the pool of the thread which built it, by any thread: returned spans are
+ * pushed on a lock-free stack linked through the spans themselves, which the owning thread takes
+ * whole once its own free list is empty. Recycling therefore allocates nothing.
+ *
+ * <p>Recycling is only safe if nothing uses a span once its trace is written. A recycled span is
+ * flagged until it is reused, and using it meanwhile is detected: it is logged, and only throws
+ * when the {@link #STRICT_PROPERTY} system property is set, as in the tests. Spans of partially
+ * flushed traces are never recycled, as the rest of the trace may still reference them.
+ */
+@Slf4j
+public class SpanPool {
+
+  /** Default number of spans pooled per thread */
+  public static final int DEFAULT_MAX_SPANS_PER_THREAD = 256;
+
+  /** Test-only system property making the use of a recycled span throw */
+  static final String STRICT_PROPERTY = "dd.trace.span.pool.strict";
+
+  /** Whether using a recycled span throws, rather than being logged */
+  static final boolean STRICT = Boolean.getBoolean(STRICT_PROPERTY);
+
+  private final int maxSpansPerThread;
+
+  private final ThreadLocal<Local> pools =
+      new ThreadLocal<Local>() {
+        @Override
+        protected Local initialValue() {
+          return new Local(maxSpansPerThread);
+        }
+      };
+
+  public SpanPool() {
+    this(DEFAULT_MAX_SPANS_PER_THREAD);
+  }
+
+  /** @param maxSpansPerThread spans kept by each thread, the extra ones are left to the GC */
+  public SpanPool(final int maxSpansPerThread) {
+    this.maxSpansPerThread = maxSpansPerThread;
+  }
+
+  /** @return the pool of the current thread */
+  Local local() {
+    return pools.get();
+  }
+
+  /**
+   * Return the spans of a written trace to the pools they were taken from. Spans not built from a
+   * pool are ignored.
+   *
+   * @param trace finished spans, not used by the caller afterwards
+   */
+  public static void recycle(final List<DDSpan> trace) {
+    for (final DDSpan span : trace) {
+      final Local owner = span.getPool();
+      if (owner != null && !span.context().getTrace().isPartiallyFlushed()) {
+        owner.release(span);
+      }
+    }
+  }
+
+  /** Report the use of a recycled span or context */
+  static void useAfterRecycle(final Object recycled) {
+    if (STRICT) {
+      throw new IllegalStateException("Used after being recycled: " + recycled);
+    }
+    log.debug("{} - Used after being recycled, ignoring.", recycled);
+  }
+
+  /**
+   * The pool of a thread. Only the owning thread takes spans, any thread returns them.
+   *
+   * <p>Spans are linked through {@link DDSpan#nextPooled}: the free list is read by the owning
+   * thread only, the returned stack is pushed with a CAS and taken whole.
+   */
+  static class Local {
+    private final int maxSpans;
+    /** Spans available to the owning thread */
+    private DDSpan free;
+    /** Spans returned since the owning thread last took them */
+    private final AtomicReference<DDSpan> returned = new AtomicReference<>();
+    /** Spans held by the pool, free and returned */
+    private final AtomicInteger size = new AtomicInteger();
+
+    Local(final int maxSpans) {
+      this.maxSpans = maxSpans;
+    }
+
+    /** @return a recycled span, or null if the pool is empty. Owning thread only */
+    DDSpan take() {
+      DDSpan span = free;
+      if (span == null) {
+        span = returned.getAndSet(null);
+        if (span == null) {
+          return null;
+        }
+      }
+      free = span.nextPooled;
+      span.nextPooled = null;
+      size.decrementAndGet();
+      return span;
+    }
+
+    void release(final DDSpan span) {
+      if (!span.context().recycle()) {
+        // Already recycled: the span must not be pooled twice
+        return;
+      }
+      if (size.incrementAndGet() > maxSpans) {
+        size.decrementAndGet();
+        return;
+      }
+      DDSpan head;
+      do {
+        head = returned.get();
+        span.nextPooled = head;
+      } while (!returned.compareAndSet(head, span));
+    }
+
+    int size() {
+      return size.get();
+    }
+  }
+}
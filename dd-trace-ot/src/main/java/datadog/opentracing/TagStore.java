@@ -0,0 +1,388 @@
+package datadog.opentracing;
+
+import datadog.trace.api.DDTags;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact storage for the tags of a span.
+ *
+ * <p>Tags are kept in parallel arrays: the key, the kind of the value, a primitive slot and an
+ * object slot. Numbers and booleans are stored unboxed in the primitive slot (doubles and floats as
+ * their raw bits), everything else in the object slot. Lookups are linear, which is faster than
+ * hashing for the handful of tags a span usually holds.
+ *
+ * <p>The class is not thread-safe: writes are guarded by the owning {@link DDSpanContext} monitor.
+ * Tags are read through {@link View}, a read-only map which also exposes the tags backed by fixed
+ * context fields (span type, thread name and thread id). The {@code env} tag, read by the sampler
+ * of every root span, is mirrored in a volatile field so that it's read without the lock. Other
+ * well-known tags stay in the arrays: their keys are constants, matched by reference before
+ * {@code equals}, so a lookup costs little more than a field read.
+ */
+public class TagStore {
+
+  public static final byte KIND_OBJECT = 0;
+  public static final byte KIND_BOOLEAN = 1;
+  public static final byte KIND_INT = 2;
+  public static final byte KIND_LONG = 3;
+  public static final byte KIND_FLOAT = 4;
+  public static final byte KIND_DOUBLE = 5;
+
+  private static final int INITIAL_CAPACITY = 4;
+
+  private static final String ENV = "env";
+
+  private String[] keys;
+  private byte[] kinds;
+  private long[] primitives;
+  private Object[] objects;
+  private int size;
+
+  /** The value of the env tag as a string, or null */
+  private volatile String env;
+
+  /** Incremented by every write, so that readers can tell whether a snapshot is stale */
+  private volatile int version;
+
+  /**
+   * Set a tag, replacing the previous value if any.
+   *
+   * @param key the tag name
+   * @param value a non null value. Numbers and booleans are unboxed
+   */
+  public void put(final String key, final Object value) {
+    version++;
+    if (ENV.equals(key)) {
+      env = String.valueOf(value);
+    }
+    if (value instanceof Integer) {
+      putPrimitive(key, KIND_INT, (Integer) value);
+    } else if (value instanceof Long) {
+      putPrimitive(key, KIND_LONG, (Long) value);
+    } else if (value instanceof Double) {
+      putPrimitive(key, KIND_DOUBLE, Double.doubleToRawLongBits((Double) value));
+    } else if (value instanceof Boolean) {
+      putPrimitive(key, KIND_BOOLEAN, ((Boolean) value) ? 1L : 0L);
+    } else if (value instanceof Float) {
+      putPrimitive(key, KIND_FLOAT, Double.doubleToRawLongBits((Float) value));
+    } else {
+      final int index = slotFor(key);
+      kinds[index] = KIND_OBJECT;
+      primitives[index] = 0L;
+      objects[index] = value;
+    }
+  }
+
+  public void putAll(final Map<String, Object> tags) {
+    for (final Map.Entry<String, Object> entry : tags.entrySet()) {
+      if (entry.getValue() != null) {
+        put(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  private void putPrimitive(final String key, final byte kind, final long value) {
+    final int index = slotFor(key);
+    kinds[index] = kind;
+    primitives[index] = value;
+    objects[index] = null;
+  }
+
+  /**
+   * Remove a tag. The last tag takes the place of the removed one.
+   *
+   * @param key the tag name
+   */
+  public void remove(final String key) {
+    if (ENV.equals(key)) {
+      env = null;
+    }
+    final int index = indexOf(key);
+    if (index < 0) {
+      return;
+    }
+    version++;
+    final int last = --size;
+    keys[index] = keys[last];
+    kinds[index] = kinds[last];
+    primitives[index] = primitives[last];
+    objects[index] = objects[last];
+    keys[last] = null;
+    objects[last] = null;
+  }
+
+  /**
+   * @param key the tag name
+   * @return the value of the tag, boxed if it was stored as a primitive, or null
+   */
+  public Object get(final String key) {
+    final int index = indexOf(key);
+    return index < 0 ? null : valueAt(index);
+  }
+
+  public boolean containsKey(final String key) {
+    return indexOf(key) >= 0;
+  }
+
+  /** Remove every tag, keeping the arrays allocated */
+  public void clear() {
+    version++;
+    env = null;
+    if (size > 0) {
+      Arrays.fill(keys, 0, size, null);
+      Arrays.fill(objects, 0, size, null);
+      size = 0;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** @return the value of the env tag as a string, or null. Safe to call without the lock */
+  public String getEnv() {
+    return env;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** @return the number of writes so far. Safe to call without the lock */
+  public int getVersion() {
+    return version;
+  }
+
+  // Positional accessors, used to read the tags without boxing
+
+  public String keyAt(final int index) {
+    return keys[index];
+  }
+
+  public byte kindAt(final int index) {
+    return kinds[index];
+  }
+
+  /** @return the raw primitive slot: a long, or the bits of a double for float and double kinds */
+  public long primitiveAt(final int index) {
+    return primitives[index];
+  }
+
+  public Object objectAt(final int index) {
+    return objects[index];
+  }
+
+  /**
+   * @return true if the value is a number, sent to the agent as a metric rather than as a meta
+   *     string
+   */
+  public boolean isNumberAt(final int index) {
+    final byte kind = kinds[index];
+    return kind == KIND_INT
+        || kind == KIND_LONG
+        || kind == KIND_FLOAT
+        || kind == KIND_DOUBLE
+        || (kind == KIND_OBJECT && objects[index] instanceof Number);
+  }
+
+  /** @return the number at the given index as the agent receives it: a long or a double */
+  public Number numberAt(final int index) {
+    switch (kinds[index]) {
+      case KIND_INT:
+      case KIND_LONG:
+        return primitives[index];
+      case KIND_FLOAT:
+      case KIND_DOUBLE:
+        return Double.longBitsToDouble(primitives[index]);
+      default:
+        return ((Number) objects[index]).doubleValue();
+    }
+  }
+
+  public Object valueAt(final int index) {
+    switch (kinds[index]) {
+      case KIND_BOOLEAN:
+        return primitives[index] != 0L;
+      case KIND_INT:
+        return (int) primitives[index];
+      case KIND_LONG:
+        return primitives[index];
+      case KIND_FLOAT:
+        return (float) Double.longBitsToDouble(primitives[index]);
+      case KIND_DOUBLE:
+        return Double.longBitsToDouble(primitives[index]);
+      default:
+        return objects[index];
+    }
+  }
+
+  private int indexOf(final String key) {
+    for (int i = 0; i < size; i++) {
+      final String candidate = keys[i];
+      if (candidate == key || candidate.equals(key)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private int slotFor(final String key) {
+    final int index = indexOf(key);
+    if (index >= 0) {
+      return index;
+    }
+    if (keys == null) {
+      keys = new String[INITIAL_CAPACITY];
+      kinds = new byte[INITIAL_CAPACITY];
+      primitives = new long[INITIAL_CAPACITY];
+      objects = new Object[INITIAL_CAPACITY];
+    } else if (size == keys.length) {
+      final int capacity = size << 1;
+      keys = Arrays.copyOf(keys, capacity);
+      kinds = Arrays.copyOf(kinds, capacity);
+      primitives = Arrays.copyOf(primitives, capacity);
+      objects = Arrays.copyOf(objects, capacity);
+    }
+    keys[size] = key;
+    return size++;
+  }
+
+  static boolean isContextTag(final String key) {
+    return DDTags.SPAN_TYPE.equals(key)
+        || DDTags.THREAD_NAME.equals(key)
+        || DDTags.THREAD_ID.equals(key);
+  }
+
+  /**
+   * Read-only map of the tags of a context. The span type, thread name and thread id are read from
+   * the context fields, they are never written to the store. One instance is kept per context and
+   * handed out as is.
+   *
+   * <p>The entry set is a snapshot, kept until the tags or the context fields change: iterating
+   * over tags which are not written anymore neither takes the lock nor allocates.
+   */
+  static class View extends AbstractMap<String, Object> {
+    private final DDSpanContext context;
+    private final TagStore store;
+
+    private volatile EntrySet snapshot;
+
+    View(final DDSpanContext context, final TagStore store) {
+      this.context = context;
+      this.store = store;
+    }
+
+    @Override
+    public Object get(final Object key) {
+      if (DDTags.SPAN_TYPE.equals(key)) {
+        return context.getSpanType();
+      } else if (DDTags.THREAD_NAME.equals(key)) {
+        return context.getThreadName();
+      } else if (DDTags.THREAD_ID.equals(key)) {
+        return context.getThreadId();
+      } else if (!(key instanceof String)) {
+        return null;
+      }
+      synchronized (context) {
+        return store.get((String) key);
+      }
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+      if (!(key instanceof String)) {
+        return false;
+      } else if (isContextTag((String) key)) {
+        return true;
+      }
+      synchronized (context) {
+        return store.containsKey((String) key);
+      }
+    }
+
+    @Override
+    public int size() {
+      return entrySet().size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return false;
+    }
+
+    /** A snapshot of the tags, built again only once they changed */
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+      final EntrySet current = snapshot;
+      final String spanType = context.getSpanType();
+      final String threadName = context.getThreadName();
+      final long threadId = context.getThreadId();
+      if (current != null
+          && current.version == store.getVersion()
+          && current.spanType == spanType
+          && current.threadName == threadName
+          && current.threadId == threadId) {
+        return current;
+      }
+      final List<Entry<String, Object>> entries;
+      final int version;
+      synchronized (context) {
+        version = store.getVersion();
+        entries = new ArrayList<>(store.size() + 3);
+        for (int i = 0; i < store.size(); i++) {
+          final String key = store.keyAt(i);
+          if (!isContextTag(key)) {
+            entries.add(new SimpleImmutableEntry<>(key, store.valueAt(i)));
+          }
+        }
+      }
+      entries.add(new SimpleImmutableEntry<String, Object>(DDTags.SPAN_TYPE, spanType));
+      entries.add(new SimpleImmutableEntry<String, Object>(DDTags.THREAD_NAME, threadName));
+      entries.add(new SimpleImmutableEntry<String, Object>(DDTags.THREAD_ID, threadId));
+      final EntrySet built =
+          new EntrySet(
+              Collections.unmodifiableList(entries), version, spanType, threadName, threadId);
+      snapshot = built;
+      return built;
+    }
+  }
+
+  private static class EntrySet extends AbstractSet<Map.Entry<String, Object>> {
+    private final List<Map.Entry<String, Object>> entries;
+    // What the snapshot was built from
+    private final int version;
+    private final String spanType;
+    private final String threadName;
+    private final long threadId;
+
+    EntrySet(
+        final List<Map.Entry<String, Object>> entries,
+        final int version,
+        final String spanType,
+        final String threadName,
+        final long threadId) {
+      this.entries = entries;
+      this.version = version;
+      this.spanType = spanType;
+      this.threadName = threadName;
+      this.threadId = threadId;
+    }
+
+    @Override
+    public Iterator<Map.Entry<String, Object>> iterator() {
+      return entries.iterator();
+    }
+
+    @Override
+    public int size() {
+      return entries.size();
+    }
+  }
+}
@@ -37,6 +37,14 @@ public abstract class AbstractDecorator {
     }
   }
 
+  /**
+   * @return true if the decorator only depends on the latest value of its tag and on the other
+   *     tags, so that it can be run once the trace is kept rather than on each {@code setTag}
+   */
+  public boolean isDeferrable() {
+    return false;
+  }
+
   public String getMatchingTag() {
     return matchingTag;
   }
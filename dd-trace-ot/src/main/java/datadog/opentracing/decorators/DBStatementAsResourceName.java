@@ -12,6 +12,11 @@ public class DBStatementAsResourceName extends AbstractDecorator {
     this.setSetTag(DDTags.RESOURCE_NAME);
   }
 
+  @Override
+  public boolean isDeferrable() {
+    return true;
+  }
+
   @Override
   public boolean afterSetTag(final DDSpanContext context, final String tag, final Object value) {
 
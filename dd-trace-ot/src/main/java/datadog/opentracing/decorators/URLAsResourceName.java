@@ -5,18 +5,33 @@ import datadog.opentracing.DDSpanContext;
 import datadog.trace.api.DDTags;
 import datadog.trace.common.util.ConfigUtils;
 import io.opentracing.tag.Tags;
-import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-
-/** Decorator for servlet contrib */
+import java.util.regex.Pattern;
+
+/**
+ * Decorator for servlet contrib
+ *
+ * <p>The built-in rules are applied by hand-written scanners and the custom ones with patterns
+ * compiled once. Normalized paths are kept in a bounded LRU cache, as most applications serve a
+ * limited set of URLs over and over.
+ */
 public class URLAsResourceName extends AbstractDecorator {
   public static final String CONFIG_PATH = "dd-trace";
 
   public static final Config.Rule RULE_QPARAM = new Config.Rule("\\?.*$", "");
   public static final Config.Rule RULE_DIGIT = new Config.Rule("\\d+", "?");
+
+  /** Number of normalized paths cached, split in segments locked independently */
+  static final int CACHE_SIZE = 1024;
+
+  private static final int CACHE_SEGMENTS = 16;
+
   private List<Config.Rule> patterns = new ArrayList<>();
+  private final PathCache[] cache = new PathCache[CACHE_SEGMENTS];
 
   public URLAsResourceName() {
     this(CONFIG_PATH);
@@ -39,28 +54,29 @@ public class URLAsResourceName extends AbstractDecorator {
       patterns.add(RULE_QPARAM);
       patterns.add(RULE_DIGIT);
     }
+    for (int i = 0; i < CACHE_SEGMENTS; i++) {
+      cache[i] = new PathCache(CACHE_SIZE / CACHE_SEGMENTS);
+    }
+  }
+
+  @Override
+  public boolean isDeferrable() {
+    return true;
   }
 
   @Override
   public boolean afterSetTag(final DDSpanContext context, final String tag, final Object value) {
     try {
-      final String statusCode = String.valueOf(context.getTags().get(Tags.HTTP_STATUS.getKey()));
+      final Object statusCode = context.getTags().get(Tags.HTTP_STATUS.getKey());
       // do nothing if the status code is already set and equals to 404.
       // TODO: it assumes that Status404Decorator is active. If it's not, it will lead to unexpected behaviors
-      if (statusCode != null && statusCode.equals("404")) {
+      if (statusCode instanceof Number
+          ? ((Number) statusCode).intValue() == 404
+          : "404".equals(statusCode)) {
         return true;
       }
 
-      // Get the path without host:port
-      String path = String.valueOf(value);
-
-      try {
-        path = new java.net.URL(path).getPath();
-      } catch (final MalformedURLException e) {
-        // do nothing, use the value instead of the path
-      }
-      // normalize the path
-      path = norm(path);
+      String path = normalize(String.valueOf(value));
 
       // if the verb (GET, POST ...) is present, add it
       final String verb = (String) context.getTags().get(Tags.HTTP_METHOD.getKey());
@@ -75,6 +91,28 @@ public class URLAsResourceName extends AbstractDecorator {
     return true;
   }
 
+  /**
+   * Get the path of the url without host:port, and normalize it
+   *
+   * @param url an absolute url or a path
+   * @return the normalized path, from the cache if it was seen recently
+   */
+  String normalize(final String url) {
+    final String path = path(url);
+    final PathCache segment = cache[(path.hashCode() & 0x7fffffff) % CACHE_SEGMENTS];
+    synchronized (segment) {
+      final String cached = segment.get(path);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    final String norm = norm(path);
+    synchronized (segment) {
+      segment.put(path, norm);
+    }
+    return norm;
+  }
+
   // Method to normalise the url string
   String norm(final String origin) {
 
@@ -82,7 +120,13 @@ public class URLAsResourceName extends AbstractDecorator {
 
     // Apply rules
     for (final Config.Rule p : patterns) {
-      norm = norm.replaceAll(p.regex, p.replacement);
+      if (p == RULE_QPARAM || RULE_QPARAM.equals(p)) {
+        norm = removeQuery(norm);
+      } else if (p == RULE_DIGIT || RULE_DIGIT.equals(p)) {
+        norm = replaceDigits(norm);
+      } else {
+        norm = p.compiled().matcher(norm).replaceAll(p.replacement);
+      }
       // if the rule is final, so do not apply others functions
       if (p.isFinal) {
         break;
@@ -92,6 +136,77 @@ public class URLAsResourceName extends AbstractDecorator {
     return norm;
   }
 
+  /**
+   * Same as {@code new URL(url).getPath()} for absolute urls, without the parsing cost
+   *
+   * @return the path of an absolute url, or the value itself if it has no scheme
+   */
+  static String path(final String url) {
+    final int schemeEnd = url.indexOf("://");
+    if (schemeEnd <= 0 || !isScheme(url, schemeEnd)) {
+      return url;
+    }
+    final int length = url.length();
+    int start = schemeEnd + 3;
+    while (start < length && "/?#".indexOf(url.charAt(start)) < 0) {
+      start++;
+    }
+    if (start == length || url.charAt(start) != '/') {
+      return "";
+    }
+    int end = start;
+    while (end < length && url.charAt(end) != '?' && url.charAt(end) != '#') {
+      end++;
+    }
+    return url.substring(start, end);
+  }
+
+  private static boolean isScheme(final String url, final int end) {
+    for (int i = 0; i < end; i++) {
+      final char c = url.charAt(i);
+      if (!Character.isLetterOrDigit(c) && c != '+' && c != '-' && c != '.') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Same as {@link #RULE_QPARAM} */
+  static String removeQuery(final String path) {
+    final int query = path.indexOf('?');
+    return query < 0 ? path : path.substring(0, query);
+  }
+
+  /** Same as {@link #RULE_DIGIT}, returns the path itself when it holds no digit */
+  static String replaceDigits(final String path) {
+    final int length = path.length();
+    int i = 0;
+    while (i < length && !isDigit(path.charAt(i))) {
+      i++;
+    }
+    if (i == length) {
+      return path;
+    }
+    final StringBuilder sb = new StringBuilder(length);
+    sb.append(path, 0, i);
+    while (i < length) {
+      final char c = path.charAt(i++);
+      if (isDigit(c)) {
+        sb.append('?');
+        while (i < length && isDigit(path.charAt(i))) {
+          i++;
+        }
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  private static boolean isDigit(final char c) {
+    return c >= '0' && c <= '9';
+  }
+
   // For tests
   List<Config.Rule> getPatterns() {
     return patterns;
@@ -100,6 +215,26 @@ public class URLAsResourceName extends AbstractDecorator {
   // For tests
   void setPatterns(final List<Config.Rule> patterns) {
     this.patterns = patterns;
+    for (final PathCache segment : cache) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  /** A segment of the LRU cache of normalized paths, guarded by its own monitor */
+  private static class PathCache extends LinkedHashMap<String, String> {
+    private final int maxSize;
+
+    PathCache(final int maxSize) {
+      super(maxSize * 4 / 3 + 1, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+      return size() > maxSize;
+    }
   }
 
   /** Properties concerning the UrlAsResourceDecorator in the YAML config */
@@ -121,6 +256,8 @@ public class URLAsResourceName extends AbstractDecorator {
       String regex;
       String replacement;
       boolean isFinal = false;
+      /** Compiled on first use */
+      private transient volatile Pattern pattern;
 
       public Rule() {}
 
@@ -135,6 +272,16 @@ public class URLAsResourceName extends AbstractDecorator {
 
       public void setRegex(final String regex) {
         this.regex = regex;
+        this.pattern = null;
+      }
+
+      Pattern compiled() {
+        Pattern compiled = pattern;
+        if (compiled == null) {
+          compiled = Pattern.compile(regex);
+          pattern = compiled;
+        }
+        return compiled;
       }
 
       public String getReplacement() {
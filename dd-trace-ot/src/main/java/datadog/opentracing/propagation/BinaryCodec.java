@@ -0,0 +1,100 @@
+package datadog.opentracing.propagation;
+
+import datadog.opentracing.DDSpanContext;
+import datadog.trace.common.sampling.PrioritySampling;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A codec writing the context as bytes, for the carriers taking binary values, e.g. message
+ * headers.
+ *
+ * <p>The ids and the sampling priority have a fixed width, so that they are written and read
+ * without any parsing: a version byte, the trace id and the span id as 8 bytes each, a flag byte
+ * telling if the priority is set, and the priority as a signed byte. The baggage items follow, as
+ * a 2 bytes count and a length-prefixed UTF-8 key and value each.
+ *
+ * <p>The context is written at the position of the buffer, which must have enough room, and read
+ * from its position. A buffer holding an unknown version or too few bytes yields no context.
+ * Unlike the text codecs, the carrier is not readable by the tracers of other languages.
+ */
+@Slf4j
+public class BinaryCodec implements Codec<ByteBuffer> {
+
+  static final byte VERSION = 0;
+
+  /** Bytes taken by the fixed-width fields */
+  public static final int FIXED_SIZE = 1 + 8 + 8 + 1 + 1 + 2;
+
+  private static final byte HAS_PRIORITY = 0x01;
+
+  @Override
+  public void inject(final DDSpanContext context, final ByteBuffer carrier) {
+    final boolean hasSamplingPriority = context.lockSamplingPriority();
+    carrier.put(VERSION);
+    carrier.putLong(context.getTraceId());
+    carrier.putLong(context.getSpanId());
+    carrier.put(hasSamplingPriority ? HAS_PRIORITY : 0);
+    carrier.put(hasSamplingPriority ? (byte) context.getSamplingPriority() : 0);
+
+    final Map<String, String> baggage = context.getBaggageItems();
+    carrier.putShort((short) baggage.size());
+    for (final Map.Entry<String, String> entry : baggage.entrySet()) {
+      putString(carrier, entry.getKey());
+      putString(carrier, entry.getValue());
+    }
+  }
+
+  @Override
+  public DDSpanContext extract(final ByteBuffer carrier) {
+    if (carrier.remaining() < FIXED_SIZE || carrier.get(carrier.position()) != VERSION) {
+      log.debug("Ignoring unknown binary context, {} bytes", carrier.remaining());
+      return null;
+    }
+    carrier.get();
+    final long traceId = carrier.getLong();
+    final long spanId = carrier.getLong();
+    final byte flags = carrier.get();
+    final byte priority = carrier.get();
+    final int samplingPriority = (flags & HAS_PRIORITY) != 0 ? priority : PrioritySampling.UNSET;
+
+    Map<String, String> baggage = Collections.emptyMap();
+    final int baggageCount = carrier.getShort() & 0xffff;
+    if (baggageCount > 0) {
+      baggage = new HashMap<>();
+      try {
+        for (int i = 0; i < baggageCount; i++) {
+          baggage.put(getString(carrier), getString(carrier));
+        }
+      } catch (final BufferUnderflowException e) {
+        log.debug("Ignoring truncated binary context");
+        return null;
+      }
+    }
+
+    if (traceId == 0L) {
+      return null;
+    }
+    final DDSpanContext context =
+        HTTPCodec.extractedContext(traceId, spanId, samplingPriority, baggage);
+    log.debug("{} - Parent context extracted", context);
+    return context;
+  }
+
+  private static void putString(final ByteBuffer carrier, final String value) {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    carrier.putShort((short) bytes.length);
+    carrier.put(bytes);
+  }
+
+  private static String getString(final ByteBuffer carrier) {
+    final byte[] bytes = new byte[carrier.getShort() & 0xffff];
+    carrier.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
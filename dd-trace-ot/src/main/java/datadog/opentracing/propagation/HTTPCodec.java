@@ -11,7 +11,16 @@ import java.util.HashMap;
 import java.util.Map;
 import lombok.extern.slf4j.Slf4j;
 
-/** A codec designed for HTTP transport via headers */
+/**
+ * A codec designed for HTTP transport via headers
+ *
+ * <p>Header names are matched ignoring their case, without lower-casing copies, and the ids are
+ * parsed straight from the header values as unsigned 64 bits decimals.
+ *
+ * <p>When enabled, the W3C {@code traceparent} header is injected along the Datadog headers, and
+ * extracted when no Datadog header is present. Datadog ids being 64 bits, the high half of a W3C
+ * trace id is not kept.
+ */
 @Slf4j
 public class HTTPCodec implements Codec<TextMap> {
 
@@ -19,14 +28,45 @@ public class HTTPCodec implements Codec<TextMap> {
   private static final String TRACE_ID_KEY = "x-datadog-trace-id";
   private static final String SPAN_ID_KEY = "x-datadog-parent-id";
   private static final String SAMPLING_PRIORITY_KEY = "x-datadog-sampling-priority";
+  private static final String TRACEPARENT_KEY = "traceparent";
+
+  /** Length of a version 00 traceparent: {@code 00-<32 hex trace id>-<16 hex span id>-<flags>} */
+  private static final int TRACEPARENT_LENGTH = 55;
+
+  private static final int W3C_SAMPLED = 0x01;
+
+  /** The first 19 digits of the largest unsigned 64 bits id */
+  private static final long MAX_ID_PREFIX = 1844674407370955161L;
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final boolean traceparentEnabled;
+
+  public HTTPCodec() {
+    this(false);
+  }
+
+  /** @param traceparentEnabled whether to inject and extract the W3C traceparent header */
+  public HTTPCodec(final boolean traceparentEnabled) {
+    this.traceparentEnabled = traceparentEnabled;
+  }
 
   @Override
   public void inject(final DDSpanContext context, final TextMap carrier) {
-    carrier.put(TRACE_ID_KEY, String.valueOf(context.getTraceId()));
-    carrier.put(SPAN_ID_KEY, String.valueOf(context.getSpanId()));
-    if (context.lockSamplingPriority()) {
+    carrier.put(TRACE_ID_KEY, idToString(context.getTraceId()));
+    carrier.put(SPAN_ID_KEY, idToString(context.getSpanId()));
+    final boolean hasSamplingPriority = context.lockSamplingPriority();
+    if (hasSamplingPriority) {
       carrier.put(SAMPLING_PRIORITY_KEY, String.valueOf(context.getSamplingPriority()));
     }
+    if (traceparentEnabled) {
+      carrier.put(
+          TRACEPARENT_KEY,
+          traceparent(
+              context.getTraceId(),
+              context.getSpanId(),
+              !hasSamplingPriority || context.getSamplingPriority() > 0));
+    }
 
     for (final Map.Entry<String, String> entry : context.baggageItems()) {
       carrier.put(OT_BAGGAGE_PREFIX + entry.getKey(), encode(entry.getValue()));
@@ -37,51 +77,186 @@ public class HTTPCodec implements Codec<TextMap> {
   public DDSpanContext extract(final TextMap carrier) {
 
     Map<String, String> baggage = Collections.emptyMap();
-    Long traceId = 0L;
-    Long spanId = 0L;
+    long traceId = 0L;
+    long spanId = 0L;
     int samplingPriority = PrioritySampling.UNSET;
+    String traceparent = null;
 
     for (final Map.Entry<String, String> entry : carrier) {
-      final String key = entry.getKey().toLowerCase();
+      final String key = entry.getKey();
       if (key.equalsIgnoreCase(TRACE_ID_KEY)) {
-        traceId = Long.parseLong(entry.getValue());
+        traceId = parseId(entry.getValue());
       } else if (key.equalsIgnoreCase(SPAN_ID_KEY)) {
-        spanId = Long.parseLong(entry.getValue());
-      } else if (key.startsWith(OT_BAGGAGE_PREFIX)) {
+        spanId = parseId(entry.getValue());
+      } else if (key.regionMatches(true, 0, OT_BAGGAGE_PREFIX, 0, OT_BAGGAGE_PREFIX.length())) {
         if (baggage.isEmpty()) {
           baggage = new HashMap<>();
         }
-        baggage.put(key.replace(OT_BAGGAGE_PREFIX, ""), decode(entry.getValue()));
+        baggage.put(
+            key.substring(OT_BAGGAGE_PREFIX.length()).toLowerCase(), decode(entry.getValue()));
       } else if (key.equalsIgnoreCase(SAMPLING_PRIORITY_KEY)) {
         samplingPriority = Integer.parseInt(entry.getValue());
+      } else if (traceparentEnabled && key.equalsIgnoreCase(TRACEPARENT_KEY)) {
+        traceparent = entry.getValue();
+      }
+    }
+
+    if (traceId == 0L && traceparent != null) {
+      // No Datadog header: continue the W3C trace
+      if (isValidTraceparent(traceparent)) {
+        traceId = parseHex(traceparent, 19, 35);
+        spanId = parseHex(traceparent, 36, 52);
+        samplingPriority =
+            (parseHex(traceparent, 53, 55) & W3C_SAMPLED) != 0
+                ? PrioritySampling.SAMPLER_KEEP
+                : PrioritySampling.SAMPLER_DROP;
+      } else {
+        log.debug("Ignoring invalid traceparent header {}", traceparent);
       }
     }
+
     DDSpanContext context = null;
     if (traceId != 0L) {
-      context =
-          new DDSpanContext(
-              traceId,
-              spanId,
-              0L,
-              null,
-              null,
-              null,
-              samplingPriority,
-              baggage,
-              false,
-              null,
-              null,
-              null,
-              null);
-      context.lockSamplingPriority();
-
+      context = extractedContext(traceId, spanId, samplingPriority, baggage);
       log.debug("{} - Parent context extracted", context);
     }
 
     return context;
   }
 
+  /** @return a context continuing a trace propagated from another process */
+  static DDSpanContext extractedContext(
+      final long traceId,
+      final long spanId,
+      final int samplingPriority,
+      final Map<String, String> baggage) {
+    final DDSpanContext context =
+        new DDSpanContext(
+            traceId,
+            spanId,
+            0L,
+            null,
+            null,
+            null,
+            samplingPriority,
+            baggage,
+            false,
+            null,
+            null,
+            null,
+            null);
+    context.lockSamplingPriority();
+    return context;
+  }
+
+  /**
+   * Parse an unsigned decimal id, without intermediate copy or boxing. Ids above {@link
+   * Long#MAX_VALUE}, as sent by other tracers, wrap to negative values.
+   *
+   * @throws NumberFormatException if the value is not an unsigned 64 bits decimal
+   */
+  static long parseId(final String value) {
+    final int length = value.length();
+    if (length == 0 || length > 20) {
+      throw new NumberFormatException("Invalid id: " + value);
+    }
+    long id = 0;
+    for (int i = 0; i < length; i++) {
+      final int digit = value.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        throw new NumberFormatException("Invalid id: " + value);
+      }
+      // Only the 20th digit can overflow: 2^64 - 1 is 18446744073709551615. A prefix of 19 digits
+      // above Long.MAX_VALUE is negative
+      if (i == 19 && (id < 0 || id > MAX_ID_PREFIX || (id == MAX_ID_PREFIX && digit > 5))) {
+        throw new NumberFormatException("Invalid id: " + value);
+      }
+      id = id * 10 + digit;
+    }
+    return id;
+  }
+
+  /**
+   * Format an id as an unsigned decimal, the inverse of {@link #parseId(String)}: negative ids
+   * stand for the ids above {@link Long#MAX_VALUE}
+   */
+  static String idToString(final long id) {
+    if (id >= 0) {
+      return Long.toString(id);
+    }
+    // Halve the id unsigned, so that the division by 10 is done on a positive long
+    final long quotient = (id >>> 1) / 5;
+    final long remainder = id - quotient * 10;
+    return Long.toString(quotient) + remainder;
+  }
+
+  private static boolean isValidTraceparent(final String value) {
+    if (value.length() < TRACEPARENT_LENGTH
+        || value.charAt(2) != '-'
+        || value.charAt(35) != '-'
+        || value.charAt(52) != '-'
+        // Version ff is forbidden, only the fields of version 00 are read
+        || (value.charAt(0) == 'f' && value.charAt(1) == 'f')
+        || (value.length() > TRACEPARENT_LENGTH && value.charAt(TRACEPARENT_LENGTH) != '-')) {
+      return false;
+    }
+    for (int i = 0; i < TRACEPARENT_LENGTH; i++) {
+      if (i != 2 && i != 35 && i != 52 && hexDigit(value.charAt(i)) < 0) {
+        return false;
+      }
+    }
+    // All-zero ids are invalid
+    return (parseHex(value, 3, 19) != 0 || parseHex(value, 19, 35) != 0)
+        && parseHex(value, 36, 52) != 0;
+  }
+
+  /** Parse lower-case hex digits, keeping the low 64 bits. The digits must be valid */
+  private static long parseHex(final String value, final int from, final int to) {
+    long result = 0;
+    for (int i = from; i < to; i++) {
+      result = (result << 4) | hexDigit(value.charAt(i));
+    }
+    return result;
+  }
+
+  private static int hexDigit(final char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    } else if (c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    }
+    return -1;
+  }
+
+  /** @return a version 00 traceparent, the high half of the trace id being zero */
+  static String traceparent(final long traceId, final long spanId, final boolean sampled) {
+    final char[] chars = new char[TRACEPARENT_LENGTH];
+    chars[0] = '0';
+    chars[1] = '0';
+    chars[2] = '-';
+    for (int i = 3; i < 19; i++) {
+      chars[i] = '0';
+    }
+    writeHex(chars, 19, traceId);
+    chars[35] = '-';
+    writeHex(chars, 36, spanId);
+    chars[52] = '-';
+    chars[53] = '0';
+    chars[54] = sampled ? '1' : '0';
+    return new String(chars);
+  }
+
+  private static void writeHex(final char[] chars, final int offset, final long value) {
+    for (int i = 0; i < 16; i++) {
+      chars[offset + i] = HEX_DIGITS[(int) (value >>> (60 - 4 * i)) & 0xf];
+    }
+  }
+
+  /** URL-encode the value, unless no character needs it, which is the common case */
   private String encode(final String value) {
+    if (isUrlSafe(value)) {
+      return value;
+    }
     String encoded = value;
     try {
       encoded = URLEncoder.encode(value, "UTF-8");
@@ -91,7 +266,11 @@ public class HTTPCodec implements Codec<TextMap> {
     return encoded;
   }
 
+  /** URL-decode the value, unless it has no escaped character */
   private String decode(final String value) {
+    if (value.indexOf('%') < 0 && value.indexOf('+') < 0) {
+      return value;
+    }
     String decoded = value;
     try {
       decoded = URLDecoder.decode(value, "UTF-8");
@@ -100,4 +279,21 @@ public class HTTPCodec implements Codec<TextMap> {
     }
     return decoded;
   }
+
+  /** @return true if {@link URLEncoder} leaves the value unchanged */
+  private static boolean isUrlSafe(final String value) {
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (!((c >= 'a' && c <= 'z')
+          || (c >= 'A' && c <= 'Z')
+          || (c >= '0' && c <= '9')
+          || c == '.'
+          || c == '-'
+          || c == '*'
+          || c == '_')) {
+        return false;
+      }
+    }
+    return true;
+  }
 }
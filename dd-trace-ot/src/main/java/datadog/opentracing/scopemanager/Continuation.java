@@ -0,0 +1,120 @@
+package datadog.opentracing.scopemanager;
+
+import datadog.opentracing.DDSpan;
+import datadog.opentracing.PendingTrace;
+import io.opentracing.Scope;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The active span of a thread, captured to be activated by another thread, e.g. by a task handed
+ * off to an executor.
+ *
+ * <p>A continuation keeps its trace open: the trace is not written before the continuation is
+ * closed, even if all its spans are finished meanwhile. It must therefore be closed exactly once,
+ * whether the async work ran or was cancelled. Closing it again is ignored.
+ *
+ * <p>Tasks may also be dropped without notice, e.g. by a discarding rejection policy or a pool
+ * shut down with {@code shutdownNow()}. A continuation garbage collected without being closed is
+ * thus closed by a reaper thread, so that its trace is written rather than kept open forever.
+ */
+@Slf4j
+public class Continuation {
+  /** Continuations not closed yet, so that their reference is not collected before them */
+  private static final Set<Tracked> OPEN =
+      Collections.newSetFromMap(new ConcurrentHashMap<Tracked, Boolean>());
+
+  private static final ReferenceQueue<Continuation> COLLECTED = new ReferenceQueue<>();
+
+  static {
+    final Thread reaper = new Thread(new Reaper(), "dd-continuation-reaper");
+    reaper.setDaemon(true);
+    reaper.start();
+  }
+
+  private final DDScopeManager scopeManager;
+  private final DDSpan span;
+  private final Tracked tracked;
+
+  Continuation(final DDScopeManager scopeManager, final DDSpan span) {
+    this.scopeManager = scopeManager;
+    this.span = span;
+    final PendingTrace trace = span.context().getTrace();
+    trace.registerContinuation();
+    tracked = new Tracked(this, trace);
+    OPEN.add(tracked);
+  }
+
+  /**
+   * Activate the captured span on the current thread. The span is not finished when the scope is
+   * closed.
+   *
+   * @return the scope to close once the async work is done, before closing the continuation
+   */
+  public Scope activate() {
+    return scopeManager.activate(span, false);
+  }
+
+  /** Release the trace, which is written if nothing else is pending. */
+  public void close() {
+    tracked.clear();
+    tracked.release();
+  }
+
+  public DDSpan getSpan() {
+    return span;
+  }
+
+  /** @return the number of continuations neither closed nor collected */
+  static int openCount() {
+    return OPEN.size();
+  }
+
+  /**
+   * Outlives its continuation to release the trace. It doesn't reference the continuation, only
+   * its trace, which stays pending until then.
+   */
+  private static final class Tracked extends WeakReference<Continuation> {
+    private final PendingTrace trace;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    Tracked(final Continuation continuation, final PendingTrace trace) {
+      super(continuation, COLLECTED);
+      this.trace = trace;
+    }
+
+    /** @return true if the trace was released by this call */
+    boolean release() {
+      if (!closed.compareAndSet(false, true)) {
+        return false;
+      }
+      OPEN.remove(this);
+      trace.releaseContinuation();
+      return true;
+    }
+  }
+
+  /** Closes the continuations collected without being closed */
+  private static final class Reaper implements Runnable {
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          final Tracked tracked = (Tracked) COLLECTED.remove();
+          if (tracked.release()) {
+            log.debug("{} - Continuation collected without being closed", tracked.trace);
+          }
+        } catch (final InterruptedException e) {
+          return;
+        } catch (final Throwable e) {
+          log.debug("Failed to release a collected continuation: {}", e.getMessage());
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package datadog.opentracing.scopemanager;
+
+import datadog.opentracing.DDSpan;
+import io.opentracing.Scope;
+import io.opentracing.ScopeManager;
+import io.opentracing.Span;
+import io.opentracing.SpanContext;
+
+/**
+ * Scope manager keeping the active scopes of each thread in an array-backed stack, held in a
+ * single {@link ThreadLocal} slot.
+ *
+ * <p>Unlike {@link io.opentracing.util.ThreadLocalScopeManager}, activating a scope does not set
+ * the thread local: it only allocates the small scope object and pushes it, and closing a scope
+ * pops it. Looking the active scope up is a single thread local read, however deep the nesting is.
+ *
+ * <p>Only the threads activating a scope get a stack: threads which only look the active scope up,
+ * e.g. to find the parent of a span or when submitting a task to an executor, allocate nothing.
+ * This keeps the footprint of many short-lived threads low. The stack is created small, and grows
+ * with the nesting.
+ *
+ * <p>As in the default manager, only the active scope of the current thread can be closed, other
+ * closes are ignored. Each activation gets its own scope object, so closing a scope again, or late,
+ * never closes the scope activated after it at the same depth.
+ */
+public class DDScopeManager implements ScopeManager {
+
+  static final int INITIAL_DEPTH = 4;
+
+  /** Only set for the threads which activated a scope, looking the active scope up sets nothing */
+  private final ThreadLocal<ScopeStack> stacks = new ThreadLocal<>();
+
+  @Override
+  public Scope activate(final Span span, final boolean finishSpanOnClose) {
+    ScopeStack stack = stacks.get();
+    if (stack == null) {
+      stack = new ScopeStack();
+      stacks.set(stack);
+    }
+    return stack.push(span, finishSpanOnClose);
+  }
+
+  @Override
+  public Scope active() {
+    return top();
+  }
+
+  private StackScope top() {
+    final ScopeStack stack = stacks.get();
+    return stack == null ? null : stack.top();
+  }
+
+  /**
+   * Allocation-free shortcut for {@code active().span().context()}
+   *
+   * @return the context of the active span of the current thread, or null if none is active
+   */
+  public SpanContext activeSpanContext() {
+    final StackScope scope = top();
+    return scope == null ? null : scope.span.context();
+  }
+
+  /**
+   * Capture the active span of the current thread, so that async work can activate it on another
+   * thread. Nothing is allocated if no Datadog span is active.
+   *
+   * @return a continuation keeping the trace open until it is closed, or null if no Datadog span
+   *     is active
+   */
+  public Continuation capture() {
+    final StackScope scope = top();
+    if (scope == null || !(scope.span instanceof DDSpan)) {
+      return null;
+    }
+    return new Continuation(this, (DDSpan) scope.span);
+  }
+
+  /** @return the number of scopes active on the current thread */
+  public int depth() {
+    final ScopeStack stack = stacks.get();
+    return stack == null ? 0 : stack.depth;
+  }
+
+  /** The active scopes of a thread. Only read and written by its owner thread */
+  static class ScopeStack {
+    private final Thread owner = Thread.currentThread();
+    private StackScope[] scopes = new StackScope[INITIAL_DEPTH];
+    private int depth = 0;
+
+    StackScope push(final Span span, final boolean finishSpanOnClose) {
+      if (depth == scopes.length) {
+        final StackScope[] grown = new StackScope[depth << 1];
+        System.arraycopy(scopes, 0, grown, 0, depth);
+        scopes = grown;
+      }
+      final StackScope scope = new StackScope(this, depth, span, finishSpanOnClose);
+      scopes[depth] = scope;
+      depth++;
+      return scope;
+    }
+
+    StackScope top() {
+      return depth == 0 ? null : scopes[depth - 1];
+    }
+  }
+
+  /** A scope of the stack, at a fixed depth */
+  static class StackScope implements Scope {
+    private final ScopeStack stack;
+    private final int index;
+    private final Span span;
+    private final boolean finishSpanOnClose;
+
+    StackScope(
+        final ScopeStack stack, final int index, final Span span, final boolean finishSpanOnClose) {
+      this.stack = stack;
+      this.index = index;
+      this.span = span;
+      this.finishSpanOnClose = finishSpanOnClose;
+    }
+
+    @Override
+    public void close() {
+      if (Thread.currentThread() != stack.owner
+          || stack.depth != index + 1
+          || stack.scopes[index] != this) {
+        // Not the active scope of the current thread
+        return;
+      }
+      stack.scopes[index] = null;
+      stack.depth = index;
+      if (finishSpanOnClose) {
+        span.finish();
+      }
+    }
+
+    @Override
+    public Span span() {
+      return span;
+    }
+  }
+}
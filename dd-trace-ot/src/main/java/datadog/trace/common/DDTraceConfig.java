@@ -1,6 +1,8 @@
 package datadog.trace.common;
 
 import datadog.opentracing.DDTracer;
+import datadog.trace.common.sampling.TailSampler;
+import datadog.trace.common.stats.StatsAggregator;
 import datadog.trace.common.writer.DDAgentWriter;
 import datadog.trace.common.writer.Writer;
 import java.util.Properties;
@@ -22,13 +24,64 @@ public class DDTraceConfig extends Properties {
   public static final String WRITER_TYPE = "writer.type";
   public static final String AGENT_HOST = "agent.host";
   public static final String AGENT_PORT = "agent.port";
+  public static final String AGENT_UNIX_SOCKET = "agent.unix.socket";
   public static final String PRIORITY_SAMPLING = "priority.sampling";
+  public static final String PRIORITY_SAMPLING_DROP = "priority.sampling.drop";
+  public static final String SAMPLE_RATE = "sample.rate";
+  public static final String SAMPLE_RATE_LIMIT = "sample.rate.limit";
+  public static final String TAIL_SAMPLING_RATE = "tail.sampling.rate";
+  public static final String TAIL_SAMPLING_LATENCY_PERCENTILE = "tail.sampling.latency.percentile";
+  public static final String STATS_COMPUTATION_ENABLED = "stats.computation.enabled";
+  public static final String STATS_FLUSH_INTERVAL = "stats.flush.interval.ms";
+  public static final String PARTIAL_FLUSH_MIN_SPANS = "partial.flush.min.spans";
+  public static final String WRITER_FLUSH_INTERVAL = "writer.flush.interval.ms";
+  public static final String WRITER_MAX_QUEUE_SIZE = "writer.max.queue.size";
+  /** What a full writer queue does with a new trace: random_eviction (if unset) or drop_oldest */
+  public static final String WRITER_OVERFLOW_POLICY = "writer.overflow.policy";
+  public static final String WRITER_MAX_PAYLOAD_SIZE = "writer.max.payload.size";
+  public static final String WRITER_SPILL_DIRECTORY = "writer.spill.directory";
+  public static final String WRITER_SPILL_MAX_SIZE = "writer.spill.max.size";
+  public static final String WRITER_EAGER_SERIALIZATION = "writer.eager.serialization";
+  /** Gzip the payloads sent to the agent */
+  public static final String WRITER_GZIP_ENABLED = "writer.gzip.enabled";
+  /**
+   * Run the resource name decorators when the trace is written rather than on each tag, and only
+   * for the kept traces unless stats or a tail sampler need them, see {@link
+   * DDTracer#addDeferredDecorator}
+   */
+  public static final String DECORATORS_DEFERRED = "decorators.deferred";
+  public static final String SPAN_POOLING_ENABLED = "span.pooling.enabled";
+  /** Inject and extract the W3C traceparent header along the Datadog headers */
+  public static final String PROPAGATION_TRACEPARENT_ENABLED = "propagation.traceparent.enabled";
 
   private final String serviceName = getPropOrEnv(PREFIX + SERVICE_NAME);
   private final String writerType = getPropOrEnv(PREFIX + WRITER_TYPE);
   private final String agentHost = getPropOrEnv(PREFIX + AGENT_HOST);
   private final String agentPort = getPropOrEnv(PREFIX + AGENT_PORT);
+  private final String agentUnixSocket = getPropOrEnv(PREFIX + AGENT_UNIX_SOCKET);
   private final String prioritySampling = getPropOrEnv(PREFIX + PRIORITY_SAMPLING);
+  private final String prioritySamplingDrop = getPropOrEnv(PREFIX + PRIORITY_SAMPLING_DROP);
+  private final String sampleRate = getPropOrEnv(PREFIX + SAMPLE_RATE);
+  private final String sampleRateLimit = getPropOrEnv(PREFIX + SAMPLE_RATE_LIMIT);
+  private final String tailSamplingRate = getPropOrEnv(PREFIX + TAIL_SAMPLING_RATE);
+  private final String tailSamplingLatencyPercentile =
+      getPropOrEnv(PREFIX + TAIL_SAMPLING_LATENCY_PERCENTILE);
+  private final String statsComputationEnabled = getPropOrEnv(PREFIX + STATS_COMPUTATION_ENABLED);
+  private final String statsFlushInterval = getPropOrEnv(PREFIX + STATS_FLUSH_INTERVAL);
+  private final String partialFlushMinSpans = getPropOrEnv(PREFIX + PARTIAL_FLUSH_MIN_SPANS);
+  private final String writerFlushInterval = getPropOrEnv(PREFIX + WRITER_FLUSH_INTERVAL);
+  private final String writerMaxQueueSize = getPropOrEnv(PREFIX + WRITER_MAX_QUEUE_SIZE);
+  private final String writerOverflowPolicy = getPropOrEnv(PREFIX + WRITER_OVERFLOW_POLICY);
+  private final String writerMaxPayloadSize = getPropOrEnv(PREFIX + WRITER_MAX_PAYLOAD_SIZE);
+  private final String writerSpillDirectory = getPropOrEnv(PREFIX + WRITER_SPILL_DIRECTORY);
+  private final String writerSpillMaxSize = getPropOrEnv(PREFIX + WRITER_SPILL_MAX_SIZE);
+  private final String writerEagerSerialization =
+      getPropOrEnv(PREFIX + WRITER_EAGER_SERIALIZATION);
+  private final String writerGzipEnabled = getPropOrEnv(PREFIX + WRITER_GZIP_ENABLED);
+  private final String decoratorsDeferred = getPropOrEnv(PREFIX + DECORATORS_DEFERRED);
+  private final String spanPoolingEnabled = getPropOrEnv(PREFIX + SPAN_POOLING_ENABLED);
+  private final String propagationTraceparentEnabled =
+      getPropOrEnv(PREFIX + PROPAGATION_TRACEPARENT_ENABLED);
 
   public DDTraceConfig() {
     super();
@@ -38,13 +91,53 @@ public class DDTraceConfig extends Properties {
     defaults.setProperty(WRITER_TYPE, Writer.DD_AGENT_WRITER_TYPE);
     defaults.setProperty(AGENT_HOST, DDAgentWriter.DEFAULT_HOSTNAME);
     defaults.setProperty(AGENT_PORT, String.valueOf(DDAgentWriter.DEFAULT_PORT));
+    defaults.setProperty(PRIORITY_SAMPLING_DROP, "false");
+    defaults.setProperty(
+        TAIL_SAMPLING_LATENCY_PERCENTILE, String.valueOf(TailSampler.DEFAULT_LATENCY_PERCENTILE));
+    defaults.setProperty(
+        PARTIAL_FLUSH_MIN_SPANS, String.valueOf(DDTracer.DEFAULT_PARTIAL_FLUSH_MIN_SPANS));
+    defaults.setProperty(
+        WRITER_FLUSH_INTERVAL, String.valueOf(DDAgentWriter.DEFAULT_FLUSH_INTERVAL_MILLIS));
+    defaults.setProperty(WRITER_MAX_QUEUE_SIZE, String.valueOf(DDAgentWriter.DEFAULT_MAX_TRACES));
+    defaults.setProperty(
+        WRITER_MAX_PAYLOAD_SIZE, String.valueOf(DDAgentWriter.DEFAULT_MAX_PAYLOAD_SIZE));
+    defaults.setProperty(
+        WRITER_SPILL_MAX_SIZE, String.valueOf(DDAgentWriter.DEFAULT_SPILL_MAX_SIZE));
+    defaults.setProperty(WRITER_EAGER_SERIALIZATION, "false");
+    defaults.setProperty(WRITER_GZIP_ENABLED, "false");
+    defaults.setProperty(DECORATORS_DEFERRED, "false");
+    defaults.setProperty(SPAN_POOLING_ENABLED, "false");
+    defaults.setProperty(PROPAGATION_TRACEPARENT_ENABLED, "false");
+    defaults.setProperty(STATS_COMPUTATION_ENABLED, "false");
+    defaults.setProperty(
+        STATS_FLUSH_INTERVAL, String.valueOf(StatsAggregator.DEFAULT_FLUSH_INTERVAL_MILLIS));
     super.defaults = defaults;
 
     setIfNotNull(SERVICE_NAME, serviceName);
     setIfNotNull(WRITER_TYPE, writerType);
     setIfNotNull(AGENT_HOST, agentHost);
     setIfNotNull(AGENT_PORT, agentPort);
+    setIfNotNull(AGENT_UNIX_SOCKET, agentUnixSocket);
     setIfNotNull(PRIORITY_SAMPLING, prioritySampling);
+    setIfNotNull(PRIORITY_SAMPLING_DROP, prioritySamplingDrop);
+    setIfNotNull(SAMPLE_RATE, sampleRate);
+    setIfNotNull(SAMPLE_RATE_LIMIT, sampleRateLimit);
+    setIfNotNull(TAIL_SAMPLING_RATE, tailSamplingRate);
+    setIfNotNull(TAIL_SAMPLING_LATENCY_PERCENTILE, tailSamplingLatencyPercentile);
+    setIfNotNull(PARTIAL_FLUSH_MIN_SPANS, partialFlushMinSpans);
+    setIfNotNull(WRITER_FLUSH_INTERVAL, writerFlushInterval);
+    setIfNotNull(WRITER_MAX_QUEUE_SIZE, writerMaxQueueSize);
+    setIfNotNull(WRITER_OVERFLOW_POLICY, writerOverflowPolicy);
+    setIfNotNull(WRITER_MAX_PAYLOAD_SIZE, writerMaxPayloadSize);
+    setIfNotNull(WRITER_SPILL_DIRECTORY, writerSpillDirectory);
+    setIfNotNull(WRITER_SPILL_MAX_SIZE, writerSpillMaxSize);
+    setIfNotNull(WRITER_EAGER_SERIALIZATION, writerEagerSerialization);
+    setIfNotNull(WRITER_GZIP_ENABLED, writerGzipEnabled);
+    setIfNotNull(DECORATORS_DEFERRED, decoratorsDeferred);
+    setIfNotNull(SPAN_POOLING_ENABLED, spanPoolingEnabled);
+    setIfNotNull(PROPAGATION_TRACEPARENT_ENABLED, propagationTraceparentEnabled);
+    setIfNotNull(STATS_COMPUTATION_ENABLED, statsComputationEnabled);
+    setIfNotNull(STATS_FLUSH_INTERVAL, statsFlushInterval);
   }
 
   public DDTraceConfig(final String serviceName) {
@@ -0,0 +1,69 @@
+package datadog.trace.common.sampling;
+
+import datadog.opentracing.DDSpan;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * This sampler keeps the traces at a predefined rate, deciding on the trace id only.
+ *
+ * <p>The trace id is scrambled with Knuth's multiplicative hash and the trace is kept if the hash,
+ * read as an unsigned 64 bits integer, is below {@code rate * 2^64}. Every service of a call chain
+ * shares the trace id, so they all take the same decision for the same rate without having to
+ * propagate it.
+ */
+@Slf4j
+public class DeterministicSampler extends AbstractSampler {
+
+  /** Same factor as the other Datadog tracers, so that they agree on the decisions */
+  private static final long KNUTH_FACTOR = 1111111111111111111L;
+
+  private static final double TWO_63 = Math.pow(2, 63);
+
+  /** The sample rate used */
+  private final double sampleRate;
+  /** Hashes below this value, shifted to be compared as signed longs, are kept */
+  private final long threshold;
+
+  /**
+   * Build an instance of the sampler. The Sample rate is fixed for each instance.
+   *
+   * @param sampleRate a number [0,1] representing the rate ratio, clamped if out of range
+   */
+  public DeterministicSampler(final double sampleRate) {
+    this.sampleRate = Math.min(1, Math.max(0, sampleRate));
+    threshold = thresholdFor(this.sampleRate);
+    log.debug("Initializing the DeterministicSampler, sampleRate: {} %", this.sampleRate * 100);
+  }
+
+  @Override
+  protected boolean doSample(final DDSpan span) {
+    return sample(span.getTraceId());
+  }
+
+  /**
+   * @param traceId the id of the trace
+   * @return true if the trace has to be kept
+   */
+  public boolean sample(final long traceId) {
+    return sampleRate >= 1 || isKept(traceId, threshold);
+  }
+
+  /** @return the threshold matching a rate in [0,1[, to be given to isKept */
+  static long thresholdFor(final double sampleRate) {
+    return (long) (sampleRate * 2 * TWO_63 - TWO_63);
+  }
+
+  static boolean isKept(final long traceId, final long threshold) {
+    // Adding MIN_VALUE maps the unsigned range on the signed one, preserving the order
+    return traceId * KNUTH_FACTOR + Long.MIN_VALUE < threshold;
+  }
+
+  public double getSampleRate() {
+    return sampleRate;
+  }
+
+  @Override
+  public String toString() {
+    return "DeterministicSampler { sampleRate=" + sampleRate + " }";
+  }
+}
@@ -4,6 +4,7 @@ package datadog.trace.common.sampling;
 import com.fasterxml.jackson.databind.JsonNode;
 import datadog.opentracing.DDSpan;
 import datadog.trace.common.writer.DDApi.ResponseListener;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -12,22 +13,47 @@ import lombok.extern.slf4j.Slf4j;
 /**
  * A rate sampler which maintains different sample rates per service+env name.
  *
- * <p>The configuration of (serviceName,env)->rate is configured by the core agent.
+ * <p>The configuration of (serviceName,env)->rate is configured by the core agent. The rates are
+ * held in an immutable two-level map, service then env, which is replaced as a whole on each agent
+ * response. Picking the rate of a root span takes no lock and allocates nothing.
  */
 @Slf4j
 public class RateByServiceSampler implements Sampler, ResponseListener {
   /** Key for setting the baseline rate */
   private static final String BASE_KEY = "service:,env:";
-  /** Sampler to use if service+env is not in the map */
-  private RateSampler baseSampler = new RateSampler(1.0);
 
-  private final Map<String, RateSampler> serviceRates = new HashMap<String, RateSampler>();
+  private static final String SERVICE_PREFIX = "service:";
+  private static final String ENV_SEPARATOR = ",env:";
+
+  private volatile ServiceRates serviceRates =
+      new ServiceRates(
+          new RateSampler(1.0), Collections.<String, Map<String, RateSampler>>emptyMap());
+
+  /** When set, traces marked dropped are not sent to the agent at all */
+  private final boolean dropRejectedTraces;
+
+  public RateByServiceSampler() {
+    this(false);
+  }
+
+  /**
+   * @param dropRejectedTraces true to have {@link #sample(DDSpan)} reject the traces whose
+   *     priority is a drop, instead of sending them to the agent
+   */
+  public RateByServiceSampler(final boolean dropRejectedTraces) {
+    this.dropRejectedTraces = dropRejectedTraces;
+  }
 
   @Override
-  public synchronized boolean sample(DDSpan span) {
-    // Priority sampling sends all traces to the core agent, including traces marked dropped.
-    // This allows the core agent to collect stats on all traces.
-    return true;
+  public boolean sample(DDSpan span) {
+    // Priority sampling sends all traces to the core agent by default, including traces marked
+    // dropped. This allows the core agent to collect stats on all traces.
+    if (!dropRejectedTraces) {
+      return true;
+    }
+    final int samplingPriority = span.context().getSamplingPriority();
+    return samplingPriority == PrioritySampling.UNSET
+        || samplingPriority > PrioritySampling.SAMPLER_DROP;
   }
 
   /** If span is a root span, set the span context samplingPriority to keep or drop */
@@ -42,17 +68,9 @@ public class RateByServiceSampler implements Sampler, ResponseListener {
     }
   }
 
-  private synchronized void setSamplingPriorityOnSpanContext(DDSpan span) {
-    final String serviceName = span.getServiceName();
-    final String env = getSpanEnv(span);
-    final String key = "service:" + serviceName + ",env:" + env;
-    boolean agentSample;
-    if (serviceRates.containsKey(key)) {
-      agentSample = serviceRates.get(key).sample(span);
-    } else {
-      agentSample = baseSampler.sample(span);
-    }
-    if (agentSample) {
+  private void setSamplingPriorityOnSpanContext(DDSpan span) {
+    final RateSampler sampler = serviceRates.getSampler(span.getServiceName(), getSpanEnv(span));
+    if (sampler.sample(span)) {
       span.setSamplingPriority(PrioritySampling.SAMPLER_KEEP);
     } else {
       span.setSamplingPriority(PrioritySampling.SAMPLER_DROP);
@@ -60,7 +78,9 @@ public class RateByServiceSampler implements Sampler, ResponseListener {
   }
 
   private static String getSpanEnv(DDSpan span) {
-    return null == span.getTags().get("env") ? "" : String.valueOf(span.getTags().get("env"));
+    // Mirrored in a volatile field: neither copies the tags nor locks the context
+    final String env = span.context().getEnv();
+    return null == env ? "" : env;
   }
 
   @Override
@@ -68,73 +88,77 @@ public class RateByServiceSampler implements Sampler, ResponseListener {
     JsonNode newServiceRates = responseJson.get("rate_by_service");
     if (null != newServiceRates) {
       log.debug("Update service sampler rates: {} -> {}", endpoint, responseJson);
-      synchronized (this) {
-        serviceRates.clear();
-        Iterator<String> itr = newServiceRates.fieldNames();
-        while (itr.hasNext()) {
-          final String key = itr.next();
-          try {
-            final float val = Float.parseFloat(newServiceRates.get(key).toString());
-            if (BASE_KEY.equals(key)) {
-              baseSampler = new RateSampler(val);
-            } else {
-              serviceRates.put(key, new RateSampler(val));
-            }
-          } catch (NumberFormatException nfe) {
-            log.debug("Unable to parse new service rate {} -> {}", key, newServiceRates.get(key));
+      RateSampler baseSampler = serviceRates.baseSampler;
+      final Map<String, Map<String, RateSampler>> rates =
+          new HashMap<String, Map<String, RateSampler>>();
+      Iterator<String> itr = newServiceRates.fieldNames();
+      while (itr.hasNext()) {
+        final String key = itr.next();
+        try {
+          final float val = Float.parseFloat(newServiceRates.get(key).toString());
+          if (BASE_KEY.equals(key)) {
+            baseSampler = new RateSampler(val);
+            continue;
+          }
+          final int envIndex = key.indexOf(ENV_SEPARATOR);
+          if (!key.startsWith(SERVICE_PREFIX) || envIndex < 0) {
+            log.debug("Unable to parse service rate key {}", key);
+            continue;
           }
+          final String service = key.substring(SERVICE_PREFIX.length(), envIndex);
+          final String env = key.substring(envIndex + ENV_SEPARATOR.length());
+          Map<String, RateSampler> envRates = rates.get(service);
+          if (envRates == null) {
+            envRates = new HashMap<String, RateSampler>();
+            rates.put(service, envRates);
+          }
+          envRates.put(env, new RateSampler(val));
+        } catch (NumberFormatException nfe) {
+          log.debug("Unable to parse new service rate {} -> {}", key, newServiceRates.get(key));
         }
       }
+      serviceRates = new ServiceRates(baseSampler, rates);
     }
   }
 
-  /**
-   * This sampler sample the traces at a predefined rate.
-   *
-   * <p>Keep (100 * `sample_rate`)% of the traces. It samples randomly, its main purpose is to
-   * reduce the integration footprint.
-   */
-  private static class RateSampler extends AbstractSampler {
+  /** A snapshot of the agent rates. Never modified once published. */
+  private static class ServiceRates {
+    /** Sampler to use if service+env is not in the map */
+    private final RateSampler baseSampler;
 
-    /** The sample rate used */
-    private final double sampleRate;
+    private final Map<String, Map<String, RateSampler>> rates;
 
-    public RateSampler(final String sampleRate) {
-      this(sampleRate == null ? 1 : Double.valueOf(sampleRate));
+    ServiceRates(
+        final RateSampler baseSampler, final Map<String, Map<String, RateSampler>> rates) {
+      this.baseSampler = baseSampler;
+      this.rates = rates;
     }
 
-    /**
-     * Build an instance of the sampler. The Sample rate is fixed for each instance.
-     *
-     * @param sampleRate a number [0,1] representing the rate ratio.
-     */
-    public RateSampler(double sampleRate) {
-
-      if (sampleRate <= 0) {
-        sampleRate = 1;
-        log.error("SampleRate is negative or null, disabling the sampler");
-      } else if (sampleRate > 1) {
-        sampleRate = 1;
+    RateSampler getSampler(final String serviceName, final String env) {
+      final Map<String, RateSampler> envRates = rates.get(serviceName);
+      if (envRates != null) {
+        final RateSampler sampler = envRates.get(env);
+        if (sampler != null) {
+          return sampler;
+        }
       }
-
-      this.sampleRate = sampleRate;
-      log.debug("Initializing the RateSampler, sampleRate: {} %", this.sampleRate * 100);
-    }
-
-    @Override
-    public boolean doSample(final DDSpan span) {
-      final boolean sample = Math.random() <= this.sampleRate;
-      log.debug("{} - Span is sampled: {}", span, sample);
-      return sample;
+      return baseSampler;
     }
+  }
 
-    public double getSampleRate() {
-      return this.sampleRate;
-    }
+  /**
+   * Keep (100 * `sample_rate`)% of the traces, deciding on the trace id so that every service of a
+   * trace applies the agent rate the same way.
+   *
+   * <p>A rate of 0 or less disables the sampler, as the agent does not send such rates on purpose.
+   */
+  private static class RateSampler extends DeterministicSampler {
 
-    @Override
-    public String toString() {
-      return "RateSampler { sampleRate=" + sampleRate + " }";
+    RateSampler(final double sampleRate) {
+      super(sampleRate <= 0 ? 1 : sampleRate);
+      if (sampleRate <= 0) {
+        log.error("SampleRate is negative or null, disabling the sampler");
+      }
     }
   }
 }
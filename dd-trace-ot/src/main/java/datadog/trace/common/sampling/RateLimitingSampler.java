@@ -0,0 +1,199 @@
+package datadog.trace.common.sampling;
+
+import datadog.opentracing.DDSpan;
+import datadog.trace.common.util.Clock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A sampler keeping at most a fixed number of traces per second for each service and operation.
+ *
+ * <p>Each (service, operation) pair has a token bucket refilled at the configured rate, which is a
+ * hard ceiling. To spread the kept traces over the second instead of keeping the first ones and
+ * dropping the rest, traces are first sampled with a keep probability derived from the throughput
+ * observed during the previous window. The probabilistic decision is made on the trace id, like
+ * {@link DeterministicSampler}.
+ *
+ * <p>The effective rate is written on kept root spans as the {@link #SAMPLE_RATE_METRIC} metric, so
+ * that the agent can upscale its counts. It's the fraction of the traces actually kept during the
+ * previous window, whether they were dropped by the keep probability or by the token bucket, or
+ * the fraction kept so far in the current window until a window ends. Decisions take no lock.
+ */
+@Slf4j
+public class RateLimitingSampler extends AbstractSampler {
+
+  /** Metric holding the rate a trace was kept at */
+  public static final String SAMPLE_RATE_METRIC = "_sample_rate";
+
+  private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+  /** Beyond this number of (service, operation) pairs, the new pairs share one bucket */
+  private static final int MAX_BUCKETS = 1000;
+
+  private final double maxTracesPerSecond;
+
+  private final ConcurrentMap<String, ConcurrentMap<String, Bucket>> buckets =
+      new ConcurrentHashMap<>();
+  private final Bucket overflowBucket;
+  private final AtomicLong bucketCount = new AtomicLong();
+
+  /** @param maxTracesPerSecond the number of traces kept per second for each operation */
+  public RateLimitingSampler(final double maxTracesPerSecond) {
+    if (maxTracesPerSecond <= 0) {
+      throw new IllegalArgumentException("maxTracesPerSecond must be positive");
+    }
+    this.maxTracesPerSecond = maxTracesPerSecond;
+    overflowBucket = new Bucket(maxTracesPerSecond, Clock.currentNanoTicks());
+    log.debug("Initializing the RateLimitingSampler, maxTracesPerSecond: {}", maxTracesPerSecond);
+  }
+
+  @Override
+  protected boolean doSample(final DDSpan span) {
+    final long now = Clock.currentNanoTicks();
+    final Bucket bucket = bucketFor(span.getServiceName(), span.getOperationName(), now);
+    final double keepProbability = bucket.keepProbability(now);
+    if (keepProbability < 1
+        && !DeterministicSampler.isKept(
+            span.getTraceId(), DeterministicSampler.thresholdFor(keepProbability))) {
+      return false;
+    }
+    if (!bucket.tryAcquire(now)) {
+      return false;
+    }
+    span.setTag(SAMPLE_RATE_METRIC, bucket.keptRate());
+    return true;
+  }
+
+  public double getMaxTracesPerSecond() {
+    return maxTracesPerSecond;
+  }
+
+  private Bucket bucketFor(final String serviceName, final String operationName, final long now) {
+    final String service = serviceName == null ? "" : serviceName;
+    final String operation = operationName == null ? "" : operationName;
+    ConcurrentMap<String, Bucket> operations = buckets.get(service);
+    if (operations == null) {
+      if (bucketCount.get() >= MAX_BUCKETS) {
+        return overflowBucket;
+      }
+      final ConcurrentMap<String, Bucket> created = new ConcurrentHashMap<>();
+      operations = buckets.putIfAbsent(service, created);
+      if (operations == null) {
+        operations = created;
+      }
+    }
+    Bucket bucket = operations.get(operation);
+    if (bucket == null) {
+      if (bucketCount.get() >= MAX_BUCKETS) {
+        return overflowBucket;
+      }
+      final Bucket created = new Bucket(maxTracesPerSecond, now);
+      bucket = operations.putIfAbsent(operation, created);
+      if (bucket == null) {
+        bucketCount.incrementAndGet();
+        bucket = created;
+      }
+    }
+    return bucket;
+  }
+
+  @Override
+  public String toString() {
+    return "RateLimitingSampler { maxTracesPerSecond=" + maxTracesPerSecond + " }";
+  }
+
+  /** Token bucket and throughput window of one operation */
+  private static class Bucket {
+    private final double maxTracesPerSecond;
+    private final long capacity;
+    private final long nanosPerToken;
+
+    private final AtomicLong tokens;
+    private final AtomicLong lastRefill;
+
+    private final AtomicLong windowStart;
+    private final AtomicLong seen = new AtomicLong();
+    private final AtomicLong kept = new AtomicLong();
+    private volatile double keepProbability = 1;
+    /** The fraction of the traces kept during the previous window, 0 until one ended */
+    private volatile double previousKeptRate = 0;
+
+    Bucket(final double maxTracesPerSecond, final long now) {
+      this.maxTracesPerSecond = maxTracesPerSecond;
+      capacity = Math.max(1, (long) Math.ceil(maxTracesPerSecond));
+      nanosPerToken = Math.max(1, (long) (WINDOW_NANOS / maxTracesPerSecond));
+      tokens = new AtomicLong(capacity);
+      lastRefill = new AtomicLong(now);
+      windowStart = new AtomicLong(now);
+    }
+
+    /**
+     * Count a trace in the current window, and adjust the keep probability when a window ends.
+     *
+     * @return the probability to keep the trace with
+     */
+    double keepProbability(final long now) {
+      final long start = windowStart.get();
+      final long elapsed = now - start;
+      if (elapsed >= WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+        // Only the thread closing the window gets here
+        final long windowSeen = seen.getAndSet(0);
+        final long windowKept = kept.getAndSet(0);
+        if (windowSeen > 0) {
+          previousKeptRate = (double) windowKept / windowSeen;
+        }
+        final double observedPerSecond = windowSeen * (double) WINDOW_NANOS / elapsed;
+        final double target =
+            observedPerSecond <= maxTracesPerSecond ? 1 : maxTracesPerSecond / observedPerSecond;
+        // Smooth the changes so a single burst does not swing the rate
+        keepProbability = Math.min(1, (keepProbability + target) / 2);
+      }
+      // Counted after the window check, so that the trace belongs to the window it's kept in
+      seen.incrementAndGet();
+      return keepProbability;
+    }
+
+    /** Take a token, counting the trace as kept in the current window if there was one */
+    boolean tryAcquire(final long now) {
+      refill(now);
+      long available;
+      do {
+        available = tokens.get();
+        if (available <= 0) {
+          return false;
+        }
+      } while (!tokens.compareAndSet(available, available - 1));
+      kept.incrementAndGet();
+      return true;
+    }
+
+    /**
+     * @return the fraction of the traces kept during the previous window, or during the current one
+     *     if none was kept before
+     */
+    double keptRate() {
+      final double previous = previousKeptRate;
+      if (previous > 0) {
+        return previous;
+      }
+      // Read kept first: the current trace is counted in both, and seen only grows meanwhile
+      final long currentKept = kept.get();
+      final long currentSeen = seen.get();
+      return currentSeen <= 0 ? 1 : Math.min(1, Math.max(currentKept, 1) / (double) currentSeen);
+    }
+
+    private void refill(final long now) {
+      final long last = lastRefill.get();
+      final long newTokens = (now - last) / nanosPerToken;
+      if (newTokens <= 0 || !lastRefill.compareAndSet(last, last + newTokens * nanosPerToken)) {
+        return;
+      }
+      long available;
+      do {
+        available = tokens.get();
+      } while (!tokens.compareAndSet(available, Math.min(capacity, available + newTokens)));
+    }
+  }
+}
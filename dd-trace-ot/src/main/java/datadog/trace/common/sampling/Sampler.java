@@ -22,8 +22,16 @@ public interface Sampler {
       if (config != null) {
         final boolean prioritySamplingEnabled =
             Boolean.parseBoolean(config.getProperty(DDTraceConfig.PRIORITY_SAMPLING));
+        final boolean dropRejectedTraces =
+            Boolean.parseBoolean(config.getProperty(DDTraceConfig.PRIORITY_SAMPLING_DROP));
+        final String sampleRate = config.getProperty(DDTraceConfig.SAMPLE_RATE);
+        final String sampleRateLimit = config.getProperty(DDTraceConfig.SAMPLE_RATE_LIMIT);
         if (prioritySamplingEnabled) {
-          sampler = new RateByServiceSampler();
+          sampler = new RateByServiceSampler(dropRejectedTraces);
+        } else if (sampleRateLimit != null) {
+          sampler = new RateLimitingSampler(Double.parseDouble(sampleRateLimit));
+        } else if (sampleRate != null) {
+          sampler = new DeterministicSampler(Double.parseDouble(sampleRate));
         } else {
           sampler = new AllSampler();
         }
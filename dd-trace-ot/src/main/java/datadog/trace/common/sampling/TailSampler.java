@@ -0,0 +1,141 @@
+package datadog.trace.common.sampling;
+
+import datadog.opentracing.DDSpan;
+import datadog.opentracing.PendingTrace;
+import datadog.trace.common.util.LatencySketch;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Decides whether to keep a trace once it is complete, when its outcome is known.
+ *
+ * <p>Traces holding an error, traces kept by the user, and traces slower than a percentile of the
+ * latencies of their resource are always kept. The other ones are sampled at a fixed rate, on the
+ * trace id. The duration and the resource of a trace are the ones of its root span. Only that span
+ * has its deferred decorators run before sampling.
+ *
+ * <p>A partially flushed trace is judged on its first chunk, and the decision is cached on its
+ * {@link PendingTrace} for the following chunks. If the root span is still running by then, the
+ * time elapsed since it started is a lower bound of the trace duration: the trace is slow if that
+ * bound is already above the percentile, and its latency is not recorded.
+ *
+ * <p>Latencies are tracked per resource with a {@link LatencySketch}, whose counts are halved
+ * regularly so that the percentiles follow the recent traffic. Until a resource has seen {@link
+ * #MIN_SAMPLES} traces, all its traces are kept.
+ *
+ * <p>The class is not thread-safe: it is meant to be called by the thread draining the writer
+ * queue.
+ */
+@Slf4j
+public class TailSampler {
+
+  public static final double DEFAULT_LATENCY_PERCENTILE = 0.99;
+
+  /** Traces seen before the percentile of a resource is trusted */
+  static final int MIN_SAMPLES = 100;
+  /** Count at which the latencies of a resource are decayed */
+  static final int DECAY_THRESHOLD = 10000;
+  /** Beyond this number of resources, the new ones share a sketch */
+  static final int MAX_RESOURCES = 1000;
+
+  private final DeterministicSampler baseSampler;
+  private final double latencyPercentile;
+
+  private final Map<String, LatencySketch> latencies = new HashMap<>();
+  private final LatencySketch overflowLatencies = new LatencySketch();
+
+  /**
+   * @param sampleRate the rate at which traces without error nor high latency are kept
+   * @param latencyPercentile the percentile of its resource above which a trace is always kept
+   */
+  public TailSampler(final double sampleRate, final double latencyPercentile) {
+    baseSampler = new DeterministicSampler(sampleRate);
+    this.latencyPercentile = latencyPercentile;
+    log.debug(
+        "Initializing the TailSampler, sampleRate: {} %, latencyPercentile: {}",
+        baseSampler.getSampleRate() * 100,
+        latencyPercentile);
+  }
+
+  /**
+   * @param trace the finished spans of a trace, or a chunk of them if it was partially flushed
+   * @return true when the spans have to be written
+   */
+  public boolean sample(final List<DDSpan> trace) {
+    if (trace.isEmpty()) {
+      return true;
+    }
+    final PendingTrace pendingTrace = trace.get(0).context().getTrace();
+    final Boolean decision = pendingTrace.getTailSamplingDecision();
+    if (decision != null) {
+      return decision;
+    }
+    final DDSpan rootSpan = pendingTrace.getRootSpan();
+    final boolean keep = decide(trace, rootSpan != null ? rootSpan : trace.get(0));
+    pendingTrace.setTailSamplingDecision(keep);
+    return keep;
+  }
+
+  private boolean decide(final List<DDSpan> trace, final DDSpan rootSpan) {
+    boolean error = false;
+    for (final DDSpan span : trace) {
+      error |= span.getError() != 0;
+    }
+
+    final boolean slow;
+    if (rootSpan.getDurationNano() != 0) {
+      // The resource may be derived by a deferred decorator; the other spans wait for the decision
+      rootSpan.context().applyDeferredDecorators();
+      final long duration = rootSpan.getDurationNano();
+      final LatencySketch sketch = latenciesOf(rootSpan.getResourceName());
+      // Until the percentile can be trusted, every trace counts as slow
+      slow =
+          sketch.getCount() < MIN_SAMPLES
+              || duration >= sketch.getValueAtQuantile(latencyPercentile);
+      sketch.accept(duration);
+      if (sketch.getCount() >= DECAY_THRESHOLD) {
+        sketch.decay();
+      }
+    } else {
+      // Still running: neither its duration nor its resource are final, nothing is recorded
+      final long elapsed =
+          rootSpan.context().getTrace().getCurrentTimeNano() - rootSpan.getStartTime();
+      LatencySketch sketch = latencies.get(rootSpan.getResourceName());
+      if (sketch == null && latencies.size() >= MAX_RESOURCES) {
+        sketch = overflowLatencies;
+      }
+      slow =
+          sketch == null
+              || sketch.getCount() < MIN_SAMPLES
+              || elapsed >= sketch.getValueAtQuantile(latencyPercentile);
+    }
+
+    return error
+        || slow
+        || rootSpan.context().getSamplingPriority() == PrioritySampling.USER_KEEP
+        || baseSampler.sample(rootSpan.getTraceId());
+  }
+
+  private LatencySketch latenciesOf(final String resourceName) {
+    LatencySketch sketch = latencies.get(resourceName);
+    if (sketch == null) {
+      if (latencies.size() >= MAX_RESOURCES) {
+        return overflowLatencies;
+      }
+      sketch = new LatencySketch();
+      latencies.put(resourceName, sketch);
+    }
+    return sketch;
+  }
+
+  @Override
+  public String toString() {
+    return "TailSampler { sampleRate="
+        + baseSampler.getSampleRate()
+        + ", latencyPercentile="
+        + latencyPercentile
+        + " }";
+  }
+}
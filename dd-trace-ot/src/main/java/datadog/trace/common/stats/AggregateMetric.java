@@ -0,0 +1,68 @@
+package datadog.trace.common.stats;
+
+import datadog.trace.common.util.LatencySketch;
+
+/**
+ * The hits, errors and latencies of the spans sharing a {@link MetricKey}, over one flush interval.
+ *
+ * <p>The class is not thread-safe: it is guarded by the stripe of the aggregator owning it.
+ */
+public class AggregateMetric {
+  private long hits;
+  private long topLevelHits;
+  private long errors;
+  private long duration;
+  private final LatencySketch okLatencies = new LatencySketch();
+  private final LatencySketch errorLatencies = new LatencySketch();
+
+  void add(final long durationNano, final boolean error, final boolean topLevel) {
+    hits++;
+    if (topLevel) {
+      topLevelHits++;
+    }
+    duration += durationNano;
+    if (error) {
+      errors++;
+      errorLatencies.accept(durationNano);
+    } else {
+      okLatencies.accept(durationNano);
+    }
+  }
+
+  void merge(final AggregateMetric other) {
+    hits += other.hits;
+    topLevelHits += other.topLevelHits;
+    errors += other.errors;
+    duration += other.duration;
+    okLatencies.merge(other.okLatencies);
+    errorLatencies.merge(other.errorLatencies);
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  /** @return the hits of the spans which are the root of their service in the trace */
+  public long getTopLevelHits() {
+    return topLevelHits;
+  }
+
+  public long getErrors() {
+    return errors;
+  }
+
+  /** @return the sum of the durations, in nanoseconds */
+  public long getDuration() {
+    return duration;
+  }
+
+  /** @return the latencies of the spans without error, in nanoseconds */
+  public LatencySketch getOkLatencies() {
+    return okLatencies;
+  }
+
+  /** @return the latencies of the spans with an error, in nanoseconds */
+  public LatencySketch getErrorLatencies() {
+    return errorLatencies;
+  }
+}
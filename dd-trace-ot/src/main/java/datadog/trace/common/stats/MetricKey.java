@@ -0,0 +1,128 @@
+package datadog.trace.common.stats;
+
+/**
+ * The dimensions stats are aggregated on: env, service, operation, resource, span type and HTTP
+ * status code.
+ *
+ * <p>Each aggregator stripe reuses a mutable probe to look its metrics up, so that no key is
+ * allocated for the combinations already seen. Keys stored in the maps are never modified.
+ */
+public class MetricKey {
+  private String env;
+  private String service;
+  private String operation;
+  private String resource;
+  private String type;
+  private int httpStatusCode;
+  private int hash;
+
+  MetricKey() {}
+
+  MetricKey(
+      final String env,
+      final String service,
+      final String operation,
+      final String resource,
+      final String type,
+      final int httpStatusCode) {
+    set(env, service, operation, resource, type, httpStatusCode);
+  }
+
+  MetricKey set(
+      final String env,
+      final String service,
+      final String operation,
+      final String resource,
+      final String type,
+      final int httpStatusCode) {
+    this.env = env;
+    this.service = service;
+    this.operation = operation;
+    this.resource = resource;
+    this.type = type;
+    this.httpStatusCode = httpStatusCode;
+    int h = env == null ? 0 : env.hashCode();
+    h = 31 * h + (service == null ? 0 : service.hashCode());
+    h = 31 * h + (operation == null ? 0 : operation.hashCode());
+    h = 31 * h + (resource == null ? 0 : resource.hashCode());
+    h = 31 * h + (type == null ? 0 : type.hashCode());
+    hash = 31 * h + httpStatusCode;
+    return this;
+  }
+
+  /** @return an immutable copy, to be used as a map key */
+  MetricKey copy() {
+    return new MetricKey(env, service, operation, resource, type, httpStatusCode);
+  }
+
+  /** @return the env tag of the spans, null if they have none */
+  public String getEnv() {
+    return env;
+  }
+
+  public String getService() {
+    return service;
+  }
+
+  public String getOperation() {
+    return operation;
+  }
+
+  public String getResource() {
+    return resource;
+  }
+
+  /** @return the span type, null if the spans have none */
+  public String getType() {
+    return type;
+  }
+
+  /** @return the HTTP status code of the spans, 0 if they have none */
+  public int getHttpStatusCode() {
+    return httpStatusCode;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof MetricKey)) {
+      return false;
+    }
+    final MetricKey other = (MetricKey) o;
+    return hash == other.hash
+        && httpStatusCode == other.httpStatusCode
+        && equal(env, other.env)
+        && equal(service, other.service)
+        && equal(operation, other.operation)
+        && equal(resource, other.resource)
+        && equal(type, other.type);
+  }
+
+  private static boolean equal(final String a, final String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return "MetricKey { env="
+        + env
+        + ", service="
+        + service
+        + ", operation="
+        + operation
+        + ", resource="
+        + resource
+        + ", type="
+        + type
+        + ", httpStatusCode="
+        + httpStatusCode
+        + " }";
+  }
+}
@@ -0,0 +1,127 @@
+package datadog.trace.common.stats;
+
+import datadog.trace.common.util.LatencySketch;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Encodes a {@link LatencySketch} as the DDSketch protobuf message the agent merges into its own
+ * sketches:
+ *
+ * <pre>
+ * DDSketch { IndexMapping mapping = 1; Store positiveValues = 2; double zeroCount = 4; }
+ * IndexMapping { double gamma = 1; double indexOffset = 2; Interpolation interpolation = 3; }
+ * Store {
+ *   map&lt;sint32, double&gt; binCounts = 1;
+ *   repeated double contiguousBinCounts = 2 [packed];
+ *   sint32 contiguousBinIndexOffset = 3;
+ * }
+ * </pre>
+ *
+ * <p>The sketch buckets are those of the logarithmic mapping without interpolation and without
+ * offset, so that only gamma is written for the mapping. Fields holding zero are omitted, as
+ * protobuf does. The bins are written contiguously, or as a map when most of them are empty, e.g.
+ * when the latencies are far apart.
+ */
+public final class SketchEncoder {
+
+  private static final int WIRE_VARINT = 0;
+  private static final int WIRE_FIXED64 = 1;
+  private static final int WIRE_LENGTH_DELIMITED = 2;
+
+  /** Bytes of a map entry of the bins, with a 2 bytes index, against 8 for a contiguous bin */
+  private static final int MAP_ENTRY_SIZE = 14;
+
+  private SketchEncoder() {}
+
+  /** @return the DDSketch protobuf encoding of the sketch */
+  public static byte[] encode(final LatencySketch sketch) {
+    final ByteArrayOutputStream mapping = new ByteArrayOutputStream(9);
+    writeTag(mapping, 1, WIRE_FIXED64);
+    writeDouble(mapping, LatencySketch.getGamma());
+
+    final long[] counts = sketch.getBinCounts();
+    int first = 0;
+    while (first < counts.length && counts[first] == 0) {
+      first++;
+    }
+    int last = counts.length - 1;
+    while (last >= first && counts[last] == 0) {
+      last--;
+    }
+    int nonEmpty = 0;
+    for (int i = first; i <= last; i++) {
+      if (counts[i] != 0) {
+        nonEmpty++;
+      }
+    }
+    final ByteArrayOutputStream store = new ByteArrayOutputStream();
+    if (nonEmpty * MAP_ENTRY_SIZE < 8 * (last - first + 1)) {
+      final ByteArrayOutputStream entry = new ByteArrayOutputStream(MAP_ENTRY_SIZE);
+      for (int i = first; i <= last; i++) {
+        if (counts[i] != 0) {
+          entry.reset();
+          writeTag(entry, 1, WIRE_VARINT);
+          writeSint32(entry, sketch.getIndexOffset() + i);
+          writeTag(entry, 2, WIRE_FIXED64);
+          writeDouble(entry, counts[i]);
+          writeMessage(store, 1, entry);
+        }
+      }
+    } else if (first <= last) {
+      writeTag(store, 2, WIRE_LENGTH_DELIMITED);
+      writeVarint(store, 8L * (last - first + 1));
+      for (int i = first; i <= last; i++) {
+        writeDouble(store, counts[i]);
+      }
+      final int offset = sketch.getIndexOffset() + first;
+      if (offset != 0) {
+        writeTag(store, 3, WIRE_VARINT);
+        writeSint32(store, offset);
+      }
+    }
+
+    final ByteArrayOutputStream sketchOut = new ByteArrayOutputStream(32 + store.size());
+    writeMessage(sketchOut, 1, mapping);
+    if (store.size() > 0) {
+      writeMessage(sketchOut, 2, store);
+    }
+    if (sketch.getZeroCount() != 0) {
+      writeTag(sketchOut, 4, WIRE_FIXED64);
+      writeDouble(sketchOut, sketch.getZeroCount());
+    }
+    return sketchOut.toByteArray();
+  }
+
+  private static void writeMessage(
+      final ByteArrayOutputStream out, final int field, final ByteArrayOutputStream message) {
+    writeTag(out, field, WIRE_LENGTH_DELIMITED);
+    writeVarint(out, message.size());
+    final byte[] bytes = message.toByteArray();
+    out.write(bytes, 0, bytes.length);
+  }
+
+  private static void writeTag(final ByteArrayOutputStream out, final int field, final int wire) {
+    writeVarint(out, (field << 3) | wire);
+  }
+
+  private static void writeVarint(final ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  /** Zigzag encoded, so that small negative values take few bytes */
+  private static void writeSint32(final ByteArrayOutputStream out, final int value) {
+    writeVarint(out, ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+  }
+
+  /** Little endian, as protobuf fixed64 */
+  private static void writeDouble(final ByteArrayOutputStream out, final double value) {
+    final long bits = Double.doubleToRawLongBits(value);
+    for (int i = 0; i < 8; i++) {
+      out.write((int) (bits >>> (8 * i)));
+    }
+  }
+}
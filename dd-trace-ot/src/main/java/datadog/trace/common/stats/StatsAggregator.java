@@ -0,0 +1,360 @@
+package datadog.trace.common.stats;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import datadog.opentracing.DDSpan;
+import datadog.opentracing.DDSpanContext;
+import datadog.opentracing.DDTraceOTInfo;
+import datadog.opentracing.TagStore;
+import datadog.trace.common.util.Clock;
+import datadog.trace.common.writer.DDApi;
+import io.opentracing.tag.Tags;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Aggregates the hits, errors and latencies of every finished span, kept or dropped by the sampler,
+ * and sends them periodically to the agent stats endpoint. The stats stay exact however many
+ * traces are dropped.
+ *
+ * <p>The agent writer aggregates the traces on its own threads, once the deferred decorators
+ * derived their resources, so that the application threads don't pay for it.
+ *
+ * <p>The stats are sent as the client stats payload of the agent, one per env, with the latencies
+ * as DDSketch protobuf messages. The traces payloads then tell the agent that the stats are
+ * computed by the client, so that it doesn't count the kept traces a second time.
+ *
+ * <p>Spans are aggregated by {@link MetricKey}. The aggregates are striped: a writing thread only
+ * locks the stripe picked by its id, so threads rarely contend. Each stripe is swapped out on flush
+ * and merged by the flushing thread.
+ */
+@Slf4j
+public class StatsAggregator {
+
+  /** Default interval between two stats payloads, in milliseconds */
+  public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 10000;
+
+  /** Beyond this number of keys, a stripe drops the new ones until the next flush */
+  static final int MAX_KEYS_PER_STRIPE = 2048;
+
+  private static final String HTTP_STATUS = Tags.HTTP_STATUS.getKey();
+
+  /** Up to this size, the parent of a span is searched in the trace rather than indexed */
+  private static final int LINEAR_SEARCH_MAX_SPANS = 16;
+
+  private final Stripe[] stripes;
+  private final int mask;
+  private final long flushIntervalMillis;
+
+  /** Spans not aggregated because their stripe was full */
+  private final AtomicLong droppedSpans = new AtomicLong();
+
+  /** Numbers the payloads, read and written by the flushing thread */
+  private long sequence = 0;
+
+  private volatile DDApi api;
+  private volatile ScheduledExecutorService executor;
+  /** Start of the current interval, epoch nanos. Read and written by the flushing thread */
+  private long intervalStartNano = Clock.currentNanoTime();
+
+  public StatsAggregator() {
+    this(DEFAULT_FLUSH_INTERVAL_MILLIS);
+  }
+
+  /** @param flushIntervalMillis interval between two stats payloads */
+  public StatsAggregator(final long flushIntervalMillis) {
+    this.flushIntervalMillis = flushIntervalMillis;
+    int stripeCount = 1;
+    while (stripeCount < Runtime.getRuntime().availableProcessors() * 2) {
+      stripeCount <<= 1;
+    }
+    stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new Stripe();
+    }
+    mask = stripeCount - 1;
+  }
+
+  /**
+   * Start sending the stats periodically.
+   *
+   * @param api the api of the agent receiving the stats
+   */
+  public synchronized void start(final DDApi api) {
+    if (executor != null) {
+      return;
+    }
+    this.api = api;
+    final ThreadFactory threadFactory =
+        new ThreadFactoryBuilder().setNameFormat("dd-stats-aggregator-%d").setDaemon(true).build();
+    executor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    executor.scheduleAtFixedRate(
+        new Runnable() {
+          @Override
+          public void run() {
+            flush();
+          }
+        },
+        flushIntervalMillis,
+        flushIntervalMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /** Stop the periodic sending and send the stats aggregated since the last flush */
+  public synchronized void close() {
+    if (executor == null) {
+      return;
+    }
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(500, TimeUnit.MILLISECONDS);
+    } catch (final InterruptedException e) {
+      log.info("Stats aggregator closed while flushing.");
+    }
+    executor = null;
+    flush();
+  }
+
+  /**
+   * Aggregate the spans of a finished trace.
+   *
+   * @param trace the finished spans
+   */
+  public void add(final List<DDSpan> trace) {
+    final Map<Long, String> services = indexServices(trace);
+    final Stripe stripe = stripes[(int) Thread.currentThread().getId() & mask];
+    synchronized (stripe) {
+      for (final DDSpan span : trace) {
+        final DDSpanContext context = span.context();
+        final AggregateMetric metric =
+            stripe.metricFor(
+                context.getEnv(),
+                context.getServiceName(),
+                context.getOperationName(),
+                context.getResourceName(),
+                context.getSpanType(),
+                httpStatusCode(context));
+        if (metric == null) {
+          droppedSpans.incrementAndGet();
+        } else {
+          metric.add(
+              span.getDurationNano(),
+              context.getErrorFlag(),
+              isTopLevel(context, trace, services));
+        }
+      }
+    }
+  }
+
+  /**
+   * A span is top-level when it's the root of its service in the trace: its parent is not in the
+   * trace, or belongs to another service.
+   */
+  private static boolean isTopLevel(
+      final DDSpanContext context, final List<DDSpan> trace, final Map<Long, String> services) {
+    final long parentId = context.getParentId();
+    if (parentId == 0) {
+      return true;
+    }
+    final String service = context.getServiceName();
+    if (services != null) {
+      return !services.containsKey(parentId) || !equal(services.get(parentId), service);
+    }
+    for (final DDSpan span : trace) {
+      if (span.context().getSpanId() == parentId) {
+        return !equal(span.context().getServiceName(), service);
+      }
+    }
+    return true;
+  }
+
+  /** @return the services by span id of a large trace, or null if a linear search is cheaper */
+  private static Map<Long, String> indexServices(final List<DDSpan> trace) {
+    if (trace.size() <= LINEAR_SEARCH_MAX_SPANS) {
+      return null;
+    }
+    final Map<Long, String> services = new HashMap<>(trace.size() * 2);
+    for (final DDSpan span : trace) {
+      services.put(span.context().getSpanId(), span.context().getServiceName());
+    }
+    return services;
+  }
+
+  private static boolean equal(final String a, final String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  /**
+   * Count spans which could not be aggregated, because the writer had no room left for their trace
+   *
+   * @param count the number of spans
+   */
+  public void recordDroppedSpans(final int count) {
+    droppedSpans.addAndGet(count);
+  }
+
+  /** @return the number of spans not aggregated, because too many keys were seen or no room */
+  public long getDroppedSpans() {
+    return droppedSpans.get();
+  }
+
+  /** Send the stats aggregated since the last flush */
+  void flush() {
+    final long now = Clock.currentNanoTime();
+    final Map<MetricKey, AggregateMetric> aggregates = drain();
+    final long start = intervalStartNano;
+    intervalStartNano = now;
+    if (aggregates.isEmpty() || api == null) {
+      return;
+    }
+    // One payload per env, as the agent reads the env of the stats from the payload
+    final Map<String, List<Map<String, Object>>> statsByEnv = new HashMap<>();
+    for (final Map.Entry<MetricKey, AggregateMetric> entry : aggregates.entrySet()) {
+      final String env = entry.getKey().getEnv() == null ? "" : entry.getKey().getEnv();
+      List<Map<String, Object>> stats = statsByEnv.get(env);
+      if (stats == null) {
+        stats = new ArrayList<>();
+        statsByEnv.put(env, stats);
+      }
+      stats.add(groupedStats(entry.getKey(), entry.getValue()));
+    }
+    for (final Map.Entry<String, List<Map<String, Object>>> entry : statsByEnv.entrySet()) {
+      final int size = entry.getValue().size();
+      final Map<String, Object> payload =
+          buildPayload(entry.getKey(), sequence++, start, now - start, entry.getValue());
+      if (api.sendStats(payload, size)) {
+        log.debug("Successfully sent {} stats to the API", size);
+      } else {
+        log.debug("Failed to send {} stats to the API", size);
+      }
+    }
+  }
+
+  /** @return the aggregates of every stripe merged, the stripes being reset */
+  Map<MetricKey, AggregateMetric> drain() {
+    final Map<MetricKey, AggregateMetric> merged = new HashMap<>();
+    for (final Stripe stripe : stripes) {
+      final Map<MetricKey, AggregateMetric> metrics;
+      synchronized (stripe) {
+        metrics = stripe.swap();
+      }
+      for (final Map.Entry<MetricKey, AggregateMetric> entry : metrics.entrySet()) {
+        final AggregateMetric existing = merged.get(entry.getKey());
+        if (existing == null) {
+          merged.put(entry.getKey(), entry.getValue());
+        } else {
+          existing.merge(entry.getValue());
+        }
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * @return a ClientStatsPayload of the agent, holding a single bucket. The hostname and version
+   *     are left to the agent
+   */
+  private static Map<String, Object> buildPayload(
+      final String env,
+      final long sequence,
+      final long start,
+      final long duration,
+      final List<Map<String, Object>> stats) {
+    final Map<String, Object> bucket = new LinkedHashMap<>();
+    bucket.put("Start", start);
+    bucket.put("Duration", duration);
+    bucket.put("Stats", stats);
+    final Map<String, Object> payload = new LinkedHashMap<>();
+    payload.put("Hostname", "");
+    payload.put("Env", env);
+    payload.put("Version", "");
+    payload.put("Lang", "java");
+    payload.put("TracerVersion", DDTraceOTInfo.VERSION);
+    payload.put("Sequence", sequence);
+    payload.put("Stats", Collections.singletonList(bucket));
+    return payload;
+  }
+
+  /** @return a ClientGroupedStats of the agent */
+  private static Map<String, Object> groupedStats(
+      final MetricKey key, final AggregateMetric metric) {
+    final Map<String, Object> stat = new LinkedHashMap<>();
+    stat.put("Service", key.getService());
+    stat.put("Name", key.getOperation());
+    stat.put("Resource", key.getResource());
+    stat.put("HTTPStatusCode", key.getHttpStatusCode());
+    stat.put("Type", key.getType() == null ? "" : key.getType());
+    stat.put("DBType", "");
+    stat.put("Hits", metric.getHits());
+    stat.put("Errors", metric.getErrors());
+    stat.put("Duration", metric.getDuration());
+    stat.put("OkSummary", SketchEncoder.encode(metric.getOkLatencies()));
+    stat.put("ErrorSummary", SketchEncoder.encode(metric.getErrorLatencies()));
+    stat.put("Synthetics", false);
+    stat.put("TopLevelHits", metric.getTopLevelHits());
+    return stat;
+  }
+
+  /** Read the status code tag without boxing, 0 if absent or not a number */
+  private static int httpStatusCode(final DDSpanContext context) {
+    synchronized (context) {
+      final TagStore tags = context.getTagStore();
+      for (int i = 0; i < tags.size(); i++) {
+        if (HTTP_STATUS.equals(tags.keyAt(i))) {
+          switch (tags.kindAt(i)) {
+            case TagStore.KIND_INT:
+            case TagStore.KIND_LONG:
+              return (int) tags.primitiveAt(i);
+            case TagStore.KIND_OBJECT:
+              final Object value = tags.objectAt(i);
+              return value instanceof Number ? ((Number) value).intValue() : 0;
+            default:
+              return 0;
+          }
+        }
+      }
+      return 0;
+    }
+  }
+
+  /** A share of the aggregates, guarded by its own monitor */
+  private static class Stripe {
+    private final MetricKey probe = new MetricKey();
+    private Map<MetricKey, AggregateMetric> metrics = new HashMap<>();
+
+    /** @return the metric of the key, or null if the stripe holds too many keys */
+    AggregateMetric metricFor(
+        final String env,
+        final String service,
+        final String operation,
+        final String resource,
+        final String type,
+        final int status) {
+      AggregateMetric metric =
+          metrics.get(probe.set(env, service, operation, resource, type, status));
+      if (metric == null) {
+        if (metrics.size() >= MAX_KEYS_PER_STRIPE) {
+          return null;
+        }
+        metric = new AggregateMetric();
+        metrics.put(probe.copy(), metric);
+      }
+      return metric;
+    }
+
+    Map<MetricKey, AggregateMetric> swap() {
+      final Map<MetricKey, AggregateMetric> swapped = metrics;
+      metrics = new HashMap<>();
+      return swapped;
+    }
+  }
+}
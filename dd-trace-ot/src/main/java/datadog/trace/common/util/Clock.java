@@ -15,8 +15,10 @@ import java.util.concurrent.TimeUnit;
  * <li>one in nanoseconds, for precision, but it can only use to measure durations
  * <li>one in milliseconds, for accuracy, useful to provide epoch time
  *     <p>
- *     <p>At this time, we are using a millis precision (converted to micros) in order to guarantee
- *     consistency between the span start times and the durations
+ *     <p>Spans combine both: a trace anchors one epoch time with one nano tick when it starts
+ *     (see {@link datadog.opentracing.PendingTrace#getCurrentTimeNano()}), and every span start
+ *     and duration of the trace is then derived from the nano ticks. None of the methods below
+ *     take a lock.
  */
 public class Clock {
 
@@ -26,7 +28,7 @@ public class Clock {
    *
    * @return The current nanos ticks
    */
-  public static synchronized long currentNanoTicks() {
+  public static long currentNanoTicks() {
     return System.nanoTime();
   }
 
@@ -35,7 +37,16 @@ public class Clock {
    *
    * @return the current epoch time in micros
    */
-  public static synchronized long currentMicroTime() {
+  public static long currentMicroTime() {
     return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
   }
+
+  /**
+   * Get the current time in nanos. The actual precision is the millis
+   *
+   * @return the current epoch time in nanos
+   */
+  public static long currentNanoTime() {
+    return TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+  }
 }
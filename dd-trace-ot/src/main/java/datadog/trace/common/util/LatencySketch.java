@@ -0,0 +1,165 @@
+package datadog.trace.common.util;
+
+import java.util.Arrays;
+
+/**
+ * A compact streaming sketch of a latency distribution, answering quantile queries with a bounded
+ * relative error.
+ *
+ * <p>Values are counted in logarithmic buckets: bucket {@code i} holds the values in {@code
+ * ]gamma^(i-1), gamma^i]}, with {@code gamma = (1 + a) / (1 - a)} for a relative accuracy {@code
+ * a} of 1%. Only the range of buckets actually hit is allocated, a few hundred longs at most for
+ * latencies between a nanosecond and several hours. Two sketches can be merged without any loss.
+ *
+ * <p>The class is not thread-safe.
+ */
+public class LatencySketch {
+
+  private static final double RELATIVE_ACCURACY = 0.01;
+  private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+  private static final double LOG_GAMMA = Math.log(GAMMA);
+
+  /** Slack added on each side of the hit range when growing the buckets */
+  private static final int GROWTH = 16;
+
+  /** Counts of the buckets, counts[i] is the count of bucket i + offset */
+  private long[] counts;
+
+  private int offset;
+  /** Values lower than or equal to 1 */
+  private long zeroCount;
+
+  private long count;
+
+  /** @param value a latency, in any unit as long as all the values share it */
+  public void accept(final long value) {
+    accept(value, 1);
+  }
+
+  public void accept(final long value, final long occurrences) {
+    if (occurrences <= 0) {
+      return;
+    }
+    count += occurrences;
+    if (value <= 1) {
+      zeroCount += occurrences;
+      return;
+    }
+    final int index = (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    ensureRange(index, index);
+    counts[index - offset] += occurrences;
+  }
+
+  /** @return the number of values accepted */
+  public long getCount() {
+    return count;
+  }
+
+  /** @return the ratio between the bounds of a bucket */
+  public static double getGamma() {
+    return GAMMA;
+  }
+
+  /** @return the number of values lower than or equal to 1 */
+  public long getZeroCount() {
+    return zeroCount;
+  }
+
+  /** @return the index of the first bucket returned by {@link #getBinCounts()} */
+  public int getIndexOffset() {
+    return counts == null ? 0 : offset;
+  }
+
+  /** @return a copy of the bucket counts, from the bucket at {@link #getIndexOffset()} */
+  public long[] getBinCounts() {
+    return counts == null ? new long[0] : counts.clone();
+  }
+
+  /**
+   * @param quantile a number in [0,1]
+   * @return an estimation of the value at the quantile, within 1%, or 0 if the sketch is empty
+   */
+  public double getValueAtQuantile(final double quantile) {
+    if (count == 0) {
+      return 0;
+    }
+    final double rank = Math.max(0, Math.min(1, quantile)) * (count - 1);
+    long seen = zeroCount;
+    if (seen > rank) {
+      return 1;
+    }
+    if (counts != null) {
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen > rank) {
+          return valueOf(i + offset);
+        }
+      }
+    }
+    // Unreachable unless the counts overflowed
+    return valueOf(offset + (counts == null ? 0 : counts.length - 1));
+  }
+
+  /**
+   * Add the values of another sketch to this one.
+   *
+   * @param other the sketch to merge, left unchanged
+   */
+  public void merge(final LatencySketch other) {
+    if (other.count == 0) {
+      return;
+    }
+    count += other.count;
+    zeroCount += other.zeroCount;
+    if (other.counts == null) {
+      return;
+    }
+    ensureRange(other.offset, other.offset + other.counts.length - 1);
+    for (int i = 0; i < other.counts.length; i++) {
+      counts[other.offset + i - offset] += other.counts[i];
+    }
+  }
+
+  /** Halve every count, so that old values weigh less than the ones accepted afterwards */
+  public void decay() {
+    zeroCount >>>= 1;
+    count = zeroCount;
+    if (counts != null) {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] >>>= 1;
+        count += counts[i];
+      }
+    }
+  }
+
+  /** Forget every value, keeping the buckets allocated */
+  public void clear() {
+    if (counts != null) {
+      Arrays.fill(counts, 0);
+    }
+    zeroCount = 0;
+    count = 0;
+  }
+
+  /** @return the middle of the bucket, which is within the relative accuracy of its values */
+  private static double valueOf(final int index) {
+    return 2 * Math.pow(GAMMA, index) / (1 + GAMMA);
+  }
+
+  private void ensureRange(final int minIndex, final int maxIndex) {
+    if (counts == null) {
+      offset = minIndex - GROWTH;
+      counts = new long[maxIndex - minIndex + 1 + 2 * GROWTH];
+      return;
+    }
+    if (minIndex >= offset && maxIndex < offset + counts.length) {
+      return;
+    }
+    final int newOffset = Math.min(offset, minIndex - GROWTH);
+    final int newEnd = Math.max(offset + counts.length, maxIndex + 1 + GROWTH);
+    final long[] newCounts = new long[newEnd - newOffset];
+    System.arraycopy(counts, 0, newCounts, offset - newOffset, counts.length);
+    counts = newCounts;
+    offset = newOffset;
+  }
+}
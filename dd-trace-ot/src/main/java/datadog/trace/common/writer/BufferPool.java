@@ -0,0 +1,59 @@
+package datadog.trace.common.writer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of heap byte buffers of the same size. Buffers are allocated lazily, up to the max
+ * count, and recycled once released. The class is thread-safe.
+ *
+ * <p>The buffers are on the heap, as their content is copied to the heap payload sent to the agent:
+ * direct buffers would only add a copy out of the heap and back.
+ */
+class BufferPool {
+
+  private final int bufferSize;
+  private final int maxBuffers;
+  private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger allocated = new AtomicInteger(0);
+
+  /**
+   * @param bufferSize the capacity of each buffer
+   * @param maxBuffers the max number of buffers allocated by the pool
+   */
+  BufferPool(final int bufferSize, final int maxBuffers) {
+    this.bufferSize = bufferSize;
+    this.maxBuffers = maxBuffers;
+  }
+
+  /** @return an empty buffer, or null if all the buffers are in use */
+  ByteBuffer acquire() {
+    final ByteBuffer buffer = free.poll();
+    if (buffer != null) {
+      return buffer;
+    }
+    int count;
+    do {
+      count = allocated.get();
+      if (count >= maxBuffers) {
+        return null;
+      }
+    } while (!allocated.compareAndSet(count, count + 1));
+    return ByteBuffer.allocate(bufferSize);
+  }
+
+  void release(final ByteBuffer buffer) {
+    buffer.clear();
+    free.offer(buffer);
+  }
+
+  int getBufferSize() {
+    return bufferSize;
+  }
+
+  /** @return the number of buffers allocated so far */
+  int getAllocated() {
+    return allocated.get();
+  }
+}
@@ -3,17 +3,23 @@ package datadog.trace.common.writer;
 import com.google.auto.service.AutoService;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import datadog.opentracing.DDSpan;
+import datadog.opentracing.DDTracer;
+import datadog.opentracing.SpanPool;
 import datadog.trace.common.Service;
+import datadog.trace.common.sampling.TailSampler;
+import datadog.trace.common.stats.StatsAggregator;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -25,6 +31,24 @@ import lombok.extern.slf4j.Slf4j;
  * <p>It handles writes asynchronuously so the calling threads are automatically released. However,
  * if too much spans are collected the writers can reach a state where it is forced to drop incoming
  * spans.
+ *
+ * <p>Traces are flushed by a dedicated thread, as soon as half of the queue is used or the
+ * estimated payload size reaches the limit, and at the latest after the flush interval. The
+ * threads writing traces wake up the flushing thread, which sleeps as long as no trace comes in.
+ * It sends the payloads itself: each request to the agent has an overall deadline, {@link
+ * KeepAliveHttpTransport#DEFAULT_REQUEST_TIMEOUT_MILLIS} by default, so an agent that stops
+ * answering delays the next flushes and replays by that much at most.
+ *
+ * <p>With eager serialization, a serializer thread encodes the traces as soon as they are written,
+ * into chunks of pooled buffers. The spans are then released right away instead of waiting for the
+ * flush, and the payload size triggering a flush is the actual encoded size.
+ *
+ * <p>With a {@link TailSampler}, the thread draining the queue decides which traces to keep, once
+ * they are complete. The queue is thus the buffer of the tail sampling stage.
+ *
+ * <p>With a {@link StatsAggregator}, the stats are aggregated by the thread draining the queue too,
+ * once the deferred decorators derived the resources. The traces dropped by the sampler are handed
+ * over with {@link #writeDropped(List)}, to a queue of their own, only to be aggregated.
  */
 @Slf4j
 @AutoService(Writer.class)
@@ -36,22 +60,38 @@ public class DDAgentWriter implements Writer {
   public static final int DEFAULT_PORT = 8126;
 
   /** Maximum number of traces kept in memory */
-  static final int DEFAULT_MAX_TRACES = 1000;
+  public static final int DEFAULT_MAX_TRACES = 1000;
+
+  /** Maximum time a trace waits in the queue, in milliseconds */
+  public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+  /** Estimated payload size triggering a flush, in bytes */
+  public static final long DEFAULT_MAX_PAYLOAD_SIZE = 5 * 1024 * 1024;
+
+  /** Maximum size of the spilled payloads on disk, in bytes */
+  public static final long DEFAULT_SPILL_MAX_SIZE = 64 * 1024 * 1024;
+
+  /** Rough average size of an encoded span, used to estimate the payload size */
+  static final int ESTIMATED_SPAN_SIZE = 256;
 
-  /** Timeout for the API in seconds */
-  static final long API_TIMEOUT_SECONDS = 1;
+  /** Delay before replaying spilled payloads after a failure, doubled on each failure */
+  static final long INITIAL_BACKOFF_MILLIS = 1000;
 
-  /** Flush interval for the API in seconds */
-  static final long FLUSH_TIME_SECONDS = 1;
+  static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  /** Spilled payloads replayed at most on each flush, so that live traces are not delayed */
+  static final int MAX_REPLAYS_PER_FLUSH = 10;
+
+  /** Size of the buffers holding eagerly serialized traces */
+  static final int SERIALIZATION_CHUNK_SIZE = 64 * 1024;
+
+  /** Cap of the memory used by eagerly serialized traces, in chunks */
+  static final int MAX_SERIALIZATION_CHUNKS = 1024;
 
   private final ThreadFactory agentWriterThreadFactory =
       new ThreadFactoryBuilder().setNameFormat("dd-agent-writer-%d").setDaemon(true).build();
 
-  /** Scheduled thread pool, acting like a cron */
-  private final ScheduledExecutorService scheduledExecutor =
-      Executors.newScheduledThreadPool(1, agentWriterThreadFactory);
-
-  /** Effective thread pool, where real logic is done */
+  /** Effective thread pool, where services are sent */
   private final ExecutorService executor =
       Executors.newSingleThreadExecutor(agentWriterThreadFactory);
 
@@ -61,6 +101,41 @@ public class DDAgentWriter implements Writer {
   /** In memory collection of traces waiting for departure */
   private final WriterQueue<List<DDSpan>> traces;
 
+  private final long flushIntervalNanos;
+  private final long maxPayloadSize;
+  private final int flushTraceCount;
+
+  /** Payloads the agent did not accept, null when spilling is disabled */
+  private final DiskSpillBuffer spillBuffer;
+  /** Used by the flushing thread only when spilling or eager serialization is enabled */
+  private final MsgPackTraceEncoder encoder;
+
+  /** Decides which complete traces to send, null to send them all */
+  private final TailSampler tailSampler;
+
+  /** Aggregates the stats of the traces, kept or dropped, null when stats are disabled */
+  private volatile StatsAggregator statsAggregator;
+  /** Traces dropped by the sampler waiting for their stats, null when stats are disabled */
+  private volatile WriterQueue<List<DDSpan>> droppedTraces;
+
+  /** Traces encoded by the serializer thread, null when eager serialization is disabled */
+  private final EncodedTraceBuffer encodedTraces;
+
+  private long backoffNanos = TimeUnit.MILLISECONDS.toNanos(INITIAL_BACKOFF_MILLIS);
+  private long nextReplayNanos = System.nanoTime();
+
+  /** Traces and estimated bytes written since the last flush, reset by the flushing thread */
+  private final AtomicInteger pendingTraces = new AtomicInteger(0);
+
+  private final AtomicLong pendingBytes = new AtomicLong(0);
+  private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+  private volatile Thread flushingThread;
+  private volatile Thread serializingThread;
+  /** Set by the serializer thread before parking, so that writing threads only wake it if needed */
+  private final AtomicBoolean serializerParked = new AtomicBoolean(false);
+  private volatile boolean closed = false;
+
   private boolean queueFullReported = false;
 
   public DDAgentWriter() {
@@ -68,13 +143,99 @@ public class DDAgentWriter implements Writer {
   }
 
   public DDAgentWriter(final DDApi api) {
-    this(api, new WriterQueue<List<DDSpan>>(DEFAULT_MAX_TRACES));
+    this(api, new RingBufferWriterQueue<List<DDSpan>>(DEFAULT_MAX_TRACES));
   }
 
   public DDAgentWriter(final DDApi api, final WriterQueue<List<DDSpan>> queue) {
+    this(api, queue, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_MAX_PAYLOAD_SIZE);
+  }
+
+  /**
+   * @param api the DD agent api
+   * @param queue the queue holding the traces waiting for departure
+   * @param flushIntervalMillis maximum time a trace waits in the queue
+   * @param maxPayloadSize estimated payload size in bytes triggering a flush
+   */
+  public DDAgentWriter(
+      final DDApi api,
+      final WriterQueue<List<DDSpan>> queue,
+      final long flushIntervalMillis,
+      final long maxPayloadSize) {
+    this(api, queue, flushIntervalMillis, maxPayloadSize, null);
+  }
+
+  /**
+   * @param api the DD agent api
+   * @param queue the queue holding the traces waiting for departure
+   * @param flushIntervalMillis maximum time a trace waits in the queue
+   * @param maxPayloadSize estimated payload size in bytes triggering a flush
+   * @param spillBuffer where payloads not accepted by the agent are kept for later, or null to drop
+   *     them
+   */
+  public DDAgentWriter(
+      final DDApi api,
+      final WriterQueue<List<DDSpan>> queue,
+      final long flushIntervalMillis,
+      final long maxPayloadSize,
+      final DiskSpillBuffer spillBuffer) {
+    this(api, queue, flushIntervalMillis, maxPayloadSize, spillBuffer, false);
+  }
+
+  /**
+   * @param api the DD agent api
+   * @param queue the queue holding the traces waiting for departure
+   * @param flushIntervalMillis maximum time a trace waits in the queue
+   * @param maxPayloadSize payload size in bytes triggering a flush
+   * @param spillBuffer where payloads not accepted by the agent are kept for later, or null to drop
+   *     them
+   * @param eagerSerialization whether traces are serialized as soon as they are written
+   */
+  public DDAgentWriter(
+      final DDApi api,
+      final WriterQueue<List<DDSpan>> queue,
+      final long flushIntervalMillis,
+      final long maxPayloadSize,
+      final DiskSpillBuffer spillBuffer,
+      final boolean eagerSerialization) {
+    this(api, queue, flushIntervalMillis, maxPayloadSize, spillBuffer, eagerSerialization, null);
+  }
+
+  /**
+   * @param api the DD agent api
+   * @param queue the queue holding the traces waiting for departure
+   * @param flushIntervalMillis maximum time a trace waits in the queue
+   * @param maxPayloadSize payload size in bytes triggering a flush
+   * @param spillBuffer where payloads not accepted by the agent are kept for later, or null to drop
+   *     them
+   * @param eagerSerialization whether traces are serialized as soon as they are written
+   * @param tailSampler decides which traces are sent once complete, or null to send them all
+   */
+  public DDAgentWriter(
+      final DDApi api,
+      final WriterQueue<List<DDSpan>> queue,
+      final long flushIntervalMillis,
+      final long maxPayloadSize,
+      final DiskSpillBuffer spillBuffer,
+      final boolean eagerSerialization,
+      final TailSampler tailSampler) {
     super();
     this.api = api;
     traces = queue;
+    flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+    this.maxPayloadSize = maxPayloadSize;
+    flushTraceCount = Math.max(1, queue.getCapacity() / 2);
+    this.spillBuffer = spillBuffer;
+    this.tailSampler = tailSampler;
+    encoder = spillBuffer == null && !eagerSerialization ? null : new MsgPackTraceEncoder();
+    if (eagerSerialization) {
+      // Room for the payload being filled and the one being sent
+      final long chunks =
+          Math.min(MAX_SERIALIZATION_CHUNKS, 2 * (maxPayloadSize / SERIALIZATION_CHUNK_SIZE + 1));
+      encodedTraces =
+          new EncodedTraceBuffer(new BufferPool(SERIALIZATION_CHUNK_SIZE, (int) chunks));
+    } else {
+      encodedTraces = null;
+    }
   }
 
   /* (non-Javadoc)
@@ -84,11 +245,77 @@ public class DDAgentWriter implements Writer {
   public void write(final List<DDSpan> trace) {
     final List<DDSpan> removed = traces.add(trace);
     if (removed != null && !queueFullReported) {
-      log.debug("Queue is full, traces will be discarded, queue size: {}", DEFAULT_MAX_TRACES);
+      log.debug("Queue is full, traces will be discarded, queue size: {}", traces.getCapacity());
       queueFullReported = true;
+    } else if (removed == null) {
+      queueFullReported = false;
+    }
+    if (removed != null && statsAggregator != null) {
+      // Not sent, but still accounted for in the stats
+      writeDropped(removed);
+    }
+
+    final int queuedTraces = pendingTraces.incrementAndGet();
+    final long queuedBytes;
+    if (encodedTraces == null) {
+      queuedBytes = pendingBytes.addAndGet(trace.size() * ESTIMATED_SPAN_SIZE);
+    } else {
+      // The serializer thread counts the actual bytes
+      queuedBytes = pendingBytes.get();
+      if (serializerParked.get() && serializerParked.compareAndSet(true, false)) {
+        LockSupport.unpark(serializingThread);
+      }
+    }
+    if (queuedTraces >= flushTraceCount || queuedBytes >= maxPayloadSize) {
+      requestFlush();
+    } else if (queuedTraces == 1) {
+      // First trace since the last flush: start the flush interval timer
+      LockSupport.unpark(flushingThread);
+    }
+  }
+
+  /**
+   * Hand over a trace dropped by the sampler. Its stats are aggregated on the flushing thread, then
+   * its spans are recycled. Without stats, the spans are recycled right away.
+   *
+   * @param trace the finished spans of the dropped trace
+   */
+  public void writeDropped(final List<DDSpan> trace) {
+    final WriterQueue<List<DDSpan>> queue = droppedTraces;
+    if (queue == null) {
+      SpanPool.recycle(trace);
       return;
     }
-    queueFullReported = false;
+    final List<DDSpan> removed = queue.add(trace);
+    if (removed != null) {
+      statsAggregator.recordDroppedSpans(removed.size());
+      SpanPool.recycle(removed);
+    }
+    final int queuedTraces = pendingTraces.incrementAndGet();
+    if (queuedTraces >= flushTraceCount) {
+      requestFlush();
+    } else if (queuedTraces == 1) {
+      LockSupport.unpark(flushingThread);
+    }
+  }
+
+  /**
+   * Aggregate the stats of the traces written from now on, on the writer threads. The aggregator
+   * is started and closed by its owner. The agent is told not to compute the stats of the traces
+   * sent from now on.
+   *
+   * @param statsAggregator the aggregator of the stats of every trace, kept or dropped
+   */
+  public void setStatsAggregator(final StatsAggregator statsAggregator) {
+    droppedTraces = new RingBufferWriterQueue<>(traces.getCapacity());
+    this.statsAggregator = statsAggregator;
+    api.setClientComputedStats(true);
+  }
+
+  private void requestFlush() {
+    if (flushRequested.compareAndSet(false, true)) {
+      LockSupport.unpark(flushingThread);
+    }
   }
 
   /* (non-Javadoc)
@@ -118,8 +345,14 @@ public class DDAgentWriter implements Writer {
    */
   @Override
   public void start() {
-    scheduledExecutor.scheduleAtFixedRate(
-        new TracesSendingTask(), 0, FLUSH_TIME_SECONDS, TimeUnit.SECONDS);
+    final Thread thread = agentWriterThreadFactory.newThread(new TracesSendingTask());
+    flushingThread = thread;
+    thread.start();
+    if (encodedTraces != null) {
+      final Thread serializer = agentWriterThreadFactory.newThread(new TracesSerializingTask());
+      serializingThread = serializer;
+      serializer.start();
+    }
   }
 
   /* (non-Javadoc)
@@ -127,10 +360,23 @@ public class DDAgentWriter implements Writer {
    */
   @Override
   public void close() {
-    scheduledExecutor.shutdownNow();
+    closed = true;
+    final Thread thread = flushingThread;
+    if (thread != null) {
+      thread.interrupt();
+    }
+    final Thread serializer = serializingThread;
+    if (serializer != null) {
+      serializer.interrupt();
+    }
     executor.shutdownNow();
     try {
-      scheduledExecutor.awaitTermination(500, TimeUnit.MILLISECONDS);
+      if (thread != null) {
+        thread.join(500);
+      }
+      if (serializer != null) {
+        serializer.join(500);
+      }
     } catch (final InterruptedException e) {
       log.info("Writer properly closed and async writer interrupted.");
     }
@@ -140,6 +386,10 @@ public class DDAgentWriter implements Writer {
     } catch (final InterruptedException e) {
       log.info("Writer properly closed and async writer interrupted.");
     }
+    if (spillBuffer != null) {
+      spillBuffer.close();
+    }
+    api.close();
   }
 
   @Override
@@ -151,50 +401,262 @@ public class DDAgentWriter implements Writer {
     return api;
   }
 
-  /** Infinite tasks blocking until some spans come in the blocking queue. */
+  /**
+   * Flushing loop: parks while the queue is empty, then waits for the flush interval unless a
+   * writing thread requests an early flush. Spilled payloads are replayed after each successful
+   * flush, or when their backoff delay expires.
+   */
   class TracesSendingTask implements Runnable {
 
     @Override
     public void run() {
-      final Future<Long> future = executor.submit(new SendingTask());
-      try {
-        final long nbTraces = future.get(API_TIMEOUT_SECONDS, TimeUnit.SECONDS);
-        if (nbTraces > 0) {
-          log.debug("Successfully sent {} traces to the API", nbTraces);
+      while (!closed) {
+        if (pendingTraces.get() == 0 && !flushRequested.get()) {
+          if (spillBuffer != null && !spillBuffer.isEmpty()) {
+            final long delay = nextReplayNanos - System.nanoTime();
+            if (delay > 0) {
+              LockSupport.parkNanos(this, delay);
+            } else {
+              replaySpilledPayloads();
+            }
+          } else {
+            LockSupport.park(this);
+          }
+          continue;
+        }
+
+        final long deadline = System.nanoTime() + flushIntervalNanos;
+        long remaining;
+        while (!closed
+            && !flushRequested.get()
+            && (remaining = deadline - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(this, remaining);
+        }
+        if (closed) {
+          return;
+        }
+        flushRequested.set(false);
+
+        try {
+          final long nbTraces = sendTraces();
+          if (nbTraces > 0) {
+            log.debug("Successfully sent {} traces to the API", nbTraces);
+          }
+        } catch (final Throwable e) {
+          log.debug("Failed to send traces to the API: {}", e.getMessage());
         }
-      } catch (final TimeoutException e) {
-        log.debug("Timeout! Failed to send traces to the API: {}", e.getMessage());
-      } catch (final Throwable e) {
-        log.debug("Failed to send traces to the API: {}", e.getMessage());
       }
     }
 
-    class SendingTask implements Callable<Long> {
+    private long sendTraces() {
+      // Reset before draining: traces written meanwhile are at worst flushed one interval later
+      pendingTraces.set(0);
+      pendingBytes.set(0);
+      aggregateDroppedTraces();
+      if (encodedTraces != null) {
+        return sendEncodedTraces();
+      }
+      if (traces.isEmpty()) {
+        return 0L;
+      }
 
-      @Override
-      public Long call() throws Exception {
-        if (traces.isEmpty()) {
-          return 0L;
+      final List<List<DDSpan>> payload = tailSampleAll(traces.getAll());
+      if (payload.isEmpty()) {
+        return 0L;
+      }
+
+      if (log.isDebugEnabled()) {
+        int nbSpans = 0;
+        for (final List<?> trace : payload) {
+          nbSpans += trace.size();
         }
 
-        final List<List<DDSpan>> payload = traces.getAll();
+        log.debug(
+            "Sending {} traces ({} spans) to the API (async), {} traces dropped so far",
+            payload.size(),
+            nbSpans,
+            traces.getDroppedCount());
+      }
+      if (spillBuffer != null) {
+        encoder.reset();
+        encoder.writeTraces(payload);
+        recycle(payload);
+        return sendOrSpill(payload.size());
+      }
+      final boolean isSent = api.sendTraces(payload);
+      recycle(payload);
 
-        if (log.isDebugEnabled()) {
-          int nbSpans = 0;
-          for (final List<?> trace : payload) {
-            nbSpans += trace.size();
-          }
+      if (!isSent) {
+        log.debug("Failing to send {} traces to the API", payload.size());
+        return 0L;
+      }
+      return (long) payload.size();
+    }
 
-          log.debug("Sending {} traces ({} spans) to the API (async)", payload.size(), nbSpans);
+    private long sendEncodedTraces() {
+      if (encodedTraces.getTraceCount() == 0) {
+        return 0L;
+      }
+      encoder.reset();
+      final int traceCount = encodedTraces.drainTo(encoder);
+      log.debug(
+          "Sending {} traces ({} bytes) to the API (async), {} traces dropped so far",
+          traceCount,
+          encoder.size(),
+          traces.getDroppedCount() + encodedTraces.getDroppedTraces());
+      if (spillBuffer != null) {
+        return sendOrSpill(traceCount);
+      }
+      if (!api.sendEncodedTraces(encoder.buffer(), encoder.size(), traceCount)) {
+        log.debug("Failing to send {} traces to the API", traceCount);
+        return 0L;
+      }
+      return traceCount;
+    }
+
+    /** Send the traces held by the encoder, or spill them if the agent doesn't accept them */
+    private long sendOrSpill(final int traceCount) {
+      if (api.sendEncodedTraces(encoder.buffer(), encoder.size(), traceCount)) {
+        // The agent is reachable: catch up with the spilled payloads
+        replaySpilledPayloads();
+        return traceCount;
+      }
+
+      log.debug("Failing to send {} traces to the API, spilling them to disk", traceCount);
+      try {
+        spillBuffer.append(encoder.buffer(), encoder.size(), traceCount);
+      } catch (final IOException e) {
+        log.debug("Failed to spill traces to disk: {}", e.getMessage());
+      }
+      scheduleReplay(false);
+      return 0L;
+    }
+  }
+
+  /**
+   * Serializing loop: encodes the traces as soon as they are written, and parks while the queue is
+   * empty.
+   */
+  class TracesSerializingTask implements Runnable {
+    private final MsgPackTraceEncoder traceEncoder = new MsgPackTraceEncoder();
+
+    @Override
+    public void run() {
+      while (!closed) {
+        serializerParked.set(true);
+        if (traces.isEmpty()) {
+          LockSupport.park(this);
         }
-        final boolean isSent = api.sendTraces(payload);
+        serializerParked.set(false);
 
-        if (!isSent) {
-          log.debug("Failing to send {} traces to the API", payload.size());
-          return 0L;
+        for (final List<DDSpan> trace : traces.getAll()) {
+          if (!tailSample(trace)) {
+            continue;
+          }
+          traceEncoder.reset();
+          try {
+            traceEncoder.writeTrace(trace);
+          } catch (final Throwable e) {
+            log.debug("Failed to serialize a trace: {}", e.getMessage());
+            continue;
+          } finally {
+            SpanPool.recycle(trace);
+          }
+          if (!encodedTraces.append(traceEncoder.buffer(), traceEncoder.size())) {
+            log.debug("Serialization buffers exhausted, dropping a trace");
+          } else if (pendingBytes.addAndGet(traceEncoder.size()) >= maxPayloadSize) {
+            requestFlush();
+          }
         }
-        return (long) payload.size();
       }
     }
   }
+
+  /** Aggregate the stats of the traces dropped by the sampler, then recycle them */
+  private void aggregateDroppedTraces() {
+    final WriterQueue<List<DDSpan>> queue = droppedTraces;
+    if (queue == null || queue.isEmpty()) {
+      return;
+    }
+    for (final List<DDSpan> trace : queue.getAll()) {
+      DDTracer.applyDeferredDecorators(trace);
+      statsAggregator.add(trace);
+      SpanPool.recycle(trace);
+    }
+  }
+
+  /** @return the traces kept by the tail sampler */
+  private List<List<DDSpan>> tailSampleAll(final List<List<DDSpan>> drained) {
+    if (tailSampler == null && statsAggregator == null) {
+      for (final List<DDSpan> trace : drained) {
+        DDTracer.applyDeferredDecorators(trace);
+      }
+      return drained;
+    }
+    final List<List<DDSpan>> kept = new ArrayList<>(drained.size());
+    for (final List<DDSpan> trace : drained) {
+      if (tailSample(trace)) {
+        kept.add(trace);
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * Aggregate the stats of the trace, then sample it. The deferred decorators run on the whole
+   * trace for the stats, which key on the resources, otherwise only once the trace is kept: the
+   * tail sampler decorates the span it reads itself.
+   *
+   * @return true if the trace is kept, the dropped ones are reported to the agent
+   */
+  private boolean tailSample(final List<DDSpan> trace) {
+    final StatsAggregator stats = statsAggregator;
+    if (stats != null) {
+      DDTracer.applyDeferredDecorators(trace);
+      stats.add(trace);
+    }
+    if (tailSampler == null || tailSampler.sample(trace)) {
+      // Spans already decorated are skipped
+      DDTracer.applyDeferredDecorators(trace);
+      return true;
+    }
+    api.recordDroppedTrace(trace.size());
+    SpanPool.recycle(trace);
+    return false;
+  }
+
+  /** Return the spans of the serialized traces to their pool, if they were pooled */
+  private static void recycle(final List<List<DDSpan>> traces) {
+    for (final List<DDSpan> trace : traces) {
+      SpanPool.recycle(trace);
+    }
+  }
+
+  private void replaySpilledPayloads() {
+    for (int i = 0; i < MAX_REPLAYS_PER_FLUSH; i++) {
+      final DiskSpillBuffer.Payload spilled = spillBuffer.peek();
+      if (spilled == null) {
+        break;
+      }
+      final byte[] bytes = spilled.getBytes();
+      if (!api.sendEncodedTraces(bytes, bytes.length, spilled.getTraceCount())) {
+        scheduleReplay(false);
+        return;
+      }
+      log.debug("Replayed {} spilled traces", spilled.getTraceCount());
+      spillBuffer.remove();
+    }
+    scheduleReplay(true);
+  }
+
+  /** Exponential backoff between replays, reset by a success */
+  private void scheduleReplay(final boolean success) {
+    if (success) {
+      backoffNanos = TimeUnit.MILLISECONDS.toNanos(INITIAL_BACKOFF_MILLIS);
+      nextReplayNanos = System.nanoTime();
+    } else {
+      nextReplayNanos = System.nanoTime() + backoffNanos;
+      backoffNanos = Math.min(backoffNanos * 2, TimeUnit.MILLISECONDS.toNanos(MAX_BACKOFF_MILLIS));
+    }
+  }
 }
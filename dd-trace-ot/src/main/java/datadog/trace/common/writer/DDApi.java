@@ -6,21 +6,25 @@ import com.google.common.util.concurrent.RateLimiter;
 import datadog.opentracing.DDSpan;
 import datadog.opentracing.DDTraceOTInfo;
 import datadog.trace.common.Service;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import lombok.extern.slf4j.Slf4j;
 import org.msgpack.jackson.dataformat.MessagePackFactory;
 
-/** The API pointing to a DD agent */
+/**
+ * The API pointing to a DD agent.
+ *
+ * <p>Payloads are sent through a {@link Transport}. The v0.4 endpoints are used until the agent
+ * answers 404 on one of them, in which case the API downgrades to v0.3 and resends the payload.
+ * The endpoints are thus negotiated lazily by the first payload sent, on the writer thread, instead
+ * of blocking the tracer creation.
+ */
 @Slf4j
 public class DDApi {
 
@@ -28,27 +32,56 @@ public class DDApi {
   private static final String SERVICES_ENDPOINT_V3 = "/v0.3/services";
   private static final String TRACES_ENDPOINT_V4 = "/v0.4/traces";
   private static final String SERVICES_ENDPOINT_V4 = "/v0.4/services";
+  private static final String STATS_ENDPOINT = "/v0.6/stats";
   private static final long SECONDS_BETWEEN_ERROR_LOG = TimeUnit.MINUTES.toSeconds(5);
 
-  private final String tracesEndpoint;
-  private final String servicesEndpoint;
+  /** Headers telling the agent how many traces were dropped by the client since the last payload */
+  private static final String DROPPED_TRACES_HEADER = "Datadog-Client-Dropped-P0-Traces";
+
+  private static final String DROPPED_SPANS_HEADER = "Datadog-Client-Dropped-P0-Spans";
+
+  /** Header telling the agent not to compute the stats of the traces, the client sends them */
+  private static final String COMPUTED_STATS_HEADER = "Datadog-Client-Computed-Stats";
+
+  private static final Map<String, String> HEADERS;
+
+  static {
+    final Map<String, String> headers = new LinkedHashMap<>();
+    headers.put("Content-Type", "application/msgpack");
+    headers.put("Datadog-Meta-Lang", "java");
+    headers.put("Datadog-Meta-Lang-Version", DDTraceOTInfo.JAVA_VERSION);
+    headers.put("Datadog-Meta-Lang-Interpreter", DDTraceOTInfo.JAVA_VM_NAME);
+    headers.put("Datadog-Meta-Tracer-Version", DDTraceOTInfo.VERSION);
+    HEADERS = Collections.unmodifiableMap(headers);
+  }
+
+  private final Transport transport;
+
+  private volatile String tracesEndpoint = TRACES_ENDPOINT_V4;
+  private volatile String servicesEndpoint = SERVICES_ENDPOINT_V4;
+
+  /** Traces and spans dropped by the tracer, not reported yet */
+  private final AtomicLong droppedTraces = new AtomicLong();
+
+  private final AtomicLong droppedSpans = new AtomicLong();
+
+  private volatile boolean clientComputedStats = false;
+
   private final List<ResponseListener> responseListeners = new ArrayList<ResponseListener>();
 
   private final RateLimiter loggingRateLimiter =
       RateLimiter.create(1.0 / SECONDS_BETWEEN_ERROR_LOG);
 
   private final ObjectMapper objectMapper = new ObjectMapper(new MessagePackFactory());
+  /** Reused for every traces payload, guarded by its own monitor */
+  private final MsgPackTraceEncoder traceEncoder = new MsgPackTraceEncoder();
 
   public DDApi(final String host, final int port) {
-    if (endpointAvailable("http://" + host + ":" + port + TRACES_ENDPOINT_V4)
-        && endpointAvailable("http://" + host + ":" + port + SERVICES_ENDPOINT_V4)) {
-      this.tracesEndpoint = "http://" + host + ":" + port + TRACES_ENDPOINT_V4;
-      this.servicesEndpoint = "http://" + host + ":" + port + SERVICES_ENDPOINT_V4;
-    } else {
-      log.debug("API v0.4 endpoints not available. Downgrading to v0.3");
-      this.tracesEndpoint = "http://" + host + ":" + port + TRACES_ENDPOINT_V3;
-      this.servicesEndpoint = "http://" + host + ":" + port + SERVICES_ENDPOINT_V3;
-    }
+    this(new KeepAliveHttpTransport(host, port));
+  }
+
+  public DDApi(final Transport transport) {
+    this.transport = transport;
   }
 
   public void addResponseListener(ResponseListener listener) {
@@ -57,6 +90,27 @@ public class DDApi {
     }
   }
 
+  /**
+   * Tell the agent, with each traces payload from now on, that the stats of the traces are
+   * computed by the tracer, so that it doesn't compute them from the kept traces too.
+   *
+   * @param clientComputedStats true if the stats are sent to the stats endpoint
+   */
+  public void setClientComputedStats(final boolean clientComputedStats) {
+    this.clientComputedStats = clientComputedStats;
+  }
+
+  /**
+   * Count a trace dropped by the tracer sampler. The counts are aggregated and sent along with the
+   * next traces payload, so the agent can still account for the dropped traces.
+   *
+   * @param spanCount the number of spans of the dropped trace
+   */
+  public void recordDroppedTrace(final int spanCount) {
+    droppedTraces.incrementAndGet();
+    droppedSpans.addAndGet(spanCount);
+  }
+
   /**
    * Send traces to the DD agent
    *
@@ -64,7 +118,24 @@ public class DDApi {
    * @return the staus code returned
    */
   public boolean sendTraces(final List<List<DDSpan>> traces) {
-    return putContent("traces", tracesEndpoint, traces, traces.size());
+    synchronized (traceEncoder) {
+      traceEncoder.reset();
+      traceEncoder.writeTraces(traces);
+      return putContent(
+          "traces", tracesEndpoint, traceEncoder.buffer(), traceEncoder.size(), traces.size());
+    }
+  }
+
+  /**
+   * Send traces already encoded with {@link MsgPackTraceEncoder#writeTraces(List)}
+   *
+   * @param payload a buffer holding the encoded traces
+   * @param length the number of meaningful bytes in payload
+   * @param traceCount the number of traces encoded, for logging
+   * @return true if the agent accepted the traces
+   */
+  public boolean sendEncodedTraces(final byte[] payload, final int length, final int traceCount) {
+    return putContent("traces", tracesEndpoint, payload, length, traceCount);
   }
 
   /**
@@ -76,56 +147,92 @@ public class DDApi {
     if (services == null) {
       return true;
     }
-    return putContent("services", servicesEndpoint, services, services.size());
+    final byte[] content;
+    try {
+      content = objectMapper.writeValueAsBytes(services);
+    } catch (final IOException e) {
+      log.debug("Error while serializing " + services.size() + " services.", e);
+      return false;
+    }
+    return putContent("services", servicesEndpoint, content, content.length, services.size());
+  }
+
+  /**
+   * Send aggregated trace stats to the stats endpoint
+   *
+   * @param stats the stats payload, serialized as is
+   * @param size the number of aggregates in the payload, for logging
+   */
+  public boolean sendStats(final Object stats, final int size) {
+    final byte[] content;
+    try {
+      content = objectMapper.writeValueAsBytes(stats);
+    } catch (final IOException e) {
+      log.debug("Error while serializing " + size + " stats.", e);
+      return false;
+    }
+    return putContent("stats", STATS_ENDPOINT, content, content.length, size);
   }
 
   /**
-   * PUT to an endpoint the provided JSON content
+   * PUT to an endpoint the provided msgpack content
    *
-   * @param content
+   * @param endpoint the path of the endpoint
+   * @param content the encoded payload
+   * @param length the number of meaningful bytes in content
    * @return the status code
    */
   private boolean putContent(
-      final String type, final String endpoint, final Object content, final int size) {
+      final String type,
+      String endpoint,
+      final byte[] content,
+      final int length,
+      final int size) {
+    // Not read from the endpoint, which a concurrent downgrade may have changed meanwhile
+    final boolean traces = "traces".equals(type);
+    final long dropped = traces ? droppedTraces.getAndSet(0) : 0;
+    final long droppedSpanCount = traces ? droppedSpans.getAndSet(0) : 0;
+    final boolean computedStats = traces && clientComputedStats;
+    final Map<String, String> headers;
+    if (dropped > 0 || computedStats) {
+      headers = new LinkedHashMap<>(HEADERS);
+      if (dropped > 0) {
+        headers.put(DROPPED_TRACES_HEADER, String.valueOf(dropped));
+        headers.put(DROPPED_SPANS_HEADER, String.valueOf(droppedSpanCount));
+      }
+      if (computedStats) {
+        headers.put(COMPUTED_STATS_HEADER, "yes");
+      }
+    } else {
+      headers = HEADERS;
+    }
+    boolean sent = false;
     try {
-      final HttpURLConnection httpCon = getHttpURLConnection(endpoint);
-
-      final OutputStream out = httpCon.getOutputStream();
-      objectMapper.writeValue(out, content);
-      out.flush();
-      out.close();
-
-      String responseString = null;
-      {
-        final BufferedReader responseReader =
-            new BufferedReader(new InputStreamReader(httpCon.getInputStream()));
-        final StringBuilder sb = new StringBuilder();
-
-        String line = null;
-        while ((line = responseReader.readLine()) != null) {
-          sb.append(line);
-        }
-        responseReader.close();
-
-        responseString = sb.toString();
+      Transport.Response response = transport.put(endpoint, headers, content, length);
+      if (response.getStatus() == 404 && endpoint.startsWith("/v0.4/")) {
+        log.debug("API v0.4 endpoints not available. Downgrading to v0.3");
+        tracesEndpoint = TRACES_ENDPOINT_V3;
+        servicesEndpoint = SERVICES_ENDPOINT_V3;
+        endpoint = traces ? TRACES_ENDPOINT_V3 : SERVICES_ENDPOINT_V3;
+        response = transport.put(endpoint, headers, content, length);
       }
 
-      final int responseCode = httpCon.getResponseCode();
-      if (responseCode != 200) {
+      final int responseCode = response.getStatus();
+      sent = responseCode == 200;
+      if (!sent) {
         if (log.isDebugEnabled()) {
           log.debug(
-              "Error while sending {} {} to the DD agent. Status: {}, ResponseMessage: ",
+              "Error while sending {} {} to the DD agent. Status: {}, Response: {}",
               size,
               type,
               responseCode,
-              httpCon.getResponseMessage());
+              response.getBody());
         } else if (loggingRateLimiter.tryAcquire()) {
           log.warn(
               "Error while sending {} {} to the DD agent. Status: {} (going silent for {} seconds)",
               size,
               type,
               responseCode,
-              httpCon.getResponseMessage(),
               SECONDS_BETWEEN_ERROR_LOG);
         }
         return false;
@@ -133,13 +240,14 @@ public class DDApi {
 
       log.debug("Succesfully sent {} {} to the DD agent.", size, type);
 
+      final String responseString = response.getBody();
       try {
         if (null != responseString
             && !"".equals(responseString.trim())
             && !"OK".equalsIgnoreCase(responseString.trim())) {
-          JsonNode response = objectMapper.readTree(responseString);
+          JsonNode responseJson = objectMapper.readTree(responseString);
           for (ResponseListener listener : responseListeners) {
-            listener.onResponse(endpoint, response);
+            listener.onResponse(transport.getBaseUrl() + endpoint, responseJson);
           }
         }
       } catch (IOException e) {
@@ -160,39 +268,27 @@ public class DDApi {
             SECONDS_BETWEEN_ERROR_LOG);
       }
       return false;
+    } finally {
+      if (!sent && dropped > 0) {
+        // Report the counts with the next payload instead
+        droppedTraces.addAndGet(dropped);
+        droppedSpans.addAndGet(droppedSpanCount);
+      }
     }
   }
 
-  private boolean endpointAvailable(final String endpoint) {
-    try {
-      final HttpURLConnection httpCon = getHttpURLConnection(endpoint);
-      OutputStreamWriter out = new OutputStreamWriter(httpCon.getOutputStream());
-      out.flush();
-      out.close();
-      return httpCon.getResponseCode() == 200;
-    } catch (IOException e) {
-    }
-    return false;
+  public Transport getTransport() {
+    return transport;
   }
 
-  private HttpURLConnection getHttpURLConnection(final String endpoint) throws IOException {
-    final HttpURLConnection httpCon;
-    final URL url = new URL(endpoint);
-    httpCon = (HttpURLConnection) url.openConnection();
-    httpCon.setDoOutput(true);
-    httpCon.setDoInput(true);
-    httpCon.setRequestMethod("PUT");
-    httpCon.setRequestProperty("Content-Type", "application/msgpack");
-    httpCon.setRequestProperty("Datadog-Meta-Lang", "java");
-    httpCon.setRequestProperty("Datadog-Meta-Lang-Version", DDTraceOTInfo.JAVA_VERSION);
-    httpCon.setRequestProperty("Datadog-Meta-Lang-Interpreter", DDTraceOTInfo.JAVA_VM_NAME);
-    httpCon.setRequestProperty("Datadog-Meta-Tracer-Version", DDTraceOTInfo.VERSION);
-    return httpCon;
+  /** Release the connections to the agent, e.g. the keep-alive socket */
+  public void close() {
+    transport.close();
   }
 
   @Override
   public String toString() {
-    return "DDApi { tracesEndpoint=" + tracesEndpoint + " }";
+    return "DDApi { tracesEndpoint=" + transport.getBaseUrl() + tracesEndpoint + " }";
   }
 
   public static interface ResponseListener {
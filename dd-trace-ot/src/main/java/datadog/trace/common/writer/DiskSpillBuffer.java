@@ -0,0 +1,346 @@
+package datadog.trace.common.writer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A size-capped log of serialized payloads which could not be delivered to the agent.
+ *
+ * <p>The log is split into {@link #MAX_SEGMENTS} segment files in a directory, written with plain
+ * file channel writes. Each record holds the payload length, its trace count and the payload bytes.
+ * Payloads are read back oldest first, and a segment file is deleted once all its records are read.
+ * When the cap is reached, the oldest segment is evicted to make room for new payloads.
+ *
+ * <p>Each segment starts with the offset of its next record to read, updated as payloads are
+ * removed, so the segments found in the directory at creation are replayed from where they were
+ * left. Appended records are forced to the disk; the read offset is not, so a payload may be sent
+ * twice after a crash of the host. A record cut short by a crash is discarded. The class is
+ * thread-safe.
+ */
+@Slf4j
+public class DiskSpillBuffer {
+
+  static final int MAX_SEGMENTS = 4;
+
+  private static final String SEGMENT_PREFIX = "dd-spill-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final int RECORD_HEADER_SIZE = 8;
+  /** The read offset at the start of each segment */
+  private static final int SEGMENT_HEADER_SIZE = 4;
+
+  private final File directory;
+  private final int segmentSize;
+
+  /** Oldest first, the last one is written to */
+  private final Deque<Segment> segments = new ArrayDeque<>();
+
+  private long nextSegmentId = 0;
+  private long evictedTraces = 0;
+
+  /**
+   * @param directory where the segment files are stored, created if missing
+   * @param maxSize the max size of all the segments, in bytes
+   * @throws IOException if the directory or its segments can't be used
+   */
+  public DiskSpillBuffer(final File directory, final long maxSize) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create spill directory " + directory);
+    }
+    this.directory = directory;
+    segmentSize = (int) Math.min(Integer.MAX_VALUE, maxSize / MAX_SEGMENTS);
+    if (segmentSize <= SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE) {
+      throw new IllegalArgumentException("Spill buffer size too small: " + maxSize);
+    }
+    loadSegments();
+  }
+
+  /**
+   * Append a payload to the log, evicting the oldest segment if needed.
+   *
+   * @return false if the payload is larger than a segment and was dropped
+   */
+  public synchronized boolean append(final byte[] payload, final int length, final int traceCount)
+      throws IOException {
+    if (SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + length > segmentSize) {
+      log.debug("Payload of {} bytes too large to be spilled, dropping it", length);
+      return false;
+    }
+    Segment current = segments.peekLast();
+    if (current == null || current.remaining(segmentSize) < length + RECORD_HEADER_SIZE) {
+      if (segments.size() == MAX_SEGMENTS) {
+        log.debug("Spill buffer full, evicting {}", segments.peekFirst().file);
+        evictOldest();
+      }
+      current = Segment.open(new File(directory, segmentName(nextSegmentId++)));
+      segments.addLast(current);
+    }
+    current.append(payload, length, traceCount);
+    return true;
+  }
+
+  /**
+   * @return the oldest payload of the log, or null if it's empty. A segment which can't be read is
+   *     evicted
+   */
+  public synchronized Payload peek() {
+    Segment oldest;
+    while ((oldest = segments.peekFirst()) != null) {
+      try {
+        return oldest.peek();
+      } catch (final IOException e) {
+        log.debug("Unable to read spill segment {}, evicting it: {}", oldest.file, e.getMessage());
+        evictOldest();
+      }
+    }
+    return null;
+  }
+
+  /** Remove the payload returned by {@link #peek()} */
+  public synchronized void remove() {
+    final Segment oldest = segments.peekFirst();
+    if (oldest == null) {
+      return;
+    }
+    try {
+      oldest.skip();
+    } catch (final IOException e) {
+      log.debug("Unable to update spill segment {}, evicting it: {}", oldest.file, e.getMessage());
+      evictOldest();
+      return;
+    }
+    if (oldest.isConsumed()) {
+      segments.pollFirst();
+      oldest.delete();
+    }
+  }
+
+  /** Release the segment files, which are kept on disk to be replayed by the next instance */
+  public synchronized void close() {
+    for (final Segment segment : segments) {
+      segment.close();
+    }
+    segments.clear();
+  }
+
+  private void evictOldest() {
+    final Segment evicted = segments.pollFirst();
+    evictedTraces += evicted.pendingTraces();
+    evicted.delete();
+  }
+
+  public synchronized boolean isEmpty() {
+    return segments.isEmpty();
+  }
+
+  /** @return the number of traces lost because their segment was evicted */
+  public synchronized long getEvictedTraces() {
+    return evictedTraces;
+  }
+
+  private void loadSegments() throws IOException {
+    final File[] files =
+        directory.listFiles(
+            new FilenameFilter() {
+              @Override
+              public boolean accept(final File dir, final String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+              }
+            });
+    if (files == null) {
+      return;
+    }
+    // Segment names are zero padded, the alphabetical order is the creation order
+    Arrays.sort(files);
+    for (final File file : files) {
+      final String name = file.getName();
+      final long id;
+      try {
+        id =
+            Long.parseLong(
+                name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+      } catch (final NumberFormatException e) {
+        continue;
+      }
+      nextSegmentId = Math.max(nextSegmentId, id + 1);
+      final Segment segment = Segment.open(file);
+      if (segment.isConsumed()) {
+        segment.delete();
+      } else {
+        segments.addLast(segment);
+      }
+    }
+    while (segments.size() > MAX_SEGMENTS) {
+      segments.pollFirst().delete();
+    }
+  }
+
+  private static String segmentName(final long id) {
+    return String.format("%s%019d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX);
+  }
+
+  /** A payload read back from the log */
+  public static final class Payload {
+    private final byte[] bytes;
+    private final int traceCount;
+
+    Payload(final byte[] bytes, final int traceCount) {
+      this.bytes = bytes;
+      this.traceCount = traceCount;
+    }
+
+    public byte[] getBytes() {
+      return bytes;
+    }
+
+    public int getTraceCount() {
+      return traceCount;
+    }
+  }
+
+  private static class Segment {
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    private final ByteBuffer segmentHeader = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+    private int readPosition;
+    private int writePosition;
+    private long pendingTraces = 0;
+
+    private Segment(final File file, final FileChannel channel) throws IOException {
+      this.file = file;
+      this.channel = channel;
+      final long size = channel.size();
+      if (size < SEGMENT_HEADER_SIZE) {
+        readPosition = SEGMENT_HEADER_SIZE;
+        writeReadPosition();
+      } else {
+        readFully(segmentHeader, 0);
+        readPosition = segmentHeader.getInt(0);
+      }
+      // Scan the records already written, if any
+      int position = SEGMENT_HEADER_SIZE;
+      boolean readBoundary = readPosition == position;
+      long traces = 0;
+      while (position + RECORD_HEADER_SIZE <= size) {
+        readFully(recordHeader, position);
+        final int length = recordHeader.getInt(0);
+        if (length <= 0 || position + RECORD_HEADER_SIZE + length > size) {
+          break;
+        }
+        traces += recordHeader.getInt(4);
+        if (position >= readPosition) {
+          pendingTraces += recordHeader.getInt(4);
+        }
+        position += RECORD_HEADER_SIZE + length;
+        readBoundary |= readPosition == position;
+      }
+      writePosition = position;
+      if (!readBoundary) {
+        // Not the start of a record: replay the whole segment rather than guess
+        readPosition = SEGMENT_HEADER_SIZE;
+        pendingTraces = traces;
+      }
+      // Drop what follows the last complete record, so that it's not read as a record later
+      channel.truncate(writePosition);
+    }
+
+    /** Open a segment file, created if missing */
+    static Segment open(final File file) throws IOException {
+      final FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+      try {
+        return new Segment(file, channel);
+      } catch (final IOException e) {
+        channel.close();
+        throw e;
+      }
+    }
+
+    int remaining(final int segmentSize) {
+      return segmentSize - writePosition;
+    }
+
+    void append(final byte[] payload, final int length, final int traceCount) throws IOException {
+      recordHeader.clear();
+      recordHeader.putInt(length).putInt(traceCount).flip();
+      final ByteBuffer[] record = {recordHeader, ByteBuffer.wrap(payload, 0, length)};
+      channel.position(writePosition);
+      long written = 0;
+      while (written < RECORD_HEADER_SIZE + length) {
+        written += channel.write(record);
+      }
+      channel.force(false);
+      writePosition += RECORD_HEADER_SIZE + length;
+      pendingTraces += traceCount;
+    }
+
+    Payload peek() throws IOException {
+      if (isConsumed()) {
+        return null;
+      }
+      readFully(recordHeader, readPosition);
+      final byte[] bytes = new byte[recordHeader.getInt(0)];
+      readFully(ByteBuffer.wrap(bytes), readPosition + RECORD_HEADER_SIZE);
+      return new Payload(bytes, recordHeader.getInt(4));
+    }
+
+    void skip() throws IOException {
+      if (!isConsumed()) {
+        readFully(recordHeader, readPosition);
+        pendingTraces -= recordHeader.getInt(4);
+        readPosition += RECORD_HEADER_SIZE + recordHeader.getInt(0);
+        writeReadPosition();
+      }
+    }
+
+    boolean isConsumed() {
+      return readPosition >= writePosition;
+    }
+
+    long pendingTraces() {
+      return pendingTraces;
+    }
+
+    void close() {
+      try {
+        channel.close();
+      } catch (final IOException e) {
+        log.debug("Unable to close spill segment {}", file);
+      }
+    }
+
+    void delete() {
+      // Closed first, as some platforms can't delete an open file
+      close();
+      if (!file.delete()) {
+        log.debug("Unable to delete spill segment {}", file);
+      }
+    }
+
+    private void writeReadPosition() throws IOException {
+      segmentHeader.clear();
+      segmentHeader.putInt(0, readPosition);
+      while (segmentHeader.hasRemaining()) {
+        channel.write(segmentHeader, segmentHeader.position());
+      }
+    }
+
+    /** Fill the buffer from the given position of the file */
+    private void readFully(final ByteBuffer buffer, final long position) throws IOException {
+      buffer.clear();
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0) {
+          throw new EOFException("Truncated spill segment " + file);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package datadog.trace.common.writer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encoded traces waiting for the next flush, stored in chunks taken from a {@link BufferPool}.
+ * Each trace is appended as an encoded array of spans, so a flush only has to prepend the array
+ * header to the chunks to build the payload.
+ *
+ * <p>The serializer thread appends while the flushing thread drains, both synchronize on the
+ * buffer.
+ */
+class EncodedTraceBuffer {
+
+  private final BufferPool pool;
+
+  private List<ByteBuffer> chunks = new ArrayList<>();
+  private int traceCount = 0;
+  private long size = 0;
+  private long droppedTraces = 0;
+
+  EncodedTraceBuffer(final BufferPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Append an encoded trace.
+   *
+   * @param encoded a buffer holding the trace encoded as an array of spans
+   * @param length the number of meaningful bytes in encoded
+   * @return false if the pool ran out of chunks and the trace was dropped
+   */
+  synchronized boolean append(final byte[] encoded, final int length) {
+    final int chunkCount = chunks.size();
+    final ByteBuffer last = chunkCount == 0 ? null : chunks.get(chunkCount - 1);
+    final int lastPosition = last == null ? 0 : last.position();
+
+    ByteBuffer chunk = last;
+    int offset = 0;
+    while (offset < length) {
+      if (chunk == null || !chunk.hasRemaining()) {
+        chunk = pool.acquire();
+        if (chunk == null) {
+          // Undo the partial append
+          while (chunks.size() > chunkCount) {
+            pool.release(chunks.remove(chunks.size() - 1));
+          }
+          if (last != null) {
+            last.position(lastPosition);
+          }
+          droppedTraces++;
+          return false;
+        }
+        chunks.add(chunk);
+      }
+      final int count = Math.min(chunk.remaining(), length - offset);
+      chunk.put(encoded, offset, count);
+      offset += count;
+    }
+    traceCount++;
+    size += length;
+    return true;
+  }
+
+  /** @return the number of bytes appended since the last drain */
+  synchronized long size() {
+    return size;
+  }
+
+  /** @return the number of traces appended since the last drain */
+  synchronized int getTraceCount() {
+    return traceCount;
+  }
+
+  /** @return the number of traces dropped because the pool ran out of chunks */
+  synchronized long getDroppedTraces() {
+    return droppedTraces;
+  }
+
+  /**
+   * Append the encoded traces to the encoder, prefixed with the array header, and release the
+   * chunks.
+   *
+   * @return the number of traces written
+   */
+  int drainTo(final MsgPackTraceEncoder encoder) {
+    final List<ByteBuffer> drained;
+    final int count;
+    synchronized (this) {
+      drained = chunks;
+      count = traceCount;
+      chunks = new ArrayList<>();
+      traceCount = 0;
+      size = 0;
+    }
+    encoder.writeArrayHeader(count);
+    for (final ByteBuffer chunk : drained) {
+      chunk.flip();
+      encoder.writeEncoded(chunk);
+      pool.release(chunk);
+    }
+    return count;
+  }
+}
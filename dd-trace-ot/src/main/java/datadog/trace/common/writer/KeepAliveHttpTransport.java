@@ -0,0 +1,476 @@
+package datadog.trace.common.writer;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A minimal HTTP/1.1 client keeping one persistent connection to the agent.
+ *
+ * <p>Requests are pipelined: a thread writes its request as soon as the previous one is written,
+ * without waiting for the response, and responses are read back in order. If the agent closed an
+ * idle connection, the request is retried once on a fresh one, unless the agent had started to
+ * answer it: it may have processed the payload already, and a PUT is not idempotent. Bodies can
+ * optionally be gzipped.
+ *
+ * <p>Each request has an overall deadline, retry included: a watchdog closes the connection of the
+ * requests still waiting for their response once it expires, so that an agent that stops answering,
+ * or answers slowly, does not hold the calling thread longer than that.
+ *
+ * <p>The connection is opened by {@link #openConnection()}, which subclasses override to talk to
+ * the agent over other kinds of sockets.
+ */
+@Slf4j
+public class KeepAliveHttpTransport implements Transport {
+
+  static final int CONNECT_TIMEOUT_MILLIS = 1000;
+  static final int READ_TIMEOUT_MILLIS = 10000;
+
+  /** Maximum time a request waits for its response, from the moment it is sent */
+  public static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 5000;
+
+  private static final int MAX_LINE_LENGTH = 8192;
+
+  private final String host;
+  private final int port;
+  private final boolean gzip;
+  private final long requestTimeoutNanos;
+
+  /** Current connection, guarded by this */
+  private Connection connection;
+
+  public KeepAliveHttpTransport(final String host, final int port) {
+    this(host, port, false);
+  }
+
+  /**
+   * @param host the agent host
+   * @param port the agent port
+   * @param gzip whether to gzip the request bodies
+   */
+  public KeepAliveHttpTransport(final String host, final int port, final boolean gzip) {
+    this(host, port, gzip, DEFAULT_REQUEST_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * @param host the agent host
+   * @param port the agent port
+   * @param gzip whether to gzip the request bodies
+   * @param requestTimeoutMillis maximum time a request waits for its response
+   */
+  public KeepAliveHttpTransport(
+      final String host, final int port, final boolean gzip, final long requestTimeoutMillis) {
+    this.host = host;
+    this.port = port;
+    this.gzip = gzip;
+    requestTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(requestTimeoutMillis);
+  }
+
+  @Override
+  public Response put(
+      final String path, final Map<String, String> headers, final byte[] body, final int length)
+      throws IOException {
+    byte[] content = body;
+    int contentLength = length;
+    if (gzip) {
+      final ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4 + 64);
+      final GZIPOutputStream out = new GZIPOutputStream(compressed);
+      out.write(body, 0, length);
+      out.close();
+      content = compressed.toByteArray();
+      contentLength = content.length;
+    }
+    final byte[] head = requestHead(path, headers, contentLength);
+    final long deadline = System.nanoTime() + requestTimeoutNanos;
+
+    Connection current = acquireConnection();
+    final boolean reused = current.isReused();
+    try {
+      return current.exchange(head, content, contentLength, deadline);
+    } catch (final InterruptedIOException e) {
+      discard(current);
+      throw e;
+    } catch (final IOException e) {
+      discard(current);
+      if (!reused || e instanceof ResponseTruncatedException) {
+        throw e;
+      }
+      log.debug("Kept alive connection to the agent lost, retrying: {}", e.getMessage());
+    }
+
+    current = acquireConnection();
+    try {
+      return current.exchange(head, content, contentLength, deadline);
+    } catch (final IOException e) {
+      discard(current);
+      throw e;
+    }
+  }
+
+  @Override
+  public String getBaseUrl() {
+    return "http://" + host + ":" + port;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (connection != null) {
+      connection.close();
+      connection = null;
+    }
+  }
+
+  /**
+   * Open a new connection to the agent
+   *
+   * @return the connection
+   * @throws IOException if the agent can't be reached
+   */
+  protected Connection openConnection() throws IOException {
+    final Socket socket = new Socket();
+    try {
+      socket.setTcpNoDelay(true);
+      socket.setKeepAlive(true);
+      socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+      socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+      return new Connection(socket.getInputStream(), socket.getOutputStream(), socket);
+    } catch (final IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  /** @return the value of the Host header */
+  protected String hostHeader() {
+    return host + ":" + port;
+  }
+
+  private synchronized Connection acquireConnection() throws IOException {
+    if (connection == null || connection.isBroken()) {
+      connection = openConnection();
+    }
+    return connection;
+  }
+
+  private void discard(final Connection broken) {
+    synchronized (this) {
+      if (connection == broken) {
+        connection = null;
+      }
+    }
+    broken.close();
+  }
+
+  private byte[] requestHead(
+      final String path, final Map<String, String> headers, final int contentLength) {
+    final StringBuilder head = new StringBuilder(256);
+    head.append("PUT ").append(path).append(" HTTP/1.1\r\n");
+    head.append("Host: ").append(hostHeader()).append("\r\n");
+    for (final Map.Entry<String, String> header : headers.entrySet()) {
+      head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    }
+    if (gzip) {
+      head.append("Content-Encoding: gzip\r\n");
+    }
+    head.append("Content-Length: ").append(contentLength).append("\r\n\r\n");
+    return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * A persistent connection. Requests are written in order under the write lock, each one taking a
+   * ticket, and their responses are read in the same order under the read lock.
+   */
+  protected static class Connection {
+    private final InputStream in;
+    private final OutputStream out;
+    private final Closeable socket;
+
+    private final Object writeLock = new Object();
+    private final Object readLock = new Object();
+    /** Guarded by writeLock */
+    private long nextRequest = 0;
+    /** Guarded by readLock */
+    private long nextResponse = 0;
+    /** Whether a byte of the response being read was received, guarded by readLock */
+    private boolean responseStarted = false;
+
+    private volatile boolean broken = false;
+    private volatile boolean reused = false;
+
+    public Connection(final InputStream in, final OutputStream out, final Closeable socket) {
+      this.in = new BufferedInputStream(in);
+      this.out = new BufferedOutputStream(out);
+      this.socket = socket;
+    }
+
+    boolean isBroken() {
+      return broken;
+    }
+
+    /** @return true once a response was read, the agent may have closed the connection since */
+    boolean isReused() {
+      return reused;
+    }
+
+    /**
+     * Send a request and read its response, closing the connection if the deadline expires first
+     *
+     * @throws SocketTimeoutException if the deadline expired
+     */
+    Response exchange(final byte[] head, final byte[] body, final int length, final long deadline)
+        throws IOException {
+      final long timeout = deadline - System.nanoTime();
+      if (timeout <= 0) {
+        throw new SocketTimeoutException("Agent request deadline expired before sending");
+      }
+      final Expiry expiry = new Expiry(this);
+      final ScheduledFuture<?> watchdog =
+          Watchdog.EXECUTOR.schedule(expiry, timeout, TimeUnit.NANOSECONDS);
+      try {
+        return exchange(head, body, length);
+      } catch (final IOException e) {
+        if (expiry.expired) {
+          throw new SocketTimeoutException("No response from the agent before the deadline");
+        }
+        throw e;
+      } finally {
+        watchdog.cancel(false);
+      }
+    }
+
+    private Response exchange(final byte[] head, final byte[] body, final int length)
+        throws IOException {
+      final long ticket;
+      synchronized (writeLock) {
+        if (broken) {
+          throw new IOException("Connection to the agent closed");
+        }
+        try {
+          out.write(head);
+          out.write(body, 0, length);
+          out.flush();
+        } catch (final IOException e) {
+          close();
+          throw e;
+        }
+        ticket = nextRequest++;
+      }
+
+      synchronized (readLock) {
+        while (nextResponse != ticket && !broken) {
+          try {
+            readLock.wait();
+          } catch (final InterruptedException e) {
+            // Nobody would read our response, the following ones would be out of order
+            close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the agent response");
+          }
+        }
+        if (broken) {
+          throw new IOException("Connection to the agent closed");
+        }
+        responseStarted = false;
+        try {
+          final Response response = readResponse();
+          nextResponse++;
+          reused = true;
+          readLock.notifyAll();
+          return response;
+        } catch (final IOException e) {
+          close();
+          throw responseStarted ? new ResponseTruncatedException(e.getMessage(), e) : e;
+        } catch (final RuntimeException e) {
+          // The response was partially read: the connection is out of sync
+          close();
+          throw new ResponseTruncatedException("Unable to read the agent response", e);
+        }
+      }
+    }
+
+    void close() {
+      broken = true;
+      try {
+        socket.close();
+      } catch (final IOException e) {
+        // ignore
+      }
+      synchronized (readLock) {
+        readLock.notifyAll();
+      }
+    }
+
+    private Response readResponse() throws IOException {
+      int status;
+      long contentLength;
+      boolean chunked;
+      boolean closeConnection;
+      do {
+        final String statusLine = readLine();
+        final int start = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/1.") || start < 0 || statusLine.length() < start + 4) {
+          throw new IOException("Malformed status line from the agent: " + statusLine);
+        }
+        try {
+          status = Integer.parseInt(statusLine.substring(start + 1, start + 4));
+        } catch (final NumberFormatException e) {
+          throw new IOException("Malformed status line from the agent: " + statusLine);
+        }
+        closeConnection = statusLine.startsWith("HTTP/1.0");
+        contentLength = -1;
+        chunked = false;
+
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+          final int colon = line.indexOf(':');
+          if (colon <= 0) {
+            continue;
+          }
+          final String name = line.substring(0, colon).trim();
+          final String value = line.substring(colon + 1).trim();
+          if ("Content-Length".equalsIgnoreCase(name)) {
+            contentLength = parseContentLength(value);
+          } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+            chunked = value.toLowerCase().contains("chunked");
+          } else if ("Connection".equalsIgnoreCase(name)) {
+            closeConnection = "close".equalsIgnoreCase(value);
+          }
+        }
+        // Skip interim responses, e.g. 100 Continue
+      } while (status >= 100 && status < 200);
+
+      final ByteArrayOutputStream body = new ByteArrayOutputStream();
+      if (status == 204 || status == 304) {
+        // no body
+      } else if (chunked) {
+        long chunkSize;
+        while ((chunkSize = parseChunkSize(readLine())) > 0) {
+          copy(body, chunkSize);
+          readLine();
+        }
+        // trailers
+        while (!readLine().isEmpty()) {}
+      } else if (contentLength >= 0) {
+        copy(body, contentLength);
+      } else {
+        final byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+          body.write(buffer, 0, read);
+        }
+        closeConnection = true;
+      }
+
+      if (closeConnection) {
+        broken = true;
+        socket.close();
+      }
+      return new Response(status, new String(body.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private void copy(final ByteArrayOutputStream target, long length) throws IOException {
+      final byte[] buffer = new byte[(int) Math.min(length, 1024)];
+      while (length > 0) {
+        final int read = in.read(buffer, 0, (int) Math.min(length, buffer.length));
+        if (read < 0) {
+          throw new EOFException("Agent response truncated");
+        }
+        target.write(buffer, 0, read);
+        length -= read;
+      }
+    }
+
+    private static long parseContentLength(final String value) throws IOException {
+      try {
+        final long length = Long.parseLong(value);
+        if (length >= 0) {
+          return length;
+        }
+      } catch (final NumberFormatException e) {
+        // reported below
+      }
+      throw new IOException("Malformed content length from the agent: " + value);
+    }
+
+    private static long parseChunkSize(final String line) throws IOException {
+      final int extension = line.indexOf(';');
+      try {
+        return Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+      } catch (final NumberFormatException e) {
+        throw new IOException("Malformed chunk size from the agent: " + line);
+      }
+    }
+
+    private String readLine() throws IOException {
+      final StringBuilder line = new StringBuilder(64);
+      int c;
+      while ((c = in.read()) != '\n') {
+        if (c < 0) {
+          throw new EOFException("Connection to the agent closed");
+        }
+        responseStarted = true;
+        if (c != '\r') {
+          if (line.length() == MAX_LINE_LENGTH) {
+            throw new IOException("Agent response line too long");
+          }
+          line.append((char) c);
+        }
+      }
+      return line.toString();
+    }
+  }
+
+  /** The connection broke after the agent started to answer: the request must not be resent */
+  private static class ResponseTruncatedException extends IOException {
+    ResponseTruncatedException(final String message, final Throwable cause) {
+      super(message, cause);
+    }
+  }
+
+  /** Closes the connection of a request past its deadline, unblocking its reads and writes */
+  private static class Expiry implements Runnable {
+    private final Connection connection;
+    volatile boolean expired = false;
+
+    Expiry(final Connection connection) {
+      this.connection = connection;
+    }
+
+    @Override
+    public void run() {
+      expired = true;
+      connection.close();
+    }
+  }
+
+  /** Holds the watchdog thread, started on the first request and stopped when idle */
+  private static class Watchdog {
+    static final ScheduledThreadPoolExecutor EXECUTOR =
+        new ScheduledThreadPoolExecutor(
+            1,
+            new ThreadFactoryBuilder().setNameFormat("dd-agent-watchdog").setDaemon(true).build());
+
+    static {
+      EXECUTOR.setRemoveOnCancelPolicy(true);
+      EXECUTOR.setKeepAliveTime(1, TimeUnit.MINUTES);
+      EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+  }
+}
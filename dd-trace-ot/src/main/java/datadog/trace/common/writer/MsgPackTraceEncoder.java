@@ -0,0 +1,412 @@
+package datadog.trace.common.writer;
+
+import datadog.opentracing.DDSpan;
+import datadog.opentracing.DDSpanContext;
+import datadog.opentracing.TagStore;
+import datadog.trace.api.DDTags;
+import datadog.trace.common.sampling.PrioritySampling;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes traces in the MessagePack format expected by the DD agent, without going through Jackson
+ * bean introspection.
+ *
+ * <p>Span fields are read straight from the span context and written into a growable byte buffer
+ * which is reused from one payload to another. String tags and baggage go to the span {@code meta}
+ * map, numeric tags to the span {@code metrics} map. The span type, thread name and thread id are
+ * read from the context fields, they are not stored as tags. As most spans come from a few
+ * threads, the thread name and id are encoded once per thread, and copied afterwards.
+ *
+ * <p>The class is not thread-safe.
+ */
+public class MsgPackTraceEncoder {
+
+  private static final int INITIAL_CAPACITY = 64 * 1024;
+
+  private static final byte[] SERVICE = encodedKey("service");
+  private static final byte[] NAME = encodedKey("name");
+  private static final byte[] RESOURCE = encodedKey("resource");
+  private static final byte[] TRACE_ID = encodedKey("trace_id");
+  private static final byte[] SPAN_ID = encodedKey("span_id");
+  private static final byte[] PARENT_ID = encodedKey("parent_id");
+  private static final byte[] START = encodedKey("start");
+  private static final byte[] DURATION = encodedKey("duration");
+  private static final byte[] TYPE = encodedKey("type");
+  private static final byte[] ERROR = encodedKey("error");
+  private static final byte[] SAMPLING_PRIORITY = encodedKey("sampling_priority");
+  private static final byte[] META = encodedKey("meta");
+  private static final byte[] METRICS = encodedKey("metrics");
+  private static final byte[] THREAD_NAME = encodedKey(DDTags.THREAD_NAME);
+  private static final byte[] THREAD_ID = encodedKey(DDTags.THREAD_ID);
+  private static final byte[] SPAN_TYPE = encodedKey(DDTags.SPAN_TYPE);
+
+  /** Slots of the thread cache, indexed by thread id */
+  private static final int THREAD_CACHE_SIZE = 64;
+
+  private byte[] buffer;
+  private int position;
+
+  /** Thread name and id meta entries, encoded, with the thread they were encoded for */
+  private final long[] cachedThreadIds = new long[THREAD_CACHE_SIZE];
+  private final String[] cachedThreadNames = new String[THREAD_CACHE_SIZE];
+  private final byte[][] encodedThreads = new byte[THREAD_CACHE_SIZE][];
+
+  public MsgPackTraceEncoder() {
+    this(INITIAL_CAPACITY);
+  }
+
+  public MsgPackTraceEncoder(final int initialCapacity) {
+    buffer = new byte[initialCapacity];
+  }
+
+  /** Discard the encoded content, keeping the buffer for the next payload */
+  public void reset() {
+    position = 0;
+  }
+
+  /** @return the number of bytes encoded since the last reset */
+  public int size() {
+    return position;
+  }
+
+  /** @return the backing buffer, only the first {@link #size()} bytes are meaningful */
+  public byte[] buffer() {
+    return buffer;
+  }
+
+  public void writeTo(final OutputStream out) throws IOException {
+    out.write(buffer, 0, position);
+  }
+
+  /**
+   * Append a list of traces, encoded as an array of arrays of spans.
+   *
+   * @param traces the traces to encode
+   */
+  public void writeTraces(final List<List<DDSpan>> traces) {
+    writeArrayHeader(traces.size());
+    for (final List<DDSpan> trace : traces) {
+      writeTrace(trace);
+    }
+  }
+
+  public void writeTrace(final List<DDSpan> trace) {
+    writeArrayHeader(trace.size());
+    for (final DDSpan span : trace) {
+      writeSpan(span);
+    }
+  }
+
+  public void writeSpan(final DDSpan span) {
+    final DDSpanContext context = span.context();
+    final int samplingPriority = context.getSamplingPriority();
+    final boolean hasSamplingPriority = samplingPriority != PrioritySampling.UNSET;
+
+    synchronized (context) {
+      final TagStore tags = context.getTagStore();
+      final Map<String, String> baggage = context.getBaggageItems();
+      final String spanType = context.getSpanType();
+
+      int metricsCount = 0;
+      for (int i = 0; i < tags.size(); i++) {
+        if (isMetric(tags, i)) {
+          metricsCount++;
+        }
+      }
+
+      writeMapHeader(11 + (hasSamplingPriority ? 1 : 0) + (metricsCount > 0 ? 1 : 0));
+      writeRaw(SERVICE);
+      writeString(context.getServiceName());
+      writeRaw(NAME);
+      writeString(context.getOperationName());
+      writeRaw(RESOURCE);
+      writeString(context.getResourceName());
+      writeRaw(TRACE_ID);
+      writeUnsignedLong(context.getTraceId());
+      writeRaw(SPAN_ID);
+      writeUnsignedLong(context.getSpanId());
+      writeRaw(PARENT_ID);
+      writeUnsignedLong(context.getParentId());
+      writeRaw(START);
+      writeLong(span.getStartTime());
+      writeRaw(DURATION);
+      writeLong(span.getDurationNano());
+      writeRaw(TYPE);
+      writeString(spanType);
+      writeRaw(ERROR);
+      writeLong(context.getErrorFlag() ? 1 : 0);
+      if (hasSamplingPriority) {
+        writeRaw(SAMPLING_PRIORITY);
+        writeLong(samplingPriority);
+      }
+
+      // meta: baggage, string tags and context fields. Tags override baggage items.
+      int metaCount = 2 + (spanType != null ? 1 : 0);
+      for (final String key : baggage.keySet()) {
+        if (!tags.containsKey(key) && !isContextTag(key)) {
+          metaCount++;
+        }
+      }
+      for (int i = 0; i < tags.size(); i++) {
+        if (!isMetric(tags, i) && !isContextTag(tags.keyAt(i))) {
+          metaCount++;
+        }
+      }
+      writeRaw(META);
+      writeMapHeader(metaCount);
+      for (final Map.Entry<String, String> entry : baggage.entrySet()) {
+        if (!tags.containsKey(entry.getKey()) && !isContextTag(entry.getKey())) {
+          writeString(entry.getKey());
+          writeString(entry.getValue());
+        }
+      }
+      for (int i = 0; i < tags.size(); i++) {
+        if (!isMetric(tags, i) && !isContextTag(tags.keyAt(i))) {
+          writeString(tags.keyAt(i));
+          writeString(String.valueOf(tags.valueAt(i)));
+        }
+      }
+      writeThread(context.getThreadName(), context.getThreadId());
+      if (spanType != null) {
+        writeRaw(SPAN_TYPE);
+        writeString(spanType);
+      }
+
+      if (metricsCount > 0) {
+        writeRaw(METRICS);
+        writeMapHeader(metricsCount);
+        for (int i = 0; i < tags.size(); i++) {
+          if (isMetric(tags, i)) {
+            writeString(tags.keyAt(i));
+            writeMetric(tags, i);
+          }
+        }
+      }
+    }
+  }
+
+  /** Write the thread name and id meta entries, encoding them only if the thread is not cached */
+  private void writeThread(final String threadName, final long threadId) {
+    final int slot = (int) (threadId & (THREAD_CACHE_SIZE - 1));
+    byte[] encoded = encodedThreads[slot];
+    if (encoded == null
+        || cachedThreadIds[slot] != threadId
+        || threadName == null
+        // The thread may have been renamed
+        || (threadName != cachedThreadNames[slot] && !threadName.equals(cachedThreadNames[slot]))) {
+      final MsgPackTraceEncoder encoder = new MsgPackTraceEncoder(64);
+      encoder.writeRaw(THREAD_NAME);
+      encoder.writeString(threadName);
+      encoder.writeRaw(THREAD_ID);
+      encoder.writeString(String.valueOf(threadId));
+      encoded = Arrays.copyOf(encoder.buffer, encoder.position);
+      encodedThreads[slot] = encoded;
+      cachedThreadIds[slot] = threadId;
+      cachedThreadNames[slot] = threadName;
+    }
+    writeRaw(encoded);
+  }
+
+  private static boolean isMetric(final TagStore tags, final int index) {
+    return tags.isNumberAt(index);
+  }
+
+  private static boolean isContextTag(final String key) {
+    return DDTags.SPAN_TYPE.equals(key)
+        || DDTags.THREAD_NAME.equals(key)
+        || DDTags.THREAD_ID.equals(key);
+  }
+
+  private void writeMetric(final TagStore tags, final int index) {
+    switch (tags.kindAt(index)) {
+      case TagStore.KIND_INT:
+      case TagStore.KIND_LONG:
+        writeLong(tags.primitiveAt(index));
+        break;
+      case TagStore.KIND_FLOAT:
+      case TagStore.KIND_DOUBLE:
+        writeDouble(Double.longBitsToDouble(tags.primitiveAt(index)));
+        break;
+      default:
+        writeDouble(((Number) tags.objectAt(index)).doubleValue());
+    }
+  }
+
+  // MessagePack primitives
+
+  void writeArrayHeader(final int size) {
+    if (size < 16) {
+      writeByte(0x90 | size);
+    } else if (size < 65536) {
+      writeByte(0xdc);
+      writeShort(size);
+    } else {
+      writeByte(0xdd);
+      writeInt(size);
+    }
+  }
+
+  void writeMapHeader(final int size) {
+    if (size < 16) {
+      writeByte(0x80 | size);
+    } else if (size < 65536) {
+      writeByte(0xde);
+      writeShort(size);
+    } else {
+      writeByte(0xdf);
+      writeInt(size);
+    }
+  }
+
+  void writeLong(final long value) {
+    if (value >= 0) {
+      writeUnsignedLong(value);
+    } else if (value >= -32) {
+      writeByte((int) value);
+    } else if (value >= Byte.MIN_VALUE) {
+      ensureCapacity(2);
+      buffer[position++] = (byte) 0xd0;
+      buffer[position++] = (byte) value;
+    } else if (value >= Short.MIN_VALUE) {
+      writeByte(0xd1);
+      writeShort((int) value);
+    } else if (value >= Integer.MIN_VALUE) {
+      writeByte(0xd2);
+      writeInt((int) value);
+    } else {
+      writeByte(0xd3);
+      writeLongBits(value);
+    }
+  }
+
+  /** Write the value as an unsigned 64 bits integer, as expected by the agent for span ids */
+  void writeUnsignedLong(final long value) {
+    if (value < 0) {
+      writeByte(0xcf);
+      writeLongBits(value);
+    } else if (value < 128) {
+      writeByte((int) value);
+    } else if (value < 256) {
+      ensureCapacity(2);
+      buffer[position++] = (byte) 0xcc;
+      buffer[position++] = (byte) value;
+    } else if (value < 65536) {
+      writeByte(0xcd);
+      writeShort((int) value);
+    } else if (value < 4294967296L) {
+      writeByte(0xce);
+      writeInt((int) value);
+    } else {
+      writeByte(0xcf);
+      writeLongBits(value);
+    }
+  }
+
+  void writeDouble(final double value) {
+    writeByte(0xcb);
+    writeLongBits(Double.doubleToRawLongBits(value));
+  }
+
+  /** Write a string as UTF-8, ASCII strings are copied without intermediate byte array */
+  void writeString(final String value) {
+    if (value == null) {
+      writeByte(0xc0);
+      return;
+    }
+    if (isAscii(value)) {
+      final int length = value.length();
+      writeStringHeader(length);
+      ensureCapacity(length);
+      for (int i = 0; i < length; i++) {
+        buffer[position++] = (byte) value.charAt(i);
+      }
+    } else {
+      final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeStringHeader(bytes.length);
+      writeRaw(bytes);
+    }
+  }
+
+  private void writeStringHeader(final int length) {
+    if (length < 32) {
+      writeByte(0xa0 | length);
+    } else if (length < 256) {
+      ensureCapacity(2);
+      buffer[position++] = (byte) 0xd9;
+      buffer[position++] = (byte) length;
+    } else if (length < 65536) {
+      writeByte(0xda);
+      writeShort(length);
+    } else {
+      writeByte(0xdb);
+      writeInt(length);
+    }
+  }
+
+  /** Copy bytes already encoded, e.g. traces encoded ahead of the payload */
+  void writeEncoded(final ByteBuffer encoded) {
+    final int length = encoded.remaining();
+    ensureCapacity(length);
+    encoded.get(buffer, position, length);
+    position += length;
+  }
+
+  private void writeRaw(final byte[] bytes) {
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buffer, position, bytes.length);
+    position += bytes.length;
+  }
+
+  private void writeByte(final int value) {
+    ensureCapacity(1);
+    buffer[position++] = (byte) value;
+  }
+
+  private void writeShort(final int value) {
+    ensureCapacity(2);
+    buffer[position++] = (byte) (value >>> 8);
+    buffer[position++] = (byte) value;
+  }
+
+  private void writeInt(final int value) {
+    ensureCapacity(4);
+    buffer[position++] = (byte) (value >>> 24);
+    buffer[position++] = (byte) (value >>> 16);
+    buffer[position++] = (byte) (value >>> 8);
+    buffer[position++] = (byte) value;
+  }
+
+  private void writeLongBits(final long value) {
+    ensureCapacity(8);
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      buffer[position++] = (byte) (value >>> shift);
+    }
+  }
+
+  private void ensureCapacity(final int length) {
+    if (position + length > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, position + length));
+    }
+  }
+
+  private static boolean isAscii(final String value) {
+    for (int i = 0; i < value.length(); i++) {
+      if (value.charAt(i) >= 0x80) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static byte[] encodedKey(final String key) {
+    final MsgPackTraceEncoder encoder = new MsgPackTraceEncoder(key.length() + 1);
+    encoder.writeString(key);
+    return Arrays.copyOf(encoder.buffer, encoder.position);
+  }
+}
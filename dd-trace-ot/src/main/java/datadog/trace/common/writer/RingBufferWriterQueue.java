@@ -0,0 +1,198 @@
+package datadog.trace.common.writer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free alternative to the {@link SynchronizedWriterQueue}, for many threads writing traces
+ * at the same time.
+ *
+ * <p>The queue is a bounded ring buffer. Each cell holds an element and a sequence number telling
+ * whether the cell is free for the producer at a given position, or published for the consumer.
+ * Producers claim a position by moving the tail with a CAS, then publish the element in the cell.
+ * The consumer takes published elements from the head. No thread ever blocks on a lock, producers
+ * only retry when racing for the same position.
+ *
+ * <p>When the queue is full, the behavior depends on the {@link OverflowPolicy}: replace an element
+ * at a random place, like the {@link SynchronizedWriterQueue} does, or drop the oldest elements.
+ *
+ * @param <T> The element type to store
+ */
+class RingBufferWriterQueue<T> implements WriterQueue<T> {
+
+  /** What to do when adding an element to a full queue */
+  enum OverflowPolicy {
+    /** Replace an element at a random place in the queue */
+    RANDOM_EVICTION,
+    /** Remove the oldest elements until the new one fits */
+    DROP_OLDEST
+  }
+
+  private final int capacity;
+  private final OverflowPolicy policy;
+
+  private final AtomicReferenceArray<T> elements;
+  /**
+   * For each cell: equal to the position of the next producer allowed to write it, or to that
+   * position plus one once the element is published
+   */
+  private final AtomicLongArray sequences;
+
+  /** Next position to write */
+  private final PaddedAtomicLong tail = new PaddedAtomicLong();
+  /** Next position to read */
+  private final PaddedAtomicLong head = new PaddedAtomicLong();
+
+  private final AtomicLong replacedCount = new AtomicLong(0);
+  private final AtomicLong droppedCount = new AtomicLong(0);
+  private final AtomicLong flushedCount = new AtomicLong(0);
+
+  /**
+   * Create a queue evicting elements at random when it's full
+   *
+   * @param capacity the max size of the queue
+   */
+  RingBufferWriterQueue(final int capacity) {
+    this(capacity, OverflowPolicy.RANDOM_EVICTION);
+  }
+
+  RingBufferWriterQueue(final int capacity, final OverflowPolicy policy) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity couldn't be 0");
+    }
+    this.capacity = capacity;
+    this.policy = policy;
+    elements = new AtomicReferenceArray<>(capacity);
+    sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * Return a list containing the elements present in the queue, oldest first. At most {@code
+   * capacity} elements are drained, so that producers can't keep the caller busy forever.
+   *
+   * @return a list contain all elements
+   */
+  @Override
+  public List<T> getAll() {
+    final List<T> all = new ArrayList<>(size());
+    T element;
+    while (all.size() < capacity && (element = poll()) != null) {
+      all.add(element);
+    }
+    flushedCount.addAndGet(all.size());
+    return all;
+  }
+
+  /**
+   * Add an element to the queue. If the queue is full, an element is removed according to the
+   * overflow policy.
+   *
+   * @param element the element to add to the queue
+   * @return null if the queue is not full, otherwise a removed element
+   */
+  @Override
+  public T add(final T element) {
+    T removed = null;
+    while (!offer(element)) {
+      if (policy == OverflowPolicy.DROP_OLDEST) {
+        final T oldest = poll();
+        if (oldest != null) {
+          droppedCount.incrementAndGet();
+          removed = oldest;
+        }
+      } else {
+        final int index = ThreadLocalRandom.current().nextInt(0, capacity);
+        final T current = elements.get(index);
+        // A null cell is being written or read, try another one
+        if (current != null && elements.compareAndSet(index, current, element)) {
+          replacedCount.incrementAndGet();
+          droppedCount.incrementAndGet();
+          return current;
+        }
+      }
+    }
+    return removed;
+  }
+
+  private boolean offer(final T element) {
+    while (true) {
+      final long position = tail.get();
+      final int index = (int) (position % capacity);
+      final long sequence = sequences.get(index);
+      if (sequence == position) {
+        if (tail.compareAndSet(position, position + 1)) {
+          elements.lazySet(index, element);
+          sequences.lazySet(index, position + 1);
+          return true;
+        }
+      } else if (sequence < position) {
+        // The cell still holds the element written one lap before: the queue is full
+        return false;
+      }
+      // Another producer claimed the position, retry with the new tail
+    }
+  }
+
+  private T poll() {
+    while (true) {
+      final long position = head.get();
+      final int index = (int) (position % capacity);
+      final long sequence = sequences.get(index);
+      if (sequence == position + 1) {
+        if (head.compareAndSet(position, position + 1)) {
+          final T element = elements.getAndSet(index, null);
+          sequences.lazySet(index, position + capacity);
+          return element;
+        }
+      } else if (sequence < position + 1) {
+        // Empty, or the next element is claimed but not published yet
+        return null;
+      }
+    }
+  }
+
+  @Override
+  public int getCapacity() {
+    return capacity;
+  }
+
+  @Override
+  public long getEnqueuedCount() {
+    return tail.get() + replacedCount.get();
+  }
+
+  @Override
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  @Override
+  public long getFlushedCount() {
+    return flushedCount.get();
+  }
+
+  @Override
+  public int size() {
+    final long start = head.get();
+    final long size = tail.get() - start;
+    return (int) Math.max(0, Math.min(capacity, size));
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /** Keeps the head and the tail on different cache lines */
+  @SuppressWarnings("unused")
+  static class PaddedAtomicLong extends AtomicLong {
+    public volatile long p1, p2, p3, p4, p5, p6, p7 = 7L;
+  }
+}
@@ -0,0 +1,47 @@
+package datadog.trace.common.writer;
+
+import java.io.IOException;
+import java.util.Map;
+
+/** Carries the payloads of the {@link DDApi} to the DD agent */
+public interface Transport {
+
+  /**
+   * Send a PUT request to the agent and wait for its response. Implementations must be
+   * thread-safe.
+   *
+   * @param path the path of the endpoint, e.g. {@code /v0.4/traces}
+   * @param headers the request headers
+   * @param body a buffer holding the request body
+   * @param length the number of meaningful bytes in body
+   * @return the response of the agent, whatever its status
+   * @throws IOException if the request could not be sent or the response could not be read
+   */
+  Response put(String path, Map<String, String> headers, byte[] body, int length)
+      throws IOException;
+
+  /** @return the base URL of the agent, used for logging */
+  String getBaseUrl();
+
+  /** Release the connections held by the transport */
+  void close();
+
+  final class Response {
+    private final int status;
+    private final String body;
+
+    public Response(final int status, final String body) {
+      this.status = status;
+      this.body = body;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    /** @return the response body, decoded as UTF-8. Empty if there is none */
+    public String getBody() {
+      return body;
+    }
+  }
+}
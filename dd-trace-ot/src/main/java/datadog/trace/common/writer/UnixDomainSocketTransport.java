@@ -0,0 +1,125 @@
+package datadog.trace.common.writer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
+
+/**
+ * Talks HTTP to an agent listening on a Unix domain socket, which skips the TCP stack when the
+ * agent runs on the same host.
+ *
+ * <p>The socket is opened with jnr-unixsocket, as the JDK only supports Unix domain sockets from
+ * Java 16. Reads have no socket timeout: the request deadline of {@link KeepAliveHttpTransport}
+ * shuts the socket down instead, which unblocks them.
+ */
+public class UnixDomainSocketTransport extends KeepAliveHttpTransport {
+
+  private final String socketPath;
+
+  public UnixDomainSocketTransport(final String socketPath) {
+    this(socketPath, false);
+  }
+
+  /**
+   * @param socketPath the path of the socket the agent listens on
+   * @param gzip whether to gzip the request bodies
+   */
+  public UnixDomainSocketTransport(final String socketPath, final boolean gzip) {
+    super("localhost", 0, gzip);
+    this.socketPath = socketPath;
+  }
+
+  @Override
+  protected Connection openConnection() throws IOException {
+    final UnixSocketChannel channel =
+        UnixSocketChannel.open(new UnixSocketAddress(new File(socketPath)));
+    return new Connection(
+        new ChannelInput(channel), new ChannelOutput(channel), new Shutdown(channel));
+  }
+
+  @Override
+  protected String hostHeader() {
+    return "localhost";
+  }
+
+  @Override
+  public String getBaseUrl() {
+    return "unix://" + socketPath;
+  }
+
+  /**
+   * Shuts the socket down before closing it: closing the descriptor alone doesn't wake up a thread
+   * blocked reading it.
+   */
+  private static class Shutdown implements Closeable {
+    private final UnixSocketChannel channel;
+
+    Shutdown(final UnixSocketChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        channel.shutdownInput();
+        channel.shutdownOutput();
+      } catch (final IOException e) {
+        // already disconnected
+      } finally {
+        channel.close();
+      }
+    }
+  }
+
+  /**
+   * Streams over the channel. Unlike the ones from {@link java.nio.channels.Channels}, they don't
+   * lock the channel, so a response can be read while the next request is written.
+   */
+  private static class ChannelInput extends InputStream {
+    private final UnixSocketChannel channel;
+
+    ChannelInput(final UnixSocketChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public int read() throws IOException {
+      final byte[] single = new byte[1];
+      return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      return channel.read(ByteBuffer.wrap(buffer, offset, length));
+    }
+  }
+
+  private static class ChannelOutput extends OutputStream {
+    private final UnixSocketChannel channel;
+
+    ChannelOutput(final UnixSocketChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] buffer, final int offset, final int length) throws IOException {
+      final ByteBuffer source = ByteBuffer.wrap(buffer, offset, length);
+      while (source.hasRemaining()) {
+        channel.write(source);
+      }
+    }
+  }
+}
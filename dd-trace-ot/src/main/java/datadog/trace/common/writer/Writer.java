@@ -3,6 +3,9 @@ package datadog.trace.common.writer;
 import datadog.opentracing.DDSpan;
 import datadog.trace.common.DDTraceConfig;
 import datadog.trace.common.Service;
+import datadog.trace.common.sampling.TailSampler;
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -44,22 +47,14 @@ public interface Writer {
       if (config != null) {
         final String configuredType = config.getProperty(DDTraceConfig.WRITER_TYPE);
         if (DD_AGENT_WRITER_TYPE.equals(configuredType)) {
-          writer =
-              new DDAgentWriter(
-                  new DDApi(
-                      config.getProperty(DDTraceConfig.AGENT_HOST),
-                      Integer.parseInt(config.getProperty(DDTraceConfig.AGENT_PORT))));
+          writer = createAgentWriter(config);
         } else if (LOGGING_WRITER_TYPE.equals(configuredType)) {
           writer = new LoggingWriter();
         } else {
           log.warn(
               "Writer type not configured correctly: Type {} not recognized. Defaulting to DDAgentWriter.",
               configuredType);
-          writer =
-              new DDAgentWriter(
-                  new DDApi(
-                      config.getProperty(DDTraceConfig.AGENT_HOST),
-                      Integer.parseInt(config.getProperty(DDTraceConfig.AGENT_PORT))));
+          writer = createAgentWriter(config);
         }
       } else {
         log.warn(
@@ -70,6 +65,92 @@ public interface Writer {
       return writer;
     }
 
+    private static Writer createAgentWriter(final Properties config) {
+      final String unixSocket = config.getProperty(DDTraceConfig.AGENT_UNIX_SOCKET);
+      final boolean gzip =
+          Boolean.parseBoolean(config.getProperty(DDTraceConfig.WRITER_GZIP_ENABLED));
+      final Transport transport;
+      if (unixSocket != null) {
+        transport = new UnixDomainSocketTransport(unixSocket, gzip);
+      } else {
+        transport =
+            new KeepAliveHttpTransport(
+                config.getProperty(DDTraceConfig.AGENT_HOST),
+                Integer.parseInt(config.getProperty(DDTraceConfig.AGENT_PORT)),
+                gzip);
+      }
+      final DDApi api = new DDApi(transport);
+      final int maxQueueSize =
+          Integer.parseInt(
+              config.getProperty(
+                  DDTraceConfig.WRITER_MAX_QUEUE_SIZE,
+                  String.valueOf(DDAgentWriter.DEFAULT_MAX_TRACES)));
+      final long flushInterval =
+          Long.parseLong(
+              config.getProperty(
+                  DDTraceConfig.WRITER_FLUSH_INTERVAL,
+                  String.valueOf(DDAgentWriter.DEFAULT_FLUSH_INTERVAL_MILLIS)));
+      final long maxPayloadSize =
+          Long.parseLong(
+              config.getProperty(
+                  DDTraceConfig.WRITER_MAX_PAYLOAD_SIZE,
+                  String.valueOf(DDAgentWriter.DEFAULT_MAX_PAYLOAD_SIZE)));
+      return new DDAgentWriter(
+          api,
+          new RingBufferWriterQueue<List<DDSpan>>(maxQueueSize, createOverflowPolicy(config)),
+          flushInterval,
+          maxPayloadSize,
+          createSpillBuffer(config),
+          Boolean.parseBoolean(config.getProperty(DDTraceConfig.WRITER_EAGER_SERIALIZATION)),
+          createTailSampler(config));
+    }
+
+    private static RingBufferWriterQueue.OverflowPolicy createOverflowPolicy(
+        final Properties config) {
+      final String policy = config.getProperty(DDTraceConfig.WRITER_OVERFLOW_POLICY);
+      if (policy != null) {
+        try {
+          return RingBufferWriterQueue.OverflowPolicy.valueOf(policy.trim().toUpperCase());
+        } catch (final IllegalArgumentException e) {
+          log.warn(
+              "Writer overflow policy {} not recognized. Defaulting to random_eviction.", policy);
+        }
+      }
+      return RingBufferWriterQueue.OverflowPolicy.RANDOM_EVICTION;
+    }
+
+    private static TailSampler createTailSampler(final Properties config) {
+      final String sampleRate = config.getProperty(DDTraceConfig.TAIL_SAMPLING_RATE);
+      if (sampleRate == null) {
+        return null;
+      }
+      final double latencyPercentile =
+          Double.parseDouble(
+              config.getProperty(
+                  DDTraceConfig.TAIL_SAMPLING_LATENCY_PERCENTILE,
+                  String.valueOf(TailSampler.DEFAULT_LATENCY_PERCENTILE)));
+      return new TailSampler(Double.parseDouble(sampleRate), latencyPercentile);
+    }
+
+    private static DiskSpillBuffer createSpillBuffer(final Properties config) {
+      final String directory = config.getProperty(DDTraceConfig.WRITER_SPILL_DIRECTORY);
+      if (directory == null) {
+        return null;
+      }
+      final long maxSize =
+          Long.parseLong(
+              config.getProperty(
+                  DDTraceConfig.WRITER_SPILL_MAX_SIZE,
+                  String.valueOf(DDAgentWriter.DEFAULT_SPILL_MAX_SIZE)));
+      try {
+        return new DiskSpillBuffer(new File(directory), maxSize);
+      } catch (final IOException e) {
+        log.warn(
+            "Unable to spill traces to {}, they will be dropped: {}", directory, e.getMessage());
+        return null;
+      }
+    }
+
     private Builder() {}
   }
 }
@@ -4,6 +4,7 @@ import com.fasterxml.jackson.databind.ObjectMapper
 import com.google.common.collect.Maps
 import datadog.trace.api.DDTags
 import datadog.trace.common.sampling.PrioritySampling
+import datadog.trace.common.writer.ListWriter
 import spock.lang.Specification
 import spock.lang.Unroll
 
@@ -65,4 +66,28 @@ class DDSpanSerializationTest extends Specification {
     PrioritySampling.SAMPLER_KEEP  | _
     PrioritySampling.UNSET         | _
   }
+
+  def "numeric tags are serialized in metrics, as the agent receives them"() {
+    setup:
+    def span = new DDTracer(new ListWriter()).buildSpan("operation")
+      .withTag("string", "value")
+      .withTag("bool", true)
+      .withTag("int", 42)
+      .withTag("float", 0.5f)
+      .withTag("decimal", new BigDecimal("1.5"))
+      .startManual()
+    ObjectMapper serializer = new ObjectMapper()
+
+    when:
+    def serialized = serializer.readValue(serializer.writeValueAsString(span), Map)
+
+    then:
+    span.meta["string"] == "value"
+    span.meta["bool"] == "true"
+    !span.meta.containsKey("int")
+    span.meta[DDTags.THREAD_ID] == String.valueOf(Thread.currentThread().getId())
+    span.metrics == ["int": 42L, "float": 0.5d, "decimal": 1.5d]
+    serialized.meta == span.meta
+    serialized.metrics == ["int": 42, "float": 0.5d, "decimal": 1.5d]
+  }
 }
@@ -3,6 +3,8 @@ package datadog.opentracing
 import datadog.trace.common.sampling.PrioritySampling
 import spock.lang.Specification
 
+import java.util.concurrent.TimeUnit
+
 class DDSpanTest extends Specification {
 
   def "getters and setters"() {
@@ -85,4 +87,42 @@ class DDSpanTest extends Specification {
     span.getResourceName() == resourceName
     span.getServiceName() == serviceName
   }
+
+  def "duration measured in nanoseconds"() {
+    setup:
+    def start = System.nanoTime()
+    def span = new DDTracer().buildSpan("test").startManual()
+    def between = System.nanoTime()
+    def betweenDur = System.nanoTime() - between
+    span.finish()
+    def total = System.nanoTime() - start
+
+    expect:
+    span.durationNano > betweenDur
+    span.durationNano < total
+  }
+
+  def "starting with a timestamp disables nanotime"() {
+    setup:
+    def start = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis())
+    def span = new DDTracer().buildSpan("test").withStartTimestamp(start).startManual()
+    span.finish()
+    def total = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - TimeUnit.MICROSECONDS.toNanos(start)
+
+    expect:
+    span.startTime == TimeUnit.MICROSECONDS.toNanos(start)
+    span.durationNano >= 1
+    span.durationNano <= Math.max(1, total)
+  }
+
+  def "spans of a trace share the same time anchor"() {
+    setup:
+    def tracer = new DDTracer()
+    def root = tracer.buildSpan("root").startManual()
+    def child = tracer.buildSpan("child").asChildOf(root).startManual()
+
+    expect:
+    child.startTime >= root.startTime
+    child.startTime - root.startTime < TimeUnit.SECONDS.toNanos(1)
+  }
 }
@@ -0,0 +1,143 @@
+package datadog.opentracing
+
+import datadog.trace.common.sampling.AllSampler
+import datadog.trace.common.sampling.Sampler
+import datadog.trace.common.writer.ListWriter
+import spock.lang.Specification
+
+import java.util.concurrent.Phaser
+
+class PendingTraceTest extends Specification {
+  def writer = new ListWriter()
+  def tracer = new DDTracer(DDTracer.UNASSIGNED_DEFAULT_SERVICE_NAME, writer, new AllSampler(), 0)
+
+  def "single span gets added to trace and written when finished"() {
+    setup:
+    def root = tracer.buildSpan("root").startManual()
+    def trace = root.context().getTrace()
+
+    expect:
+    trace.getRootSpan() == root
+    trace.getPendingReferenceCount() == 1
+    writer.isEmpty()
+
+    when:
+    root.finish()
+
+    then:
+    trace.getPendingReferenceCount() == 0
+    writer == [[root]]
+  }
+
+  def "child finishes after parent"() {
+    setup:
+    def root = tracer.buildSpan("root").startManual()
+    def child = tracer.buildSpan("child").asChildOf(root).startManual()
+
+    when:
+    root.finish()
+
+    then:
+    root.context().getTrace().getPendingReferenceCount() == 1
+    writer.isEmpty()
+
+    when:
+    child.finish()
+
+    then:
+    root.context().getTrace().getPendingReferenceCount() == 0
+    writer == [[root, child]]
+  }
+
+  def "finishing a span twice is ignored"() {
+    setup:
+    def root = tracer.buildSpan("root").startManual()
+    def child = tracer.buildSpan("child").asChildOf(root).startManual()
+
+    when:
+    child.finish()
+    child.finish()
+
+    then:
+    root.context().getTrace().getPendingReferenceCount() == 1
+    writer.isEmpty()
+  }
+
+  def "partial flush of a long running trace"() {
+    setup:
+    def partialTracer = new DDTracer(DDTracer.UNASSIGNED_DEFAULT_SERVICE_NAME, writer, new AllSampler(), 2)
+    def root = partialTracer.buildSpan("root").startManual()
+    def child1 = partialTracer.buildSpan("child1").asChildOf(root).startManual()
+    def child2 = partialTracer.buildSpan("child2").asChildOf(root).startManual()
+    def child3 = partialTracer.buildSpan("child3").asChildOf(root).startManual()
+
+    when:
+    child1.finish()
+
+    then:
+    writer.isEmpty()
+
+    when:
+    child2.finish()
+
+    then:
+    writer == [[child1, child2]]
+
+    when:
+    child3.finish()
+    root.finish()
+
+    then:
+    writer == [[child1, child2], [child3, root]]
+  }
+
+  def "the chunks of a partially flushed trace share the sampling decision"() {
+    setup:
+    def calls = 0
+    def sampler = { span -> ++calls == 1 } as Sampler
+    def partialTracer = new DDTracer(DDTracer.UNASSIGNED_DEFAULT_SERVICE_NAME, writer, sampler, 2)
+    def root = partialTracer.buildSpan("root").startManual()
+    def child1 = partialTracer.buildSpan("child1").asChildOf(root).startManual()
+    def child2 = partialTracer.buildSpan("child2").asChildOf(root).startManual()
+    def child3 = partialTracer.buildSpan("child3").asChildOf(root).startManual()
+
+    when:
+    child1.finish()
+    child2.finish()
+    child3.finish()
+    root.finish()
+
+    then:
+    calls == 1
+    writer == [[child1, child2], [child3, root]]
+  }
+
+  def "concurrent finishes write the trace exactly once"() {
+    setup:
+    def root = tracer.buildSpan("root").startManual()
+    def children = (1..numberThreads * spansPerThread).collect {
+      tracer.buildSpan("child").asChildOf(root).startManual()
+    }
+    def phaser = new Phaser(numberThreads + 1)
+    def threads = children.collate(spansPerThread).collect { spans ->
+      Thread.start {
+        phaser.arriveAndAwaitAdvance()
+        spans*.finish()
+      }
+    }
+
+    when:
+    root.finish()
+    phaser.arriveAndAwaitAdvance()
+    threads*.join()
+
+    then:
+    writer.size() == 1
+    writer.firstTrace().size() == numberThreads * spansPerThread + 1
+    writer.firstTrace().containsAll(children)
+
+    where:
+    numberThreads = 10
+    spansPerThread = 100
+  }
+}
@@ -0,0 +1,70 @@
+package datadog.opentracing
+
+import spock.lang.Specification
+
+import java.util.concurrent.Phaser
+
+import static datadog.trace.SpanFactory.newSpanOf
+
+class SpanBufferTest extends Specification {
+
+  def "spans are appended across chunks"() {
+    setup:
+    def buffer = new SpanBuffer()
+    def spans = (0..<nbSpans).collect { newSpanOf(0) }
+
+    when:
+    spans.each { buffer.add(it) }
+
+    then:
+    buffer.size() == nbSpans
+    buffer.toList() == spans
+    nbSpans == 0 || buffer.get(nbSpans - 1) == spans.last()
+
+    where:
+    nbSpans << [0, 1, SpanBuffer.CHUNK_SIZE - 1, SpanBuffer.CHUNK_SIZE, SpanBuffer.CHUNK_SIZE * 10 + 3]
+  }
+
+  def "a sealed buffer rejects new spans"() {
+    setup:
+    def buffer = new SpanBuffer()
+    def span = newSpanOf(0)
+    buffer.add(span)
+
+    when:
+    buffer.seal()
+
+    then:
+    buffer.isSealed()
+    !buffer.add(newSpanOf(0))
+    buffer.toList() == [span]
+  }
+
+  def "concurrent appends are all tracked"() {
+    setup:
+    def buffer = new SpanBuffer()
+    def span = newSpanOf(0)
+    def phaser = new Phaser(numberThreads + 1)
+    def threads = (1..numberThreads).collect {
+      Thread.start {
+        phaser.arriveAndAwaitAdvance()
+        spansPerThread.times {
+          buffer.add(span)
+        }
+      }
+    }
+
+    when:
+    phaser.arriveAndAwaitAdvance()
+    threads*.join()
+    buffer.seal()
+
+    then:
+    buffer.size() == numberThreads * spansPerThread
+    buffer.toList().size() == numberThreads * spansPerThread
+
+    where:
+    numberThreads = 10
+    spansPerThread = 100
+  }
+}
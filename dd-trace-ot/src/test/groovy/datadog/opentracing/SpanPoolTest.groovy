@@ -0,0 +1,147 @@
+package datadog.opentracing
+
+import datadog.trace.common.sampling.AllSampler
+import datadog.trace.common.sampling.DeterministicSampler
+import datadog.trace.common.writer.ListWriter
+import spock.lang.Specification
+
+class SpanPoolTest extends Specification {
+  def writer = new ListWriter()
+  def pool = new SpanPool(4)
+  // Rejects every trace: their spans are recycled as soon as they are written
+  def tracer = new DDTracer(DDTracer.UNASSIGNED_DEFAULT_SERVICE_NAME, writer, new DeterministicSampler(0), 0, null, pool)
+
+  def "spans of a written trace are reused"() {
+    setup:
+    def root = tracer.buildSpan("root").withTag("foo", "bar").startManual()
+    root.setBaggageItem("baggage", "item")
+    def child = tracer.buildSpan("child").asChildOf(root).startManual()
+
+    when:
+    child.finish()
+    root.finish()
+
+    then:
+    writer.isEmpty()
+    root.context().isRecycled()
+    child.context().isRecycled()
+    pool.local().size() == 2
+
+    when:
+    def span = tracer.buildSpan("other").startManual()
+
+    then:
+    span.is(root) || span.is(child)
+    !span.context().isRecycled()
+    span.getOperationName() == "other"
+    span.getDurationNano() == 0
+    !span.getTags().containsKey("foo")
+    span.context().getBaggageItems().isEmpty()
+    span.context().getParentId() == 0
+    span.context().getTrace().getRootSpan().is(span)
+    pool.local().size() == 1
+
+    cleanup:
+    span.finish()
+  }
+
+  def "using a recycled span is detected"() {
+    setup:
+    def span = tracer.buildSpan("root").startManual()
+    span.finish()
+
+    when:
+    span.setTag("foo", "bar")
+
+    then:
+    thrown IllegalStateException
+
+    when:
+    span.finish()
+
+    then:
+    thrown IllegalStateException
+
+    when:
+    tracer.buildSpan("child").asChildOf(span).startManual()
+
+    then:
+    thrown IllegalStateException
+  }
+
+  def "a span is pooled once"() {
+    setup:
+    def span = tracer.buildSpan("root").startManual()
+    span.finish()
+
+    when:
+    SpanPool.recycle([span])
+
+    then:
+    pool.local().size() == 1
+  }
+
+  def "spans beyond the pool size are left to the GC"() {
+    setup:
+    def root = tracer.buildSpan("root").startManual()
+    def children = (1..5).collect { tracer.buildSpan("child").asChildOf(root).startManual() }
+
+    when:
+    children*.finish()
+    root.finish()
+
+    then:
+    pool.local().size() == 4
+    root.context().isRecycled()
+    children.every { it.context().isRecycled() }
+  }
+
+  def "spans are returned to the pool of the thread which built them"() {
+    setup:
+    def span = tracer.buildSpan("root").startManual()
+    def recycled = false
+
+    when:
+    Thread.start {
+      span.finish()
+      recycled = span.context().isRecycled()
+    }.join()
+
+    then:
+    recycled
+    pool.local().size() == 1
+    tracer.buildSpan("other").startManual().is(span)
+  }
+
+  def "spans of partially flushed traces are not recycled"() {
+    setup:
+    def partialTracer = new DDTracer(DDTracer.UNASSIGNED_DEFAULT_SERVICE_NAME, writer, new DeterministicSampler(0), 1, null, pool)
+    def root = partialTracer.buildSpan("root").startManual()
+    def child = partialTracer.buildSpan("child").asChildOf(root).startManual()
+
+    when:
+    child.finish()
+    root.finish()
+
+    then:
+    root.context().getTrace().isPartiallyFlushed()
+    !child.context().isRecycled()
+    !root.context().isRecycled()
+    pool.local().size() == 0
+  }
+
+  def "spans are not pooled by default"() {
+    setup:
+    def plainTracer = new DDTracer(DDTracer.UNASSIGNED_DEFAULT_SERVICE_NAME, writer, new AllSampler(), 0)
+    def span = plainTracer.buildSpan("root").startManual()
+    span.finish()
+
+    when:
+    SpanPool.recycle([span])
+
+    then:
+    writer == [[span]]
+    !span.context().isRecycled()
+    span.getPool() == null
+  }
+}
@@ -0,0 +1,147 @@
+package datadog.opentracing
+
+import datadog.trace.api.DDTags
+import spock.lang.Specification
+
+import static datadog.trace.SpanFactory.newSpanOf
+
+class TagStoreTest extends Specification {
+
+  def "values keep their type"() {
+    setup:
+    def store = new TagStore()
+
+    when:
+    store.put("key", value)
+
+    then:
+    store.get("key") == value
+    store.get("key").getClass() == value.getClass()
+    store.kindAt(0) == kind
+
+    where:
+    value                | kind
+    "string"             | TagStore.KIND_OBJECT
+    true                 | TagStore.KIND_BOOLEAN
+    false                | TagStore.KIND_BOOLEAN
+    200                  | TagStore.KIND_INT
+    Long.MAX_VALUE       | TagStore.KIND_LONG
+    1.5f                 | TagStore.KIND_FLOAT
+    0.321d               | TagStore.KIND_DOUBLE
+    new BigDecimal("12") | TagStore.KIND_OBJECT
+  }
+
+  def "cleared store can be reused"() {
+    setup:
+    def store = new TagStore()
+    (1..10).each { store.put("tag-$it".toString(), "value-$it".toString()) }
+
+    when:
+    store.clear()
+
+    then:
+    store.isEmpty()
+    store.get("tag-1") == null
+
+    when:
+    store.put("tag-1", 1)
+
+    then:
+    store.size() == 1
+    store.get("tag-1") == 1
+  }
+
+  def "tags can be replaced and removed"() {
+    setup:
+    def store = new TagStore()
+    (1..10).each { store.put("tag-$it".toString(), it) }
+
+    when:
+    store.put("tag-3", "three")
+    store.remove("tag-5")
+    store.remove("unknown")
+
+    then:
+    store.size() == 9
+    store.get("tag-3") == "three"
+    !store.containsKey("tag-5")
+    store.get("tag-10") == 10
+  }
+
+  def "the env tag is mirrored in a field"() {
+    setup:
+    def store = new TagStore()
+
+    when:
+    store.put("env", "prod")
+
+    then:
+    store.getEnv() == "prod"
+
+    when:
+    store.remove("env")
+
+    then:
+    store.getEnv() == null
+
+    when:
+    store.put("env", "staging")
+    store.clear()
+
+    then:
+    store.getEnv() == null
+  }
+
+  def "the view exposes context fields and is read-only"() {
+    setup:
+    def context = newSpanOf(0).context()
+    context.setTag("peer.port", 5432)
+    def view = context.getTags()
+
+    expect:
+    view.is(context.getTags())
+    view == ["peer.port"         : 5432,
+             (DDTags.SPAN_TYPE)  : "fakeType",
+             (DDTags.THREAD_NAME): Thread.currentThread().name,
+             (DDTags.THREAD_ID)  : Thread.currentThread().id]
+
+    when:
+    view.put("other", "value")
+
+    then:
+    thrown UnsupportedOperationException
+
+    when:
+    view.remove("peer.port")
+
+    then:
+    thrown UnsupportedOperationException
+  }
+
+  def "the entry set is kept until the tags change"() {
+    setup:
+    def context = newSpanOf(0).context()
+    context.setTag("peer.port", 5432)
+    def view = context.getTags()
+    def entries = view.entrySet()
+
+    expect:
+    view.entrySet().is(entries)
+
+    when:
+    context.setTag("peer.hostname", "localhost")
+
+    then:
+    !view.entrySet().is(entries)
+    view.get("peer.hostname") == "localhost"
+    view.size() == 5
+
+    when:
+    entries = view.entrySet()
+    context.setSpanType("other")
+
+    then:
+    !view.entrySet().is(entries)
+    view.entrySet().find { it.key == DDTags.SPAN_TYPE }.value == "other"
+  }
+}
@@ -3,11 +3,15 @@ package datadog.opentracing.decorators
 import datadog.opentracing.DDSpanContext
 import datadog.opentracing.DDTracer
 import datadog.trace.SpanFactory
+import datadog.trace.common.sampling.Sampler
+import datadog.trace.common.writer.ListWriter
 import datadog.trace.common.writer.LoggingWriter
 import io.opentracing.tag.StringTag
 import io.opentracing.tag.Tags
 import spock.lang.Specification
 
+import java.util.concurrent.Phaser
+
 class SpanDecoratorTest extends Specification {
 
   def "adding span personalisation using Decorators"() {
@@ -38,6 +42,39 @@ class SpanDecoratorTest extends Specification {
     span.finish()
   }
 
+  def "decorators can be registered concurrently"() {
+    setup:
+    def tracer = new DDTracer(new LoggingWriter())
+    def phaser = new Phaser(numberThreads + 1)
+    def threads = (1..numberThreads).collect { i ->
+      Thread.start {
+        phaser.arriveAndAwaitAdvance()
+        decoratorsPerThread.times {
+          def decorator = new ErrorFlag()
+          decorator.setMatchingTag("tag-" + (i % 2))
+          tracer.addDecorator(decorator)
+        }
+      }
+    }
+
+    when:
+    phaser.arriveAndAwaitAdvance()
+    threads*.join()
+
+    then:
+    tracer.getSpanContextDecorators("tag-0").size() + tracer.getSpanContextDecorators("tag-1").size() == numberThreads * decoratorsPerThread
+
+    when:
+    tracer.getSpanContextDecorators("tag-0").add(new ErrorFlag())
+
+    then:
+    thrown UnsupportedOperationException
+
+    where:
+    numberThreads = 10
+    decoratorsPerThread = 10
+  }
+
   def "override operation with OperationDecorator"() {
 
     setup:
@@ -133,4 +170,113 @@ class SpanDecoratorTest extends Specification {
     cleanup:
     span.finish()
   }
+
+  def "deferred decorators run when the trace is written"() {
+    setup:
+    def writer = new ListWriter()
+    def tracer = new DDTracer(writer)
+    tracer.addDeferredDecorator(new URLAsResourceName())
+    tracer.addDeferredDecorator(new DBStatementAsResourceName())
+    def span = SpanFactory.newSpanOf(tracer)
+
+    when:
+    Tags.HTTP_URL.set(span, "http://localhost/users/1234")
+    Tags.HTTP_METHOD.set(span, "GET")
+    Tags.HTTP_URL.set(span, "http://localhost/users/5678?id=1")
+
+    then:
+    span.getResourceName() == "fakeResource"
+    tracer.hasDeferredDecorators(Tags.HTTP_URL.getKey())
+    tracer.getSpanContextDecorators(Tags.HTTP_URL.getKey()) == null
+
+    when:
+    span.finish()
+
+    then:
+    writer.size() == 1
+    span.getResourceName() == "GET /users/?"
+  }
+
+  def "deferred decorators don't run on the traces dropped by the sampler"() {
+    setup:
+    def writer = new ListWriter()
+    def tracer = new DDTracer("fakeService", writer, { span -> false } as Sampler)
+    tracer.addDeferredDecorator(new URLAsResourceName())
+    def span = SpanFactory.newSpanOf(tracer)
+
+    when:
+    Tags.HTTP_URL.set(span, "http://localhost/users/1234")
+    span.finish()
+
+    then:
+    writer.isEmpty()
+    span.getResourceName() == "fakeResource"
+  }
+
+  def "explicit resource after http.url survives deferred decoration"() {
+    setup:
+    def writer = new ListWriter()
+    def tracer = new DDTracer(writer)
+    tracer.addDeferredDecorator(new URLAsResourceName())
+    def span = SpanFactory.newSpanOf(tracer)
+
+    when:
+    Tags.HTTP_METHOD.set(span, "GET")
+    Tags.HTTP_URL.set(span, "http://localhost/users/1234")
+    span.setResourceName("GET /users/{id}")
+    span.finish()
+
+    then:
+    writer.size() == 1
+    span.getResourceName() == "GET /users/{id}"
+  }
+
+  def "a tag set after an explicit resource is decorated"() {
+    setup:
+    def writer = new ListWriter()
+    def tracer = new DDTracer(writer)
+    tracer.addDeferredDecorator(new URLAsResourceName())
+    def span = SpanFactory.newSpanOf(tracer)
+
+    when:
+    Tags.HTTP_METHOD.set(span, "GET")
+    span.setResourceName("GET /users/{id}")
+    Tags.HTTP_URL.set(span, "http://localhost/users/1234")
+    span.finish()
+
+    then:
+    writer.size() == 1
+    span.getResourceName() == "GET /users/?"
+  }
+
+  def "deferred decorators see the final tags"() {
+    setup:
+    def tracer = new DDTracer(new ListWriter())
+    tracer.addDeferredDecorator(new DBStatementAsResourceName())
+    def span = SpanFactory.newSpanOf(tracer)
+
+    when:
+    Tags.DB_STATEMENT.set(span, "fake-query")
+    Tags.COMPONENT.set(span, component)
+    span.context().applyDeferredDecorators()
+
+    then:
+    span.getResourceName() == resourceName
+    span.getTags().containsKey(Tags.DB_STATEMENT.getKey()) == statementKept
+
+    when: "the decorators already ran"
+    span.setResourceName("not-change-me")
+    span.context().applyDeferredDecorators()
+
+    then:
+    span.getResourceName() == "not-change-me"
+
+    cleanup:
+    span.finish()
+
+    where:
+    component       | resourceName   | statementKept
+    "java-mongo"    | "fakeResource" | true
+    "other-contrib" | "fake-query"   | false
+  }
 }
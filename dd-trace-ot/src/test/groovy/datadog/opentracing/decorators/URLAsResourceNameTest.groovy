@@ -103,4 +103,43 @@ class URLAsResourceNameTest extends Specification {
     input = "/users/guillaume/list_repository/"
 
   }
+
+  def "built-in rules give the same result as their regex"() {
+    setup:
+    def decorator = new URLAsResourceName()
+
+    expect:
+    decorator.norm(input) == input.replaceAll(URLAsResourceName.RULE_QPARAM.regex, "").replaceAll(URLAsResourceName.RULE_DIGIT.regex, "?")
+
+    where:
+    input << ["", "/", "/search?id=100", "/user/100/repository/50", "123", "/a1b22c333/", "/v2?q=1?r=2", "/no/digits/here"]
+  }
+
+  def "extract the path from the url"() {
+    expect:
+    URLAsResourceName.path(input) == output
+
+    where:
+    input                                 | output
+    "http://localhost:8080/users/1?id=2" | "/users/1"
+    "https://example.com/a/b#fragment"    | "/a/b"
+    "http://example.com"                  | ""
+    "http://example.com?q=1"              | ""
+    "/users/1?id=2"                       | "/users/1?id=2"
+    "localhost:8080/users"                | "localhost:8080/users"
+    "not a scheme://host/path"            | "not a scheme://host/path"
+  }
+
+  def "normalized paths are cached"() {
+    setup:
+    def decorator = new URLAsResourceName()
+
+    when:
+    def first = decorator.normalize("http://localhost/users/1?id=2")
+    def second = decorator.normalize("http://localhost/users/1?id=3")
+
+    then:
+    first == "/users/?"
+    second.is(first)
+  }
 }
@@ -0,0 +1,78 @@
+package datadog.opentracing.propagation
+
+import datadog.opentracing.DDSpanContext
+import datadog.trace.common.sampling.PrioritySampling
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.ByteBuffer
+
+class BinaryCodecTest extends Specification {
+
+  @Unroll
+  def "inject and extract with priority #samplingPriority"() {
+    setup:
+    final DDSpanContext context = HTTPCodecTest.context(traceId, spanId, samplingPriority, baggage)
+    final ByteBuffer carrier = ByteBuffer.allocate(256)
+    final BinaryCodec codec = new BinaryCodec()
+
+    when:
+    codec.inject(context, carrier)
+    carrier.flip()
+    final int size = carrier.remaining()
+    final DDSpanContext extracted = codec.extract(carrier)
+
+    then:
+    size == BinaryCodec.FIXED_SIZE + baggageSize
+    carrier.remaining() == 0
+    extracted.getTraceId() == traceId
+    extracted.getSpanId() == spanId
+    extracted.getParentId() == 0L
+    extracted.getSamplingPriority() == samplingPriority
+    extracted.getBaggageItems() == baggage
+
+    where:
+    traceId        | spanId         | samplingPriority              | baggage                            | baggageSize
+    1L             | 2L             | PrioritySampling.UNSET        | [:]                                | 0
+    Long.MAX_VALUE | -1L            | PrioritySampling.SAMPLER_KEEP | [k1: "v1"]                         | 8
+    -1L            | Long.MIN_VALUE | PrioritySampling.USER_DROP    | [k1: "v1", k2: "a value/\u00e9"] | 24
+  }
+
+  def "extract reads from the position of the buffer"() {
+    setup:
+    final ByteBuffer carrier = ByteBuffer.allocate(256)
+    carrier.putInt(42)
+    new BinaryCodec().inject(HTTPCodecTest.context(1L, 2L, PrioritySampling.USER_KEEP, [:]), carrier)
+    carrier.flip()
+    carrier.getInt()
+
+    when:
+    final DDSpanContext extracted = new BinaryCodec().extract(carrier)
+
+    then:
+    extracted.getTraceId() == 1L
+    extracted.getSpanId() == 2L
+    extracted.getSamplingPriority() == PrioritySampling.USER_KEEP
+  }
+
+  @Unroll
+  def "invalid binary context #name is ignored"() {
+    setup:
+    final ByteBuffer carrier = ByteBuffer.allocate(256)
+    new BinaryCodec().inject(HTTPCodecTest.context(traceId, 2L, PrioritySampling.UNSET, [k1: "v1"]), carrier)
+    carrier.flip()
+    carrier.put(0, version as byte)
+    carrier.limit(limit)
+
+    expect:
+    new BinaryCodec().extract(carrier) == null
+
+    where:
+    name              | traceId | version | limit
+    "empty"           | 1L      | 0       | 0
+    "unknown version" | 1L      | 1       | BinaryCodec.FIXED_SIZE + 8
+    "too short"       | 1L      | 0       | BinaryCodec.FIXED_SIZE - 1
+    "truncated"       | 1L      | 0       | BinaryCodec.FIXED_SIZE + 7
+    "no trace id"     | 0L      | 0       | BinaryCodec.FIXED_SIZE + 8
+  }
+}
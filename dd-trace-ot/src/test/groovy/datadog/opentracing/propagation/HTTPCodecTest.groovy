@@ -17,6 +17,8 @@ class HTTPCodecTest extends Specification {
   private static final String SPAN_ID_KEY = "x-datadog-parent-id"
   @Shared
   private static final String SAMPLING_PRIORITY_KEY = "x-datadog-sampling-priority"
+  @Shared
+  private static final String TRACEPARENT_KEY = "traceparent"
 
   @Unroll
   def "inject http headers"() {
@@ -53,6 +55,7 @@ class HTTPCodecTest extends Specification {
     carrier.get(SAMPLING_PRIORITY_KEY) == (samplingPriority == PrioritySampling.UNSET ? null : String.valueOf(samplingPriority))
     carrier.get(OT_BAGGAGE_PREFIX + "k1") == "v1"
     carrier.get(OT_BAGGAGE_PREFIX + "k2") == "v2"
+    carrier.get(TRACEPARENT_KEY) == null
 
     where:
     samplingPriority                    | _
@@ -92,4 +95,186 @@ class HTTPCodecTest extends Specification {
     PrioritySampling.UNSET         | _
     PrioritySampling.SAMPLER_KEEP  | _
   }
+
+  @Unroll
+  def "inject traceparent with priority #samplingPriority"() {
+    setup:
+    final DDSpanContext context = context(Long.MAX_VALUE, -1L, samplingPriority, [:])
+    final Map<String, String> carrier = new HashMap<>()
+
+    when:
+    new HTTPCodec(true).inject(context, new TextMapInjectAdapter(carrier))
+
+    then:
+    carrier.get(TRACE_ID_KEY) == "9223372036854775807"
+    carrier.get(SPAN_ID_KEY) == "18446744073709551615"
+    carrier.get(TRACEPARENT_KEY) == "00-00000000000000007fffffffffffffff-ffffffffffffffff-" + flags
+
+    where:
+    samplingPriority              | flags
+    PrioritySampling.UNSET        | "01"
+    PrioritySampling.SAMPLER_KEEP | "01"
+    PrioritySampling.USER_KEEP    | "01"
+    PrioritySampling.SAMPLER_DROP | "00"
+    PrioritySampling.USER_DROP    | "00"
+  }
+
+  @Unroll
+  def "extract traceparent #traceparent"() {
+    setup:
+    final Map<String, String> actual = new HashMap<>()
+    actual.put(TRACEPARENT_KEY.toUpperCase(), traceparent)
+
+    when:
+    final DDSpanContext context = new HTTPCodec(true).extract(new TextMapExtractAdapter(actual))
+
+    then:
+    context.getTraceId() == traceId
+    context.getSpanId() == spanId
+    context.getSamplingPriority() == samplingPriority
+
+    where:
+    traceparent                                                  | traceId              | spanId              | samplingPriority
+    "00-00000000000000000000000000000001-0000000000000002-01"    | 1L                   | 2L                  | PrioritySampling.SAMPLER_KEEP
+    "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-00"    | 0xa3ce929d0e0e4736L  | 0x00f067aa0ba902b7L | PrioritySampling.SAMPLER_DROP
+    "01-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-03-ab" | 0xa3ce929d0e0e4736L  | 0x00f067aa0ba902b7L | PrioritySampling.SAMPLER_KEEP
+  }
+
+  def "datadog headers take precedence over traceparent"() {
+    setup:
+    final Map<String, String> actual = new HashMap<>()
+    actual.put(TRACE_ID_KEY, "1")
+    actual.put(SPAN_ID_KEY, "2")
+    actual.put(TRACEPARENT_KEY, "00-00000000000000000000000000000003-0000000000000004-00")
+
+    when:
+    final DDSpanContext context = new HTTPCodec(true).extract(new TextMapExtractAdapter(actual))
+
+    then:
+    context.getTraceId() == 1L
+    context.getSpanId() == 2L
+    context.getSamplingPriority() == PrioritySampling.UNSET
+  }
+
+  @Unroll
+  def "invalid traceparent #traceparent is ignored"() {
+    setup:
+    final Map<String, String> actual = new HashMap<>()
+    actual.put(TRACEPARENT_KEY, traceparent)
+
+    expect:
+    new HTTPCodec(true).extract(new TextMapExtractAdapter(actual)) == null
+
+    where:
+    traceparent << [
+      "",
+      "00-00000000000000000000000000000001-0000000000000002",
+      "00-00000000000000000000000000000000-0000000000000002-01",
+      "00-00000000000000000000000000000001-0000000000000000-01",
+      "00-0000000000000000000000000000000G-0000000000000002-01",
+      "00-0000000000000000000000000000000A-0000000000000002-01",
+      "ff-00000000000000000000000000000001-0000000000000002-01",
+      "00-00000000000000000000000000000001-0000000000000002-01x"
+    ]
+  }
+
+  def "traceparent is ignored unless enabled"() {
+    setup:
+    final Map<String, String> carrier = new HashMap<>()
+    carrier.put(TRACEPARENT_KEY, "00-00000000000000000000000000000001-0000000000000002-01")
+    final HTTPCodec codec = new HTTPCodec()
+
+    when:
+    final DDSpanContext extracted = codec.extract(new TextMapExtractAdapter(carrier))
+    carrier.clear()
+    codec.inject(context(1L, 2L, PrioritySampling.UNSET, [:]), new TextMapInjectAdapter(carrier))
+
+    then:
+    extracted == null
+    !carrier.containsKey(TRACEPARENT_KEY)
+  }
+
+  @Unroll
+  def "ids above Long.MAX_VALUE are propagated as unsigned decimals: #traceId"() {
+    setup:
+    final Map<String, String> carrier = new HashMap<>()
+    final HTTPCodec codec = new HTTPCodec()
+
+    when:
+    codec.inject(context(traceId, traceId, PrioritySampling.UNSET, [:]), new TextMapInjectAdapter(carrier))
+    final DDSpanContext extracted = codec.extract(new TextMapExtractAdapter(carrier))
+
+    then:
+    carrier.get(TRACE_ID_KEY) == value
+    carrier.get(SPAN_ID_KEY) == value
+    extracted.getTraceId() == traceId
+    extracted.getSpanId() == traceId
+
+    where:
+    traceId             | value
+    1L                  | "1"
+    Long.MAX_VALUE      | "9223372036854775807"
+    Long.MIN_VALUE      | "9223372036854775808"
+    -10L                | "18446744073709551606"
+    -1L                 | "18446744073709551615"
+  }
+
+  @Unroll
+  def "parse id #value"() {
+    expect:
+    HTTPCodec.parseId(value) == id
+
+    where:
+    value                  | id
+    "0"                    | 0L
+    "1"                    | 1L
+    "9223372036854775807"  | Long.MAX_VALUE
+    "9223372036854775808"  | Long.MIN_VALUE
+    "18446744073709551615" | -1L
+  }
+
+  @Unroll
+  def "parse invalid id #value"() {
+    when:
+    HTTPCodec.parseId(value)
+
+    then:
+    thrown NumberFormatException
+
+    where:
+    value << ["", "-1", "1a", "18446744073709551616", "99999999999999999999", "123456789012345678901"]
+  }
+
+  def "baggage values are url-encoded"() {
+    setup:
+    final DDSpanContext context = context(1L, 2L, PrioritySampling.UNSET, [k1: "a value/\u00e9", k2: "plain-value_1.0"])
+    final Map<String, String> carrier = new HashMap<>()
+    final HTTPCodec codec = new HTTPCodec()
+
+    when:
+    codec.inject(context, new TextMapInjectAdapter(carrier))
+    final DDSpanContext extracted = codec.extract(new TextMapExtractAdapter(carrier))
+
+    then:
+    carrier.get(OT_BAGGAGE_PREFIX + "k1") == "a+value%2F%C3%A9"
+    carrier.get(OT_BAGGAGE_PREFIX + "k2") == "plain-value_1.0"
+    extracted.getBaggageItems() == [k1: "a value/\u00e9", k2: "plain-value_1.0"]
+  }
+
+  static DDSpanContext context(long traceId, long spanId, int samplingPriority, Map<String, String> baggage) {
+    return new DDSpanContext(
+      traceId,
+      spanId,
+      0L,
+      "fakeService",
+      "fakeOperation",
+      "fakeResource",
+      samplingPriority,
+      new HashMap<String, String>(baggage),
+      false,
+      "fakeType",
+      null,
+      null,
+      null)
+  }
 }
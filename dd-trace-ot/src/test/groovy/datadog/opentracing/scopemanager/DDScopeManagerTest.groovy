@@ -0,0 +1,215 @@
+package datadog.opentracing.scopemanager
+
+import datadog.opentracing.DDSpan
+import datadog.opentracing.DDTracer
+import datadog.trace.common.writer.ListWriter
+import spock.lang.Specification
+
+class DDScopeManagerTest extends Specification {
+  def writer = new ListWriter()
+  def tracer = new DDTracer(writer)
+  def scopeManager = tracer.scopeManager()
+
+  def "scopes are stacked and restored on close"() {
+    setup:
+    def parent = tracer.buildSpan("parent").startManual()
+    def child = tracer.buildSpan("child").asChildOf(parent).startManual()
+
+    when:
+    def parentScope = scopeManager.activate(parent, false)
+    def childScope = scopeManager.activate(child, false)
+
+    then:
+    scopeManager.active().is(childScope)
+    scopeManager.active().span().is(child)
+    scopeManager.activeSpanContext().is(child.context())
+    tracer.activeSpan().is(child)
+    scopeManager.depth() == 2
+
+    when:
+    childScope.close()
+
+    then:
+    scopeManager.active().is(parentScope)
+    scopeManager.activeSpanContext().is(parent.context())
+
+    when:
+    parentScope.close()
+
+    then:
+    scopeManager.active() == null
+    scopeManager.activeSpanContext() == null
+    scopeManager.depth() == 0
+    writer.isEmpty()
+  }
+
+  def "the active span is the parent of new spans"() {
+    when:
+    def scope = tracer.buildSpan("parent").startActive(true)
+    def child = (DDSpan) tracer.buildSpan("child").startManual()
+
+    then:
+    child.context().getParentId() == ((DDSpan) scope.span()).context().getSpanId()
+    child.context().getTraceId() == ((DDSpan) scope.span()).context().getTraceId()
+
+    when:
+    child.finish()
+    scope.close()
+
+    then:
+    writer.size() == 1
+    writer.firstTrace().size() == 2
+    scopeManager.active() == null
+  }
+
+  def "only the active scope can be closed"() {
+    setup:
+    def first = scopeManager.activate(tracer.buildSpan("first").startManual(), true)
+    def second = scopeManager.activate(tracer.buildSpan("second").startManual(), true)
+
+    when:
+    first.close()
+
+    then:
+    scopeManager.active().is(second)
+    writer.isEmpty()
+
+    when:
+    second.close()
+    first.close()
+
+    then:
+    scopeManager.active() == null
+    writer.size() == 2
+  }
+
+  def "scopes are only closed by their thread"() {
+    setup:
+    def scope = scopeManager.activate(tracer.buildSpan("span").startManual(), true)
+
+    when:
+    Thread.start { scope.close() }.join()
+
+    then:
+    scopeManager.active().is(scope)
+    writer.isEmpty()
+
+    when:
+    def otherThreadActive = "unset"
+    Thread.start { otherThreadActive = scopeManager.active() }.join()
+
+    then:
+    otherThreadActive == null
+
+    cleanup:
+    scope.close()
+  }
+
+  def "the stack grows"() {
+    setup:
+    def span = tracer.buildSpan("span").startManual()
+    def depth = DDScopeManager.INITIAL_DEPTH * 2 + 1
+
+    when:
+    def scopes = (1..depth).collect { scopeManager.activate(span, false) }
+
+    then:
+    scopeManager.depth() == depth
+    scopes.toSet().size() == depth
+    scopeManager.active().is(scopes.last())
+
+    when:
+    scopes.reverse()*.close()
+
+    then:
+    scopeManager.depth() == 0
+    scopeManager.active() == null
+
+    cleanup:
+    span.finish()
+  }
+
+  def "a closed scope does not close the scope activated after it at the same depth"() {
+    setup:
+    def first = tracer.buildSpan("first").startManual()
+    def second = tracer.buildSpan("second").startManual()
+    def firstScope = scopeManager.activate(first, true)
+    firstScope.close()
+
+    when:
+    def secondScope = scopeManager.activate(second, true)
+    firstScope.close()
+
+    then:
+    !secondScope.is(firstScope)
+    firstScope.span().is(first)
+    secondScope.span().is(second)
+    scopeManager.active().is(secondScope)
+    scopeManager.depth() == 1
+    writer.size() == 1
+    writer.firstTrace() == [first]
+
+    when:
+    secondScope.close()
+    secondScope.close()
+
+    then:
+    scopeManager.active() == null
+    writer.size() == 2
+  }
+
+  def "a continuation keeps the trace open until closed"() {
+    setup:
+    def scope = tracer.buildSpan("parent").startActive(true)
+    def continuation = scopeManager.capture()
+
+    when:
+    scope.close()
+
+    then:
+    writer.isEmpty()
+
+    when:
+    def child = null
+    Thread.start {
+      def asyncScope = continuation.activate()
+      child = tracer.buildSpan("child").startManual()
+      child.finish()
+      asyncScope.close()
+      continuation.close()
+    }.join()
+
+    then:
+    writer.size() == 1
+    writer.firstTrace().size() == 2
+    child.context().getParentId() == continuation.getSpan().context().getSpanId()
+
+    when:
+    continuation.close()
+
+    then:
+    writer.size() == 1
+  }
+
+  def "a continuation collected without being closed releases the trace"() {
+    setup:
+    def scope = tracer.buildSpan("parent").startActive(true)
+    scopeManager.capture()
+    scope.close()
+
+    when:
+    for (int i = 0; i < 100 && writer.isEmpty(); i++) {
+      System.gc()
+      Thread.sleep(50)
+    }
+
+    then:
+    writer.size() == 1
+    Continuation.openCount() == 0
+  }
+
+  def "nothing is captured when no span is active"() {
+    expect:
+    scopeManager.capture() == null
+  }
+}
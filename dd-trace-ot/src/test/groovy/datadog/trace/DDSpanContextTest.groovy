@@ -70,4 +70,18 @@ class DDSpanContextTest extends Specification {
     "tag-with-bool"  | false
     "tag_with_float" | 0.321
   }
+
+  def "thread name and id are the ones of the thread which started the span"() {
+    setup:
+    def context = null
+    def thread = Thread.start("span-starter") {
+      context = SpanFactory.newSpanOf(0).context
+    }
+    thread.join()
+
+    expect:
+    context.threadName == "span-starter"
+    context.threadId == thread.id
+    context.getTags()[DDTags.THREAD_NAME] == "span-starter"
+  }
 }
@@ -37,6 +37,25 @@ class DDTraceConfigTest extends Specification {
     config.getProperty(WRITER_TYPE) == "DDAgentWriter"
     config.getProperty(AGENT_HOST) == "localhost"
     config.getProperty(AGENT_PORT) == "8126"
+    config.getProperty(AGENT_UNIX_SOCKET) == null
+    config.getProperty(PRIORITY_SAMPLING_DROP) == "false"
+    config.getProperty(SAMPLE_RATE) == null
+    config.getProperty(SAMPLE_RATE_LIMIT) == null
+    config.getProperty(TAIL_SAMPLING_RATE) == null
+    config.getProperty(TAIL_SAMPLING_LATENCY_PERCENTILE) == "0.99"
+    config.getProperty(WRITER_FLUSH_INTERVAL) == "1000"
+    config.getProperty(WRITER_MAX_QUEUE_SIZE) == "1000"
+    config.getProperty(WRITER_OVERFLOW_POLICY) == null
+    config.getProperty(WRITER_MAX_PAYLOAD_SIZE) == "5242880"
+    config.getProperty(WRITER_SPILL_DIRECTORY) == null
+    config.getProperty(WRITER_SPILL_MAX_SIZE) == "67108864"
+    config.getProperty(WRITER_EAGER_SERIALIZATION) == "false"
+    config.getProperty(WRITER_GZIP_ENABLED) == "false"
+    config.getProperty(DECORATORS_DEFERRED) == "false"
+    config.getProperty(SPAN_POOLING_ENABLED) == "false"
+    config.getProperty(PROPAGATION_TRACEPARENT_ENABLED) == "false"
+    config.getProperty(STATS_COMPUTATION_ENABLED) == "false"
+    config.getProperty(STATS_FLUSH_INTERVAL) == "10000"
 
     when:
     config = new DDTraceConfig("A different service name")
@@ -84,7 +103,7 @@ class DDTraceConfigTest extends Specification {
 
     then:
     tracer.serviceName == "what we actually want"
-    tracer.writer.toString() == "DDAgentWriter { api=DDApi { tracesEndpoint=http://somewhere:9999/v0.3/traces } }"
+    tracer.writer.toString() == "DDAgentWriter { api=DDApi { tracesEndpoint=http://somewhere:9999/v0.4/traces } }"
   }
 
   def "verify defaults on tracer"() {
@@ -94,7 +113,7 @@ class DDTraceConfigTest extends Specification {
     then:
     tracer.serviceName == "unnamed-java-app"
     tracer.sampler instanceof AllSampler
-    tracer.writer.toString() == "DDAgentWriter { api=DDApi { tracesEndpoint=http://localhost:8126/v0.3/traces } }"
+    tracer.writer.toString() == "DDAgentWriter { api=DDApi { tracesEndpoint=http://localhost:8126/v0.4/traces } }"
 
     tracer.spanContextDecorators.size() == 6
   }
@@ -111,9 +130,34 @@ class DDTraceConfigTest extends Specification {
     where:
 
     source    | key            | value           | expected
-    "writer"  | "default"      | "default"       | "DDAgentWriter { api=DDApi { tracesEndpoint=http://localhost:8126/v0.3/traces } }"
+    "writer"  | "default"      | "default"       | "DDAgentWriter { api=DDApi { tracesEndpoint=http://localhost:8126/v0.4/traces } }"
     "writer"  | "writer.type"  | "LoggingWriter" | "LoggingWriter { }"
-    "writer"  | "agent.host"   | "somethingelse" | "DDAgentWriter { api=DDApi { tracesEndpoint=http://somethingelse:8126/v0.3/traces } }"
-    "writer"  | "agent.port"   | "9999"          | "DDAgentWriter { api=DDApi { tracesEndpoint=http://localhost:9999/v0.3/traces } }"
+    "writer"  | "agent.host"   | "somethingelse" | "DDAgentWriter { api=DDApi { tracesEndpoint=http://somethingelse:8126/v0.4/traces } }"
+    "writer"  | "agent.port"   | "9999"          | "DDAgentWriter { api=DDApi { tracesEndpoint=http://localhost:9999/v0.4/traces } }"
+  }
+
+  @Unroll
+  def "the writer queue drops traces with the #policy policy for #value"() {
+    when:
+    System.setProperty(PREFIX + WRITER_OVERFLOW_POLICY, value)
+    def tracer = new DDTracer()
+
+    then:
+    tracer.writer.traces.policy.name() == policy
+
+    where:
+    value         | policy
+    "drop_oldest" | "DROP_OLDEST"
+    "DROP_OLDEST" | "DROP_OLDEST"
+    "unknown"     | "RANDOM_EVICTION"
+  }
+
+  def "the payloads sent to the agent are gzipped when enabled"() {
+    when:
+    System.setProperty(PREFIX + WRITER_GZIP_ENABLED, "true")
+    def tracer = new DDTracer()
+
+    then:
+    tracer.writer.api.transport.gzip
   }
 }
@@ -0,0 +1,51 @@
+package datadog.trace.api.sampling
+
+import datadog.trace.common.sampling.DeterministicSampler
+import spock.lang.Specification
+
+import java.util.concurrent.ThreadLocalRandom
+
+class DeterministicSamplerTest extends Specification {
+
+  def "keeps the expected ratio of traces"() {
+    setup:
+    def sampler = new DeterministicSampler(rate)
+    def random = ThreadLocalRandom.current()
+    def kept = 0
+
+    when:
+    10000.times {
+      if (sampler.sample(random.nextLong(1, Long.MAX_VALUE))) {
+        kept++
+      }
+    }
+
+    then:
+    Math.abs(kept - 10000 * rate) <= 500
+
+    where:
+    rate << [0.0, 0.1, 0.5, 0.9, 1.0]
+  }
+
+  def "decisions only depend on the trace id"() {
+    setup:
+    def first = new DeterministicSampler(0.5)
+    def second = new DeterministicSampler(0.5)
+    def higher = new DeterministicSampler(0.75)
+
+    expect:
+    (1..1000).every { long traceId -> first.sample(traceId) == second.sample(traceId) }
+    // A trace kept at a given rate is kept at any higher rate
+    (1..1000).every { long traceId -> !first.sample(traceId) || higher.sample(traceId) }
+  }
+
+  def "rates out of range are clamped"() {
+    expect:
+    new DeterministicSampler(rate).sampleRate == expected
+
+    where:
+    rate | expected
+    -1   | 0
+    2    | 1
+  }
+}
@@ -50,6 +50,59 @@ class RateByServiceSamplerTest extends Specification {
     span.getSamplingPriority() == PrioritySampling.SAMPLER_KEEP
   }
 
+  def "rates are looked up by service then env"() {
+    setup:
+    RateByServiceSampler serviceSampler = new RateByServiceSampler()
+    ObjectMapper serializer = new ObjectMapper()
+    String response = '{"rate_by_service": {"service:,env:":0.000001, "service:spock,env:test":1.0, "service:spock,env:prod":0.000001, "malformed":1.0}}'
+    serviceSampler.onResponse("traces", serializer.readTree(response))
+
+    DDSpan span = makeTrace(service, env)
+    serviceSampler.initializeSamplingPriority(span)
+
+    expect:
+    span.getSamplingPriority() == priority
+
+    where:
+    service     | env    | priority
+    "spock"     | "test" | PrioritySampling.SAMPLER_KEEP
+    "spock"     | "prod" | PrioritySampling.SAMPLER_DROP
+    "spock"     | "dev"  | PrioritySampling.SAMPLER_DROP
+    "malformed" | "test" | PrioritySampling.SAMPLER_DROP
+  }
+
+  def "base rate is kept when the response does not update it"() {
+    setup:
+    RateByServiceSampler serviceSampler = new RateByServiceSampler()
+    ObjectMapper serializer = new ObjectMapper()
+    serviceSampler.onResponse("traces", serializer.readTree('{"rate_by_service": {"service:,env:":0.000001}}'))
+    serviceSampler.onResponse("traces", serializer.readTree('{"rate_by_service": {"service:spock,env:test":1.0}}'))
+
+    DDSpan span = makeTrace("foo", "bar")
+    serviceSampler.initializeSamplingPriority(span)
+
+    expect:
+    span.getSamplingPriority() == PrioritySampling.SAMPLER_DROP
+  }
+
+  def "traces marked dropped are rejected when configured"() {
+    setup:
+    RateByServiceSampler serviceSampler = new RateByServiceSampler(dropRejectedTraces)
+    DDSpan span = makeTrace("foo", "bar")
+    span.setSamplingPriority(priority)
+
+    expect:
+    serviceSampler.sample(span) == sampled
+
+    where:
+    dropRejectedTraces | priority                        | sampled
+    false              | PrioritySampling.SAMPLER_DROP  | true
+    true               | PrioritySampling.SAMPLER_DROP  | false
+    true               | PrioritySampling.USER_DROP     | false
+    true               | PrioritySampling.SAMPLER_KEEP  | true
+    true               | PrioritySampling.USER_KEEP     | true
+  }
+
   private DDSpan makeTrace(String serviceName, String envName) {
     def context = new DDSpanContext(
       1L,
@@ -0,0 +1,90 @@
+package datadog.trace.api.sampling
+
+import datadog.opentracing.DDSpan
+import datadog.opentracing.DDSpanContext
+import datadog.opentracing.DDTracer
+import datadog.trace.common.sampling.PrioritySampling
+import datadog.trace.common.sampling.RateLimitingSampler
+import datadog.trace.common.writer.ListWriter
+import spock.lang.Specification
+
+class RateLimitingSamplerTest extends Specification {
+  def tracer = new DDTracer(new ListWriter())
+
+  def "a burst is capped to the budget of one second"() {
+    setup:
+    def sampler = new RateLimitingSampler(10)
+
+    when:
+    def kept = (1..1000).count { sampler.sample(makeSpan(it, "fakeOperation")) }
+
+    then:
+    // The bucket may have been refilled with a token if the loop took more than 100ms
+    kept >= 10
+    kept <= 11
+  }
+
+  def "each operation has its own budget"() {
+    setup:
+    def sampler = new RateLimitingSampler(5)
+
+    when:
+    def keptFoo = (1..100).count { sampler.sample(makeSpan(it, "foo")) }
+    def keptBar = (1..100).count { sampler.sample(makeSpan(it, "bar")) }
+
+    then:
+    keptFoo >= 5
+    keptBar >= 5
+    keptFoo + keptBar <= 12
+  }
+
+  def "kept traces carry the rate they were kept at"() {
+    setup:
+    def sampler = new RateLimitingSampler(10)
+    def span = makeSpan(1, "fakeOperation")
+
+    expect:
+    sampler.sample(span)
+    span.getTags().get(RateLimitingSampler.SAMPLE_RATE_METRIC) == 1.0d
+  }
+
+  def "kept traces carry the fraction kept during the previous window"() {
+    setup:
+    def sampler = new RateLimitingSampler(10)
+    def kept = (1..1000).count { sampler.sample(makeSpan(it, "fakeOperation")) }
+    Thread.sleep(1100)
+
+    when: "the trace ids kept with the new keep probability are searched"
+    def span = (1001..2000).collect { makeSpan(it, "fakeOperation") }.find { sampler.sample(it) }
+
+    then: "the rate accounts for the traces dropped by the token bucket"
+    span != null
+    span.getTags().get(RateLimitingSampler.SAMPLE_RATE_METRIC) == kept / 1000d
+  }
+
+  def "the limit must be positive"() {
+    when:
+    new RateLimitingSampler(0)
+
+    then:
+    thrown(IllegalArgumentException)
+  }
+
+  def makeSpan(long traceId, String operationName) {
+    def context = new DDSpanContext(
+      traceId,
+      traceId,
+      0L,
+      "fakeService",
+      operationName,
+      "fakeResource",
+      PrioritySampling.UNSET,
+      Collections.emptyMap(),
+      false,
+      "fakeType",
+      Collections.emptyMap(),
+      null,
+      tracer)
+    return new DDSpan(1, context)
+  }
+}
@@ -0,0 +1,114 @@
+package datadog.trace.api.sampling
+
+import datadog.opentracing.DDSpan
+import datadog.opentracing.DDSpanContext
+import datadog.opentracing.DDTracer
+import datadog.opentracing.decorators.URLAsResourceName
+import datadog.trace.common.sampling.PrioritySampling
+import datadog.trace.common.sampling.TailSampler
+import datadog.trace.common.writer.ListWriter
+import io.opentracing.tag.Tags
+import spock.lang.Specification
+
+class TailSamplerTest extends Specification {
+  def tracer = new DDTracer(new ListWriter())
+
+  def "all traces are kept until the latencies are known"() {
+    setup:
+    def sampler = new TailSampler(0, 0.99)
+
+    expect:
+    (1..99).every { sampler.sample([makeSpan(it, 1000, false, PrioritySampling.UNSET)]) }
+  }
+
+  def "errors, slow traces and user kept traces are kept"() {
+    setup:
+    def sampler = new TailSampler(0, 0.9)
+    (1..1000).each { sampler.sample([makeSpan(it, 1000 + (it % 100) * 10, false, PrioritySampling.UNSET)]) }
+
+    expect:
+    sampler.sample([makeSpan(2000, 1000, false, PrioritySampling.UNSET), makeSpan(2000, 10, true, PrioritySampling.UNSET)])
+    sampler.sample([makeSpan(2001, 5000, false, PrioritySampling.UNSET)])
+    sampler.sample([makeSpan(2002, 1000, false, PrioritySampling.USER_KEEP)])
+    !sampler.sample([makeSpan(2003, 1000, false, PrioritySampling.UNSET)])
+  }
+
+  def "latencies are tracked per resource"() {
+    setup:
+    def sampler = new TailSampler(0, 0.9)
+    (1..1000).each { sampler.sample([makeSpan(it, 1000000, false, PrioritySampling.UNSET, "slow")]) }
+    (1..1000).each { sampler.sample([makeSpan(it, 1000, false, PrioritySampling.UNSET, "fast")]) }
+
+    expect:
+    sampler.sample([makeSpan(2000, 100000, false, PrioritySampling.UNSET, "fast")])
+    !sampler.sample([makeSpan(2001, 100000, false, PrioritySampling.UNSET, "slow")])
+  }
+
+  def "only the root span is decorated before sampling"() {
+    setup:
+    tracer.addDeferredDecorator(new URLAsResourceName())
+    def sampler = new TailSampler(0, 0.99)
+    def root = makeSpan(1, 10, false, PrioritySampling.UNSET)
+    def child = makeSpan(1, 1000, false, PrioritySampling.UNSET, "fakeResource", root)
+    [root, child].each {
+      Tags.HTTP_METHOD.set(it, "GET")
+      Tags.HTTP_URL.set(it, "http://localhost/users/1234")
+    }
+
+    when:
+    sampler.sample([child, root])
+
+    then:
+    root.getResourceName() == "GET /users/?"
+    child.getResourceName() == "fakeResource"
+  }
+
+  def "the chunks of a partially flushed trace share the decision of the first one"() {
+    setup:
+    def sampler = new TailSampler(0, 0.9)
+    (1..1000).each { sampler.sample([makeSpan(it, 1000 + (it % 100) * 10, false, PrioritySampling.UNSET)]) }
+    def root = makeSpan(2000, 1000, false, PrioritySampling.UNSET)
+    def slowChild = makeSpan(2000, 5000, false, PrioritySampling.UNSET, "fakeResource", root)
+    def erroredChild = makeSpan(2000, 10, true, PrioritySampling.UNSET, "fakeResource", root)
+
+    expect: "a slow child doesn't make the trace slow"
+    !sampler.sample([slowChild])
+    !sampler.sample([erroredChild, root])
+  }
+
+  def "a running root span is judged on the time elapsed since it started"() {
+    setup:
+    def sampler = new TailSampler(0, 0.9)
+    (1..1000).each { sampler.sample([makeSpan(it, 1000 + (it % 100) * 10, false, PrioritySampling.UNSET)]) }
+    def running = new DDSpan(System.currentTimeMillis() * 1000 - 60_000_000, newContext(2000, PrioritySampling.UNSET, "fakeResource", null))
+    def child = makeSpan(2000, 10, false, PrioritySampling.UNSET, "fakeResource", running)
+
+    expect:
+    sampler.sample([child])
+    running.context().getTrace().getTailSamplingDecision()
+  }
+
+  def makeSpan(long traceId, long durationMicro, boolean error, int priority, String resource = "fakeResource", DDSpan root = null) {
+    def context = newContext(traceId, priority, resource, root, error)
+    def span = new DDSpan(1, context)
+    span.finish(1 + durationMicro)
+    return span
+  }
+
+  def newContext(long traceId, int priority, String resource, DDSpan root, boolean error = false) {
+    return new DDSpanContext(
+      traceId,
+      root == null ? traceId : traceId + 1,
+      root == null ? 0L : root.getSpanId(),
+      "fakeService",
+      "fakeOperation",
+      resource,
+      priority,
+      Collections.emptyMap(),
+      error,
+      "fakeType",
+      Collections.emptyMap(),
+      root?.context()?.getTrace(),
+      tracer)
+  }
+}
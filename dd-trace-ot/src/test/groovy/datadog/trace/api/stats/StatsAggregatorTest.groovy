@@ -0,0 +1,199 @@
+package datadog.trace.api.stats
+
+import datadog.opentracing.DDSpan
+import datadog.opentracing.DDSpanContext
+import datadog.opentracing.DDTracer
+import datadog.trace.common.sampling.PrioritySampling
+import datadog.trace.common.stats.SketchEncoder
+import datadog.trace.common.stats.StatsAggregator
+import datadog.trace.common.util.LatencySketch
+import datadog.trace.common.writer.DDApi
+import datadog.trace.common.writer.ListWriter
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class StatsAggregatorTest extends Specification {
+  def tracer = new DDTracer(new ListWriter())
+
+  def "spans are aggregated by service, operation, resource, type and status"() {
+    setup:
+    def api = Mock(DDApi)
+    def aggregator = new StatsAggregator(TimeUnit.HOURS.toMillis(1))
+    aggregator.start(api)
+    def payload = null
+
+    when:
+    aggregator.add([makeSpan("a", 100, false, 200), makeSpan("a", 300, true, 200)])
+    aggregator.add([makeSpan("a", 200, false, 200), makeSpan("b", 100, false, 200)])
+    aggregator.add([makeSpan("a", 100, false, 500)])
+    aggregator.flush()
+
+    then:
+    1 * api.sendStats(_, 3) >> { args ->
+      payload = args[0]
+      true
+    }
+    payload.Hostname == ""
+    payload.Env == ""
+    payload.Lang == "java"
+    payload.Stats.size() == 1
+    payload.Stats[0].Duration >= 0
+    def stats = payload.Stats[0].Stats.collectEntries { ["${it.Resource}:${it.HTTPStatusCode}", it] }
+    stats["a:200"].Service == "fakeService"
+    stats["a:200"].Name == "fakeOperation"
+    stats["a:200"].Type == "fakeType"
+    stats["a:200"].Hits == 3
+    stats["a:200"].TopLevelHits == 3
+    stats["a:200"].Errors == 1
+    stats["a:200"].Duration == 600000
+    stats["a:200"].OkSummary instanceof byte[]
+    stats["a:200"].ErrorSummary instanceof byte[]
+    stats["b:200"].Hits == 1
+    stats["a:500"].Hits == 1
+
+    cleanup:
+    aggregator.close()
+  }
+
+  def "nothing is sent when no span was aggregated"() {
+    setup:
+    def api = Mock(DDApi)
+    def aggregator = new StatsAggregator(TimeUnit.HOURS.toMillis(1))
+    aggregator.start(api)
+
+    when:
+    aggregator.add([makeSpan("a", 100, false, 200)])
+    aggregator.flush()
+    aggregator.flush()
+
+    then:
+    1 * api.sendStats(_, 1) >> true
+    0 * _
+
+    cleanup:
+    aggregator.close()
+  }
+
+  def "concurrent writers are all accounted for"() {
+    setup:
+    def api = Mock(DDApi)
+    def aggregator = new StatsAggregator(TimeUnit.HOURS.toMillis(1))
+    aggregator.start(api)
+    def spans = (1..1000).collect { makeSpan("a", 100, false, 200) }
+    def threadCount = 8
+    def done = new CountDownLatch(threadCount)
+    def payload = null
+
+    when:
+    threadCount.times {
+      Thread.start {
+        spans.each { aggregator.add([it]) }
+        done.countDown()
+      }
+    }
+    done.await()
+    aggregator.flush()
+
+    then:
+    1 * api.sendStats(_, 1) >> { args ->
+      payload = args[0]
+      true
+    }
+    payload.Stats[0].Stats[0].Hits == 8000
+
+    cleanup:
+    aggregator.close()
+  }
+
+  def "a payload is sent for each env"() {
+    setup:
+    def api = Mock(DDApi)
+    def aggregator = new StatsAggregator(TimeUnit.HOURS.toMillis(1))
+    aggregator.start(api)
+    def prod = makeSpan("a", 100, false, 200)
+    prod.context().setTag("env", "prod")
+    def envs = []
+
+    when:
+    aggregator.add([prod, makeSpan("a", 100, false, 200)])
+    aggregator.flush()
+
+    then:
+    2 * api.sendStats(_, 1) >> { args ->
+      envs << args[0].Env
+      true
+    }
+    envs.toSet() == ["prod", ""].toSet()
+
+    cleanup:
+    aggregator.close()
+  }
+
+  def "only the spans heading their service in the trace are top-level"() {
+    setup:
+    def api = Mock(DDApi)
+    def aggregator = new StatsAggregator(TimeUnit.HOURS.toMillis(1))
+    aggregator.start(api)
+    def payload = null
+
+    when:
+    aggregator.add([
+      makeSpan("root", 100, false, 0, 1L, 0L, "fakeService"),
+      makeSpan("child", 100, false, 0, 2L, 1L, "fakeService"),
+      makeSpan("db", 100, false, 0, 3L, 2L, "db"),
+      makeSpan("orphan", 100, false, 0, 4L, 42L, "fakeService"),
+    ])
+    aggregator.flush()
+
+    then:
+    1 * api.sendStats(_, 4) >> { args ->
+      payload = args[0]
+      true
+    }
+    payload.Stats[0].Stats.collectEntries { [it.Resource, it.TopLevelHits] } ==
+      ["root": 1, "child": 0, "db": 1, "orphan": 1]
+
+    cleanup:
+    aggregator.close()
+  }
+
+  def "latencies are encoded as DDSketch protobuf"() {
+    setup:
+    def sketch = new LatencySketch()
+    sketch.accept(100)
+
+    expect: "the mapping gamma, the bin 231 counted once"
+    SketchEncoder.encode(sketch).encodeHex().toString() ==
+      "0a0909fd4a815abf52f03f" + "120d1208000000000000f03f18ce03"
+  }
+
+  def makeSpan(String resource, long durationMicro, boolean error, int status) {
+    return makeSpan(resource, durationMicro, error, status, 1L, 0L, "fakeService")
+  }
+
+  def makeSpan(String resource, long durationMicro, boolean error, int status, long spanId,
+               long parentId, String service) {
+    def context = new DDSpanContext(
+      1L,
+      spanId,
+      parentId,
+      service,
+      "fakeOperation",
+      resource,
+      PrioritySampling.UNSET,
+      Collections.emptyMap(),
+      error,
+      "fakeType",
+      Collections.emptyMap(),
+      null,
+      tracer)
+    if (status != 0) {
+      context.setTag("http.status_code", status)
+    }
+    def span = new DDSpan(1, context)
+    span.finish(1 + durationMicro)
+    return span
+  }
+}
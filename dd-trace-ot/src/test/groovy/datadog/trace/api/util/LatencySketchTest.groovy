@@ -0,0 +1,66 @@
+package datadog.trace.api.util
+
+import datadog.trace.common.util.LatencySketch
+import spock.lang.Specification
+
+class LatencySketchTest extends Specification {
+
+  def "quantiles are within the relative accuracy"() {
+    setup:
+    def sketch = new LatencySketch()
+    (1..10000).each { sketch.accept(it * 1000L) }
+
+    expect:
+    sketch.count == 10000
+    Math.abs(sketch.getValueAtQuantile(quantile) - expected) <= expected * 0.011
+
+    where:
+    quantile | expected
+    0        | 1000
+    0.5      | 5000500
+    0.99     | 9900010
+    1        | 10000000
+  }
+
+  def "an empty sketch answers zero"() {
+    expect:
+    new LatencySketch().getValueAtQuantile(0.5) == 0
+  }
+
+  def "merging gives the sketch of all the values"() {
+    setup:
+    def low = new LatencySketch()
+    def high = new LatencySketch()
+    def all = new LatencySketch()
+    (1..100).each {
+      low.accept(it)
+      all.accept(it)
+    }
+    (1..100).each {
+      high.accept(it * 1000000L)
+      all.accept(it * 1000000L)
+    }
+
+    when:
+    low.merge(high)
+
+    then:
+    low.count == 200
+    [0, 0.25, 0.5, 0.75, 0.99, 1].every { low.getValueAtQuantile(it) == all.getValueAtQuantile(it) }
+  }
+
+  def "decay halves the weight of the values"() {
+    setup:
+    def sketch = new LatencySketch()
+    sketch.accept(10, 100)
+
+    when:
+    sketch.decay()
+    sketch.accept(1000, 60)
+
+    then:
+    sketch.count == 110
+    // 60 recent values out of 110 are now above the median
+    sketch.getValueAtQuantile(0.5) > 900
+  }
+}
@@ -1,13 +1,21 @@
 package datadog.trace.api.writer
 
 import datadog.opentracing.DDSpan
+import datadog.trace.common.stats.StatsAggregator
 import datadog.trace.common.writer.DDAgentWriter
 import datadog.trace.common.writer.DDApi
-import datadog.trace.common.writer.WriterQueue
+import datadog.trace.common.writer.DiskSpillBuffer
+import datadog.trace.common.writer.RingBufferWriterQueue
+import datadog.trace.common.writer.SynchronizedWriterQueue
+import datadog.trace.common.writer.Transport
 import spock.lang.Specification
 
+import java.nio.file.Files
+import java.util.concurrent.CopyOnWriteArrayList
+
 import static datadog.trace.SpanFactory.newSpanOf
 import static org.mockito.Mockito.mock
+import static org.mockito.Mockito.verify
 import static org.mockito.Mockito.verifyNoMoreInteractions
 
 class DDAgentWriterTest extends Specification {
@@ -37,16 +45,157 @@ class DDAgentWriterTest extends Specification {
 
     where:
     trace = [newSpanOf(0)]
-    flush_time_wait = (int) (1.2 * (DDAgentWriter.FLUSH_TIME_SECONDS * 1_000))
+    flush_time_wait = (int) (1.2 * DDAgentWriter.DEFAULT_FLUSH_INTERVAL_MILLIS)
     tick << [1, 3]
 
 
   }
 
+  def "half full queue triggers a flush before the interval"() {
+    setup:
+    def api = Mock(DDApi)
+    def writer = new DDAgentWriter(api, new RingBufferWriterQueue<List<DDSpan>>(capacity), 60_000, Long.MAX_VALUE)
+    writer.start()
+
+    when:
+    (capacity / 2 - 1).times {
+      writer.write(trace)
+    }
+    Thread.sleep(200)
+
+    then:
+    0 * api.sendTraces(_ as List)
+
+    when:
+    writer.write(trace)
+    Thread.sleep(200)
+
+    then:
+    1 * api.sendTraces({ it.size() == capacity / 2 })
+
+    cleanup:
+    writer.close()
+
+    where:
+    trace = [newSpanOf(0)]
+    capacity = 10
+  }
+
+  def "payload size limit triggers a flush before the interval"() {
+    setup:
+    def api = Mock(DDApi)
+    def writer = new DDAgentWriter(api, new RingBufferWriterQueue<List<DDSpan>>(1000), 60_000, 1)
+    writer.start()
+
+    when:
+    writer.write(trace)
+    Thread.sleep(200)
+
+    then:
+    1 * api.sendTraces([trace])
+
+    cleanup:
+    writer.close()
+
+    where:
+    trace = [newSpanOf(0)]
+  }
+
+  def "undelivered payloads are spilled and replayed once the agent is back"() {
+    setup:
+    def directory = Files.createTempDirectory("dd-spill").toFile()
+    def spillBuffer = new DiskSpillBuffer(directory, 1024 * 1024)
+    def api = Mock(DDApi)
+    def writer = new DDAgentWriter(api, new RingBufferWriterQueue<List<DDSpan>>(10), 100, Long.MAX_VALUE, spillBuffer)
+    def sent = new CopyOnWriteArrayList()
+    writer.start()
+
+    when:
+    writer.write([newSpanOf(0)])
+    Thread.sleep(500)
+
+    then:
+    1 * api.sendEncodedTraces(_, _, 1) >> false
+    !spillBuffer.empty
+
+    when:
+    writer.write([newSpanOf(0)])
+    Thread.sleep(500)
+
+    then:
+    2 * api.sendEncodedTraces(_, _, 1) >> { bytes, length, count ->
+      sent << Arrays.copyOf(bytes, length)
+      true
+    }
+    spillBuffer.empty
+    sent.size() == 2
+    sent[0] == sent[1]
+
+    cleanup:
+    writer.close()
+    directory.deleteDir()
+  }
+
+  def "eagerly serialized traces are sent without re-encoding"() {
+    setup:
+    def api = Mock(DDApi)
+    def writer = new DDAgentWriter(api, new RingBufferWriterQueue<List<DDSpan>>(10), 100, Long.MAX_VALUE, null, true)
+    def sent = new CopyOnWriteArrayList()
+    writer.start()
+
+    when:
+    writer.write([newSpanOf(0)])
+    writer.write([newSpanOf(0), newSpanOf(0)])
+    Thread.sleep(500)
+
+    then:
+    1 * api.sendEncodedTraces(_, _, 2) >> { bytes, length, count ->
+      sent << MsgPackTraceEncoderTest.mapper.readValue(Arrays.copyOf(bytes, length), List)
+      true
+    }
+    0 * api.sendTraces(_)
+    sent.size() == 1
+    sent[0].size() == 2
+    sent[0]*.size() == [1, 2]
+    sent[0][0][0].name == "fakeOperation"
+
+    cleanup:
+    writer.close()
+  }
+
+  def "stats of the kept and dropped traces are aggregated by the writer thread"() {
+    setup:
+    def api = Mock(DDApi)
+    def stats = Mock(StatsAggregator)
+    def writer = new DDAgentWriter(api, new RingBufferWriterQueue<List<DDSpan>>(10), 100, Long.MAX_VALUE)
+    def threads = new CopyOnWriteArrayList()
+    writer.setStatsAggregator(stats)
+    writer.start()
+
+    when:
+    writer.write(kept)
+    writer.writeDropped(dropped)
+    Thread.sleep(500)
+
+    then:
+    1 * stats.add(kept) >> { threads << Thread.currentThread() }
+    1 * stats.add(dropped) >> { threads << Thread.currentThread() }
+    1 * api.sendTraces([kept]) >> true
+    threads.size() == 2
+    !threads.contains(Thread.currentThread())
+
+    cleanup:
+    writer.close()
+
+    where:
+    kept = [newSpanOf(0)]
+    dropped = [newSpanOf(0)]
+  }
+
   def "check if trace has been added by force"() {
 
     setup:
-    def traces = new WriterQueue<List<DDSpan>>(capacity)
+    def traces = new SynchronizedWriterQueue<List<DDSpan>>(capacity)
     def writer = new DDAgentWriter(Mock(DDApi), traces)
 
     when:
@@ -71,6 +220,19 @@ class DDAgentWriterTest extends Specification {
 
   }
 
+  def "closing the writer closes the transport"() {
+    setup:
+    def transport = Mock(Transport)
+    def writer = new DDAgentWriter(new DDApi(transport))
+    writer.start()
+
+    when:
+    writer.close()
+
+    then:
+    1 * transport.close()
+  }
+
   def "check that are no interactions after close"() {
 
     setup:
@@ -84,10 +246,11 @@ class DDAgentWriterTest extends Specification {
     Thread.sleep(flush_time_wait)
 
     then:
+    verify(api).close()
     verifyNoMoreInteractions(api)
 
     where:
-    flush_time_wait = (int) (1.2 * (DDAgentWriter.FLUSH_TIME_SECONDS * 1_000))
+    flush_time_wait = (int) (1.2 * DDAgentWriter.DEFAULT_FLUSH_INTERVAL_MILLIS)
 
 
   }
@@ -12,6 +12,7 @@ import ratpack.http.Headers
 import ratpack.http.MediaType
 import spock.lang.Specification
 
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicReference
 
 import static ratpack.groovy.test.embed.GroovyEmbeddedApp.ratpack
@@ -126,6 +127,65 @@ class DDApiTest extends Specification {
     ])]
   }
 
+  def "dropped traces are reported with the next payload"() {
+    setup:
+    def droppedTraces = new ArrayList<String>()
+    def droppedSpans = new ArrayList<String>()
+    def agent = ratpack {
+      handlers {
+        put("v0.4/traces") {
+          droppedTraces.add(request.headers.get("Datadog-Client-Dropped-P0-Traces"))
+          droppedSpans.add(request.headers.get("Datadog-Client-Dropped-P0-Spans"))
+          response.status(200).send()
+        }
+      }
+    }
+    def client = new DDApi("localhost", agent.address.port)
+
+    when:
+    client.recordDroppedTrace(3)
+    client.recordDroppedTrace(2)
+    client.sendTraces([])
+    client.sendTraces([])
+
+    then:
+    droppedTraces == ["2", null]
+    droppedSpans == ["5", null]
+
+    cleanup:
+    agent.close()
+  }
+
+  def "traces payloads tell the agent when stats are computed by the client"() {
+    setup:
+    def computedStats = new ArrayList<String>()
+    def agent = ratpack {
+      handlers {
+        put("v0.4/traces") {
+          computedStats.add(request.headers.get("Datadog-Client-Computed-Stats"))
+          response.status(200).send()
+        }
+        put("v0.6/stats") {
+          computedStats.add("stats:" + request.headers.get("Datadog-Client-Computed-Stats"))
+          response.status(200).send()
+        }
+      }
+    }
+    def client = new DDApi("localhost", agent.address.port)
+
+    when:
+    client.sendTraces([])
+    client.setClientComputedStats(true)
+    client.sendTraces([])
+    client.sendStats([:], 0)
+
+    then:
+    computedStats == [null, "yes", "stats:null"]
+
+    cleanup:
+    agent.close()
+  }
+
   // Services endpoint
   def "sending an empty map of services returns no errors"() {
     setup:
@@ -280,6 +340,29 @@ class DDApiTest extends Specification {
     v3Agent.close()
   }
 
+  def "creating the api does not contact the agent"() {
+    setup:
+    def requests = new AtomicInteger()
+    def agent = ratpack {
+      handlers {
+        all {
+          requests.incrementAndGet()
+          response.status(200).send()
+        }
+      }
+    }
+
+    when:
+    def client = new DDApi("localhost", agent.address.port)
+
+    then:
+    requests.get() == 0
+    client.toString() == "DDApi { tracesEndpoint=http://localhost:${agent.address.port}/v0.4/traces }"
+
+    cleanup:
+    agent.close()
+  }
+
   static List<TreeMap<String, Object>> convertList(byte[] bytes) {
     return mapper.readValue(bytes, new TypeReference<List<TreeMap<String, Object>>>() {})
   }
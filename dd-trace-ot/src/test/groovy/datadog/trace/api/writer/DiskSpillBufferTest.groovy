@@ -0,0 +1,115 @@
+package datadog.trace.api.writer
+
+import datadog.trace.common.writer.DiskSpillBuffer
+import spock.lang.Specification
+
+import java.nio.file.Files
+
+class DiskSpillBufferTest extends Specification {
+  def directory = Files.createTempDirectory("dd-spill").toFile()
+
+  def cleanup() {
+    directory.deleteDir()
+  }
+
+  def drain(DiskSpillBuffer buffer) {
+    def payloads = []
+    def payload
+    while ((payload = buffer.peek()) != null) {
+      payloads << new String(payload.bytes)
+      buffer.remove()
+    }
+    return payloads
+  }
+
+  def "payloads are read back oldest first"() {
+    setup:
+    def buffer = new DiskSpillBuffer(directory, 4096)
+
+    when:
+    (1..10).each { buffer.append("payload-$it".bytes, "payload-$it".length(), it) }
+
+    then:
+    !buffer.empty
+    buffer.peek().traceCount == 1
+    drain(buffer) == (1..10).collect { "payload-$it" }
+    buffer.empty
+    directory.listFiles().length == 0
+  }
+
+  def "only the meaningful part of the buffer is spilled"() {
+    setup:
+    def buffer = new DiskSpillBuffer(directory, 4096)
+
+    when:
+    buffer.append("payload-and-garbage".bytes, 7, 1)
+
+    then:
+    drain(buffer) == ["payload"]
+  }
+
+  def "oldest segment is evicted when the cap is reached"() {
+    setup:
+    def buffer = new DiskSpillBuffer(directory, 4 * 104)
+    def payload = new byte[42]
+
+    when: "two payloads per segment after its header, 5 segments worth of payloads"
+    10.times { i ->
+      Arrays.fill(payload, (byte) i)
+      buffer.append(payload, payload.length, 1)
+    }
+    def remaining = []
+    def spilled
+    while ((spilled = buffer.peek()) != null) {
+      remaining << spilled.bytes[0]
+      buffer.remove()
+    }
+
+    then:
+    buffer.evictedTraces == 2
+    remaining == (2..9).toList()
+  }
+
+  def "payloads larger than a segment are dropped"() {
+    setup:
+    def buffer = new DiskSpillBuffer(directory, 4 * 100)
+
+    expect:
+    !buffer.append(new byte[100], 100, 1)
+    buffer.empty
+  }
+
+  def "payloads are reloaded from disk"() {
+    setup:
+    def buffer = new DiskSpillBuffer(directory, 4096)
+    (1..5).each { buffer.append("payload-$it".bytes, "payload-$it".length(), 1) }
+    buffer.peek()
+    buffer.remove()
+
+    when:
+    buffer.close()
+    def reloaded = new DiskSpillBuffer(directory, 4096)
+    reloaded.append("payload-6".bytes, 9, 1)
+
+    then: "removed payloads are not replayed"
+    drain(reloaded) == (2..6).collect { "payload-$it" }
+  }
+
+  def "a record cut short is discarded"() {
+    setup:
+    def buffer = new DiskSpillBuffer(directory, 4096)
+    (1..2).each { buffer.append("payload-$it".bytes, "payload-$it".length(), 1) }
+    buffer.close()
+    def segment = directory.listFiles()[0]
+    def file = new RandomAccessFile(segment, "rw")
+    file.setLength(segment.length() - 1)
+    file.close()
+
+    when:
+    def reloaded = new DiskSpillBuffer(directory, 4096)
+    reloaded.append("payload-3".bytes, 9, 1)
+
+    then:
+    drain(reloaded) == ["payload-1", "payload-3"]
+  }
+}
@@ -0,0 +1,67 @@
+package datadog.trace.api.writer
+
+import datadog.trace.common.writer.BufferPool
+import datadog.trace.common.writer.EncodedTraceBuffer
+import datadog.trace.common.writer.MsgPackTraceEncoder
+import spock.lang.Specification
+
+class EncodedTraceBufferTest extends Specification {
+
+  def "encoded traces span chunks and are drained in order"() {
+    setup:
+    def pool = new BufferPool(16, 10)
+    def buffer = new EncodedTraceBuffer(pool)
+    def encoder = new MsgPackTraceEncoder()
+
+    when:
+    buffer.append("abc".bytes, 3)
+    buffer.append(("d" * 20).bytes, 20)
+    buffer.append("ef-garbage".bytes, 2)
+
+    then:
+    buffer.traceCount == 3
+    buffer.size() == 25
+    pool.allocated == 2
+
+    when:
+    def count = buffer.drainTo(encoder)
+    def bytes = Arrays.copyOf(encoder.buffer(), encoder.size())
+
+    then:
+    count == 3
+    bytes[0] == (byte) 0x93
+    new String(bytes, 1, bytes.length - 1) == "abc" + ("d" * 20) + "ef"
+    buffer.traceCount == 0
+    buffer.size() == 0
+
+    when: "chunks are recycled"
+    buffer.append(("g" * 32).bytes, 32)
+
+    then:
+    pool.allocated == 2
+  }
+
+  def "traces are dropped without corrupting the buffer when the pool is exhausted"() {
+    setup:
+    def pool = new BufferPool(16, 2)
+    def buffer = new EncodedTraceBuffer(pool)
+    def encoder = new MsgPackTraceEncoder()
+
+    when:
+    def first = buffer.append(("a" * 10).bytes, 10)
+    def second = buffer.append(("b" * 30).bytes, 30)
+    def third = buffer.append(("c" * 6).bytes, 6)
+
+    then:
+    first
+    !second
+    third
+    buffer.droppedTraces == 1
+
+    when:
+    buffer.drainTo(encoder)
+
+    then:
+    new String(encoder.buffer(), 1, encoder.size() - 1) == ("a" * 10) + ("c" * 6)
+  }
+}
@@ -0,0 +1,338 @@
+package datadog.trace.api.writer
+
+import datadog.trace.common.writer.KeepAliveHttpTransport
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.zip.GZIPInputStream
+
+class KeepAliveHttpTransportTest extends Specification {
+
+  /** Minimal HTTP server answering each request with the given closure, in order */
+  static class StubAgent implements Closeable {
+    final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())
+    final List<Map> requests = new CopyOnWriteArrayList<>()
+    final AtomicInteger connections = new AtomicInteger()
+    Closure<String> responder = { request -> "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK" }
+
+    StubAgent() {
+      Thread.start {
+        while (!server.closed) {
+          def socket
+          try {
+            socket = server.accept()
+          } catch (IOException e) {
+            return
+          }
+          connections.incrementAndGet()
+          Thread.start { serve(socket) }
+        }
+      }
+    }
+
+    int getPort() {
+      server.localPort
+    }
+
+    void serve(Socket socket) {
+      def input = new DataInputStream(new BufferedInputStream(socket.inputStream))
+      def output = socket.outputStream
+      try {
+        while (true) {
+          def requestLine = readLine(input)
+          if (requestLine == null) {
+            return
+          }
+          def headers = [:]
+          def line
+          while ((line = readLine(input))) {
+            def colon = line.indexOf(':')
+            headers[line.substring(0, colon).toLowerCase()] = line.substring(colon + 1).trim()
+          }
+          def body = new byte[headers["content-length"] as int]
+          input.readFully(body)
+          def request = [line: requestLine, headers: headers, body: body]
+          requests.add(request)
+          def response = responder(request)
+          output.write(response.getBytes(StandardCharsets.ISO_8859_1))
+          output.flush()
+          if (response.contains("Connection: close")) {
+            socket.close()
+            return
+          }
+        }
+      } catch (IOException e) {
+        socket.close()
+      }
+    }
+
+    static String readLine(DataInputStream input) {
+      def line = new StringBuilder()
+      int c
+      while ((c = input.read()) != '\n') {
+        if (c < 0) {
+          return null
+        }
+        if (c != '\r') {
+          line.append((char) c)
+        }
+      }
+      return line.toString()
+    }
+
+    void close() {
+      server.close()
+    }
+  }
+
+  def agent = new StubAgent()
+
+  def cleanup() {
+    agent.close()
+  }
+
+  def "requests are sent over a single kept alive connection"() {
+    setup:
+    def transport = new KeepAliveHttpTransport("localhost", agent.port)
+    def body = "payload".bytes
+
+    when:
+    def responses = (1..3).collect { transport.put("/v0.4/traces", ["Content-Type": "application/msgpack"], body, body.length) }
+
+    then:
+    responses*.status == [200, 200, 200]
+    responses*.body == ["OK", "OK", "OK"]
+    agent.connections.get() == 1
+    agent.requests.size() == 3
+    agent.requests[0].line == "PUT /v0.4/traces HTTP/1.1"
+    agent.requests[0].headers["content-type"] == "application/msgpack"
+    agent.requests[0].headers["host"] == "localhost:${agent.port}"
+    new String(agent.requests[0].body) == "payload"
+
+    cleanup:
+    transport.close()
+  }
+
+  def "only the meaningful part of the buffer is sent"() {
+    setup:
+    def transport = new KeepAliveHttpTransport("localhost", agent.port)
+
+    when:
+    transport.put("/v0.4/traces", [:], "payload-and-garbage".bytes, 7)
+
+    then:
+    new String(agent.requests[0].body) == "payload"
+
+    cleanup:
+    transport.close()
+  }
+
+  def "gzipped bodies are flagged and decodable"() {
+    setup:
+    def transport = new KeepAliveHttpTransport("localhost", agent.port, true)
+    def body = ("a" * 10000).bytes
+
+    when:
+    transport.put("/v0.4/traces", [:], body, body.length)
+    def request = agent.requests[0]
+
+    then:
+    request.headers["content-encoding"] == "gzip"
+    request.body.length < body.length
+    new GZIPInputStream(new ByteArrayInputStream(request.body)).bytes == body
+
+    cleanup:
+    transport.close()
+  }
+
+  def "chunked responses and error statuses are read"() {
+    setup:
+    agent.responder = { request ->
+      "HTTP/1.1 404 Not Found\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n"
+    }
+    def transport = new KeepAliveHttpTransport("localhost", agent.port)
+
+    when:
+    def first = transport.put("/v0.4/traces", [:], new byte[0], 0)
+    def second = transport.put("/v0.4/traces", [:], new byte[0], 0)
+
+    then:
+    first.status == 404
+    first.body == "hello world"
+    second.status == 404
+    agent.connections.get() == 1
+
+    cleanup:
+    transport.close()
+  }
+
+  def "a connection closed by the agent is reopened"() {
+    setup:
+    agent.responder = { request -> "HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n" }
+    def transport = new KeepAliveHttpTransport("localhost", agent.port)
+
+    when:
+    def responses = (1..3).collect { transport.put("/v0.4/traces", [:], new byte[0], 0) }
+
+    then:
+    responses*.status == [200, 200, 200]
+    agent.connections.get() == 3
+
+    cleanup:
+    transport.close()
+  }
+
+  def "a request is resent when the agent closed the idle connection"() {
+    setup:
+    agent.responder = { request ->
+      if (agent.requests.size() == 2) {
+        throw new IOException("idle connection closed")
+      }
+      "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK"
+    }
+    def transport = new KeepAliveHttpTransport("localhost", agent.port)
+
+    when:
+    def responses = (1..2).collect { transport.put("/v0.4/traces", [:], new byte[0], 0) }
+
+    then:
+    responses*.status == [200, 200]
+    agent.requests.size() == 3
+    agent.connections.get() == 2
+
+    cleanup:
+    transport.close()
+  }
+
+  def "a request is not resent once the agent started to answer it"() {
+    setup:
+    agent.responder = { request ->
+      agent.requests.size() == 1 ?
+        "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK" :
+        "HTTP/1.1 200 OK\r\nContent-Length: 10\r\nConnection: close\r\n\r\nOK"
+    }
+    def transport = new KeepAliveHttpTransport("localhost", agent.port)
+
+    when:
+    transport.put("/v0.4/traces", [:], new byte[0], 0)
+    transport.put("/v0.4/traces", [:], new byte[0], 0)
+
+    then:
+    thrown IOException
+    agent.requests.size() == 2
+
+    cleanup:
+    transport.close()
+  }
+
+  def "concurrent requests are pipelined and get their own response"() {
+    setup:
+    agent.responder = { request ->
+      def body = new String(request.body)
+      "HTTP/1.1 200 OK\r\nContent-Length: ${body.length()}\r\n\r\n${body}"
+    }
+    def transport = new KeepAliveHttpTransport("localhost", agent.port)
+    def start = new CountDownLatch(1)
+    def results = new CopyOnWriteArrayList()
+
+    when:
+    def threads = (1..numberThreads).collect { i ->
+      Thread.start {
+        start.await()
+        requestsPerThread.times { j ->
+          def body = "request-$i-$j".bytes
+          results.add([expected: "request-$i-$j", actual: transport.put("/v0.4/traces", [:], body, body.length).body])
+        }
+      }
+    }
+    start.countDown()
+    threads*.join()
+
+    then:
+    results.size() == numberThreads * requestsPerThread
+    results.every { it.expected == it.actual }
+    agent.connections.get() == 1
+
+    cleanup:
+    transport.close()
+
+    where:
+    numberThreads = 10
+    requestsPerThread = 20
+  }
+
+  def "a malformed response fails the request and reopens the connection"() {
+    setup:
+    agent.responder = { request -> "HTTP/1.1 200 OK\r\nContent-Length: ${length}\r\n\r\nOK" }
+    def transport = new KeepAliveHttpTransport("localhost", agent.port)
+
+    when:
+    transport.put("/v0.4/traces", [:], new byte[0], 0)
+
+    then:
+    def e = thrown IOException
+    e.message.startsWith("Malformed content length")
+
+    when:
+    agent.responder = { request -> "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK" }
+    def response = transport.put("/v0.4/traces", [:], new byte[0], 0)
+
+    then:
+    response.body == "OK"
+    agent.connections.get() == 2
+
+    cleanup:
+    transport.close()
+
+    where:
+    length << ["abc", "-1", "99999999999999999999"]
+  }
+
+  def "requests time out when the agent stops answering"() {
+    setup:
+    def release = new CountDownLatch(1)
+    agent.responder = { request ->
+      release.await()
+      "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n"
+    }
+    def transport = new KeepAliveHttpTransport("localhost", agent.port, false, 200)
+
+    when:
+    def start = System.nanoTime()
+    transport.put("/v0.4/traces", [:], new byte[0], 0)
+
+    then:
+    thrown SocketTimeoutException
+    System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)
+    agent.requests.size() == 1
+
+    when:
+    agent.responder = { request -> "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK" }
+    def response = transport.put("/v0.4/traces", [:], new byte[0], 0)
+
+    then:
+    response.status == 200
+    agent.connections.get() == 2
+
+    cleanup:
+    release.countDown()
+    transport.close()
+  }
+
+  def "unreachable agent raises an exception"() {
+    setup:
+    def port = agent.port
+    agent.close()
+    def transport = new KeepAliveHttpTransport("localhost", port)
+
+    when:
+    transport.put("/v0.4/traces", [:], new byte[0], 0)
+
+    then:
+    thrown IOException
+  }
+}
@@ -0,0 +1,149 @@
+package datadog.trace.api.writer
+
+import com.fasterxml.jackson.core.type.TypeReference
+import com.fasterxml.jackson.databind.ObjectMapper
+import datadog.opentracing.DDTracer
+import datadog.trace.common.sampling.AllSampler
+import datadog.trace.common.writer.ListWriter
+import datadog.trace.common.writer.MsgPackTraceEncoder
+import org.msgpack.jackson.dataformat.MessagePackFactory
+import spock.lang.Specification
+
+class MsgPackTraceEncoderTest extends Specification {
+  static mapper = new ObjectMapper(new MessagePackFactory())
+
+  def writer = new ListWriter()
+  def tracer = new DDTracer("fakeService", writer, new AllSampler())
+  def encoder = new MsgPackTraceEncoder(16)
+
+  def decode() {
+    def bytes = Arrays.copyOf(encoder.buffer(), encoder.size())
+    return mapper.readValue(bytes, new TypeReference<List<List<TreeMap<String, Object>>>>() {})
+  }
+
+  def "spans are encoded with string tags in meta and numeric tags in metrics"() {
+    setup:
+    def span = tracer.buildSpan("fakeOperation")
+      .withResourceName("fakeResource")
+      .withSpanType("fakeType")
+      .withTag("string", "value")
+      .withTag("bool", true)
+      .withTag("int", 42)
+      .withTag("double", 0.5d)
+      .startManual()
+    span.setBaggageItem("baggage", "item")
+    span.finish()
+
+    when:
+    encoder.writeTraces(writer)
+    def decoded = decode()
+
+    then:
+    decoded.size() == 1
+    decoded[0].size() == 1
+    def encoded = decoded[0][0]
+    encoded.service == "fakeService"
+    encoded.name == "fakeOperation"
+    encoded.resource == "fakeResource"
+    encoded.type == "fakeType"
+    encoded.trace_id == span.context().traceId
+    encoded.span_id == span.context().spanId
+    encoded.parent_id == 0
+    encoded.start == span.startTime
+    encoded.duration == span.durationNano
+    encoded.error == 0
+    encoded.meta == [
+      "string"     : "value",
+      "bool"       : "true",
+      "baggage"    : "item",
+      "span.type"  : "fakeType",
+      "thread.name": Thread.currentThread().getName(),
+      "thread.id"  : "${Thread.currentThread().id}",
+    ]
+    encoded.metrics == ["int": 42, "double": 0.5d]
+  }
+
+  def "ids above Long.MAX_VALUE are encoded as unsigned"() {
+    when:
+    encoder.writeUnsignedLong(-1L)
+    def decoded = mapper.readValue(Arrays.copyOf(encoder.buffer(), encoder.size()), BigInteger)
+
+    then:
+    decoded == new BigInteger("18446744073709551615")
+  }
+
+  def "strings are encoded with the right header"() {
+    when:
+    encoder.writeString(value)
+    def decoded = mapper.readValue(Arrays.copyOf(encoder.buffer(), encoder.size()), String)
+
+    then:
+    decoded == value
+
+    where:
+    value << [
+      "",
+      "a" * 31,
+      "a" * 32,
+      "a" * 255,
+      "a" * 256,
+      "a" * 70000,
+      "été",
+      "日本語" * 100,
+      "😀",
+    ]
+  }
+
+  def "reset reuses the buffer"() {
+    setup:
+    tracer.buildSpan("fakeOperation").startManual().finish()
+
+    when:
+    encoder.writeTraces(writer)
+    def size = encoder.size()
+    encoder.reset()
+    encoder.writeTraces(writer)
+
+    then:
+    encoder.size() == size
+    decode().size() == 1
+  }
+
+  def "thread names and ids are encoded for each thread"() {
+    setup:
+    def threads = (1..3).collect { i ->
+      Thread.start("worker-$i") { tracer.buildSpan("fakeOperation").startManual().finish() }
+    }
+    threads*.join()
+    tracer.buildSpan("fakeOperation").startManual().finish()
+
+    when:
+    encoder.writeTraces(writer)
+    encoder.reset()
+    encoder.writeTraces(writer)
+    def meta = decode().collect { it[0].meta }
+
+    then:
+    meta*.get("thread.name").toSet() == ["worker-1", "worker-2", "worker-3", Thread.currentThread().name].toSet()
+    meta.find { it["thread.name"] == "worker-2" }["thread.id"] == "${threads[1].id}"
+  }
+
+  def "a span is encoded with the name of its thread when it started"() {
+    setup:
+    def thread = Thread.currentThread()
+    def originalName = thread.name
+
+    when:
+    def span = tracer.buildSpan("fakeOperation").startManual()
+    thread.setName("renamed")
+    span.finish()
+    encoder.writeTraces(writer)
+
+    then:
+    decode()[0][0].meta["thread.name"] == originalName
+    decode()[0][0].meta["thread.id"] == "$thread.id"
+
+    cleanup:
+    thread.setName(originalName)
+  }
+}
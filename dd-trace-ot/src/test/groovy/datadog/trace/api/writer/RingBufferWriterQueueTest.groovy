@@ -0,0 +1,140 @@
+package datadog.trace.api.writer
+
+import datadog.trace.common.writer.RingBufferWriterQueue
+import spock.lang.Specification
+
+import java.util.concurrent.Phaser
+import java.util.concurrent.atomic.AtomicInteger
+
+import static datadog.trace.common.writer.RingBufferWriterQueue.OverflowPolicy.DROP_OLDEST
+import static datadog.trace.common.writer.RingBufferWriterQueue.OverflowPolicy.RANDOM_EVICTION
+
+class RingBufferWriterQueueTest extends Specification {
+
+  def "instantiate a empty queue throws an exception"() {
+    when:
+    new RingBufferWriterQueue<Integer>(0)
+
+    then:
+    thrown IllegalArgumentException
+  }
+
+  def "elements are drained in insertion order"() {
+    setup:
+    def queue = new RingBufferWriterQueue<Integer>(capacity, policy)
+
+    when:
+    def removed = (0..<capacity).collect { queue.add(it) }
+
+    then:
+    removed.every { it == null }
+    queue.size() == capacity
+    queue.getAll() == (0..<capacity).toList()
+    queue.isEmpty()
+
+    when: "the ring wraps around"
+    (0..<capacity).each { queue.add(it + capacity) }
+
+    then:
+    queue.getAll() == (capacity..<2 * capacity).toList()
+
+    where:
+    [capacity, policy] << [[1, 10, 100], [RANDOM_EVICTION, DROP_OLDEST]].combinations()
+  }
+
+  def "random eviction replaces an element of a full queue"() {
+    setup:
+    def queue = new RingBufferWriterQueue<Integer>(capacity, RANDOM_EVICTION)
+    (0..<capacity).each { queue.add(it) }
+
+    when:
+    def removed = queue.add(capacity)
+    def all = queue.getAll()
+
+    then:
+    removed in (0..<capacity)
+    all.size() == capacity
+    all.contains(capacity)
+    !all.contains(removed)
+    queue.enqueuedCount == capacity + 1
+    queue.droppedCount == 1
+    queue.flushedCount == capacity
+
+    where:
+    capacity << [1, 10, 100]
+  }
+
+  def "drop oldest removes the head of a full queue"() {
+    setup:
+    def queue = new RingBufferWriterQueue<Integer>(capacity, DROP_OLDEST)
+    (0..<capacity).each { queue.add(it) }
+
+    when:
+    def removed = queue.add(capacity)
+
+    then:
+    removed == 0
+    queue.getAll() == (1..capacity).toList()
+    queue.enqueuedCount == capacity + 1
+    queue.droppedCount == 1
+    queue.flushedCount == capacity
+
+    where:
+    capacity << [1, 10, 100]
+  }
+
+  def "check concurrency on writes and reads"() {
+    setup:
+    def phaser1 = new Phaser()
+    def phaser2 = new Phaser()
+    def queue = new RingBufferWriterQueue<Integer>(capacity, policy)
+    def insertionCount = new AtomicInteger(0)
+    def droppedCount = new AtomicInteger(0)
+    def numberElements = new AtomicInteger(0)
+
+    phaser1.register() // global start
+    phaser2.register() // global stop
+
+    // writes
+    numberThreadsWrites.times {
+      phaser1.register()
+      Thread.start {
+        phaser2.register()
+        phaser1.arriveAndAwaitAdvance()
+        numberInsertionsPerThread.times {
+          queue.add(1) != null ? droppedCount.getAndIncrement() : null
+          insertionCount.getAndIncrement()
+        }
+        phaser2.arriveAndAwaitAdvance()
+      }
+    }
+
+    // single reader
+    phaser1.register()
+    Thread.start {
+      phaser2.register()
+      phaser1.arriveAndAwaitAdvance()
+      numberGets.times {
+        numberElements.getAndAdd(queue.getAll().size())
+      }
+      phaser2.arriveAndAwaitAdvance()
+    }
+
+    when:
+    phaser1.arriveAndAwaitAdvance() // allow threads to start
+    phaser2.arriveAndAwaitAdvance() // wait till the job is not finished
+
+    then:
+    insertionCount.get() == numberInsertionsPerThread * numberThreadsWrites
+    queue.enqueuedCount == insertionCount.get()
+    queue.flushedCount == numberElements.get()
+    queue.droppedCount >= droppedCount.get()
+    insertionCount.get() == numberElements.get() + queue.size() + queue.droppedCount
+
+    where:
+    [policy, numberThreadsWrites] << [[RANDOM_EVICTION, DROP_OLDEST], [1, 10, 100]].combinations()
+    capacity = 100
+    numberInsertionsPerThread = 100
+    numberGets = 5
+  }
+}
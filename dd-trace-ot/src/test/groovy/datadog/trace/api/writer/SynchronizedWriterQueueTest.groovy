@@ -1,22 +1,22 @@
 package datadog.trace.api.writer
 
-import datadog.trace.common.writer.WriterQueue
+import datadog.trace.common.writer.SynchronizedWriterQueue
 import spock.lang.Specification
 
 import java.util.concurrent.Phaser
 import java.util.concurrent.atomic.AtomicInteger
 
-class WriterQueueTest extends Specification {
+class SynchronizedWriterQueueTest extends Specification {
 
   def "instantiate a empty queue throws an exception"() {
     when:
-    new WriterQueue<Integer>(0)
+    new SynchronizedWriterQueue<Integer>(0)
 
     then:
     thrown IllegalArgumentException
 
     when:
-    new WriterQueue<Integer>(-1)
+    new SynchronizedWriterQueue<Integer>(-1)
 
     then:
     thrown IllegalArgumentException
@@ -25,7 +25,7 @@ class WriterQueueTest extends Specification {
   def "full the queue without forcing"() {
 
     setup:
-    def queue = new WriterQueue<Integer>(capacity)
+    def queue = new SynchronizedWriterQueue<Integer>(capacity)
     def removed = false
 
     when:
@@ -44,7 +44,7 @@ class WriterQueueTest extends Specification {
   def "force element add to a full queue"() {
 
     setup:
-    def queue = new WriterQueue<Integer>(capacity)
+    def queue = new SynchronizedWriterQueue<Integer>(capacity)
     for (def i = 0; i < capacity; i++) {
       queue.add(i)
     }
@@ -64,7 +64,7 @@ class WriterQueueTest extends Specification {
   def "drain the queue into another collection"() {
 
     setup:
-    def queue = new WriterQueue<Integer>(capacity)
+    def queue = new SynchronizedWriterQueue<Integer>(capacity)
     for (def i = 0; i < capacity; i++) {
       queue.add(i)
     }
@@ -87,7 +87,7 @@ class WriterQueueTest extends Specification {
 
     def phaser1 = new Phaser()
     def phaser2 = new Phaser()
-    def queue = new WriterQueue<Integer>(capacity)
+    def queue = new SynchronizedWriterQueue<Integer>(capacity)
     def insertionCount = new AtomicInteger(0)
 
     phaser1.register() // global start
@@ -126,7 +126,7 @@ class WriterQueueTest extends Specification {
     setup:
     def phaser1 = new Phaser()
     def phaser2 = new Phaser()
-    def queue = new WriterQueue<Integer>(capacity)
+    def queue = new SynchronizedWriterQueue<Integer>(capacity)
     def insertionCount = new AtomicInteger(0)
     def droppedCount = new AtomicInteger(0)
     def getCount = new AtomicInteger(0)
@@ -0,0 +1,103 @@
+package datadog.trace.api.writer
+
+import datadog.trace.common.writer.DDApi
+import datadog.trace.common.writer.UnixDomainSocketTransport
+import jnr.unixsocket.UnixServerSocketChannel
+import jnr.unixsocket.UnixSocketAddress
+import spock.lang.Requires
+import spock.lang.Specification
+
+import java.nio.channels.Channels
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+
+@Requires({ !System.getProperty("os.name").toLowerCase().contains("win") })
+class UnixDomainSocketTransportTest extends Specification {
+
+  def directory = Files.createTempDirectory("dd-agent")
+  def socketPath = directory.resolve("apm.socket").toString()
+  def server
+  def requests = new CopyOnWriteArrayList<String>()
+  def connections = new AtomicInteger()
+
+  def setup() {
+    server = UnixServerSocketChannel.open()
+    server.socket().bind(new UnixSocketAddress(new File(socketPath)))
+    Thread.startDaemon {
+      while (server.open) {
+        def channel
+        try {
+          channel = server.accept()
+        } catch (IOException e) {
+          return
+        }
+        connections.incrementAndGet()
+        Thread.startDaemon { serve(channel) }
+      }
+    }
+  }
+
+  def cleanup() {
+    server.close()
+    Files.deleteIfExists(directory.resolve("apm.socket"))
+    Files.delete(directory)
+  }
+
+  def serve(channel) {
+    def input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)))
+    def output = Channels.newOutputStream(channel)
+    try {
+      while (true) {
+        def requestLine = KeepAliveHttpTransportTest.StubAgent.readLine(input)
+        if (requestLine == null) {
+          return
+        }
+        def contentLength = 0
+        def line
+        while ((line = KeepAliveHttpTransportTest.StubAgent.readLine(input))) {
+          requests.add(line)
+          if (line.toLowerCase().startsWith("content-length:")) {
+            contentLength = line.substring(15).trim() as int
+          }
+        }
+        requests.add(requestLine)
+        input.readFully(new byte[contentLength])
+        output.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK".getBytes(StandardCharsets.ISO_8859_1))
+        output.flush()
+      }
+    } catch (IOException e) {
+      channel.close()
+    }
+  }
+
+  def "traces are sent to the agent over the socket"() {
+    setup:
+    def api = new DDApi(new UnixDomainSocketTransport(socketPath))
+
+    expect:
+    api.sendTraces([])
+    api.sendTraces([])
+    api.sendServices([:])
+    requests.count("PUT /v0.4/traces HTTP/1.1") == 2
+    requests.contains("PUT /v0.4/services HTTP/1.1")
+    requests.contains("Host: localhost")
+    connections.get() == 1
+    api.toString() == "DDApi { tracesEndpoint=unix://$socketPath/v0.4/traces }"
+
+    cleanup:
+    api.close()
+  }
+
+  def "missing socket raises an exception"() {
+    setup:
+    def transport = new UnixDomainSocketTransport(socketPath + ".missing")
+
+    when:
+    transport.put("/v0.4/traces", [:], new byte[0], 0)
+
+    then:
+    thrown IOException
+  }
+}
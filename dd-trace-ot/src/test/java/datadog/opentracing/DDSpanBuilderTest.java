@@ -222,9 +222,9 @@ public class DDSpanBuilderTest {
     }
     spans.get(1).finish(tickEnd);
 
-    assertThat(root.context().getTrace()).hasSize(nbSamples + 1);
-    assertThat(root.context().getTrace()).containsAll(spans);
+    assertThat(root.context().getTrace().getPendingReferenceCount()).isEqualTo(nbSamples);
+    assertThat(root.context().getTrace().getRootSpan()).isEqualTo(root);
     assertThat(spans.get((int) (Math.random() * nbSamples)).context().getTrace())
-        .containsAll(spans);
+        .isSameAs(root.context().getTrace());
   }
 }